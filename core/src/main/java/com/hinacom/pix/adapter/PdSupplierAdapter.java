@@ -35,6 +35,7 @@ import org.openempi.data.Person;
 import org.openempi.data.PersonIdentifier;
 import org.openempi.data.SocialSecurityNumber;
 import org.openempi.data.TelephoneNumber;
+import org.openempi.ics.ccs.RankedCandidates;
 import org.openempi.ics.pids.IdentityService;
 import org.openempi.ics.pids.IdentityServiceHome;
 import com.hinacom.pix.data.DriversLicense;
@@ -42,7 +43,7 @@ import com.hinacom.pix.data.MessageHeader;
 import com.hinacom.pix.data.Patient;
 import com.hinacom.pix.data.PatientIdentifier;
 import com.hinacom.pix.data.PersonName;
-import com.hinacom.pix.ihe.IPdSupplierAdapter;
+import com.hinacom.pix.ihe.IPdSupplierPagingAdapter;
 import com.hinacom.pix.ihe.PdSupplierException;
 import com.hinacom.pix.ihe.pdq.PdqQuery;
 import com.hinacom.pix.ihe.pdq.PdqResult;
@@ -52,6 +53,7 @@ import com.misyshealthcare.connect.base.demographicdata.Address;
 import com.misyshealthcare.connect.base.demographicdata.PhoneNumber;
 import com.misyshealthcare.connect.net.Identifier;
 import org.openempi.ics.pids.IdentityServiceImpl;
+import org.openempi.ics.utility.ICSProperties;
 import org.springframework.beans.factory.annotation.Autowired;
 
 /**
@@ -62,12 +64,14 @@ import org.springframework.beans.factory.annotation.Autowired;
  * @author Wenzhi Li
  * @version 1.0, Dec 15, 2008
  */
-public class PdSupplierAdapter implements IPdSupplierAdapter {
+public class PdSupplierAdapter implements IPdSupplierPagingAdapter {
 
 	private static Logger log = Logger.getLogger(PdSupplierAdapter.class);
     @Autowired
 	private IdentityService identityService;
     private IdentityServiceHome identityServiceHome;
+    /** The most patients found for a query, 0 for no limit */
+    private int maxResults = ICSProperties.getInt("PDQ_MAX_RESULTS", 1000);
 
 	/**
 	 * Finds a list of matched patients based on PDQ query parameters.
@@ -80,31 +84,84 @@ public class PdSupplierAdapter implements IPdSupplierAdapter {
 	 *         of different logic patients, while the second list is a list of 
 	 *         the same patient in different domain systems. PdqResult also 
 	 *         contains a continuation reference number.
+	 * <p/>
+	 * The patients are the best ranked ones, at most the number requested
+	 * when the eMPI pages the query, or the maximum results of the adapter 
+	 * otherwise; the result reports how many patients matched in total, 
+	 * which is more than the patients returned when they were truncated.
+	 * 
 	 * @see PdqResult        
 	 */
 	public PdqResult findPatients(PdqQuery query, MessageHeader header)
 			throws PdSupplierException {
 		// identityService = getIdentityService();
 		try {
-			List results = identityService.findCandidates(getPerson(query, header), 0.0);
-			if (results == null) {
+			double minScore = (query.getConfidence() > 0) ? query.getConfidence() : 0.0;
+			int max = (query.getHowMany() > 0) ? query.getHowMany() : maxResults;
+			RankedCandidates ranked = identityService.findRankedCandidates(getPerson(query, header), minScore, max);
+			if (ranked == null) {
 				throw new PdSupplierException("Failed to find patients");
 			}
+			List results = ranked.getCandidates();
 			//Converts to Patients
 			List<List<Patient>> allPatients = new ArrayList<List<Patient>>();
+			List<String> keys = new ArrayList<String>();
 			for (int i=0; i<results.size(); i++) {
 				List<Patient> patients = new ArrayList<Patient>();
 				Person p = (Person)results.get(i);
 				Patient patient = toPatient(p);
 				patients.add(patient);
 				allPatients.add(patients);
+				keys.add(p.getOid());
+			}
+			PdqResult result = new PdqResult(allPatients);
+			result.setPatientKeys(keys);
+			result.setTotalCount(ranked.getTotalCount());
+			return result;
+		} catch (Exception e) {
+			log.error(e.getMessage());
+			throw new PdSupplierException(e);
+		}
+
+	}
+
+	/**
+	 * Loads again the patients found by {@link #findPatients}, by the 
+	 * OpenEMPI oid of their person.
+	 *
+	 * @param keys the person oids
+	 * @param header the <code>MessageHeader</code>
+	 * @throws PdSupplierException when there is trouble loading the patients
+	 * @return a list of list of <code>Patient</code> in the order of the keys
+	 */
+	public List<List<Patient>> getPatients(List<String> keys, MessageHeader header)
+			throws PdSupplierException {
+		try {
+			List<List<Patient>> allPatients = new ArrayList<List<Patient>>();
+			for (String key : keys) {
+				Person p = identityService.getPersonByOid(key);
+				if (p == null) {
+					log.debug("Person " + key + " no longer exists");
+					continue;
+				}
+				List<Patient> patients = new ArrayList<Patient>();
+				patients.add(toPatient(p));
+				allPatients.add(patients);
 			}
-			return new PdqResult(allPatients);
+			return allPatients;
 		} catch (Exception e) {
 			log.error(e.getMessage());
 			throw new PdSupplierException(e);
 		}
+	}
 
+	/**
+	 * Sets the most patients found for a query.
+	 *
+	 * @param maxResults the maximum, 0 for no limit
+	 */
+	public void setMaxResults(int maxResults) {
+		this.maxResults = maxResults;
 	}
 
 	/**
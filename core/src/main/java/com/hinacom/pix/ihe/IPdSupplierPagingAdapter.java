@@ -0,0 +1,44 @@
+/* Copyright 2009 Misys PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License. 
+ */
+
+
+package com.hinacom.pix.ihe;
+
+import java.util.List;
+
+import com.hinacom.pix.data.MessageHeader;
+import com.hinacom.pix.data.Patient;
+
+/**
+ * A PdSupplier adapter that can load again the patients it found, so that a
+ * paged PDQ query only keeps the keys of the patients not returned yet, and 
+ * loads each page when it is requested.
+ *
+ * @see com.hinacom.pix.ihe.pdq.PdqResult#getPatientKeys()
+ */
+public interface IPdSupplierPagingAdapter extends IPdSupplierAdapter {
+
+    /**
+     * Loads the logic patients with the given keys.
+     *
+     * @param keys the keys returned with the <code>PdqResult</code> of 
+     *        {@link #findPatients}
+     * @param header the <code>MessageHeader</code> of the continuation query
+     * @throws PdSupplierException when there is trouble loading the patients
+     * @return a list of list of <code>Patient</code> in the order of the keys;
+     *         the patients no longer found are left out
+     */
+    public List<List<Patient>> getPatients(List<String> keys, MessageHeader header) throws PdSupplierException;
+}
@@ -14,6 +14,8 @@
  */
 package com.hinacom.pix.ihe;
 
+import java.util.List;
+import java.util.Properties;
 
 /**
  * The request interface for PIX Update Notification. This
@@ -32,5 +34,38 @@ public interface IPixUpdateNotificationRequest {
 	 * PIX Consumers
 	 */
 	public void execute();
+
+	/**
+	 * Gets the names of the PIX Consumer connections this request has
+	 * an update notification for.
+	 * 
+	 * @return the subscriber names
+	 */
+	public List<String> getSubscribers();
+
+	/**
+	 * Sends the PIX update notification of this request to one
+	 * subscribed PIX Consumer.
+	 * 
+	 * @param subscriber the name of the PIX Consumer connection
+	 * @throws Exception When the notification was not accepted, so that
+	 * 			it is sent again later
+	 */
+	public void send(String subscriber) throws Exception;
+
+	/**
+	 * Gets the name of the actor that created this request, and that
+	 * restores it from the notification journal after a restart.
+	 * 
+	 * @return the actor name
+	 */
+	public String getSource();
+
+	/**
+	 * Saves what the source actor needs to restore this request.
+	 * 
+	 * @param properties the journal entry of this request
+	 */
+	public void save(Properties properties);
 	
 }
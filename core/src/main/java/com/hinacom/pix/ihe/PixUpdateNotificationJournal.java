@@ -0,0 +1,158 @@
+/* Copyright 2009 Misys PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License. 
+ */
+package com.hinacom.pix.ihe;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A directory holding one properties file per PIX update notification not
+ * yet delivered, so that pending notifications survive a restart.  Entries
+ * are named after the time they were created, so listing them in name
+ * order gives the order they were accepted in.  Notifications that could
+ * not be delivered are moved to the <code>dead</code> sub-directory.
+ * <p/>
+ * An entry is written to a temporary file then renamed, so a crash leaves
+ * either the old or the new entry.
+ *
+ * @see PixUpdateNotifier
+ */
+public class PixUpdateNotificationJournal {
+	private static Logger log = Logger.getLogger(PixUpdateNotificationJournal.class);
+
+	private static final String SUFFIX = ".properties";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final AtomicLong sequence = new AtomicLong();
+
+	private final File directory;
+	private final File deadDirectory;
+
+	/**
+	 * Opens the journal in a directory, creating it if needed.
+	 *
+	 * @param directory the journal directory
+	 * @throws IOException When the directory cannot be created
+	 */
+	public PixUpdateNotificationJournal(File directory) throws IOException {
+		this.directory = directory;
+		this.deadDirectory = new File(directory, "dead");
+		if (!deadDirectory.isDirectory() && !deadDirectory.mkdirs())
+			throw new IOException("Cannot create notification journal " + deadDirectory.getAbsolutePath());
+	}
+
+	/**
+	 * Returns a new entry name, later than any returned before.
+	 */
+	public String newEntryName() {
+		return String.format("%013d-%06d", System.currentTimeMillis(), sequence.incrementAndGet() % 1000000);
+	}
+
+	/**
+	 * Writes or replaces an entry.
+	 */
+	public void write(String name, Properties properties) throws IOException {
+		File temp = new File(directory, name + TEMP_SUFFIX);
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			properties.store(out, null);
+			out.flush();
+			((FileOutputStream) out).getFD().sync();
+		} finally {
+			out.close();
+		}
+		File file = new File(directory, name + SUFFIX);
+		if (!temp.renameTo(file)) {
+			// renameTo does not replace an existing file on every platform
+			file.delete();
+			if (!temp.renameTo(file))
+				throw new IOException("Cannot write notification journal entry " + file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Deletes the entry of a notification that was delivered.
+	 */
+	public void delete(String name) {
+		File file = new File(directory, name + SUFFIX);
+		if (file.exists() && !file.delete())
+			log.warn("Cannot delete notification journal entry " + file.getAbsolutePath());
+	}
+
+	/**
+	 * Moves the entry of a notification that could not be delivered to the
+	 * dead letter directory, updated with the last error.
+	 */
+	public void bury(String name, Properties properties) {
+		File file = new File(directory, name + SUFFIX);
+		File dead = new File(deadDirectory, name + SUFFIX);
+		try {
+			OutputStream out = new FileOutputStream(dead);
+			try {
+				properties.store(out, null);
+			} finally {
+				out.close();
+			}
+			file.delete();
+		} catch (IOException e) {
+			log.error("Cannot move notification journal entry " + file.getAbsolutePath() + " to " + deadDirectory, e);
+		}
+	}
+
+	/**
+	 * Gets the names of the pending entries, oldest first.
+	 */
+	public List<String> list() {
+		List<String> names = new ArrayList<String>();
+		String[] files = directory.list();
+		if (files == null)
+			return names;
+		Arrays.sort(files);
+		for (String file : files) {
+			if (file.endsWith(SUFFIX))
+				names.add(file.substring(0, file.length() - SUFFIX.length()));
+		}
+		return names;
+	}
+
+	/**
+	 * Reads an entry.
+	 */
+	public Properties read(String name) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(new File(directory, name + SUFFIX));
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return properties;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+}
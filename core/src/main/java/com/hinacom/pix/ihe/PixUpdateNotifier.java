@@ -14,76 +14,422 @@
  */
 package com.hinacom.pix.ihe;
 
-import java.util.concurrent.BlockingQueue;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.openempi.ics.utility.IcsTrace;
+
+import com.misyshealthcare.connect.net.IConnectionDescription;
 
 
 /**
  * The consumer class to consume the {@link IPixUpdateNotificationRequest}
- * in the blocking queue. The producer of requests is the PixFeedHandler which
+ * accepted from the producers. The producer of requests is the PixFeedHandler which
  * generates {@link IPixUpdateNotificationRequest}.
- * 
+ * <p/>
+ * A request is split into one delivery per subscribed PIX Consumer.  The
+ * deliveries of a consumer are sent in the order they were accepted, one
+ * at a time, by a fixed pool of worker threads shared by all consumers.  A
+ * delivery that fails is retried after a delay that doubles with each
+ * attempt, holding back the later deliveries of that consumer only; after
+ * the maximum number of attempts it is dropped to the dead letter area of
+ * the journal.  The PIX Feeds forwarded to the XDS Registry go through the
+ * same pipeline, the XDS Registry being their only subscriber.
+ * <p/>
+ * The deliveries of requests from a registered source are journaled until
+ * delivered, and the source restores the pending ones when it registers
+ * again after a restart.  The following properties of the source's
+ * connection configure it:
+ * <ul>
+ * <li>notificationJournalDir - the journal directory (default
+ *     notifications/&lt;connection name&gt;)</li>
+ * <li>notificationMaxAttempts - attempts before a delivery is dead (default 10)</li>
+ * <li>notificationRetrySecs - the delay before the first retry (default 5)</li>
+ * <li>notificationMaxRetrySecs - the longest delay between retries (default 600)</li>
+ * <li>notificationWorkerThreads - the minimum size of the worker pool (default 4)</li>
+ * </ul>
+ *
  * @author Wenzhi Li
  * @version 1.0, Feb 14, 2009
  * @see IPixUpdateNotificationRequest
  */
-public class PixUpdateNotifier extends Thread {
+public class PixUpdateNotifier {
+	private static Logger log = Logger.getLogger(PixUpdateNotifier.class);
+
+	// Indexes into the statistics arrays
+	public static final int STAT_QUEUE_DEPTH = 0;
+	public static final int STAT_DELIVERED = 1;
+	public static final int STAT_FAILURES = 2;
+	public static final int STAT_DEAD = 3;
+	public static final int STAT_TOTAL_LATENCY_MILLIS = 4;
+	public static final int STAT_MAX_LATENCY_MILLIS = 5;
+
+	public static final int DEFAULT_WORKER_THREADS = 4;
+	public static final int DEFAULT_MAX_ATTEMPTS = 10;
+	public static final int DEFAULT_RETRY_SECS = 5;
+	public static final int DEFAULT_MAX_RETRY_SECS = 600;
+
+	/* Journal entry keys of the notifier, the request's own are saved by the request */
+	private static final String KEY_SOURCE = "notifier.source";
+	private static final String KEY_SUBSCRIBER = "notifier.subscriber";
+	private static final String KEY_ACCEPTED = "notifier.accepted";
+	private static final String KEY_ATTEMPTS = "notifier.attempts";
+	private static final String KEY_ERROR = "notifier.error";
+
 	private static PixUpdateNotifier instance = null;
 
-	/* The blocking queue to hold all the PixUpdateNotification requests */
-	private final BlockingQueue<IPixUpdateNotificationRequest> queue =
-	      new LinkedBlockingQueue<IPixUpdateNotificationRequest>();
+	/**
+	 * An actor creating {@link IPixUpdateNotificationRequest}s, which can
+	 * restore them from their journal entries.
+	 */
+	public interface Source {
+		/**
+		 * Restores a request saved by {@link IPixUpdateNotificationRequest#save(Properties)}.
+		 *
+		 * @param properties the journal entry
+		 * @return the request
+		 * @throws Exception When the entry cannot be restored
+		 */
+		public IPixUpdateNotificationRequest restore(Properties properties) throws Exception;
+	}
+
+	/* The worker threads, and the thread scheduling retries */
+	private final ThreadPoolExecutor workers;
+	private final ScheduledExecutorService scheduler;
+
+	/* source name -> settings of the source */
+	private final Map<String, SourceSettings> sources = new ConcurrentHashMap<String, SourceSettings>();
+	/* source name + "/" + subscriber -> queue of the subscriber */
+	private final Map<String, SubscriberQueue> queues = new HashMap<String, SubscriberQueue>();
 
 	//private constructor
-	private PixUpdateNotifier() {}
-	
+	private PixUpdateNotifier() {
+		workers = new ThreadPoolExecutor(DEFAULT_WORKER_THREADS, DEFAULT_WORKER_THREADS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("PixUpdateNotifier-worker"));
+		scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("PixUpdateNotifier-retry"));
+	}
+
 	/**
-	 * Gets the singleton class. 
+	 * Gets the singleton class.
 	 */
 	public static synchronized PixUpdateNotifier getInstance() {
 		if (instance == null) {
 			instance = new PixUpdateNotifier();
-			instance.start();
 		}
-		return instance;	
+		return instance;
+	}
+
+	/**
+	 * Registers an actor whose requests are journaled, and queues again the
+	 * deliveries of its requests still pending in the journal.
+	 *
+	 * @param connection the connection description of the actor, whose
+	 * 			description is the source name of its requests
+	 * @param source restores the requests of the actor
+	 */
+	public void registerSource(IConnectionDescription connection, Source source) {
+		String name = connection.getDescription();
+		String dir = connection.getProperty("notificationJournalDir");
+		File directory = (dir != null) ? new File(dir) : new File("notifications", connection.getName());
+		PixUpdateNotificationJournal journal = null;
+		try {
+			journal = new PixUpdateNotificationJournal(directory);
+		} catch (IOException e) {
+			log.error("PIX update notifications of " + name + " will not survive a restart: " + e.getMessage());
+		}
+		SourceSettings settings = new SourceSettings(source, journal,
+				getIntProperty(connection, "notificationMaxAttempts", DEFAULT_MAX_ATTEMPTS),
+				getIntProperty(connection, "notificationRetrySecs", DEFAULT_RETRY_SECS) * 1000L,
+				getIntProperty(connection, "notificationMaxRetrySecs", DEFAULT_MAX_RETRY_SECS) * 1000L);
+		int threads = getIntProperty(connection, "notificationWorkerThreads", DEFAULT_WORKER_THREADS);
+		synchronized (workers) {
+			if (threads > workers.getMaximumPoolSize()) {
+				workers.setMaximumPoolSize(threads);
+				workers.setCorePoolSize(threads);
+			}
+		}
+		if (sources.put(name, settings) == null && journal != null)
+			recover(name, settings);
 	}
-	
+
 	/**
 	 * Accepts a {@link IPixUpdateNotificationRequest} from a producer.
-	 * 
+	 *
 	 * @param pixUpdateNotificationRequest
 	 */
 	public void accept(IPixUpdateNotificationRequest pixUpdateNotificationRequest) {
-		while (true) {
-			try {  
-		    	queue.put(pixUpdateNotificationRequest);
-		    	return;
-	        }catch (InterruptedException e) {
-	        }
+		IcsTrace trace = IcsTrace.current();
+		long stage = trace.startStage();
+		String source = pixUpdateNotificationRequest.getSource();
+		SourceSettings settings = sources.get(source);
+		for (String subscriber : pixUpdateNotificationRequest.getSubscribers()) {
+			Delivery delivery = new Delivery(pixUpdateNotificationRequest, source, subscriber,
+					System.currentTimeMillis(), 0);
+			if (settings != null && settings.journal != null) {
+				delivery.entry = settings.journal.newEntryName();
+				try {
+					settings.journal.write(delivery.entry, delivery.toProperties());
+				} catch (IOException e) {
+					log.error("Cannot journal PIX update notification to " + subscriber + ": " + e.getMessage());
+					delivery.entry = null;
+				}
+			}
+			getQueue(source, subscriber).add(delivery);
+		}
+		trace.endStage("notify", stage);
+	}
+
+	/**
+	 * Gets the statistics of each subscriber, indexed by the STAT_
+	 * constants: queue depth, deliveries, failed attempts, dead deliveries,
+	 * and the total and maximum latency from acceptance to delivery.
+	 *
+	 * @return source name + "/" + subscriber name -> statistics
+	 */
+	public Map<String, long[]> getStatistics() {
+		Map<String, long[]> stats = new HashMap<String, long[]>();
+		synchronized (queues) {
+			for (Map.Entry<String, SubscriberQueue> entry : queues.entrySet())
+				stats.put(entry.getKey(), entry.getValue().getStatistics());
 		}
+		return stats;
 	}
 
-	@Override
-    public void run() {
-       while (true) {
-    	   try {
-	            execute(queue.take());
-           }catch (InterruptedException e) {
-           }
-       }
-   }
-
-   /**
-    * Executes a {@link IPixUpdateNotificationRequest}
-    * 
-    * @param pixUpdateNotificationRequest the request to execute
-    */
-   private void execute(final IPixUpdateNotificationRequest pixUpdateNotificationRequest) {
-      new Thread(new Runnable() {
-         public void run() {
-            pixUpdateNotificationRequest.execute();
-         }
-      }).start();
-   }
+	/**
+	 * Queues the deliveries pending in the journal of a source.
+	 */
+	private void recover(String name, SourceSettings settings) {
+		int recovered = 0;
+		for (String entry : settings.journal.list()) {
+			try {
+				Properties properties = settings.journal.read(entry);
+				if (!name.equals(properties.getProperty(KEY_SOURCE)))
+					continue;
+				IPixUpdateNotificationRequest request = settings.source.restore(properties);
+				String subscriber = properties.getProperty(KEY_SUBSCRIBER);
+				Delivery delivery = new Delivery(request, name, subscriber,
+						Long.parseLong(properties.getProperty(KEY_ACCEPTED)),
+						Integer.parseInt(properties.getProperty(KEY_ATTEMPTS, "0")));
+				delivery.entry = entry;
+				getQueue(name, subscriber).add(delivery);
+				recovered++;
+			} catch (Exception e) {
+				log.error("Cannot restore PIX update notification " + entry + " of " + name + ": " + e.getMessage());
+			}
+		}
+		if (recovered > 0)
+			log.info("Restored " + recovered + " pending PIX update notifications of " + name);
+	}
 
+	private SubscriberQueue getQueue(String source, String subscriber) {
+		String key = source + "/" + subscriber;
+		synchronized (queues) {
+			SubscriberQueue queue = queues.get(key);
+			if (queue == null) {
+				queue = new SubscriberQueue(key);
+				queues.put(key, queue);
+			}
+			return queue;
+		}
+	}
+
+	private static int getIntProperty(IConnectionDescription connection, String name, int defaultValue) {
+		String value = connection.getProperty(name);
+		if (value == null || value.trim().length() == 0)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			log.warn("Invalid " + name + " property of " + connection.getDescription() + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * The journal and retry settings of a source.
+	 */
+	private static class SourceSettings {
+		private final Source source;
+		private final PixUpdateNotificationJournal journal;
+		private final int maxAttempts;
+		private final long retryMillis;
+		private final long maxRetryMillis;
+
+		SourceSettings(Source source, PixUpdateNotificationJournal journal,
+				int maxAttempts, long retryMillis, long maxRetryMillis) {
+			this.source = source;
+			this.journal = journal;
+			this.maxAttempts = Math.max(1, maxAttempts);
+			this.retryMillis = Math.max(1, retryMillis);
+			this.maxRetryMillis = Math.max(this.retryMillis, maxRetryMillis);
+		}
+	}
+
+	/**
+	 * The notification of one request to one subscriber.
+	 */
+	private static class Delivery {
+		private final IPixUpdateNotificationRequest request;
+		private final String source;
+		private final String subscriber;
+		private final long accepted;
+		private int attempts;
+		private String error = null;
+		/* The journal entry name, null if not journaled */
+		private String entry = null;
+
+		Delivery(IPixUpdateNotificationRequest request, String source, String subscriber,
+				long accepted, int attempts) {
+			this.request = request;
+			this.source = source;
+			this.subscriber = subscriber;
+			this.accepted = accepted;
+			this.attempts = attempts;
+		}
+
+		Properties toProperties() {
+			Properties properties = new Properties();
+			request.save(properties);
+			properties.setProperty(KEY_SOURCE, source);
+			properties.setProperty(KEY_SUBSCRIBER, subscriber);
+			properties.setProperty(KEY_ACCEPTED, Long.toString(accepted));
+			properties.setProperty(KEY_ATTEMPTS, Integer.toString(attempts));
+			if (error != null)
+				properties.setProperty(KEY_ERROR, error);
+			return properties;
+		}
+	}
+
+	/**
+	 * The deliveries pending for one subscriber.  At most one task of the
+	 * queue is running or waiting for a worker or a retry at a time, which
+	 * keeps the deliveries in order.
+	 */
+	private class SubscriberQueue implements Runnable {
+		private final String name;
+		private final LinkedList<Delivery> pending = new LinkedList<Delivery>();
+		private boolean scheduled = false;
+
+		private long delivered = 0;
+		private long failures = 0;
+		private long dead = 0;
+		private long totalLatency = 0;
+		private long maxLatency = 0;
+
+		SubscriberQueue(String name) {
+			this.name = name;
+		}
+
+		synchronized void add(Delivery delivery) {
+			pending.add(delivery);
+			if (!scheduled) {
+				scheduled = true;
+				workers.execute(this);
+			}
+		}
+
+		/**
+		 * Sends the oldest delivery, then hands the worker back so the
+		 * other subscribers get their turn.
+		 */
+		public void run() {
+			Delivery delivery;
+			synchronized (this) {
+				delivery = pending.getFirst();
+			}
+			SourceSettings settings = sources.get(delivery.source);
+			PixUpdateNotificationJournal journal = (settings == null) ? null : settings.journal;
+			int maxAttempts = (settings == null) ? DEFAULT_MAX_ATTEMPTS : settings.maxAttempts;
+
+			long delay = 0;
+			try {
+				delivery.request.send(delivery.subscriber);
+				long latency = System.currentTimeMillis() - delivery.accepted;
+				if (journal != null && delivery.entry != null)
+					journal.delete(delivery.entry);
+				synchronized (this) {
+					pending.removeFirst();
+					delivered++;
+					totalLatency += latency;
+					maxLatency = Math.max(maxLatency, latency);
+				}
+			} catch (Throwable e) {
+				delivery.attempts++;
+				delivery.error = String.valueOf(e.getMessage());
+				boolean giveUp = delivery.attempts >= maxAttempts;
+				if (giveUp) {
+					log.error("Giving up PIX update notification to " + name + " after " + delivery.attempts
+							+ " attempts: " + delivery.error);
+					if (journal != null && delivery.entry != null)
+						journal.bury(delivery.entry, delivery.toProperties());
+				} else {
+					long retry = (settings == null) ? DEFAULT_RETRY_SECS * 1000L : settings.retryMillis;
+					long maxRetry = (settings == null) ? DEFAULT_MAX_RETRY_SECS * 1000L : settings.maxRetryMillis;
+					delay = Math.min(maxRetry, retry << Math.min(delivery.attempts - 1, 20));
+					log.warn("PIX update notification to " + name + " failed, attempt " + delivery.attempts
+							+ ", retrying in " + delay / 1000 + "s: " + delivery.error);
+					if (journal != null && delivery.entry != null) {
+						try {
+							journal.write(delivery.entry, delivery.toProperties());
+						} catch (IOException ioe) {
+							log.warn("Cannot update notification journal entry " + delivery.entry + ": " + ioe.getMessage());
+						}
+					}
+				}
+				synchronized (this) {
+					failures++;
+					if (giveUp) {
+						pending.removeFirst();
+						dead++;
+					}
+				}
+			}
+
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					scheduled = false;
+				} else if (delay > 0) {
+					scheduler.schedule(new Runnable() {
+						public void run() {
+							workers.execute(SubscriberQueue.this);
+						}
+					}, delay, TimeUnit.MILLISECONDS);
+				} else {
+					workers.execute(this);
+				}
+			}
+		}
+
+		synchronized long[] getStatistics() {
+			return new long[] { pending.size(), delivered, failures, dead, totalLatency, maxLatency };
+		}
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
 }
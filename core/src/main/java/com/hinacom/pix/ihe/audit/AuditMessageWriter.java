@@ -0,0 +1,217 @@
+/* Copyright 2009 Misys PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License. 
+ */
+
+package com.hinacom.pix.ihe.audit;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.hinacom.pix.ihe.audit.jaxb.ActiveParticipantType;
+import com.hinacom.pix.ihe.audit.jaxb.AuditMessage;
+import com.hinacom.pix.ihe.audit.jaxb.AuditSourceIdentificationType;
+import com.hinacom.pix.ihe.audit.jaxb.CodedValueType;
+import com.hinacom.pix.ihe.audit.jaxb.EventIdentificationType;
+import com.hinacom.pix.ihe.audit.jaxb.ParticipantObjectIdentificationType;
+import com.hinacom.pix.ihe.audit.jaxb.TypeValuePairType;
+
+/**
+ * Writes an audit message as RFC 3881 XML with a StAX stream writer rather
+ * than a JAXB marshaller.  The schema is fixed, so the elements and
+ * attributes are written in schema order straight from the JAXB objects,
+ * without the validation and reflection of the marshaller. <p />
+ * 
+ * The optional unsignedByte attributes (NetworkAccessPointTypeCode and the
+ * ParticipantObject codes) cannot tell unset from 0 through the JAXB
+ * interfaces; 0 is not a valid value of any of them, so it is not written.
+ * 
+ * @see AuditObjectFactory
+ */
+public class AuditMessageWriter {
+	private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+	/**
+	 * Writes an audit message to a string.
+	 * 
+	 * @param auditMessage the complete audit message
+	 * @return the XML of the message
+	 * @throws XMLStreamException if the message cannot be written
+	 */
+	public static String write(AuditMessage auditMessage) throws XMLStreamException {
+		StringWriter out = new StringWriter(2048);
+		write(auditMessage, out);
+		return out.toString();
+	}
+
+	/**
+	 * Writes an audit message.
+	 * 
+	 * @param auditMessage the complete audit message
+	 * @param out where the XML is written to
+	 * @throws XMLStreamException if the message cannot be written
+	 */
+	public static void write(AuditMessage auditMessage, Writer out) throws XMLStreamException {
+		XMLStreamWriter writer = outputFactory.createXMLStreamWriter(out);
+		writer.writeStartDocument("UTF-8", "1.0");
+		writer.writeStartElement("AuditMessage");
+		writeEventIdentification(writer, auditMessage.getEventIdentification());
+		for (Object participant : auditMessage.getActiveParticipant())
+			writeActiveParticipant(writer, (ActiveParticipantType) participant);
+		for (Object sourceId : auditMessage.getAuditSourceIdentification())
+			writeAuditSourceIdentification(writer, (AuditSourceIdentificationType) sourceId);
+		for (Object objectId : auditMessage.getParticipantObjectIdentification())
+			writeParticipantObjectIdentification(writer, (ParticipantObjectIdentificationType) objectId);
+		writer.writeEndElement();
+		writer.writeEndDocument();
+		writer.close();
+	}
+
+	private static void writeEventIdentification(XMLStreamWriter writer, EventIdentificationType eventId)
+		throws XMLStreamException
+	{
+		writer.writeStartElement("EventIdentification");
+		writeAttribute(writer, "EventActionCode", eventId.getEventActionCode());
+		writeAttribute(writer, "EventDateTime", printDateTime(eventId.getEventDateTime()));
+		writeAttribute(writer, "EventOutcomeIndicator", String.valueOf(eventId.getEventOutcomeIndicator()));
+		writeCodedValue(writer, "EventID", eventId.getEventID());
+		writeCodedValues(writer, "EventTypeCode", eventId.getEventTypeCode());
+		writer.writeEndElement();
+	}
+
+	private static void writeActiveParticipant(XMLStreamWriter writer, ActiveParticipantType participant)
+		throws XMLStreamException
+	{
+		writer.writeStartElement("ActiveParticipant");
+		writeAttribute(writer, "UserID", participant.getUserID());
+		writeAttribute(writer, "AlternativeUserID", participant.getAlternativeUserID());
+		writeAttribute(writer, "UserName", participant.getUserName());
+		writeAttribute(writer, "UserIsRequestor", String.valueOf(participant.isUserIsRequestor()));
+		writeAttribute(writer, "NetworkAccessPointID", participant.getNetworkAccessPointID());
+		writeAttribute(writer, "NetworkAccessPointTypeCode", participant.getNetworkAccessPointTypeCode());
+		writeCodedValues(writer, "RoleIDCode", participant.getRoleIDCode());
+		writer.writeEndElement();
+	}
+
+	private static void writeAuditSourceIdentification(XMLStreamWriter writer, AuditSourceIdentificationType sourceId)
+		throws XMLStreamException
+	{
+		writer.writeStartElement("AuditSourceIdentification");
+		writeAttribute(writer, "AuditEnterpriseSiteID", sourceId.getAuditEnterpriseSiteID());
+		writeAttribute(writer, "AuditSourceID", sourceId.getAuditSourceID());
+		writeCodedValues(writer, "AuditSourceTypeCode", sourceId.getAuditSourceTypeCode());
+		writer.writeEndElement();
+	}
+
+	private static void writeParticipantObjectIdentification(XMLStreamWriter writer, ParticipantObjectIdentificationType objectId)
+		throws XMLStreamException
+	{
+		writer.writeStartElement("ParticipantObjectIdentification");
+		writeAttribute(writer, "ParticipantObjectID", objectId.getParticipantObjectID());
+		writeAttribute(writer, "ParticipantObjectTypeCode", objectId.getParticipantObjectTypeCode());
+		writeAttribute(writer, "ParticipantObjectTypeCodeRole", objectId.getParticipantObjectTypeCodeRole());
+		writeAttribute(writer, "ParticipantObjectDataLifeCycle", objectId.getParticipantObjectDataLifeCycle());
+		writeAttribute(writer, "ParticipantObjectSensitivity", objectId.getParticipantObjectSensitivity());
+		writeCodedValue(writer, "ParticipantObjectIDTypeCode", objectId.getParticipantObjectIDTypeCode());
+		// The schema allows a name or a query; like JAXB, neither is written when both are set
+		if (objectId.getParticipantObjectName() != null && objectId.getParticipantObjectQuery() == null) {
+			writer.writeStartElement("ParticipantObjectName");
+			writer.writeCharacters(objectId.getParticipantObjectName());
+			writer.writeEndElement();
+		} else if (objectId.getParticipantObjectName() == null && objectId.getParticipantObjectQuery() != null) {
+			writer.writeStartElement("ParticipantObjectQuery");
+			writer.writeCharacters(printBase64(objectId.getParticipantObjectQuery()));
+			writer.writeEndElement();
+		}
+		for (Object detail : objectId.getParticipantObjectDetail()) {
+			TypeValuePairType pair = (TypeValuePairType) detail;
+			writer.writeEmptyElement("ParticipantObjectDetail");
+			writeAttribute(writer, "type", pair.getType());
+			writeAttribute(writer, "value", printBase64(pair.getValue()));
+		}
+		writer.writeEndElement();
+	}
+
+	private static void writeCodedValues(XMLStreamWriter writer, String name, List<?> values)
+		throws XMLStreamException
+	{
+		for (Object value : values)
+			writeCodedValue(writer, name, (CodedValueType) value);
+	}
+
+	private static void writeCodedValue(XMLStreamWriter writer, String name, CodedValueType value)
+		throws XMLStreamException
+	{
+		if (value == null)
+			return;
+		writer.writeEmptyElement(name);
+		writeAttribute(writer, "code", value.getCode());
+		writeAttribute(writer, "codeSystem", value.getCodeSystem());
+		writeAttribute(writer, "codeSystemName", value.getCodeSystemName());
+		writeAttribute(writer, "displayName", value.getDisplayName());
+		writeAttribute(writer, "originalText", value.getOriginalText());
+	}
+
+	private static void writeAttribute(XMLStreamWriter writer, String name, String value)
+		throws XMLStreamException
+	{
+		if (value != null)
+			writer.writeAttribute(name, value);
+	}
+
+	private static void writeAttribute(XMLStreamWriter writer, String name, short value)
+		throws XMLStreamException
+	{
+		if (value != 0)
+			writer.writeAttribute(name, Short.toString(value));
+	}
+
+	/**
+	 * Prints an xs:dateTime with milliseconds and the time zone offset, as JAXB does.
+	 */
+	static String printDateTime(Calendar calendar) {
+		if (calendar == null)
+			return null;
+		StringBuilder sb = new StringBuilder(29);
+		pad(sb, calendar.get(Calendar.YEAR), 4).append('-');
+		pad(sb, calendar.get(Calendar.MONTH) + 1, 2).append('-');
+		pad(sb, calendar.get(Calendar.DAY_OF_MONTH), 2).append('T');
+		pad(sb, calendar.get(Calendar.HOUR_OF_DAY), 2).append(':');
+		pad(sb, calendar.get(Calendar.MINUTE), 2).append(':');
+		pad(sb, calendar.get(Calendar.SECOND), 2).append('.');
+		pad(sb, calendar.get(Calendar.MILLISECOND), 3);
+		int offset = (calendar.get(Calendar.ZONE_OFFSET) + calendar.get(Calendar.DST_OFFSET)) / 60000;
+		sb.append(offset < 0 ? '-' : '+');
+		offset = Math.abs(offset);
+		pad(sb, offset / 60, 2).append(':');
+		pad(sb, offset % 60, 2);
+		return sb.toString();
+	}
+
+	private static StringBuilder pad(StringBuilder sb, int value, int width) {
+		String digits = Integer.toString(value);
+		for (int i = digits.length(); i < width; i++)
+			sb.append('0');
+		return sb.append(digits);
+	}
+
+	private static String printBase64(byte[] value) {
+		return value == null ? null : java.util.Base64.getEncoder().encodeToString(value);
+	}
+}
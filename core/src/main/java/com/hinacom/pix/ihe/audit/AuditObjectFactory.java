@@ -25,6 +25,7 @@ import java.util.List;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
+import javax.xml.stream.XMLStreamException;
 
 import com.hinacom.pix.ihe.audit.jaxb.ActiveParticipantType;
 import com.hinacom.pix.ihe.audit.jaxb.AuditMessage;
@@ -35,9 +36,6 @@ import com.hinacom.pix.ihe.audit.jaxb.ObjectFactory;
 import com.hinacom.pix.ihe.audit.jaxb.ParticipantObjectIdentificationType;
 import com.hinacom.pix.ihe.audit.jaxb.TypeValuePairType;
 
-import sun.misc.BASE64Decoder;
-import sun.misc.BASE64Encoder;
-
 import com.misyshealthcare.connect.base.audit.ActiveParticipant;
 import com.misyshealthcare.connect.base.audit.AuditCodeMappings;
 
@@ -82,6 +80,9 @@ import com.misyshealthcare.connect.base.audit.AuditCodeMappings;
  * @version 1.0 - Nov 13, 2005
  */
 public class AuditObjectFactory {
+	private static JAXBContext messageContext = null;
+	private static final ThreadLocal<Marshaller> marshallers = new ThreadLocal<Marshaller>();
+	
 	private ObjectFactory messageFactory;
 	private EventIdentificationType eventId = null;
 	private List<ActiveParticipantType> activeParticipants;
@@ -167,19 +168,65 @@ public class AuditObjectFactory {
 	{
 		// get the message:
 		AuditMessage auditMessage = getAuditMessage();
-		JAXBContext messageContext = JAXBContext.newInstance("com.hinacom.pix.ihe.audit.jaxb");
-		Marshaller marshaller = messageContext.createMarshaller();
-		marshaller.setProperty( Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE );
 
 		// format the message as a string:
-		StringWriter messageWriter = new StringWriter();
-		marshaller.marshal( auditMessage, messageWriter );
-		String message = messageWriter.toString();
+		String message = toXml(auditMessage, messenger.getAuditTrailDescription().getSerializer());
 		
 		// send the message to the configured
 		messenger.sendMessage(message);
 	}
 	
+	/**
+	 * Formats an audit message as a string, without indentation.
+	 * 
+	 * @param auditMessage the complete audit message
+	 * @param serializer {@link AuditTrailDescription#STAX} to write the message
+	 * with {@link AuditMessageWriter}, otherwise it is marshalled with JAXB 
+	 * @return the XML of the message
+	 * @throws JAXBException if the message cannot be formatted
+	 */
+	static String toXml(AuditMessage auditMessage, String serializer)
+		throws JAXBException
+	{
+		if (AuditTrailDescription.STAX.equalsIgnoreCase(serializer)) {
+			try {
+				return AuditMessageWriter.write(auditMessage);
+			} catch (XMLStreamException e) {
+				throw new JAXBException("Cannot write audit message", e);
+			}
+		}
+		StringWriter messageWriter = new StringWriter(2048);
+		getMarshaller().marshal( auditMessage, messageWriter );
+		return messageWriter.toString();
+	}
+	
+	/**
+	 * Gets the JAXB context of the audit messages, which is created once
+	 * as it is expensive and can be shared by all threads.
+	 */
+	static synchronized JAXBContext getContext()
+		throws JAXBException
+	{
+		if (messageContext == null)
+			messageContext = JAXBContext.newInstance("com.hinacom.pix.ihe.audit.jaxb");
+		return messageContext;
+	}
+	
+	/**
+	 * Gets the marshaller of the current thread; marshallers are not thread safe.
+	 */
+	private static Marshaller getMarshaller()
+		throws JAXBException
+	{
+		Marshaller marshaller = marshallers.get();
+		if (marshaller == null) {
+			marshaller = getContext().createMarshaller();
+			marshaller.setProperty( Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.FALSE );
+			marshallers.set(marshaller);
+		}
+		return marshaller;
+	}
+	
 	/** 
 	 * Generates the source id for this message.  Should be parameterized from the 
 	 * configuration file.
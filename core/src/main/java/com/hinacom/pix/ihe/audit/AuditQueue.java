@@ -0,0 +1,342 @@
+/* Copyright 2009 Misys PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License. 
+ */
+
+package com.hinacom.pix.ihe.audit;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.bind.JAXBException;
+
+import org.openempi.ics.utility.BatchingQueue;
+
+import com.hinacom.pix.ihe.audit.jaxb.AuditMessage;
+
+/**
+ * Sends the audit messages of one audit repository from a background
+ * thread, so that a slow or unreachable repository does not hold up the
+ * transactions being audited. <p />
+ * 
+ * Messages are queued as JAXB objects; the thread formats them and sends
+ * them in batches of up to BATCH_SIZE.  When the repository cannot be
+ * reached, the batch is written to a file in the spill directory, and the
+ * following batches go there too until the repository is back, at which
+ * point the spilled files are sent oldest first.  Spilled files left by
+ * the last run are sent once the repository can be reached. <p />
+ * 
+ * When the queue is full the OVERFLOW policy applies: BLOCK waits for
+ * room, DROP_OLDEST drops the oldest queued message, and SPILL formats
+ * the message and spills it straight away, so it may be sent before some
+ * older queued messages.  Without a spill directory, SPILL drops the
+ * oldest message and batches that cannot be sent are dropped.  Messages
+ * added after {@link #close(long)} are dropped.
+ * 
+ * @see AuditTrailDescription
+ * @see IheAuditTrail
+ */
+public class AuditQueue extends BatchingQueue<AuditMessage> {
+
+	// Indexes into the statistics array, besides those of BatchingQueue
+	public static final int STAT_SENT = STAT_WRITTEN;
+	public static final int STAT_SEND_FAILURES = STAT_BATCH_FAILURES;
+	public static final int STAT_SPILLED = 6;
+
+	private static final String SPILL_SUFFIX = ".spill";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final IMessageTransmitter messenger;
+	private final String serializer;
+	private final long retryMillis;
+	private final File spillDirectory;
+
+	/** Guards the spill counters */
+	private final Object spillLock = new Object();
+	private long spilled = 0;
+	/** Number of messages in the spill directory */
+	private long spilledBacklog = 0;
+	private long spillSequence = 0;
+	/** When the worker may try the repository again after a failure */
+	private long retryAt = 0;
+
+	/**
+	 * Creates the queue of an audit repository and starts its thread.
+	 * 
+	 * @param messenger sends the messages to the repository
+	 */
+	AuditQueue(IMessageTransmitter messenger) {
+		this(messenger, messenger.getAuditTrailDescription());
+	}
+
+	private AuditQueue(IMessageTransmitter messenger, AuditTrailDescription desc) {
+		// batches are sent as soon as the thread takes them
+		super("AuditQueue-" + desc.getHost() + ":" + desc.getPort(), desc.getQueueSize(),
+				desc.getBatchSize(), 0, overflowPolicy(desc), 1);
+		this.messenger = messenger;
+		this.serializer = desc.getSerializer();
+		this.retryMillis = desc.getRetrySecs() * 1000L;
+
+		this.spillDirectory = (desc.getSpillDirectory() != null) ? new File(desc.getSpillDirectory()) : null;
+		if (spillDirectory != null) {
+			for (String name : listSpilled()) {
+				try {
+					spilledBacklog += readSpilled(name).size();
+				} catch (IOException e) {
+					IheAuditTrail.LOG.error("Cannot read audit spill file " + name + ", renaming it to " + name + ".bad", e);
+					new File(spillDirectory, name).renameTo(new File(spillDirectory, name + ".bad"));
+				}
+			}
+		}
+
+		start();
+	}
+
+	/**
+	 * Maps the OVERFLOW policy to that of the BatchingQueue: SPILL hands the
+	 * message to {@link #overflow(AuditMessage)}, or drops the oldest without
+	 * a spill directory.
+	 */
+	private static String overflowPolicy(AuditTrailDescription desc) {
+		String policy = desc.getOverflowPolicy();
+		if (AuditTrailDescription.SPILL.equals(policy))
+			return (desc.getSpillDirectory() != null) ? CALLER : DROP_OLDEST;
+		return policy;
+	}
+
+	/**
+	 * Gets the statistics, indexed by the STAT_ constants: messages queued,
+	 * messages and batches sent, batches that could not be sent when taken
+	 * from the queue, messages dropped, the messages waiting to be sent,
+	 * queued or spilled, and the messages spilled.
+	 */
+	public long[] getStatistics() {
+		long[] stats = Arrays.copyOf(super.getStatistics(), STAT_SPILLED + 1);
+		synchronized (spillLock) {
+			stats[STAT_BACKLOG] += spilledBacklog;
+			stats[STAT_SPILLED] = spilled;
+		}
+		return stats;
+	}
+
+	/**
+	 * Sends a batch, unless messages are spilled: it then goes after them.
+	 */
+	protected boolean save(List<AuditMessage> batch) {
+		List<String> messages = format(batch, false);
+		if (messages == null || spilledBacklog() > 0)
+			return false;
+		return send(messages);
+	}
+
+	/**
+	 * Spills a batch that could not be sent, or sends it if it was only
+	 * held back by a message that cannot be formatted.
+	 */
+	protected void failed(List<AuditMessage> batch) {
+		List<String> messages = format(batch, true);
+		if (messages.isEmpty())
+			return;
+		if (messages.size() < batch.size() && spilledBacklog() == 0 && send(messages)) {
+			sent(messages.size());
+			return;
+		}
+		spillOrDrop(messages);
+	}
+
+	/**
+	 * Spills a message that does not fit in the queue, under the SPILL policy.
+	 */
+	protected void overflow(AuditMessage message) {
+		List<String> messages = format(Collections.singletonList(message), true);
+		if (!messages.isEmpty())
+			spill(messages);
+	}
+
+	protected void addedWhenClosed(AuditMessage message) {
+		IheAuditTrail.LOG.error("Audit queue closed, dropping audit message");
+		count(STAT_DROPPED, 1);
+	}
+
+	/**
+	 * Spills or drops the messages still queued when closed.
+	 */
+	protected void unsaved(List<AuditMessage> left) {
+		spillOrDrop(format(left, true));
+	}
+
+	/**
+	 * Sends the spilled messages while the thread has nothing else to do.
+	 */
+	protected void idle() {
+		if (spilledBacklog() > 0)
+			sendSpilled();
+	}
+
+	private long spilledBacklog() {
+		synchronized (spillLock) {
+			return spilledBacklog;
+		}
+	}
+
+	private void sent(int n) {
+		count(STAT_SENT, n);
+		count(STAT_BATCHES, 1);
+	}
+
+	/**
+	 * Formats messages, dropping those that cannot be formatted, or
+	 * returning null if one cannot be formatted and drop is false.
+	 */
+	private List<String> format(List<AuditMessage> batch, boolean drop) {
+		List<String> messages = new ArrayList<String>(batch.size());
+		for (AuditMessage message : batch) {
+			try {
+				messages.add(AuditObjectFactory.toXml(message, serializer));
+			} catch (JAXBException e) {
+				if (!drop)
+					return null;
+				IheAuditTrail.LOG.error("Unable to format audit message", e);
+				count(STAT_DROPPED, 1);
+			}
+		}
+		return messages;
+	}
+
+	/**
+	 * Sends a batch, unless the repository failed less than RETRY_SECS ago.
+	 * 
+	 * @return false if the batch could not be sent
+	 */
+	private boolean send(List<String> messages) {
+		if (System.currentTimeMillis() < retryAt)
+			return false;
+		try {
+			messenger.sendMessages(messages);
+			return true;
+		} catch (IOException e) {
+			retryAt = System.currentTimeMillis() + retryMillis;
+			IheAuditTrail.LOG.warn("Unable to send audit messages, retrying in " + (retryMillis / 1000) + "s: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Sends the spilled files, oldest first, until one fails.
+	 */
+	private void sendSpilled() {
+		for (String name : listSpilled()) {
+			List<String> messages;
+			try {
+				messages = readSpilled(name);
+			} catch (IOException e) {
+				IheAuditTrail.LOG.error("Cannot read audit spill file " + name + ", renaming it to " + name + ".bad", e);
+				new File(spillDirectory, name).renameTo(new File(spillDirectory, name + ".bad"));
+				continue;
+			}
+			if (!send(messages))
+				return;
+			sent(messages.size());
+			if (!new File(spillDirectory, name).delete())
+				IheAuditTrail.LOG.error("Cannot delete audit spill file " + name);
+			synchronized (spillLock) {
+				spilledBacklog -= messages.size();
+			}
+		}
+	}
+
+	private void spillOrDrop(List<String> messages) {
+		if (spillDirectory != null) {
+			spill(messages);
+		} else {
+			IheAuditTrail.LOG.error("Dropping " + messages.size() + " audit messages that could not be sent");
+			count(STAT_DROPPED, messages.size());
+		}
+	}
+
+	/**
+	 * Writes messages to a new spill file, written to a temporary file
+	 * first so that a partly written file is never sent.
+	 */
+	private void spill(List<String> messages) {
+		String name;
+		synchronized (spillLock) {
+			name = String.format("%013d-%06d", System.currentTimeMillis(), ++spillSequence % 1000000);
+		}
+		File temp = new File(spillDirectory, name + TEMP_SUFFIX);
+		try {
+			if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs())
+				throw new IOException("Cannot create audit spill directory " + spillDirectory.getAbsolutePath());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(messages.size());
+				for (String message : messages) {
+					byte[] bytes = message.getBytes("UTF-8");
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(new File(spillDirectory, name + SPILL_SUFFIX)))
+				throw new IOException("Cannot rename " + temp.getAbsolutePath());
+			synchronized (spillLock) {
+				spilled += messages.size();
+				spilledBacklog += messages.size();
+			}
+		} catch (IOException e) {
+			temp.delete();
+			IheAuditTrail.LOG.error("Cannot spill " + messages.size() + " audit messages, dropping them", e);
+			count(STAT_DROPPED, messages.size());
+		}
+	}
+
+	private List<String> readSpilled(String name) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(spillDirectory, name))));
+		try {
+			int count = in.readInt();
+			List<String> messages = new ArrayList<String>(count);
+			for (int i = 0; i < count; i++) {
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				messages.add(new String(bytes, "UTF-8"));
+			}
+			return messages;
+		} finally {
+			in.close();
+		}
+	}
+
+	private List<String> listSpilled() {
+		List<String> names = new ArrayList<String>();
+		String[] files = spillDirectory.list();
+		if (files == null)
+			return names;
+		Arrays.sort(files);
+		for (String file : files) {
+			if (file.endsWith(SPILL_SUFFIX))
+				names.add(file);
+		}
+		return names;
+	}
+}
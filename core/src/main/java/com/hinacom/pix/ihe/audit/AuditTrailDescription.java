@@ -30,6 +30,15 @@ public class AuditTrailDescription {
 	public static final String BSD = "BSD SYSLOG";
 	public static final String RELIABLE = "RELIABLE SYSLOG";
 	public static final String LOG4J = "LOG4J LOGGER";
+	public static final String JAXB = "JAXB";
+	public static final String STAX = "STAX";
+	public static final String BLOCK = "BLOCK";
+	public static final String DROP_OLDEST = "DROP_OLDEST";
+	public static final String SPILL = "SPILL";
+	public static final String RFC3164 = "RFC3164";
+	public static final String RFC5424 = "RFC5424";
+	public static final String UDP = "UDP";
+	public static final String TCP = "TCP";
 	
 	private String localHostname;
 	private String localIp;
@@ -48,6 +57,18 @@ public class AuditTrailDescription {
 	private String remoteHostname;
 	private int remotePort;
 	private String remoteType;
+	private String serializer = JAXB;
+	private int queueSize = 1000;
+	private int batchSize = 50;
+	private String overflowPolicy = SPILL;
+	private String spillDirectory = null;
+	private int retrySecs = 30;
+	private int beepChannels = 2;
+	private int keepAliveSecs = 60;
+	private String syslogFormat = RFC3164;
+	private String transport = UDP;
+	private boolean enabled = false;
+	private IConnectionDescription connection = null;
 	
 	/** 
 	 * Generates a new audit trail description.
@@ -66,6 +87,28 @@ public class AuditTrailDescription {
 	 * <dd>The type of the connection, BSD SYSLOG, RELIABLE SYSLOG or LOG4J LOGGER.  The default is the log4j logger.</dd>
 	 * <dt>Server</dt>
 	 * <dd>Some servers require different logging messages.  This is where this is described.  HIPAAT or QUOVADX, or nothing if using the standard server.</dd>
+	 * <dt>SERIALIZER</dt>
+	 * <dd>How audit messages are written to XML, JAXB or STAX.  STAX writes the RFC 3881 schema directly, without JAXB.  The default is JAXB.</dd>
+	 * <dt>QUEUE_SIZE</dt>
+	 * <dd>The number of audit messages waiting to be sent to this repository by a background thread, or 0 to send them before returning.  The default is 1000.</dd>
+	 * <dt>BATCH_SIZE</dt>
+	 * <dd>The largest number of queued messages sent together.  The default is 50.</dd>
+	 * <dt>OVERFLOW</dt>
+	 * <dd>What to do with a message when the queue is full: BLOCK the caller, DROP_OLDEST queued message, or SPILL it to disk.  The default is SPILL.</dd>
+	 * <dt>SPILL_DIR</dt>
+	 * <dd>The directory holding the messages that could not be sent, until the repository is back.  The default is audit/&lt;connection name&gt;.</dd>
+	 * <dt>RETRY_SECS</dt>
+	 * <dd>How long to wait after a failure before trying the repository again.  The default is 30.</dd>
+	 * <dt>BEEP_CHANNELS</dt>
+	 * <dd>RELIABLE SYSLOG only.  The number of channels opened on the BEEP session to send messages concurrently.  The default is 2.</dd>
+	 * <dt>KEEPALIVE_SECS</dt>
+	 * <dd>RELIABLE SYSLOG only.  How often an idle BEEP session is checked, and reopened if it was lost, or 0 to never check.  The default is 60.</dd>
+	 * <dt>FORMAT</dt>
+	 * <dd>BSD SYSLOG only.  The syslog message format, RFC3164 (BSD) or RFC5424.  The default is RFC3164.</dd>
+	 * <dt>TRANSPORT</dt>
+	 * <dd>BSD SYSLOG only.  UDP, or TCP for a connection kept open to the repository.  A secure TCP connection uses TLS (RFC 5425).  The default is UDP.</dd>
+	 * <dt>ENABLED</dt>
+	 * <dd>BSD SYSLOG only.  true to send audit messages to the repository.  The default is false, BSD SYSLOG repositories are ignored.</dd>
 	 * <dt>Set: Localhost Entry: Site</dt>
 	 * <dd>Required.  The enterprise site ID.</dd>
 	 * <dt>Set: Localhost Entry: SOURCE</dt>
@@ -97,6 +140,24 @@ public class AuditTrailDescription {
 		String temp = auditRepository.getProperty("TYPE");
 		if (temp != null) auditTrailType = temp;
 		remoteType = auditRepository.getProperty("SERVER");
+		temp = auditRepository.getProperty("SERIALIZER");
+		if (temp != null) serializer = temp;
+		queueSize = getIntProperty(auditRepository, "QUEUE_SIZE", queueSize);
+		batchSize = getIntProperty(auditRepository, "BATCH_SIZE", batchSize);
+		temp = auditRepository.getProperty("OVERFLOW");
+		if (temp != null) overflowPolicy = temp.toUpperCase();
+		temp = auditRepository.getProperty("SPILL_DIR");
+		spillDirectory = (temp != null) ? temp : "audit/" + auditRepository.getName();
+		retrySecs = getIntProperty(auditRepository, "RETRY_SECS", retrySecs);
+		beepChannels = getIntProperty(auditRepository, "BEEP_CHANNELS", beepChannels);
+		keepAliveSecs = getIntProperty(auditRepository, "KEEPALIVE_SECS", keepAliveSecs);
+		temp = auditRepository.getProperty("FORMAT");
+		if (temp != null) syslogFormat = temp.toUpperCase();
+		temp = auditRepository.getProperty("TRANSPORT");
+		if (temp != null) transport = temp.toUpperCase();
+		temp = auditRepository.getProperty("ENABLED");
+		if (temp != null) enabled = Boolean.parseBoolean(temp.trim());
+		connection = auditRepository;
 		
 		PropertySet set = auditRepository.getPropertySet("LocalHost");
 		localHostname = set.getValue("HOSTNAME");
@@ -198,6 +259,56 @@ public class AuditTrailDescription {
 		return remoteType;
 	}
 
+	public String getSerializer() {
+		return serializer;
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public String getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/** Gets the spill directory, or null if messages that cannot be sent are dropped. */
+	public String getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	public int getRetrySecs() {
+		return retrySecs;
+	}
+
+	public int getBeepChannels() {
+		return beepChannels;
+	}
+
+	public int getKeepAliveSecs() {
+		return keepAliveSecs;
+	}
+
+	public String getSyslogFormat() {
+		return syslogFormat;
+	}
+
+	public String getTransport() {
+		return transport;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Gets the connection this was built from, or null if it was built from its fields. */
+	public IConnectionDescription getConnection() {
+		return connection;
+	}
+
 	public void setApplicationName(String applicationName) {
 		this.applicationName = applicationName;
 	}
@@ -245,4 +356,16 @@ public class AuditTrailDescription {
 		return defaultIdEncoding;
 	}
 	
-}
\ No newline at end of file
+	private static int getIntProperty(IConnectionDescription connection, String name, int defaultValue) {
+		String value = connection.getProperty(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			IheAuditTrail.LOG.warn("Invalid " + name + " '" + value + "' for audit repository " + connection.getDescription() + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+}
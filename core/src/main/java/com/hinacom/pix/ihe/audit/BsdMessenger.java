@@ -15,36 +15,60 @@
 
 package com.hinacom.pix.ihe.audit;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import com.misyshealthcare.connect.net.ConnectionFactory;
+import com.misyshealthcare.connect.net.IConnection;
+import com.misyshealthcare.connect.net.IConnectionDescription;
 
 /** 
- * Sends the message to a given BSD logger.
+ * Sends the message to a given syslog audit repository.
  *
  * The original idea was to use Log4J's bsd logger, but
  * that ended up being way too complex, so I just rolled
  * my own.  Note that if your message is over 1024, you might
  * be hosed since many BSD loggers only take 1024 messages. <p />
  * 
- * You will need to do something to keep this thread safe.  The
- * simple solution (and the one currently implemented) is to 
- * generate a new instance of this class every time you make
- * a new message.  That is how it currently works.  Otherwise
- * the IheAuditTrail will have to do a bunch more work
- * to keep the single instance synchronized.  (Not to mention
- * that there might be different audit servers used by different
- * actors.)
+ * Messages are formatted as BSD syslog (RFC 3164) or as RFC 5424 syslog,
+ * and sent over UDP, or over a TCP connection (TLS when the connection is
+ * secure, as in RFC 5425) framed by octet counting.  The UDP socket and 
+ * the TCP connection are opened on the first message and kept until the 
+ * messenger is closed; a TCP connection that fails is opened again and the
+ * messages retried once.  A write to a connection the repository closed
+ * only fails on the write after, so before writing on a connection idle 
+ * for IDLE_CHECK_MILLIS the messenger checks it was not closed; messages
+ * sent while the repository closes a busy connection may still be lost, 
+ * as with any syslog over plain TCP.  One messenger can be shared by all
+ * threads.
  *
  * @author Josh Flachsbart
  * @version 1.0 - Nov 20, 2005
  */
 class BsdMessenger implements IMessageTransmitter {
 	private static final int FACILITY = 10; // CP ATNA_157, using value of 10(security/authorization messages) 
-	private final SimpleDateFormat formatter = new SimpleDateFormat("MMM dd HH:mm:ss "); //BSD syslog date format.
+	private static final DateTimeFormatter BSD_FORMATTER = DateTimeFormatter.ofPattern("MMM dd HH:mm:ss ", Locale.US); //BSD syslog date format.
+	private static final DateTimeFormatter RFC5424_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX", Locale.US);
+	/** The MSGID of audit messages, from the IHE ATNA profile */
+	private static final String MSGID = "IHE+RFC-3881";
+	private static final byte[] BOM = {(byte) 0xef, (byte) 0xbb, (byte) 0xbf};
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	//IHE define the max message length to be 32768, ITI v2 page 175
+	private static final int MAX_DATAGRAM = 32768;
+	/** Idle time after which a TCP connection is checked before writing */
+	private static final long IDLE_CHECK_MILLIS = 1000;
 
 	private Severity defaultSeverity = Severity.Notice;
 
@@ -52,63 +76,200 @@ class BsdMessenger implements IMessageTransmitter {
 	private int port = 514;
 	private String localHostName;
 	private String messageHostName;
+	private final String appName;
+	private final boolean rfc5424;
+	private final boolean tcp;
 	
 	private AuditTrailDescription desc;
 
+	/** The UDP socket, guarded by this */
+	private DatagramSocket datagramSocket = null;
+	/** The TCP connection, guarded by this */
+	private Socket socket = null;
+	private IConnection connection = null;
+	private OutputStream out = null;
+	private long lastWriteMillis = 0;
+
 	/** 
-	 * Use to create a "connection" to a BSD audit repository.
+	 * Use to create a "connection" to a syslog audit repository.
 	 * 
-	 * Note that BSD syslog uses UDP not TCP, so it isn't really
-	 * a "connection" and as such this is thread safe if all 
-	 * the threads use the same connection info and default 
-	 * severity.
+	 * Nothing is opened until the first message is sent.
 	 * 
 	 * @param description All the info needed to connect to the audit repository.
 	 */
 	public BsdMessenger(AuditTrailDescription description) {
-		try {
-			messageHostName = description.getHost();
-			localHostName = description.getName();
-			address = InetAddress.getByName(messageHostName);
-			port = description.getPort();
-			desc = description;
-		} catch (UnknownHostException e) {
-			IheAuditTrail.LOG.error("Problem resolving host name for BSD logging ATNA messeger.", e);
-		}
+		messageHostName = description.getHost();
+		localHostName = description.getName();
+		port = description.getPort();
+		desc = description;
+		rfc5424 = AuditTrailDescription.RFC5424.equals(description.getSyslogFormat());
+		tcp = AuditTrailDescription.TCP.equals(description.getTransport());
+		appName = toPrintableAscii(description.getApplicationName(), 48);
 	}
 	
 	/** 
-	 * Sends BSD message using the default facility and level. 
+	 * Sends a message using the default facility and level. 
 	 */
 	public void sendMessage(String message) {
 		sendMessage(message, defaultSeverity);
 	}
 
 	/** 
-	 * Sends BSD message using a givien facility and level. 
+	 * Sends a message using a givien facility and level. 
 	 */
 	public void sendMessage(String message, Severity severity) {
-		Date now = new Date();
-		int PRI = (FACILITY * 8) + severity.value();
-		String completeMessage = "<" + PRI + ">" + formatter.format(now) + localHostName + ": " + message;
-        int length = completeMessage.length();
-		//if (length > 1024) IheAuditTrail.LOG.warn("Data might be truncated, BSD messages longer than 1024 are dangerous.");
-        //IHE define the max message length to be 32768, ITI v2 page 175
-        if (length > 32768) {
-            IheAuditTrail.LOG.error("BSD messages cannot be longer than 32768.");
-            return;
-        }
-        try {
-			byte[] messageBytes = completeMessage.getBytes("UTF-8");
-			DatagramPacket packet = new DatagramPacket(messageBytes, length, address, port);
-			DatagramSocket socket = new DatagramSocket();
-			socket.send(packet);
-			socket.close();
+		try {
+			send(Collections.singletonList(message), severity);
 		} catch (Exception e) {
-			IheAuditTrail.LOG.error("Problem sending BSD log message.", e);
+			IheAuditTrail.LOG.error("Problem sending syslog message.", e);
 		}
 	}
 
+	/** 
+	 * Sends messages using the default facility and level, in order. 
+	 */
+	public void sendMessages(List<String> messages) throws IOException {
+		send(messages, defaultSeverity);
+	}
+
+	private synchronized void send(List<String> messages, Severity severity) throws IOException {
+		if (address == null) {
+			// Resolved here rather than once, so a repository that could not be found is looked up again
+			address = InetAddress.getByName(messageHostName);
+		}
+		if (tcp) 
+			sendTcp(messages, severity);
+		else 
+			sendUdp(messages, severity);
+	}
+
+	private void sendUdp(List<String> messages, Severity severity) throws IOException {
+		if (datagramSocket == null) 
+			datagramSocket = new DatagramSocket();
+		try {
+			for (String message : messages) {
+				byte[] messageBytes = formatMessage(message, severity);
+				if (messageBytes.length > MAX_DATAGRAM) {
+					IheAuditTrail.LOG.error("Syslog messages cannot be longer than " + MAX_DATAGRAM + ".");
+					continue;
+				}
+				datagramSocket.send(new DatagramPacket(messageBytes, messageBytes.length, address, port));
+			}
+		} catch (IOException e) {
+			closeDatagramSocket();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the messages on the connection, opening it again and
+	 * retrying once if the connection that was open failed.
+	 */
+	private void sendTcp(List<String> messages, Severity severity) throws IOException {
+		if (out != null && System.currentTimeMillis() - lastWriteMillis >= IDLE_CHECK_MILLIS && isClosedByPeer()) {
+			IheAuditTrail.LOG.info("Syslog connection to " + messageHostName + ":" + port + " closed by the repository, reconnecting");
+			closeConnection();
+		}
+		boolean reused = (out != null);
+		try {
+			writeTcp(messages, severity);
+		} catch (IOException e) {
+			closeConnection();
+			if (!reused) throw e;
+			IheAuditTrail.LOG.warn("Syslog connection to " + messageHostName + ":" + port + " lost, reconnecting: " + e.getMessage());
+			try {
+				writeTcp(messages, severity);
+			} catch (IOException e2) {
+				closeConnection();
+				throw e2;
+			}
+		}
+	}
+
+	private void writeTcp(List<String> messages, Severity severity) throws IOException {
+		if (out == null) 
+			openConnection();
+		for (String message : messages) {
+			byte[] messageBytes = formatMessage(message, severity);
+			// Octet counting framing, RFC 5425 and RFC 6587
+			out.write((messageBytes.length + " ").getBytes("US-ASCII"));
+			out.write(messageBytes);
+		}
+		out.flush();
+		lastWriteMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * Checks whether the repository closed the idle connection, as the 
+	 * first write to it would not fail and its messages would be lost.  
+	 * Syslog repositories send nothing, so anything but a read timeout 
+	 * means the connection is closed.
+	 */
+	private boolean isClosedByPeer() {
+		try {
+			socket.setSoTimeout(1);
+			return socket.getInputStream().read() < 0;
+		} catch (SocketTimeoutException e) {
+			return false;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	private void openConnection() throws IOException {
+		IConnectionDescription description = desc.getConnection();
+		if (description != null) {
+			// The connection factory sets up TLS for secure connections
+			connection = ConnectionFactory.getConnection(description);
+			if (!connection.isConnectionValid()) {
+				connection.closeConnection();
+				connection = null;
+				throw new IOException("Cannot open connection to \"" + description.getDescription() + "\"");
+			}
+			socket = connection.getSocket();
+		} else {
+			socket = new Socket(address, port);
+		}
+		socket.setKeepAlive(true);
+		socket.setTcpNoDelay(true);
+		out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+	}
+
+	/**
+	 * Formats a syslog message.
+	 */
+	private byte[] formatMessage(String message, Severity severity) {
+		int PRI = (FACILITY * 8) + severity.value();
+		ZonedDateTime now = ZonedDateTime.now();
+		if (!rfc5424) {
+			String completeMessage = "<" + PRI + ">" + BSD_FORMATTER.format(now) + localHostName + ": " + message;
+			return completeMessage.getBytes(UTF8);
+		}
+		String header = "<" + PRI + ">1 " + RFC5424_FORMATTER.format(now) + " " 
+				+ toPrintableAscii(localHostName, 255) + " " + appName + " - " + MSGID + " - ";
+		byte[] headerBytes = header.getBytes(UTF8);
+		byte[] messageBytes = message.getBytes(UTF8);
+		byte[] completeMessage = new byte[headerBytes.length + BOM.length + messageBytes.length];
+		System.arraycopy(headerBytes, 0, completeMessage, 0, headerBytes.length);
+		System.arraycopy(BOM, 0, completeMessage, headerBytes.length, BOM.length);
+		System.arraycopy(messageBytes, 0, completeMessage, headerBytes.length + BOM.length, messageBytes.length);
+		return completeMessage;
+	}
+
+	/**
+	 * Makes an RFC 5424 header field: printable US-ASCII without spaces, 
+	 * at most a given length, or the nil value "-".
+	 */
+	private static String toPrintableAscii(String value, int maxLength) {
+		if (value == null || value.length() == 0) return "-";
+		StringBuilder sb = new StringBuilder(Math.min(value.length(), maxLength));
+		for (int i = 0; i < value.length() && sb.length() < maxLength; i++) {
+			char c = value.charAt(i);
+			sb.append((c > 32 && c < 127) ? c : '_');
+		}
+		return sb.toString();
+	}
+
 	/** 
 	 * Sets the severity to be used for non specific messages. 
 	 */
@@ -116,10 +277,40 @@ class BsdMessenger implements IMessageTransmitter {
 		defaultSeverity = severity;
 	}
 
+	/** 
+	 * Closes the socket and connection. 
+	 */
+	public synchronized void close() {
+		closeDatagramSocket();
+		closeConnection();
+	}
+
+	private void closeDatagramSocket() {
+		if (datagramSocket != null) {
+			datagramSocket.close();
+			datagramSocket = null;
+		}
+	}
+
+	private void closeConnection() {
+		if (connection != null) {
+			connection.closeConnection();
+		} else if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//ignore
+			}
+		}
+		connection = null;
+		socket = null;
+		out = null;
+	}
+
 	/**
 	 * Gets the audit trail description
 	 */
 	public AuditTrailDescription getAuditTrailDescription() {
 		return desc;
 	}
-}
\ No newline at end of file
+}
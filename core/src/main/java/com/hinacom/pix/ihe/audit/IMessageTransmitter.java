@@ -14,6 +14,9 @@
  */
 package com.hinacom.pix.ihe.audit;
 
+import java.io.IOException;
+import java.util.List;
+
 /** 
  * Interface for sending messages.
  * 
@@ -30,8 +33,12 @@ interface IMessageTransmitter {
 	public void sendMessage(String message);
 	/** Send a message using this transmitter using the given level. */
 	public void sendMessage(String message, Severity severity);
+	/** Send messages in order using the default facility and level, failing if the repository cannot be reached. */
+	public void sendMessages(List<String> messages) throws IOException;
 	/** Set the default level for the transmitter. */
 	public void setDefaultSeverity(Severity severity);
+	/** Release the connection to the repository, if any.  The transmitter is not used after. */
+	public void close();
 	/** Get the description of this connection. */
 	public AuditTrailDescription getAuditTrailDescription();
 	
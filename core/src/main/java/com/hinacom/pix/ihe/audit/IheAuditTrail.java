@@ -17,8 +17,10 @@ package com.hinacom.pix.ihe.audit;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.xml.bind.JAXBException;
@@ -61,6 +63,9 @@ import com.misyshealthcare.connect.util.LibraryConfig;
  * restarts, a new instance must be made.  Calling stop will cause that 
  * specific instance of the audit trail to cease functioning. <p />
  * 
+ * Messages to a repository with a QUEUE_SIZE are queued and sent in the
+ * background by an {@link AuditQueue}; stop sends what is still queued. <p />
+ * 
  * The following ATNA required messages are currently implemented by the given classes.
  * 
  * <dl>
@@ -87,8 +92,12 @@ import com.misyshealthcare.connect.util.LibraryConfig;
 public class IheAuditTrail implements IAuditTrail {
 	
 	static Logger LOG = Logger.getLogger(IheAuditTrail.class);
+	/** How long stop waits for the queued messages to be sent */
+	private static final long STOP_TIMEOUT_MILLIS = 10000;
 	private String actorName;
 	private List<IMessageTransmitter> messengers = null;
+	/** The queue of each messenger sending from a background thread */
+	private Map<IMessageTransmitter, AuditQueue> queues = new HashMap<IMessageTransmitter, AuditQueue>();
 
 	/** 
 	 * Handles creation of a logging instance for a given actor.
@@ -107,14 +116,20 @@ public class IheAuditTrail implements IAuditTrail {
 			AuditTrailDescription description = new AuditTrailDescription(repository);
 			String type = description.getType();
 			if (type.equalsIgnoreCase(AuditTrailDescription.BSD)) {
-				// messengers.add(new BsdMessenger(description));
-                //messengers.add(new Log4JMessenger(description));
-            } else if (type.equalsIgnoreCase(AuditTrailDescription.LOG4J)) {
+				if (description.isEnabled())
+					messengers.add(new BsdMessenger(description));
+				else
+					LOG.info("Ignoring BSD SYSLOG audit repository " + repository.getDescription() + ", set ENABLED to true to use it");
+			} else if (type.equalsIgnoreCase(AuditTrailDescription.LOG4J)) {
 				messengers.add(new Log4JMessenger(description));
 			} else if (type.equalsIgnoreCase(AuditTrailDescription.RELIABLE)) {
 				messengers.add(new RSyslogMessenger(description));
 			}
 		}
+		for (IMessageTransmitter messenger : messengers) {
+			if (messenger.getAuditTrailDescription().getQueueSize() > 0)
+				queues.put(messenger, new AuditQueue(messenger));
+		}
 	}
 	
 	/** 
@@ -150,8 +165,13 @@ p	 * @param factory
         }                               
         factory.addAuditSourceId( desc.getEnterpriseSiteId(), desc.getAuditSourceId(), auditSourceTypes);
 
-        // send the message.
-		factory.sendAuditMessage();
+        // send the message, or queue it to be sent in the background.
+		AuditQueue queue = queues.get(messenger);
+		if (queue != null) {
+			queue.add(factory.getAuditMessage());
+		} else {
+			factory.sendAuditMessage();
+		}
 	}
 
 	/////**************   DATA HELPER FUNCTIONS   *********************
@@ -422,6 +442,28 @@ p	 * @param factory
 		} catch (JAXBException e) {
 			LOG.error("Unable to log actor stop for: " + actorName, e);
 		}
+		// send what is queued, including the stop message
+		for (AuditQueue queue : queues.values()) {
+			queue.close(STOP_TIMEOUT_MILLIS);
+		}
+		for (IMessageTransmitter messenger : messengers) {
+			messenger.close();
+		}
+	}
+	
+	/**
+	 * Gets the statistics of the queue of each audit repository sending in
+	 * the background, indexed by the AuditQueue STAT_ constants.
+	 * 
+	 * @return repository host:port -> statistics
+	 */
+	public Map<String, long[]> getStatistics() {
+		Map<String, long[]> stats = new HashMap<String, long[]>();
+		for (Map.Entry<IMessageTransmitter, AuditQueue> entry : queues.entrySet()) {
+			AuditTrailDescription desc = entry.getKey().getAuditTrailDescription();
+			stats.put(desc.getHost() + ":" + desc.getPort(), entry.getValue().getStatistics());
+		}
+		return stats;
 	}
 	
 	/**
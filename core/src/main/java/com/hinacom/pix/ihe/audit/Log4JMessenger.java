@@ -15,6 +15,8 @@
 
 package com.hinacom.pix.ihe.audit;
 
+import java.util.List;
+
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
@@ -49,9 +51,16 @@ class Log4JMessenger implements IMessageTransmitter {
 		sendMessage(message);
 	}
 
+	public void sendMessages(List<String> messages) {
+		for (String message : messages) sendMessage(message);
+	}
+
 	public void setDefaultSeverity(Severity severity) {
 	}
 
+	public void close() {
+	}
+
 	public AuditTrailDescription getAuditTrailDescription() {
 		return desc;
 	}
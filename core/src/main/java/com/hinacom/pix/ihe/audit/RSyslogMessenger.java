@@ -16,19 +16,30 @@
 package com.hinacom.pix.ihe.audit;
 
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.InputStream;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.beepcore.beep.core.AbortChannelException;
 import org.beepcore.beep.core.BEEPError;
 import org.beepcore.beep.core.BEEPException;
-import org.beepcore.beep.core.BEEPInterruptedException;
 import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Message;
 import org.beepcore.beep.core.OutputDataStream;
+import org.beepcore.beep.core.ReplyListener;
 import org.beepcore.beep.core.Session;
 import org.beepcore.beep.core.StringOutputDataStream;
-import org.beepcore.beep.lib.Reply;
 import org.beepcore.beep.transport.tcp.TCPSessionCreator;
 
 /** 
@@ -38,6 +49,13 @@ import org.beepcore.beep.transport.tcp.TCPSessionCreator;
  * Beep is the transport mechanism (RFCs 3080 and 3081), and rsyslog is the 
  * message mechanism (RFC 3195).  <p />
  * 
+ * One BEEP session is kept open to the repository, with up to BEEP_CHANNELS
+ * COOKED channels so that several threads can send at once.  A session that
+ * is lost is opened again on the next message, which is retried once; 
+ * threads sending meanwhile wait for the new session.  Every KEEPALIVE_SECS
+ * an idle session is checked by opening a channel, and a lost session is
+ * opened again. <p />
+ * 
  * There are concessions for broken log servers.  HIPAAT can't accept messages over
  * 1030, and needs the xml escaped out.  The Quovadx server need the xml in a cdata.
  *
@@ -46,9 +64,31 @@ import org.beepcore.beep.transport.tcp.TCPSessionCreator;
  */
 public class RSyslogMessenger implements IMessageTransmitter {
 	private static final Logger LOG = Logger.getLogger(RSyslogMessenger.class);
+
+	private static final String COOKED_PROFILE = "http://xml.resource.org/profiles/syslog/COOKED";
+	/** How long to wait for the reply to a message, or for a free channel */
+	private static final long REPLY_TIMEOUT_MILLIS = 30000;
+
+	private static final ScheduledExecutorService keepAliveTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "RSyslogMessenger-keepalive");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 	
+	/** The open session, guarded by this */
 	private Session session;
-	private Channel channel;
+	/** The channels of the session not in use, guarded by this */
+	private final LinkedList<Channel> idleChannels = new LinkedList<Channel>();
+	/** The number of channels of the session, guarded by this */
+	private int openChannels = 0;
+	/** Whether a thread is opening the session, guarded by this */
+	private boolean connecting = false;
+	private final int maxChannels;
+	private volatile long lastUsed = 0;
+	private volatile boolean closed = false;
+	private ScheduledFuture<?> keepAlive = null;
 
 	private int remotePort = 6001;
 	private String remoteHostName = "localhost";
@@ -59,7 +99,7 @@ public class RSyslogMessenger implements IMessageTransmitter {
 	
 	private AuditTrailDescription desc;
 
-	private final SimpleDateFormat formatter = new SimpleDateFormat("MMM dd HH:mm:ss");
+	private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("MMM dd HH:mm:ss", Locale.US);
 	int facility = 1;
 	Severity severity = Severity.Info;
 
@@ -81,6 +121,14 @@ public class RSyslogMessenger implements IMessageTransmitter {
 		localIp = description.getIp();
 		
 		desc = description;
+		maxChannels = Math.max(1, description.getBeepChannels());
+		if (description.getKeepAliveSecs() > 0) {
+			keepAlive = keepAliveTimer.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					checkSession();
+				}
+			}, description.getKeepAliveSecs(), description.getKeepAliveSecs(), TimeUnit.SECONDS);
+		}
 	}
 	
 	/* (non-Javadoc)
@@ -92,74 +140,260 @@ public class RSyslogMessenger implements IMessageTransmitter {
 	
 	
 	public void sendMessage(String message, Severity severity) {
-		// Initiate connection.
-		startBeepConnection();
-
-		OutputDataStream output = formatMessage(message, remoteType, severity);
-
-		Reply reply = null;
-		if (!remoteType.equalsIgnoreCase("HIPAAT"))
-			reply = new Reply();
-
 		try {
-			channel.getSession();
-			channel.sendMSG(output, reply);
+			send(Collections.singletonList(message), severity);
 			LOG.debug("Sent messasge.");
-		} catch (BEEPException e) {
+		} catch (IOException e) {
 			LOG.error("Unable to send message.", e);
 		}
+	}
 
-		readResponse(reply);
-		
-        close();
+	/**
+	 * Sends messages in order on one channel, failing if the session
+	 * cannot be opened or a message cannot be sent.
+	 */
+	public void sendMessages(List<String> messages) throws IOException {
+		send(messages, severity);
+		LOG.debug("Sent " + messages.size() + " messages.");
 	}
 
 	public void setDefaultSeverity(Severity severity) {
 		this.severity = severity;
 	}
 
-	/** Used to do the inital negotiation.  This is where you would add TLS if you desired.
-	 * Ostensibly one channel could be used for multiple message
-	 * but we don't do that right now since no servers support it.
-	 * First open the session.  Then using that session start a channel with the cooked protocol. <p />
-	 * 
-	 * If we ever wanted to maintain the connection we would have to make this and close puublic.
+	/**
+	 * Closes the session.  Messages sent after fail.
+	 */
+	public void close() {
+		closed = true;
+		if (keepAlive != null) keepAlive.cancel(false);
+		Session current;
+		synchronized (this) {
+			current = session;
+			session = null;
+			idleChannels.clear();
+			openChannels = 0;
+			notifyAll();
+		}
+		if (current != null)
+			closeSession(current);
+	}
+
+	/**
+	 * Sends messages, opening the session again and retrying once if it was lost.
 	 */
-	private void startBeepConnection() {
+	private void send(List<String> messages, Severity severity) throws IOException {
+		int sent = 0;
+		for (int attempt = 1; ; attempt++) {
+			Channel channel = borrowChannel();
+			boolean lost = false;
+			try {
+				for (; sent < messages.size(); sent++) {
+					sendMessage(channel, messages.get(sent), severity);
+				}
+				lastUsed = System.currentTimeMillis();
+				return;
+			} catch (BEEPException e) {
+				lost = true;
+				discardSession(channel.getSession());
+				if (attempt > 1)
+					throw new IOException("Unable to send message to " + remoteHostName + ":" + remotePort, e);
+				LOG.warn("Lost BEEP session to " + remoteHostName + ":" + remotePort + ", reconnecting: " + e.getMessage());
+			} finally {
+				if (!lost)
+					releaseChannel(channel);
+			}
+		}
+	}
+
+	private void sendMessage(Channel channel, String message, Severity severity) throws BEEPException {
+		OutputDataStream output = formatMessage(message, remoteType, severity);
+
+		Response response = null;
+		if (!"HIPAAT".equalsIgnoreCase(remoteType))
+			response = new Response();
+
+		channel.sendMSG(output, response);
+
+		readResponse(response, channel.getSession());
+	}
+
+	/** 
+	 * Gets a channel of the session, opening the session or the channel
+	 * if needed.  This is where you would add TLS if you desired.
+	 * First open the session.  Then using that session start a channel with the cooked protocol.
+	 * The session and channels are opened without holding the lock, so
+	 * threads with a channel can keep sending meanwhile; one thread opens
+	 * the session while the others wait for it.
+	 */
+	private Channel borrowChannel() throws IOException {
+		long deadline = System.currentTimeMillis() + REPLY_TIMEOUT_MILLIS;
+		while (true) {
+			Session current = null;
+			Session lost = null;
+			boolean open = false;
+			synchronized (this) {
+				if (closed) 
+					throw new IOException("Messenger to " + remoteHostName + ":" + remotePort + " is closed");
+				if (session != null && session.getState() == Session.SESSION_STATE_ACTIVE) {
+					if (!idleChannels.isEmpty())
+						return idleChannels.removeFirst();
+					if (openChannels < maxChannels) {
+						openChannels++;
+						current = session;
+					}
+				} else if (!connecting) {
+					connecting = true;
+					open = true;
+					lost = session;
+					session = null;
+					idleChannels.clear();
+					openChannels = 0;
+				}
+				if (current == null && !open) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0)
+						throw new IOException("No free channel to " + remoteHostName + ":" + remotePort);
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted waiting for a channel to " + remoteHostName + ":" + remotePort);
+					}
+					continue;
+				}
+			}
+			if (open) {
+				if (lost != null)
+					terminate(lost, "Session lost");
+				openSession();
+				continue;
+			}
+			Channel channel = null;
+			try {
+				channel = startChannel(current);
+				return channel;
+			} finally {
+				if (channel == null) {
+					synchronized (this) {
+						if (current == session)
+							openChannels--;
+						notifyAll();
+					}
+				}
+			}
+		}
+	}
+
+	private synchronized void releaseChannel(Channel channel) {
+		if (channel.getSession() == session) {
+			idleChannels.addFirst(channel);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Drops a session that failed, if it is still the open one.
+	 */
+	private synchronized void discardSession(Session failed) {
+		if (failed != session)
+			return;
+		terminate(failed, "Unable to send message");
+		session = null;
+		idleChannels.clear();
+		openChannels = 0;
+		notifyAll();
+	}
+
+	/**
+	 * Opens the session, called by the one thread that set connecting.
+	 */
+	private void openSession() throws IOException {
+		Session opened = null;
 		try {
-			session = TCPSessionCreator.initiate(remoteHostName, remotePort);//, new ProfileRegistry());
-			//session = org.beepcore.beep.profile.tls.TLSProfile.getDefaultInstance().startTLS((TCPSession) session);
-			
-			String profileUri = "http://xml.resource.org/profiles/syslog/COOKED";
-			String iam = " <iam fqdn='" + localFqdName + "' ip='" + localIp + "' type='device' /> ";
-			channel = session.startChannel(profileUri, false, iam);
-		} catch (BEEPError e) {
-			if (e.getCode() == 550) {
-				LOG.error("Host does not support cooked profile.", e);
-			} else {
-            		LOG.error("Unable to open channel.", e);
+			opened = TCPSessionCreator.initiate(remoteHostName, remotePort);//, new ProfileRegistry());
+			//opened = org.beepcore.beep.profile.tls.TLSProfile.getDefaultInstance().startTLS((TCPSession) opened);
+			LOG.debug("Opened session successfully.");
+		} catch (BEEPException e) {
+			throw new IOException("Unable to open BEEP session to " + remoteHostName + ":" + remotePort, e);
+		} finally {
+			boolean keep;
+			synchronized (this) {
+				connecting = false;
+				keep = opened != null && !closed;
+				if (keep)
+					session = opened;
+				notifyAll();
 			}
+			if (opened != null && !keep)
+				closeSession(opened);
+		}
+	}
+
+	private Channel startChannel(Session session) throws IOException {
+		String iam = " <iam fqdn='" + localFqdName + "' ip='" + localIp + "' type='device' /> ";
+		try {
+			Channel channel = session.startChannel(COOKED_PROFILE, false, iam);
+			LOG.debug("Opened channel successfully.");
+			return channel;
+		} catch (BEEPError e) {
+			if (e.getCode() == 550)
+				throw new IOException("Host does not support cooked profile.", e);
+			throw new IOException("Unable to open channel.", e);
 		} catch (BEEPException e) {
-			LOG.error("Unable to open channel.", e);
+			throw new IOException("Unable to open channel.", e);
 		}
-		LOG.debug("Opened channel successfully.");
 	}
-	
-	private void close() {
+
+	private void closeSession(Session session) {
 		try {
-			channel.close();
 			session.close();
+			LOG.debug("Closed session successfully.");
 		} catch (BEEPException e) {
-			LOG.error("Unable to close channel.", e);
+			terminate(session, "Closing");
+		}
+	}
+
+	private static void terminate(Session session, String reason) {
+		if (session.getState() < Session.SESSION_STATE_CLOSED)
+			session.terminate(reason);
+	}
+
+	/**
+	 * Checks an idle session by opening and closing a channel, and opens
+	 * again a session that was lost.
+	 */
+	private void checkSession() {
+		if (closed || System.currentTimeMillis() - lastUsed < desc.getKeepAliveSecs() * 1000L)
+			return;
+		Session current;
+		synchronized (this) {
+			current = session;
+		}
+		if (current == null)
+			return;
+		try {
+			if (current.getState() == Session.SESSION_STATE_ACTIVE) {
+				startChannel(current).close();
+				return;
+			}
+		} catch (Exception e) {
+			LOG.warn("BEEP session to " + remoteHostName + ":" + remotePort + " lost: " + e.getMessage());
+		}
+		discardSession(current);
+		try {
+			releaseChannel(borrowChannel());
+			LOG.info("Reopened BEEP session to " + remoteHostName + ":" + remotePort);
+		} catch (IOException e) {
+			LOG.warn("Unable to reopen BEEP session to " + remoteHostName + ":" + remotePort + ": " + e.getMessage());
 		}
-		LOG.debug("Closed channel and session successfully.");
 	}
 	
 	private OutputDataStream formatMessage(String message, String format, Severity severity) {
 //		OutputDataStream output = null;
 		
 		String entry = null;
-		String header = "<entry facility='" + facility + "' severity='" + severity.value() + "' timestamp='" + formatter.format(new Date()) + "' hostname='" + localFqdName + "' tag='" + localHostName + "'>";
+		String header = "<entry facility='" + facility + "' severity='" + severity.value() + "' timestamp='" + FORMATTER.format(ZonedDateTime.now()) + "' hostname='" + localFqdName + "' tag='" + localHostName + "'>";
 		String tail =  "</entry>\r\n";
 
 		if (format == null) {
@@ -194,31 +428,83 @@ public class RSyslogMessenger implements IMessageTransmitter {
 	
 	/** This should be more interesting.
 	 * TODO: Make this deal with different types of responses in a more interesting manner.
-	 * @param reply
+	 * @param response
+	 * @param session the session the message was sent on
 	 */
-	private void readResponse(Reply reply) {
-		if (reply == null) return;
+	private void readResponse(Response response, Session session) throws BEEPException {
+		if (response == null) return;
+		Message reply = response.await(session, REPLY_TIMEOUT_MILLIS);
+		if (reply == null) {
+			LOG.debug("No reply from host.");
+			return;
+		}
 		try {
-			if (reply.hasNext()) {
-				java.io.InputStream is = reply.getNextReply().getDataStream().getInputStream();
-				int input = is.read();
-				String fullInput = new String();
-				// Read the data in the reply
-				while (input != -1) {
-					fullInput += (char) input;
-					input = is.read();
-				}
-				LOG.debug("Reply from " + remoteHostName + ": Message: " + fullInput);
-			} else {
-				LOG.debug("No reply from host.");
+			InputStream is = reply.getDataStream().getInputStream();
+			StringBuilder fullInput = new StringBuilder();
+			// Read the data in the reply
+			for (int input = is.read(); input != -1; input = is.read()) {
+				fullInput.append((char) input);
 			}
-
-		} catch (BEEPInterruptedException e) {
-			LOG.error("Interrupted while reading BEEP reply.", e);
+			if (response.isError())
+				LOG.warn("Error reply from " + remoteHostName + ": Message: " + fullInput);
+			else
+				LOG.debug("Reply from " + remoteHostName + ": Message: " + fullInput);
 		} catch (IOException e) {
 			LOG.error("Unable to read BEEP reply.", e);
 		}
 	}
+
+	/**
+	 * Waits for the reply to a message, for a limited time and only while
+	 * the session is open, so a lost session does not hold up the sender.
+	 */
+	private static class Response implements ReplyListener {
+		private Message reply = null;
+		private boolean error = false;
+		private boolean done = false;
+
+		public synchronized void receiveRPY(Message message) throws AbortChannelException {
+			reply = message;
+			done = true;
+			notifyAll();
+		}
+
+		public synchronized void receiveERR(Message message) throws AbortChannelException {
+			error = true;
+			receiveRPY(message);
+		}
+
+		public synchronized void receiveANS(Message message) throws AbortChannelException {
+			if (reply == null) reply = message;
+		}
+
+		public synchronized void receiveNUL(Message message) throws AbortChannelException {
+			done = true;
+			notifyAll();
+		}
+
+		synchronized boolean isError() {
+			return error;
+		}
+
+		synchronized Message await(Session session, long timeoutMillis) throws BEEPException {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			try {
+				while (!done) {
+					if (session.getState() >= Session.SESSION_STATE_CLOSED)
+						throw new BEEPException("Session closed before the reply");
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0)
+						throw new BEEPException("No reply within " + timeoutMillis + " ms");
+					wait(Math.min(wait, 1000));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new BEEPException("Interrupted while reading BEEP reply.");
+			}
+			return reply;
+		}
+	}
 	
 	public AuditTrailDescription getAuditTrailDescription() {
 		return desc;
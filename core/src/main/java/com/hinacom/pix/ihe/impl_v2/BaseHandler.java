@@ -16,10 +16,15 @@ package com.hinacom.pix.ihe.impl_v2;
 
 import java.net.InetAddress;
 
+import org.openempi.ics.utility.IcsTrace;
+
 import com.hinacom.pix.ihe.configuration.Configuration;
 import com.hinacom.pix.ihe.configuration.IheConfigurationException;
 
+import ca.uhn.hl7v2.HL7Exception;
 import ca.uhn.hl7v2.app.ApplicationException;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.util.Terser;
 
 import com.misyshealthcare.connect.net.IConnectionDescription;
 import com.misyshealthcare.connect.net.Identifier;
@@ -50,6 +55,46 @@ public class BaseHandler {
 		this.connection = connection;
 	}
 	
+	/**
+	 * Processes an incoming message inside an {@link IcsTrace} transaction
+	 * named after the handler and identified by the message control id, so
+	 * that every handler is traced.  The handlers implement 
+	 * {@link #process(Message)}.
+	 * 
+	 * @param msgIn the incoming message
+	 * @return the response message
+	 */
+	public Message processMessage(Message msgIn) throws ApplicationException, HL7Exception {
+		IcsTrace.begin(getClass().getSimpleName(), IcsTrace.isEnabled() ? getControlId(msgIn) : null);
+		try {
+			return process(msgIn);
+		} finally {
+			IcsTrace.end();
+		}
+	}
+	
+	/**
+	 * Processes an incoming message for {@link #processMessage(Message)}.
+	 * 
+	 * @param msgIn the incoming message
+	 * @return the response message
+	 * @throws ApplicationException unless overridden by the handler
+	 */
+	protected Message process(Message msgIn) throws ApplicationException, HL7Exception {
+		throw new ApplicationException("Unexpected message " + msgIn.getName());
+	}
+	
+	/**
+	 * Reads MSH-10 of a message, or null if it cannot be read.
+	 */
+	private static String getControlId(Message msgIn) {
+		try {
+			return new Terser(msgIn).get("/MSH-10");
+		} catch (HL7Exception e) {
+			return null;
+		}
+	}
+	
 	/**
 	 * Gets the application name of this PIX/PDQ server. If the server receives messages from
 	 * a source application, then the application name is the same as ReceivingApplication, configurable
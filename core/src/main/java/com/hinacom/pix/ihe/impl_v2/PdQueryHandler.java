@@ -20,7 +20,6 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.Hashtable;
 import java.util.List;
 import java.util.Set;
 
@@ -32,6 +31,7 @@ import com.hinacom.pix.data.PatientIdentifier;
 import com.hinacom.pix.data.PersonName;
 import com.hinacom.pix.ihe.HL7Actor;
 import com.hinacom.pix.ihe.IPdSupplierAdapter;
+import com.hinacom.pix.ihe.IPdSupplierPagingAdapter;
 import com.hinacom.pix.ihe.PdSupplierException;
 import com.hinacom.pix.ihe.audit.ParticipantObject;
 import com.hinacom.pix.ihe.configuration.Configuration;
@@ -41,6 +41,7 @@ import com.hinacom.pix.ihe.impl_v2.hl7.HL7Util;
 import com.hinacom.pix.ihe.impl_v2.hl7.HL7v25;
 import com.hinacom.pix.ihe.log.MessageStore;
 import com.hinacom.pix.ihe.pdq.ContinuationPointer;
+import com.hinacom.pix.ihe.pdq.ContinuationStore;
 import com.hinacom.pix.ihe.pdq.PdqQuery;
 import com.hinacom.pix.ihe.pdq.PdqResult;
 import com.hinacom.pix.util.AssigningAuthorityUtil;
@@ -85,6 +86,8 @@ import com.misyshealthcare.connect.base.demographicdata.PhoneNumber;
 import com.misyshealthcare.connect.net.Identifier;
 import com.misyshealthcare.connect.util.DateUtil;
 import com.misyshealthcare.connect.util.StringUtil;
+import org.openempi.ics.utility.metrics.Metrics;
+import org.openempi.ics.utility.metrics.Timer;
 
 /**
  * This class processes PDQ query message in HL7 v2.5 format. It 
@@ -99,11 +102,12 @@ public class PdQueryHandler extends BaseHandler implements Application {
 
     /* Logger for problems */
     private static Logger log = Logger.getLogger(PdSupplier.class);
+    private static Timer processTimer = Metrics.timer("PdQueryHandler.processMessage");
 
 	private HL7Actor actor = null;
     private IPdSupplierAdapter pdqAdapter = null;
-    /** Used to store continuation pointer  <String(pointer), ContinuationPointer> */
-    private static Hashtable<String, ContinuationPointer> dscMap = new Hashtable<String, ContinuationPointer>();
+    /** Used to store continuation pointer, shared by the handlers of the actor */
+    private ContinuationStore continuationStore = null;
     
     /**
      * Constructor 
@@ -114,6 +118,7 @@ public class PdQueryHandler extends BaseHandler implements Application {
     	super(actor.getConnection());
     	this.actor = actor;
         this.pdqAdapter = actor.getPdqSupplierAdapter();
+        this.continuationStore = actor.getContinuationStore();
 		assert this.connection != null;
 		assert this.pdqAdapter != null;        
     }
@@ -137,7 +142,8 @@ public class PdQueryHandler extends BaseHandler implements Application {
      * 
      * @param msgIn the incoming PDQ query message
      */
-    public Message processMessage(Message msgIn) throws ApplicationException, HL7Exception {
+    protected Message process(Message msgIn) throws ApplicationException, HL7Exception {
+    	long start = System.nanoTime();
    		Message retMessage = null;
     	MessageStore store = actor.initMessageStore(msgIn, true);
    		try {
@@ -171,6 +177,7 @@ public class PdQueryHandler extends BaseHandler implements Application {
 			if (store !=null) { 
 				actor.saveMessageStore(retMessage, false, store);			
 			}						
+			processTimer.update(System.nanoTime() - start);
 		}
 		return retMessage;
     }
@@ -235,10 +242,12 @@ public class PdQueryHandler extends BaseHandler implements Application {
          PdqResult pdqResult;
          int totalNumber = -1;
          int remainingNumber = -1;
+         boolean truncated = false;
          if(isContinuationQueryByOpenPixPdq()){
         	 if (StringUtil.goodString(pointer)) {
                  //Get the patients from Cache Pointer
-                 if ( !dscMap.containsKey(pointer) ) {
+                 ContinuationPointer cp = continuationStore.get( pointer );
+                 if ( cp == null ) {
                      HL7v25.populateMSA(reply.getMSA(), "AE", hl7Header.getMessageControlId());
                      HL7v25.populateQAK(reply.getQAK(), queryTag, "AE");
                      HL7Util.echoQPD(outTerser, inTerser);
@@ -246,26 +255,26 @@ public class PdQueryHandler extends BaseHandler implements Application {
                      HL7v25.populateERR(reply.getERR(), "DSC", "1", "1", "1", null, null, "Unknown Continuation Pointer");
                      return reply;
                  }
-                 ContinuationPointer cp = dscMap.get( pointer );
                  totalNumber = cp.getTotalRecords();
                  returnDomains = cp.getReturnDomain();
-                 List<List<Patient>> allPatients = cp.getPatients();
-
-                 if (recordRequestNumber < 0 || recordRequestNumber >= allPatients.size() ) {
-                    finalPatients = allPatients;
-                    //remove continuation pointer if no more patients available
-                    synchronized(dscMap) {
-                    	dscMap.remove( pointer );
-                    }
-                    remainingNumber = 0;
+                 if (cp.getPatientKeys() != null) {
+                     //Load only the requested page from EMPI
+                     List<String> keys = cp.nextPatientKeys(recordRequestNumber);
+                     try {
+                         List<List<Patient>> patients = ((IPdSupplierPagingAdapter)pdqAdapter).getPatients(keys, hl7Header.toMessageHeader());
+                         finalPatients = filterPatients(patients, returnDomains);
+                     } catch (PdSupplierException e) {
+                         throw new ApplicationException(e);
+                     }
+                 } else {
+                     finalPatients = cp.nextPatients(recordRequestNumber);
                  }
-                 else {
-                    finalPatients = getSubList(0, recordRequestNumber,allPatients);
-                    List<List<Patient>> remainingPatients = getSubList(recordRequestNumber, allPatients.size(),allPatients);
-                    cp.setPatients(remainingPatients);
-                    cp.setLastRequestTime(System.currentTimeMillis());
-                    newPointer = pointer;
-                    remainingNumber = remainingPatients.size();
+                 remainingNumber = cp.getRemainingCount();
+                 if (remainingNumber == 0) {
+                     //remove continuation pointer if no more patients available
+                     continuationStore.remove( pointer );
+                 } else {
+                     newPointer = pointer;
                  }
              }
              else { //This is the first time query, so get patients directly from EMPI. 
@@ -274,29 +283,46 @@ public class PdQueryHandler extends BaseHandler implements Application {
                 if (pdqResult == null) 
                 	return reply;
               
-                //Filter out patients by return domains.
-                allPatients = getPatientList(pdqResult, returnDomains); 
+                //Filter out patients by return domains, keeping the keys of the ones left
+                List<String> patientKeys = null;
+                if (pdqResult.getPatientKeys() != null && pdqAdapter instanceof IPdSupplierPagingAdapter) 
+                    patientKeys = new ArrayList<String>();
+                for (int i = 0; i < pdqResult.getPatients().size(); i++) {
+                    List<Patient> filteredPatients = filterPatient(pdqResult.getPatients().get(i), returnDomains);
+                    if (filteredPatients.size() > 0) {
+                        allPatients.add( filteredPatients );
+                        if (patientKeys != null)
+                            patientKeys.add( pdqResult.getPatientKeys().get(i) );
+                    }
+                }
+                //Only the patients returned by the supplier can be paged, so the
+                //hit count is theirs; a supplier that found more is reported below
                 totalNumber = allPatients.size();
+                truncated = pdqResult.getTotalCount() > pdqResult.getPatients().size();
+                if (truncated)
+                    log.warn("PDQ query " + queryTag + " matched " + pdqResult.getTotalCount() 
+                            + " patients, only the best " + pdqResult.getPatients().size() + " are returned");
                 if (recordRequestNumber <= 0 || recordRequestNumber >= allPatients.size()) {
                    finalPatients = allPatients;
                    remainingNumber = 0;
                 } else {
                     finalPatients = getSubList(0, recordRequestNumber,allPatients);
-                    //add continuation pointer
-                    List<List<Patient>> remainingPatients = getSubList(recordRequestNumber, allPatients.size(),allPatients);
+                    //add continuation pointer, with the keys of the remaining patients if they can be loaded again
                     String pointerControlId = queryTag  + ":" + getMessageControlId();
                     ContinuationPointer cp = new ContinuationPointer();
                     cp.setPointer(pointerControlId);
                     cp.setReturnDomain( returnDomains );
-                    cp.setPatients( remainingPatients );
-                    cp.setLastRequestTime(System.currentTimeMillis());
-                    cp.setTotalRecords(allPatients.size());
+                    if (patientKeys != null) 
+                        cp.setPatientKeys( patientKeys.subList(recordRequestNumber, patientKeys.size()) );
+                    else
+                        cp.setPatients( getSubList(recordRequestNumber, allPatients.size(),allPatients) );
+                    cp.setTotalRecords(totalNumber);
                     cp.setQueryTag(queryTag);
-                    synchronized(dscMap) {
-                    	dscMap.put(pointerControlId, cp);
-                    }
+                    cp.setClient(hl7Header.getSendingFacility().getNamespaceId() + "|" +
+                            hl7Header.getSendingApplication().getNamespaceId());
+                    continuationStore.put(cp);
                     newPointer = pointerControlId;
-                    remainingNumber = remainingPatients.size();
+                    remainingNumber = cp.getRemainingCount();
                 }
              }
          }else{
@@ -321,6 +347,11 @@ public class PdQueryHandler extends BaseHandler implements Application {
          
          HL7Util.echoQPD(outTerser, inTerser);
 
+         //Warn the client that the hit count is not the number of matches
+         if (truncated)
+             HL7v25.populateERR(reply.getERR(), "QPD", "1", "3", "1", null, null, 
+                     "Too many matches, only the best " + totalNumber + " are returned", "W");
+
          if (finalPatients.size() >= 1) {
         	 popluatePIDGroup(reply, finalPatients, returnDomains);
          }//end if found patient
@@ -358,38 +389,8 @@ public class PdQueryHandler extends BaseHandler implements Application {
        
        String messageQueryName= qid.getMessageQueryName().getIdentifier().getValue();
        if(isContinuationQueryByOpenPixPdq()){ 
-	       long timeout = 600000; //defaults to 600000 millieseconds (10 minutes)
-	       try {
-	           timeout = Long.parseLong( Configuration.getPropertySetValue(connection, "QueryProperties", "ContinuationPointerTimeout", false) );
-	       } catch (IheConfigurationException e) {
-	           throw new ApplicationException(e);
-	       }
-	
-	       List<String> removeList = new ArrayList<String>();
-	       synchronized(dscMap) {
-		       Set<String> keys = dscMap.keySet();
-		       for (String key : keys) {
-		           ContinuationPointer cp = dscMap.get(key);
-		           // Cancel the query matched by the queryTag
-		           if (cp == null || queryTag.equals(cp.getQueryTag())) {
-		        	   //Remove the key with invalid value as well as
-		        	   //the key whose query to be canceled
-		               removeList.add(key);
-		        	   continue;
-		           }
-		
-		           //Also, clean up timed out entries. Set time out to be 10 minutes.
-	               long lastTime = cp.getLastRequestTime();
-	               if ((System.currentTimeMillis() - lastTime) > timeout )
-		               removeList.add(key);
-		       }
-		       if (removeList.size() > 0) {
-		    	   for (String key : removeList) {
-		    		   if(dscMap.containsKey(key))
-		    		        dscMap.remove(key);
-		    	   }
-		       }
-	       }
+	       //Remove the query matched by the queryTag; timed out entries are removed by the store
+	       continuationStore.removeQuery(queryTag);
        }
        else{
             try {
@@ -1364,36 +1365,51 @@ public class PdQueryHandler extends BaseHandler implements Application {
 		List<List<Patient>>  finalPatients = new ArrayList<List<Patient>>();
 		
 		  //pdqResult can never be null, otherwise exception would be thrown. 
-        List<List<Patient>> allPatients = pdqResult.getPatients();
-        // List<List<Patient>> finalPatients = new ArrayList<List<Patient>>();
+        return filterPatients(pdqResult.getPatients(), returnDomains);
+	}
+
+	/*
+	 * Filters a list of logic patients by return domains, leaving out the 
+	 * logic patients with no patient in the return domains.
+	 */
+	private List<List<Patient>> filterPatients(List<List<Patient>> allPatients, List<Identifier> returnDomains){
         if (returnDomains.size() == 0) {
             //If no return domain is specified, we consider all patients
-           finalPatients= allPatients;
+           return allPatients;
         }
-        else {
-            //Find a list of final patients that have ids in the return domain.
-            for (List<Patient> lpatients : allPatients) {
-                List<Patient> filteredPatients = new ArrayList<Patient>();
-                for (Patient patient : lpatients) {
-                   List<PatientIdentifier> pids = patient.getPatientIds();
-                   for (PatientIdentifier pid : pids) {
-                 	  Identifier authority = pid.getAssigningAuthority();
-                       //authority might be partial (either namespaceId or universalId),
-                       //so need to map to the one used in the configuration. 
-                       authority = AssigningAuthorityUtil.reconcileIdentifier( authority, connection );
-                       if (returnDomains.contains( authority )) {
-                           filteredPatients.add( patient );
-                           break;
-                       }                	  
-                   }
-                }
-                //We don't want an empty list of patient 
-                if (filteredPatients.size() > 0)
-                   finalPatients.add( filteredPatients );
-            }
+		List<List<Patient>>  finalPatients = new ArrayList<List<Patient>>();
+        //Find a list of final patients that have ids in the return domain.
+        for (List<Patient> lpatients : allPatients) {
+            List<Patient> filteredPatients = filterPatient(lpatients, returnDomains);
+            //We don't want an empty list of patient 
+            if (filteredPatients.size() > 0)
+               finalPatients.add( filteredPatients );
         }
 		return finalPatients;
 	}
+
+	/*
+	 * Filters the patients of a logic patient by return domains.
+	 */
+	private List<Patient> filterPatient(List<Patient> lpatients, List<Identifier> returnDomains){
+        if (returnDomains.size() == 0) 
+           return lpatients;
+        List<Patient> filteredPatients = new ArrayList<Patient>();
+        for (Patient patient : lpatients) {
+           List<PatientIdentifier> pids = patient.getPatientIds();
+           for (PatientIdentifier pid : pids) {
+         	  Identifier authority = pid.getAssigningAuthority();
+               //authority might be partial (either namespaceId or universalId),
+               //so need to map to the one used in the configuration. 
+               authority = AssigningAuthorityUtil.reconcileIdentifier( authority, connection );
+               if (returnDomains.contains( authority )) {
+                   filteredPatients.add( patient );
+                   break;
+               }                	  
+           }
+        }
+		return filteredPatients;
+	}
 	
 	/**
 	 * Gets the sub list from the parent list.
@@ -22,9 +22,11 @@ import com.hinacom.pix.ihe.HL7Actor;
 import com.hinacom.pix.ihe.IPdSupplier;
 import com.hinacom.pix.ihe.IPdSupplierAdapter;
 import com.hinacom.pix.ihe.audit.IheAuditTrail;
+import com.hinacom.pix.ihe.configuration.Configuration;
 import com.hinacom.pix.ihe.configuration.IheConfigurationException;
 import com.hinacom.pix.ihe.impl_v2.hl7.HL7Server;
 import com.hinacom.pix.ihe.impl_v2.hl7.HL7Util;
+import com.hinacom.pix.ihe.pdq.ContinuationStore;
 
 import ca.uhn.hl7v2.HL7Exception;
 import ca.uhn.hl7v2.app.Application;
@@ -65,6 +67,8 @@ public class PdSupplier extends HL7Actor implements IPdSupplier {
     private HL7Server server = null;
     /** The PD Supplier Adapter between this PD Supplier and eMPI*/
     private IPdSupplierAdapter pdqAdapter = null;
+    /** The continuation pointers of the paged queries */
+    private ContinuationStore continuationStore = null;
 
    /**
     * Creates a new PdSupplier that will talk to a PDQ consumer over
@@ -97,6 +101,12 @@ public class PdSupplier extends HL7Actor implements IPdSupplier {
     public void stop() {
         //now end the local stop, stop the pix manager server
         server.stop();
+        synchronized (this) {
+            if (continuationStore != null) {
+                continuationStore.close();
+                continuationStore = null;
+            }
+        }
 
         //call the super one to initiate standard stop process
         super.stop();
@@ -122,6 +132,36 @@ public class PdSupplier extends HL7Actor implements IPdSupplier {
     IPdSupplierAdapter getPdqSupplierAdapter() {
     	return this.pdqAdapter;
     }
+
+    /**
+     * Gets the store of the continuation pointers of this <code>PdSupplier</code>,
+     * created with the ContinuationPointer* query properties of its connection.
+     * 
+     * @return the {@link ContinuationStore} for this PD Supplier
+     */
+    synchronized ContinuationStore getContinuationStore() {
+        if (continuationStore == null) {
+            long timeout = getQueryProperty("ContinuationPointerTimeout", 600000); //10 minutes
+            int maxEntries = (int)getQueryProperty("ContinuationPointerMaxEntries", 1000);
+            int maxRecords = (int)getQueryProperty("ContinuationPointerMaxRecords", 100000);
+            int maxPerClient = (int)getQueryProperty("ContinuationPointerMaxPerClient", 10);
+            continuationStore = new ContinuationStore(timeout, maxEntries, maxRecords, maxPerClient);
+        }
+        return continuationStore;
+    }
+
+    private long getQueryProperty(String name, long defaultValue) {
+        try {
+            String value = Configuration.getPropertySetValue(connection, "QueryProperties", name, false);
+            if (value != null && value.trim().length() > 0)
+                return Long.parseLong(value.trim());
+        } catch (IheConfigurationException e) {
+            log.warn("Cannot read query property " + name, e);
+        } catch (NumberFormatException e) {
+            log.warn("Invalid query property " + name + ", using " + defaultValue);
+        }
+        return defaultValue;
+    }
     
     
     public static void main(String[] args) throws Exception {
@@ -27,7 +27,6 @@ import com.hinacom.pix.ihe.PixManagerException;
 import com.hinacom.pix.ihe.PixUpdateNotifier;
 import com.hinacom.pix.ihe.audit.ParticipantObject;
 import com.hinacom.pix.ihe.configuration.IheConfigurationException;
-import com.hinacom.pix.ihe.impl_v2.hl7.HL7Channel;
 import com.hinacom.pix.ihe.impl_v2.hl7.HL7Header;
 import com.hinacom.pix.ihe.impl_v2.hl7.HL7v231;
 import com.hinacom.pix.ihe.impl_v2.hl7.HL7v231ToBaseConvertor;
@@ -58,6 +57,8 @@ import com.misyshealthcare.connect.base.audit.AuditCodeMappings;
 import com.misyshealthcare.connect.base.audit.AuditCodeMappings.EventActionCode;
 import com.misyshealthcare.connect.net.IConnectionDescription;
 import com.misyshealthcare.connect.net.Identifier;
+import org.openempi.ics.utility.metrics.Metrics;
+import org.openempi.ics.utility.metrics.Timer;
 
 /**
  * This class processes PIX Feed message in HL7 v2.3.1 format. It 
@@ -75,10 +76,13 @@ import com.misyshealthcare.connect.net.Identifier;
 public class PixFeedHandler extends BaseHandler implements Application {
 
     private static Logger log = Logger.getLogger(PixFeedHandler.class);
+    private static Timer processTimer = Metrics.timer("PixFeedHandler.processMessage");
 	private PixManager actor = null;
 	private IPixManagerAdapter pixAdapter = null;
 	/** Keep an instance of v25 handler for message redirection */
 	private PixFeedHandlerV25 handlerV25 = null;
+	/** Whether PIX Feeds are forwarded to the XDS Registry before being acknowledged */
+	private boolean xdsRegistrySynchronous = false;
 	
 	/**
 	 * Constructor
@@ -90,6 +94,7 @@ public class PixFeedHandler extends BaseHandler implements Application {
 		this.actor = actor;
 		this.pixAdapter = actor.getPixManagerAdapter();
 		this.handlerV25 = new PixFeedHandlerV25(actor);
+		this.xdsRegistrySynchronous = Boolean.parseBoolean(connection.getProperty("xdsRegistrySynchronous"));
 		assert this.connection != null;
 		assert this.pixAdapter != null;
 	}
@@ -117,8 +122,9 @@ public class PixFeedHandler extends BaseHandler implements Application {
      * 
      * @param msgIn the incoming message
      */
-	public Message processMessage(Message msgIn) throws ApplicationException,
+	protected Message process(Message msgIn) throws ApplicationException,
 			HL7Exception {		
+		long start = System.nanoTime();
 		Message retMessage = null;
 		MessageStore store = actor.initMessageStore(msgIn, true);
 		//String encodedMessage = HapiUtil.encodeMessage(msgIn);
@@ -161,6 +167,7 @@ public class PixFeedHandler extends BaseHandler implements Application {
 			if (store !=null) { 
 				actor.saveMessageStore(retMessage, false, store);			
 			}						
+			processTimer.update(System.nanoTime() - start);
 		}
 
 		return retMessage;
@@ -670,6 +677,10 @@ public class PixFeedHandler extends BaseHandler implements Application {
 	 * authority (domain). So messages for non-global patient IDs are filtered out. Also, be sure
 	 * to configure XDS Registry connection in the Actor configuration. See the relevant actor 
 	 * configuration documentation.
+	 * <p/>
+	 * The message is queued to the {@link PixUpdateNotifier}, which sends it in order and
+	 * retries it until it is accepted, unless the <code>xdsRegistrySynchronous</code> property
+	 * of the PIX Manager connection is true, in which case it is sent before returning.
 	 * 
 	 * @param msgIn the incoming PIX Feed message to be forwarded to the XDS Registry 
 	 * @param patientId the ID of the patient of PIX Feed. For patient creation
@@ -687,30 +698,19 @@ public class PixFeedHandler extends BaseHandler implements Application {
 		if ( !patientId.getAssigningAuthority().equals(globalAuthority) ) 
 			return ;
 			
-		MessageStore store = null;
+		XdsRegistryFeedRequest request = null;
 		try {
-			log.info("Forward the PIX Feed to the XDS Registry"+ registryConnection);		            
-
-			store = actor.initMessageStore(msgIn, false);
-			HL7Header header = new HL7Header(msgIn);
-			header.populateMessageStore(store);
-
-			HL7Channel channel = new HL7Channel(registryConnection);
-			Message ack = channel.sendMessage(msgIn);
-		    boolean ok = processPixFeedResponse(ack, registryConnection);
-		    
-		} catch(Exception e) {
-			String errorMsg = "Cannot send PIX Feed to XDS Registry: " + registryConnection.getDescription();
-			errorMsg += " Error Message:"+e.getMessage();
-			log.error(errorMsg);
-			if (store != null) {
-				store.setErrorMessage( errorMsg );
-			}							
-		} finally {
-			//Persist the message
-			if (actor.getStoreLogger() != null && store != null) {  
-				actor.getStoreLogger().saveLog(store);			
-			}						
+			request = new XdsRegistryFeedRequest(actor, msgIn);
+		} catch (HL7Exception e) {
+			log.error("Cannot forward PIX Feed to XDS Registry: " + registryConnection.getDescription()
+					+ " Error Message:" + e.getMessage());
+			return ;
+		}
+		if (xdsRegistrySynchronous) {
+			request.execute();
+		} else {
+			//Queue the message so the PIX Feed is acknowledged without waiting for the XDS Registry
+			PixUpdateNotifier.getInstance().accept(request);
 		}
 	}
 	
@@ -719,11 +719,12 @@ public class PixFeedHandler extends BaseHandler implements Application {
    * Checks the response to the patient identity feed to ensure that it was
    * a success.
    * 
+   * @param actor the PIX Manager actor that sent the patient identity feed
    * @param response the response from the patient identity feed consumer
    * @param connection the connection from which the response is from
    * @return <code>true</code> if the PIX Feed message was accepted
    */
-   private boolean processPixFeedResponse(Message response, IConnectionDescription connection) throws PixManagerException {
+   static boolean processPixFeedResponse(PixManager actor, Message response, IConnectionDescription connection) throws PixManagerException {
 		// Make sure the response is the right type of message
 		ACK message = null;
 		if (response instanceof ACK) {
@@ -19,6 +19,7 @@ package com.hinacom.pix.ihe.impl_v2;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
+import java.util.Properties;
 import java.util.Vector;
 
 import com.hinacom.pix.ihe.impl_v2.hl7.HL7Parser;
@@ -26,6 +27,8 @@ import org.apache.log4j.Logger;
 import com.hinacom.pix.ihe.HL7Actor;
 import com.hinacom.pix.ihe.IPixManager;
 import com.hinacom.pix.ihe.IPixManagerAdapter;
+import com.hinacom.pix.ihe.IPixUpdateNotificationRequest;
+import com.hinacom.pix.ihe.PixUpdateNotifier;
 import com.hinacom.pix.ihe.audit.IheAuditTrail;
 import com.hinacom.pix.ihe.configuration.IheConfigurationException;
 import com.hinacom.pix.ihe.impl_v2.hl7.HL7Server;
@@ -118,6 +121,14 @@ public class PixManager extends HL7Actor implements IPixManager {
         server.registerApplication("ADT", "A08", pixFeed);  
         //Merge patients
         server.registerApplication("ADT", "A40", pixFeed);  
+        //Resend the update notifications and XDS Registry feeds left pending by the last run
+        PixUpdateNotifier.getInstance().registerSource(connection, new PixUpdateNotifier.Source() {
+            public IPixUpdateNotificationRequest restore(Properties properties) throws Exception {
+                if (XdsRegistryFeedRequest.REQUEST_TYPE.equals(properties.getProperty("request")))
+                    return XdsRegistryFeedRequest.restore(PixManager.this, properties);
+                return PixUpdateNotificationRequest.restore(PixManager.this, properties);
+            }
+        });
         //now start the Pix Manager server
         log.info("Starting PIX Manager: " + this.getName() );
         server.start();
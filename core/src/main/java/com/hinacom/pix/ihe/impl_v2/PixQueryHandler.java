@@ -53,6 +53,8 @@ import ca.uhn.hl7v2.util.Terser;
 
 import com.misyshealthcare.connect.base.audit.ActiveParticipant;
 import com.misyshealthcare.connect.net.Identifier;
+import org.openempi.ics.utility.metrics.Metrics;
+import org.openempi.ics.utility.metrics.Timer;
 
 
 /**
@@ -69,6 +71,7 @@ import com.misyshealthcare.connect.net.Identifier;
 public class PixQueryHandler extends BaseHandler implements Application {
 
     private static Logger log = Logger.getLogger(PixQueryHandler.class);
+    private static Timer processTimer = Metrics.timer("PixQueryHandler.processMessage");
 	private PixManager actor = null;
 	private IPixManagerAdapter pixAdapter = null;
 
@@ -104,7 +107,8 @@ public class PixQueryHandler extends BaseHandler implements Application {
      * 
      * @param msgIn the incoming message
      */
-    public Message processMessage(Message msgIn) throws ApplicationException, HL7Exception {
+    protected Message process(Message msgIn) throws ApplicationException, HL7Exception {
+    	long start = System.nanoTime();
 
           //String encodedMessage = new PipeParser().encode(msgIn);
           //log.info("Received message:\n" + encodedMessage + "\n\n");
@@ -139,6 +143,7 @@ public class PixQueryHandler extends BaseHandler implements Application {
 			if (store !=null) { 
 				actor.saveMessageStore(retMessage, false, store);			
 			}						
+			processTimer.update(System.nanoTime() - start);
 		}
 		return retMessage;
 
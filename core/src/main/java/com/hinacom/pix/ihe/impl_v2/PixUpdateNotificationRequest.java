@@ -17,6 +17,7 @@ package com.hinacom.pix.ihe.impl_v2;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Properties;
 
 import ca.uhn.hl7v2.app.Initiator;
 import ca.uhn.hl7v2.model.v25.segment.MSH;
@@ -84,59 +85,159 @@ public class PixUpdateNotificationRequest implements IPixUpdateNotificationReque
      * the update notification message to subscribed PIX Consumers.
      */
     public void execute() {
+        for (String subscriber : getSubscribers()) {
+            try {
+                send(subscriber);
+            } catch (Exception e) {
+                //Do not re-throw exception to let notification message continue to send to other PIX Consumers.
+                log.error(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Gets the PIX Consumers subscribed to the domains of the patient
+     * identifiers of this request, except those configured with DoNotNotify.
+     */
+    public List<String> getSubscribers() {
+        List<String> subscribers = new ArrayList<String>();
         if (pids == null || pids.size() == 0)
-            return;
+            return subscribers;
 
         for (IConnectionDescription connection : actor.getPixConsumerConnections()) {
-            List<PatientIdentifier> idsToBeUpdated = new ArrayList<PatientIdentifier>();
-            List<Identifier> domainsOfInterest = connection.getAllIdentifiersByType("domain");
-            for (PatientIdentifier pid : pids) {
-                if (domainsOfInterest.contains(pid.getAssigningAuthority())) {
-                    idsToBeUpdated.add(pid);
-                }
-            }
-            if (idsToBeUpdated.size() <= 0)
+            if (getIdsToBeUpdated(connection).size() <= 0)
                 continue;
+            boolean doNotNotify = Boolean.parseBoolean(connection.getProperty("DoNotNotify"));
+            if (doNotNotify)
+                continue;
+            subscribers.add(connection.getName());
+        }
+        return subscribers;
+    }
 
-            MessageStore store = null;
-            try {
-                Message updateMessage = createHL7UpdateNotificationMessage(idsToBeUpdated, new Date(), connection);
-                store = actor.initMessageStore(updateMessage, false);
-                //Populate message store header
-                HL7Header header = new HL7Header(updateMessage);
-                header.populateMessageStore(store);
+    /**
+     * Creates and sends the update notification message to one subscribed
+     * PIX Consumer.
+     *
+     * @param subscriber the name of the PIX Consumer connection
+     * @throws Exception When the notification message cannot be sent or is
+     *         not accepted by the PIX Consumer
+     */
+    public void send(String subscriber) throws Exception {
+        IConnectionDescription connection = null;
+        for (IConnectionDescription consumer : actor.getPixConsumerConnections()) {
+            if (consumer.getName().equals(subscriber))
+                connection = consumer;
+        }
+        if (connection == null) {
+            log.warn("PIX Consumer " + subscriber + " is no longer configured, dropping its update notification");
+            return;
+        }
+        List<PatientIdentifier> idsToBeUpdated = getIdsToBeUpdated(connection);
+        if (idsToBeUpdated.size() <= 0)
+            return;
 
-                boolean doNotNotify = Boolean.parseBoolean(connection.getProperty("DoNotNotify"));
-                if (doNotNotify)
-                    continue;
+        MessageStore store = null;
+        try {
+            Message updateMessage = createHL7UpdateNotificationMessage(idsToBeUpdated, new Date(), connection);
+            store = actor.initMessageStore(updateMessage, false);
+            //Populate message store header
+            HL7Header header = new HL7Header(updateMessage);
+            header.populateMessageStore(store);
 
-                log.info("Sending PIX Update Notification to " + connection.getDescription());
+            log.info("Sending PIX Update Notification to " + connection.getDescription());
 
-                HL7Channel channel = new HL7Channel(connection);
-                Message reply = channel.sendMessage(updateMessage);
+            HL7Channel channel = new HL7Channel(connection);
+            Message reply = channel.sendMessage(updateMessage);
 
-                if (store != null) {
-                    store.setInMessage(HL7Util.encodeMessage(reply));
-                }
-                boolean ok = processPixUpdateNotificationResponse(reply, connection);
+            if (store != null) {
+                store.setInMessage(HL7Util.encodeMessage(reply));
+            }
+            boolean ok = processPixUpdateNotificationResponse(reply, connection);
 
-                if (ok) auditLog(idsToBeUpdated, connection);
+            if (ok) auditLog(idsToBeUpdated, connection);
 
-            } catch (Exception e) {
-                //Do not re-throw exception to let notification message continue to send to other PIX Consumers.
-                String errorMsg = "Cannot send patient update notification to PIX Consumer: " + connection.getDescription();
-                errorMsg += " Error Message:" + e.getMessage();
-                log.error(errorMsg);
-                if (store != null) {
-                    store.setErrorMessage(errorMsg);
-                }
-            } finally {
-                //Persist the message
-                if (actor.getStoreLogger() != null && store != null) {
-                    actor.getStoreLogger().saveLog(store);
-                }
+        } catch (Exception e) {
+            String errorMsg = "Cannot send patient update notification to PIX Consumer: " + connection.getDescription();
+            errorMsg += " Error Message:" + e.getMessage();
+            if (store != null) {
+                store.setErrorMessage(errorMsg);
+            }
+            throw new PixManagerException(errorMsg, e);
+        } finally {
+            //Persist the message
+            if (actor.getStoreLogger() != null && store != null) {
+                actor.getStoreLogger().saveLog(store);
+            }
+        }
+    }
+
+    /**
+     * Gets the name of the PIX Manager of this request.
+     */
+    public String getSource() {
+        return actor.getName();
+    }
+
+    /**
+     * Saves the patient identifiers of this request.
+     */
+    public void save(Properties properties) {
+        properties.setProperty("pids", Integer.toString(pids.size()));
+        for (int i = 0; i < pids.size(); i++) {
+            PatientIdentifier pid = pids.get(i);
+            String prefix = "pid." + i + ".";
+            setProperty(properties, prefix + "id", pid.getId());
+            Identifier aa = pid.getAssigningAuthority();
+            if (aa != null) {
+                setProperty(properties, prefix + "namespaceId", aa.getNamespaceId());
+                setProperty(properties, prefix + "universalId", aa.getUniversalId());
+                setProperty(properties, prefix + "universalIdType", aa.getUniversalIdType());
+            }
+        }
+    }
+
+    /**
+     * Restores a request saved by {@link #save(Properties)}.
+     *
+     * @param actor the PIX Manager actor restoring the request
+     * @param properties the saved request
+     * @return the request
+     */
+    static PixUpdateNotificationRequest restore(PixManager actor, Properties properties) {
+        int count = Integer.parseInt(properties.getProperty("pids"));
+        List<PatientIdentifier> pids = new ArrayList<PatientIdentifier>(count);
+        for (int i = 0; i < count; i++) {
+            String prefix = "pid." + i + ".";
+            Identifier aa = null;
+            String namespaceId = properties.getProperty(prefix + "namespaceId");
+            String universalId = properties.getProperty(prefix + "universalId");
+            String universalIdType = properties.getProperty(prefix + "universalIdType");
+            if (namespaceId != null || universalId != null || universalIdType != null)
+                aa = new Identifier(namespaceId, universalId, universalIdType);
+            pids.add(new PatientIdentifier(properties.getProperty(prefix + "id"), aa));
+        }
+        return new PixUpdateNotificationRequest(actor, pids);
+    }
+
+    private static void setProperty(Properties properties, String key, String value) {
+        if (value != null)
+            properties.setProperty(key, value);
+    }
+
+    /**
+     * Gets the patient identifiers of this request in the domains of
+     * interest to a PIX Consumer.
+     */
+    private List<PatientIdentifier> getIdsToBeUpdated(IConnectionDescription connection) {
+        List<PatientIdentifier> idsToBeUpdated = new ArrayList<PatientIdentifier>();
+        List<Identifier> domainsOfInterest = connection.getAllIdentifiersByType("domain");
+        for (PatientIdentifier pid : pids) {
+            if (domainsOfInterest.contains(pid.getAssigningAuthority())) {
+                idsToBeUpdated.add(pid);
             }
         }
+        return idsToBeUpdated;
     }
 
     /**
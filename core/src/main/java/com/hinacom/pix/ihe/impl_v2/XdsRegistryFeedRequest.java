@@ -0,0 +1,172 @@
+/* Copyright 2009 Misys PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License. 
+ */
+package com.hinacom.pix.ihe.impl_v2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import com.hinacom.pix.ihe.IPixUpdateNotificationRequest;
+import com.hinacom.pix.ihe.PixManagerException;
+import com.hinacom.pix.ihe.impl_v2.hl7.HL7Channel;
+import com.hinacom.pix.ihe.impl_v2.hl7.HL7Header;
+import com.hinacom.pix.ihe.impl_v2.hl7.HL7Parser;
+import com.hinacom.pix.ihe.impl_v2.hl7.HL7Util;
+import com.hinacom.pix.ihe.log.MessageStore;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+
+import com.misyshealthcare.connect.net.IConnectionDescription;
+
+/**
+ * A PIX Feed message to be forwarded to the XDS Registry of the affinity
+ * domain.  It is delivered by the {@link com.hinacom.pix.ihe.PixUpdateNotifier}
+ * like a PIX Update Notification, with the XDS Registry as its only
+ * subscriber, so that the PIX Feed can be acknowledged without waiting
+ * for the XDS Registry, while the XDS Registry still receives the feeds
+ * in order.
+ *
+ * @see PixFeedHandler
+ */
+public class XdsRegistryFeedRequest implements IPixUpdateNotificationRequest {
+
+    private static Logger log = Logger.getLogger(XdsRegistryFeedRequest.class);
+
+    /** The value of the "request" property saved by this request */
+    static final String REQUEST_TYPE = "xdsRegistryFeed";
+
+    private PixManager actor = null;
+    /** The encoded PIX Feed message */
+    private String message = null;
+
+    /**
+     * Constructor
+     *
+     * @param actor the PIX Manager actor forwarding the message
+     * @param message the encoded PIX Feed message
+     */
+    public XdsRegistryFeedRequest(PixManager actor, String message) {
+        this.actor = actor;
+        this.message = message;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param actor the PIX Manager actor forwarding the message
+     * @param msgIn the PIX Feed message
+     * @throws HL7Exception When the message cannot be encoded
+     */
+    public XdsRegistryFeedRequest(PixManager actor, Message msgIn) throws HL7Exception {
+        this(actor, HL7Util.encodeMessage(msgIn));
+    }
+
+    /**
+     * Sends the PIX Feed message to the XDS Registry, logging any failure.
+     */
+    public void execute() {
+        for (String subscriber : getSubscribers()) {
+            try {
+                send(subscriber);
+            } catch (Exception e) {
+                log.error(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Gets the XDS Registry of the PIX Manager, if one is configured.
+     */
+    public List<String> getSubscribers() {
+        List<String> subscribers = new ArrayList<String>();
+        IConnectionDescription registryConnection = actor.getXdsRegistryConnection();
+        if (registryConnection != null)
+            subscribers.add(registryConnection.getName());
+        return subscribers;
+    }
+
+    /**
+     * Sends the PIX Feed message to the XDS Registry.
+     *
+     * @param subscriber the name of the XDS Registry connection
+     * @throws Exception When the message cannot be sent or is not accepted
+     *         by the XDS Registry
+     */
+    public void send(String subscriber) throws Exception {
+        IConnectionDescription registryConnection = actor.getXdsRegistryConnection();
+        if (registryConnection == null || !registryConnection.getName().equals(subscriber)) {
+            log.warn("XDS Registry " + subscriber + " is no longer configured, dropping the PIX Feed forwarded to it");
+            return;
+        }
+
+        MessageStore store = null;
+        try {
+            log.info("Forward the PIX Feed to the XDS Registry" + registryConnection);
+
+            Message msgIn = new HL7Parser().parse(message);
+            store = actor.initMessageStore(msgIn, false);
+            HL7Header header = new HL7Header(msgIn);
+            header.populateMessageStore(store);
+
+            HL7Channel channel = new HL7Channel(registryConnection);
+            Message ack = channel.sendMessage(msgIn);
+            if (store != null) {
+                store.setInMessage(HL7Util.encodeMessage(ack));
+            }
+            PixFeedHandler.processPixFeedResponse(actor, ack, registryConnection);
+
+        } catch (Exception e) {
+            String errorMsg = "Cannot send PIX Feed to XDS Registry: " + registryConnection.getDescription();
+            errorMsg += " Error Message:" + e.getMessage();
+            if (store != null) {
+                store.setErrorMessage(errorMsg);
+            }
+            throw new PixManagerException(errorMsg, e);
+        } finally {
+            //Persist the message
+            if (actor.getStoreLogger() != null && store != null) {
+                actor.getStoreLogger().saveLog(store);
+            }
+        }
+    }
+
+    /**
+     * Gets the name of the PIX Manager of this request.
+     */
+    public String getSource() {
+        return actor.getName();
+    }
+
+    /**
+     * Saves the encoded PIX Feed message of this request.
+     */
+    public void save(Properties properties) {
+        properties.setProperty("request", REQUEST_TYPE);
+        properties.setProperty("message", message);
+    }
+
+    /**
+     * Restores a request saved by {@link #save(Properties)}.
+     *
+     * @param actor the PIX Manager actor restoring the request
+     * @param properties the saved request
+     * @return the request
+     */
+    static XdsRegistryFeedRequest restore(PixManager actor, Properties properties) {
+        return new XdsRegistryFeedRequest(actor, properties.getProperty("message"));
+    }
+}
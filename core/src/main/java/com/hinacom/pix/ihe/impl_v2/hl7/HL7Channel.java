@@ -19,19 +19,20 @@ import java.io.IOException;
 import org.apache.log4j.Logger;
 
 import ca.uhn.hl7v2.HL7Exception;
-import ca.uhn.hl7v2.app.Connection;
-import ca.uhn.hl7v2.app.Initiator;
-import ca.uhn.hl7v2.llp.LLPException;
-import ca.uhn.hl7v2.llp.MinLowerLayerProtocol;
 import ca.uhn.hl7v2.model.Message;
 import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.util.Terser;
 
-import com.misyshealthcare.connect.net.ConnectionFactory;
-import com.misyshealthcare.connect.net.IConnection;
 import com.misyshealthcare.connect.net.IConnectionDescription;
 
 /**
  * This class represents a communication channel with an HL7 server.
+ * <p/>
+ * Connections are borrowed from the {@link HL7ConnectionPool} of the
+ * server and returned after each exchange, or when the channel is closed
+ * if it was asked to keep its connection open.  A message sent over a
+ * pooled connection the server has since closed is sent again over a new
+ * connection.
  * 
  * @author Jim Firby
  * @version 2.0 - Nov 20, 2005
@@ -44,8 +45,10 @@ public class HL7Channel {
   /* The connection description for this server */
   private IConnectionDescription connection = null;
   
-  /* The actual HL7 connection, if it is still open */
-  private Connection hl7Connection = null;
+  /* The pooled connection kept open for this channel, if any */
+  private HL7ConnectionPool.PooledConnection hl7Connection = null;
+
+  private final PipeParser parser = new HL7Parser();
   
   /**
    * Creates a new HL7 communication channel to the server
@@ -79,68 +82,118 @@ public class HL7Channel {
 	 * @throws IOException When there is a problem communicating with the server
 	 */
 	public Message sendMessage(Message message, boolean keepOpen) throws IOException {
+		Message[] responses = sendMessages(new Message[] { message }, keepOpen);
+		return (responses == null) ? null : responses[0];
+	}
 
-
-		// Create an HL7 connection
-		if ((hl7Connection == null) || !hl7Connection.isOpen()) {
-			// Open the appropriate TCP connection
-			IConnection conn = ConnectionFactory.getConnection(connection);
-			if (!conn.isConnectionValid()) {
-				throw new IOException("Cannot open connection to \"" + connection.getDescription() + "\"");
-			}
-			// Create the HL7 connection using this TCP connection
-			try {
-				hl7Connection = new Connection(new HL7Parser(), new MinLowerLayerProtocol(), conn.getSocket());
-			} catch (LLPException e) {
-				// Error in HAPI configuration
-				log.error("Cannot find HL7 low level protocol implementation", e);
-				conn.closeConnection();
-				return null;
-			} catch (IOException e) {
-				// Error communicating over socket
-				conn.closeConnection();
-				throw e;
+	/**
+	 * Sends several HL7 messages over one connection to the server without
+	 * waiting for the response to each before sending the next, and
+	 * returns the responses.  A response is matched to its message by its
+	 * MSA-2 (the MSH-10 message control id of the message acknowledged), or
+	 * taken in order if it has none.
+	 * 
+	 * @param messages the HL7 messages to be sent
+	 * @param keepOpen True if the connection used for these messages should be kept open
+	 * @return the responses, in the order of the messages, or null if a
+	 *         message or response is not properly formatted
+	 * @throws IOException When there is a problem communicating with the server
+	 */
+	public Message[] sendMessages(Message[] messages, boolean keepOpen) throws IOException {
+		String[] requests = new String[messages.length];
+		String[] controlIds = new String[messages.length];
+		try {
+			for (int i = 0; i < messages.length; i++) {
+				requests[i] = parser.encode(messages[i]);
+				controlIds[i] = new Terser(messages[i]).get("/MSH-10");
 			}
+		} catch (HL7Exception e) {
+			// Improper HL7 message formatting on send
+			log.error("Improper HL7 message formatting", e);
+			return null;
 		}
-		// Get an initator to send the message
-		Initiator initiator = hl7Connection.getInitiator();
-		// Okay, send the message
-		Message response = null;
+
+		String[] replies = exchange(requests);
+		if (!keepOpen)
+			close();
+
+		Message[] responses = new Message[messages.length];
 		try {
-			response = initiator.sendAndReceive(message);
+			Message[] unmatched = new Message[replies.length];
+			for (int i = 0; i < replies.length; i++) {
+				Message reply = parser.parse(replies[i]);
+				String ackId = new Terser(reply).get("/MSA-2");
+				int match = -1;
+				for (int j = 0; ackId != null && j < controlIds.length; j++) {
+					if (responses[j] == null && ackId.equals(controlIds[j])) {
+						match = j;
+						break;
+					}
+				}
+				if (match >= 0)
+					responses[match] = reply;
+				else
+					unmatched[i] = reply;
+			}
+			// responses without a known MSA-2 take the remaining places in order
+			int next = 0;
+			for (int i = 0; i < unmatched.length; i++) {
+				if (unmatched[i] == null)
+					continue;
+				while (responses[next] != null)
+					next++;
+				responses[next] = unmatched[i];
+			}
 		} catch (HL7Exception e) {
-			// Improper HL7 message formatting (on send or receive)
-            
-            log.error("Improper HL7 message formatting", e);
-			hl7Connection.close();
-			hl7Connection = null;
+			// Improper HL7 message formatting on receive
+			log.error("Improper HL7 message formatting", e);
 			return null;
-		} catch (LLPException e) {
-			// Can't use Lower Level Protocol for some reason
-			log.error("HL7 protocol error", e);
-			hl7Connection.close();
-			hl7Connection = null;
-			return null;
-		} catch (IOException e) {
-			// Can't communicate over socket
-			hl7Connection.close();
-			hl7Connection = null;
-			throw e;
 		}
-		// Close everything
-		if (!keepOpen) {
-			hl7Connection.close();
-			hl7Connection = null;
+		return responses;
+	}
+
+	/**
+	 * Sends the encoded messages and reads as many responses.  When sending
+	 * over a reused pooled connection fails, or the server closes or resets
+	 * it before any byte of a response is read, the server may have closed
+	 * it while it was idle, so the messages are sent again over another
+	 * connection.  They are never sent again after a response timeout or a
+	 * partial response, since the server may have processed them.
+	 */
+	private String[] exchange(String[] requests) throws IOException {
+		HL7ConnectionPool pool = HL7ConnectionPool.getPool(connection);
+		while (true) {
+			if (hl7Connection == null)
+				hl7Connection = pool.borrow();
+			HL7ConnectionPool.PooledConnection c = hl7Connection;
+			boolean reused = c.isReused();
+			boolean sent = false;
+			int read = 0;
+			try {
+				String[] replies = new String[requests.length];
+				c.send(requests);
+				sent = true;
+				for (; read < replies.length; read++)
+					replies[read] = c.receive();
+				return replies;
+			} catch (IOException e) {
+				// Can't communicate over socket
+				pool.invalidate(c);
+				hl7Connection = null;
+				boolean stale = !sent || (read == 0 && c.isClosedBeforeReply(e));
+				if (!reused || !stale)
+					throw e;
+				log.info("Connection to \"" + connection.getDescription() + "\" was closed, reconnecting: " + e.getMessage());
+			}
 		}
-		return response;
 	}
 	
 	/**
-	 * Closes any connections being held open by this channel
+	 * Returns any connection being held open by this channel to the pool
 	 */
 	public void close() {
 		if (hl7Connection != null) {
-			hl7Connection.close();
+			HL7ConnectionPool.getPool(connection).release(hl7Connection);
 			hl7Connection = null;
 		}
 	}
@@ -151,8 +204,7 @@ public class HL7Channel {
 	 * @return True if this channel holds an open connection
 	 */
 	public boolean isOpen() {
-		if (hl7Connection != null) return hl7Connection.isOpen();
-		return false;
+		return hl7Connection != null;
 	}
 	
 }
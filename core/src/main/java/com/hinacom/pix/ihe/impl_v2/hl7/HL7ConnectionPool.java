@@ -0,0 +1,465 @@
+/* Copyright 2009 Misys PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License. 
+ */
+
+
+package com.hinacom.pix.ihe.impl_v2.hl7;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.misyshealthcare.connect.net.ConnectionFactory;
+import com.misyshealthcare.connect.net.IConnection;
+import com.misyshealthcare.connect.net.IConnectionDescription;
+
+/**
+ * A pool of open MLLP connections to one HL7 server, so messages sent to
+ * it do not each pay for a TCP and TLS handshake.  There is one pool per
+ * connection description, see {@link #getPool(IConnectionDescription)}.
+ * <p/>
+ * A connection is lent to one caller at a time.  Connections idle for a
+ * while are checked before being lent, and connections idle longer than
+ * the idle timeout are closed, down to the minimum size, by a background
+ * thread that also reopens connections up to the minimum size.
+ * <p/>
+ * The following connection properties size the pool:
+ * <ul>
+ * <li>poolMinSize - connections kept open (default 0)</li>
+ * <li>poolMaxSize - connections open at once, 0 to open a connection for
+ *     each exchange and close it after (default 4)</li>
+ * <li>poolIdleTimeoutSecs - idle connections are closed after this many
+ *     seconds (default 60)</li>
+ * <li>poolMaxWaitMillis - how long to wait for a connection when all are
+ *     lent (default 10000)</li>
+ * <li>responseTimeoutSecs - how long to wait for a response (default 30)</li>
+ * <li>charset - the encoding of the messages (default the platform's)</li>
+ * </ul>
+ */
+public class HL7ConnectionPool {
+
+    private static final Logger log = Logger.getLogger(HL7ConnectionPool.class);
+
+    public static final int DEFAULT_MIN_SIZE = 0;
+    public static final int DEFAULT_MAX_SIZE = 4;
+    public static final int DEFAULT_IDLE_TIMEOUT_SECS = 60;
+    public static final int DEFAULT_MAX_WAIT_MILLIS = 10000;
+    public static final int DEFAULT_RESPONSE_TIMEOUT_SECS = 30;
+
+    /* Connections idle longer than this are checked before being lent */
+    private static final long VALIDATE_AFTER_MILLIS = 1000;
+    private static final long EVICTION_PERIOD_SECS = 15;
+
+    private static final ConcurrentHashMap<IConnectionDescription, HL7ConnectionPool> pools =
+            new ConcurrentHashMap<IConnectionDescription, HL7ConnectionPool>();
+    private static ScheduledExecutorService evictor = null;
+
+    private final IConnectionDescription connection;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long maxWaitMillis;
+    private final int responseTimeoutMillis;
+    private final Charset charset;
+
+    /* Idle connections, most recently used first */
+    private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+    /* Connections open or being opened, idle or lent */
+    private int total = 0;
+    private boolean closed = false;
+
+    private HL7ConnectionPool(IConnectionDescription connection) {
+        this.connection = connection;
+        this.minSize = Math.max(0, getIntProperty("poolMinSize", DEFAULT_MIN_SIZE));
+        this.maxSize = Math.max(0, getIntProperty("poolMaxSize", DEFAULT_MAX_SIZE));
+        this.idleTimeoutMillis = getIntProperty("poolIdleTimeoutSecs", DEFAULT_IDLE_TIMEOUT_SECS) * 1000L;
+        this.maxWaitMillis = getIntProperty("poolMaxWaitMillis", DEFAULT_MAX_WAIT_MILLIS);
+        this.responseTimeoutMillis = getIntProperty("responseTimeoutSecs", DEFAULT_RESPONSE_TIMEOUT_SECS) * 1000;
+        String cs = connection.getProperty("charset");
+        this.charset = (cs == null) ? Charset.defaultCharset() : Charset.forName(cs);
+    }
+
+    /**
+     * Gets the pool of connections to a server, creating it on first use.
+     *
+     * @param connection the connection description of the server
+     * @return the pool
+     */
+    public static HL7ConnectionPool getPool(IConnectionDescription connection) {
+        HL7ConnectionPool pool = pools.get(connection);
+        if (pool == null) {
+            HL7ConnectionPool created = new HL7ConnectionPool(connection);
+            pool = pools.putIfAbsent(connection, created);
+            if (pool == null) {
+                pool = created;
+                startEvictor();
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Closes the connections of all pools.
+     */
+    public static void closeAll() {
+        for (Iterator<HL7ConnectionPool> iter = pools.values().iterator(); iter.hasNext(); ) {
+            HL7ConnectionPool pool = iter.next();
+            iter.remove();
+            pool.close();
+        }
+    }
+
+    /**
+     * Lends a connection, waiting for one to be returned if all are lent.
+     *
+     * @return an open connection
+     * @throws IOException when no connection can be opened
+     */
+    public PooledConnection borrow() throws IOException {
+        if (maxSize == 0)
+            return open();
+
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        while (true) {
+            PooledConnection c = null;
+            synchronized (this) {
+                while (c == null) {
+                    if (closed)
+                        throw new IOException("Connection pool to \"" + connection.getDescription() + "\" is closed");
+                    if (!idle.isEmpty()) {
+                        c = idle.removeFirst();
+                    } else if (total < maxSize) {
+                        total++;
+                        break;
+                    } else {
+                        long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0)
+                            throw new IOException("Timed out waiting for a connection to \"" + connection.getDescription() + "\"");
+                        try {
+                            wait(wait);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted waiting for a connection to \"" + connection.getDescription() + "\"");
+                        }
+                    }
+                }
+            }
+            if (c == null)
+                return openCounted();
+            if (c.validate())
+                return c;
+            invalidate(c);
+        }
+    }
+
+    /**
+     * Returns a connection to the pool.  A connection that failed is
+     * closed instead.
+     *
+     * @param c the connection borrowed
+     */
+    public void release(PooledConnection c) {
+        if (maxSize == 0 || c.broken) {
+            invalidate(c);
+            return;
+        }
+        c.lastUsed = System.currentTimeMillis();
+        synchronized (this) {
+            if (!closed) {
+                idle.addFirst(c);
+                notify();
+                return;
+            }
+        }
+        invalidate(c);
+    }
+
+    /**
+     * Closes a connection that cannot be used any more.
+     *
+     * @param c the connection borrowed
+     */
+    public void invalidate(PooledConnection c) {
+        c.close();
+        if (maxSize == 0)
+            return;
+        synchronized (this) {
+            total--;
+            notify();
+        }
+    }
+
+    /**
+     * Closes the idle connections and those returned from now on.
+     */
+    public void close() {
+        List<PooledConnection> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<PooledConnection>(idle);
+            total -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        for (PooledConnection c : toClose)
+            c.close();
+    }
+
+    /**
+     * Closes the connections idle longer than the idle timeout, keeping
+     * the minimum size, then opens connections up to the minimum size.
+     */
+    void evict() {
+        List<PooledConnection> toClose = new ArrayList<PooledConnection>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            // oldest last
+            while (!idle.isEmpty() && total > minSize &&
+                   now - idle.getLast().lastUsed >= idleTimeoutMillis) {
+                toClose.add(idle.removeLast());
+                total--;
+            }
+        }
+        for (PooledConnection c : toClose)
+            c.close();
+
+        while (true) {
+            synchronized (this) {
+                if (closed || total >= Math.min(minSize, maxSize))
+                    return;
+                total++;
+            }
+            try {
+                release(openCounted());
+            } catch (IOException e) {
+                log.debug("Cannot open idle connection to \"" + connection.getDescription() + "\": " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Opens a connection for a slot already counted in total.
+     */
+    private PooledConnection openCounted() throws IOException {
+        boolean opened = false;
+        try {
+            PooledConnection c = open();
+            opened = true;
+            return c;
+        } finally {
+            if (!opened) {
+                synchronized (this) {
+                    total--;
+                    notify();
+                }
+            }
+        }
+    }
+
+    private PooledConnection open() throws IOException {
+        IConnection conn = ConnectionFactory.getConnection(connection);
+        if (!conn.isConnectionValid()) {
+            conn.closeConnection();
+            throw new IOException("Cannot open connection to \"" + connection.getDescription() + "\"");
+        }
+        return new PooledConnection(conn);
+    }
+
+    private int getIntProperty(String name, int defaultValue) {
+        String value = connection.getProperty(name);
+        if (value == null || value.trim().length() == 0)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid " + name + " property of " + connection.getDescription() + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    private static synchronized void startEvictor() {
+        if (evictor != null)
+            return;
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "HL7ConnectionPool-evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                for (HL7ConnectionPool pool : pools.values()) {
+                    try {
+                        pool.evict();
+                    } catch (RuntimeException e) {
+                        log.error("Error evicting HL7 connections", e);
+                    }
+                }
+            }
+        }, EVICTION_PERIOD_SECS, EVICTION_PERIOD_SECS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * An open connection of the pool.  It exchanges MLLP framed messages
+     * with the server.
+     */
+    public class PooledConnection {
+        private final IConnection conn;
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final MllpFramer framer = new MllpFramer(charset, 0);
+        private final LinkedList<String> received = new LinkedList<String>();
+        private final byte[] buffer = new byte[8192];
+        private long lastUsed = System.currentTimeMillis();
+        private boolean reused = false;
+        private boolean broken = false;
+        /* whether any byte was read since the last send */
+        private boolean replyStarted = false;
+
+        PooledConnection(IConnection conn) throws IOException {
+            this.conn = conn;
+            this.socket = conn.getSocket();
+            this.in = conn.getInputStream();
+            this.out = conn.getOutputStream();
+            if (in == null || out == null) {
+                conn.closeConnection();
+                throw new IOException("Cannot open connection to \"" + connection.getDescription() + "\"");
+            }
+        }
+
+        /**
+         * Whether the connection was used before being lent this time.
+         * A failure on a reused connection may only mean the server closed
+         * it while it was idle.
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        /**
+         * Whether the last receive() failure happened before any byte of a
+         * response was read, because the server closed or reset the
+         * connection.  A server that closed an idle connection did not
+         * process the messages sent on it, but one that timed out or failed
+         * part way through a response may have.
+         */
+        public boolean isClosedBeforeReply(IOException e) {
+            return !replyStarted &&
+                   (e instanceof EOFException || e instanceof SocketException);
+        }
+
+        /**
+         * Writes messages without waiting for their responses.
+         *
+         * @param messages the encoded HL7 messages
+         * @throws IOException when the connection fails; it is marked broken
+         */
+        public void send(String[] messages) throws IOException {
+            replyStarted = false;
+            try {
+                for (int i = 0; i < messages.length; i++) {
+                    ByteBuffer frame = framer.encode(messages[i]);
+                    out.write(frame.array(), 0, frame.limit());
+                }
+                out.flush();
+            } catch (IOException e) {
+                broken = true;
+                throw e;
+            }
+        }
+
+        /**
+         * Reads the next message from the server, waiting at most the
+         * response timeout.
+         *
+         * @return the encoded HL7 message
+         * @throws IOException when the connection fails or times out; it is
+         *         marked broken
+         */
+        public String receive() throws IOException {
+            try {
+                if (socket != null)
+                    socket.setSoTimeout(responseTimeoutMillis);
+                while (received.isEmpty()) {
+                    int n = in.read(buffer);
+                    if (n < 0)
+                        throw new EOFException("Connection closed by \"" + connection.getDescription() + "\"");
+                    if (n > 0)
+                        replyStarted = true;
+                    framer.decode(ByteBuffer.wrap(buffer, 0, n), received);
+                }
+                reused = true;
+                return received.removeFirst();
+            } catch (IOException e) {
+                broken = true;
+                throw e;
+            }
+        }
+
+        /**
+         * Checks, before lending it, that a connection idle for a while was
+         * not closed by the server.
+         */
+        boolean validate() {
+            if (socket == null)
+                return !broken;
+            if (broken || socket.isClosed() || !socket.isConnected() ||
+                socket.isInputShutdown() || socket.isOutputShutdown())
+                return false;
+            if (System.currentTimeMillis() - lastUsed < VALIDATE_AFTER_MILLIS)
+                return true;
+            try {
+                // an open connection has nothing to read; end of stream or
+                // data nobody asked for means it cannot be used
+                socket.setSoTimeout(1);
+                in.read(buffer);
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            broken = true;
+            try {
+                conn.closeConnection();
+            } catch (RuntimeException e) {
+                log.debug("Error closing connection to \"" + connection.getDescription() + "\"", e);
+            }
+        }
+    }
+}
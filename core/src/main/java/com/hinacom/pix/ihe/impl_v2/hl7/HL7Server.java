@@ -16,14 +16,39 @@
 
 package com.hinacom.pix.ihe.impl_v2.hl7;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
-import ca.uhn.hl7v2.app.Connection;
+import ca.uhn.hl7v2.app.Application;
 import ca.uhn.hl7v2.app.HL7Service;
+import ca.uhn.hl7v2.app.MessageTypeRouter;
+import ca.uhn.hl7v2.app.Responder;
 import ca.uhn.hl7v2.llp.LowerLayerProtocol;
 import ca.uhn.hl7v2.parser.Parser;
 
@@ -36,6 +61,32 @@ import javax.net.ssl.SSLServerSocket;
 /**
  * The class extends HAPI HL7Service interface. It is the HL7 server engine
  * to start and stop an HL7 service.
+ * <p/>
+ * Plain connections are served by a single selector thread that accepts
+ * them, reads and writes the MLLP frames, and hands each complete message
+ * to a bounded pool of worker threads, which run the registered
+ * <code>Application</code>s.  A connection has at most one message in the
+ * pool at a time and is not read while it has one, so responses go back
+ * in order and a connection sending faster than the workers answer is
+ * throttled.  When the pool queue is full, connections wait for a worker
+ * to finish before their message is queued.
+ * <p/>
+ * Secure connections use the server socket of the connection factory; the
+ * accept loop hands each socket to its own thread, so a slow TLS handshake
+ * does not hold up other clients.
+ * <p/>
+ * The following connection properties tune the server:
+ * <ul>
+ * <li>maxConnections - connections open at once, further ones are closed
+ *     when accepted (default 500)</li>
+ * <li>idleTimeoutSecs - connections idle this long are closed, 0 for
+ *     never (default 300)</li>
+ * <li>workerThreads - threads processing messages (default 16)</li>
+ * <li>workerQueueSize - messages waiting for a worker (default 100)</li>
+ * <li>maxMessageSize - the largest message accepted, in bytes, 0 for no
+ *     limit (default 1048576)</li>
+ * <li>charset - the encoding of the messages (default the platform's)</li>
+ * </ul>
  *
  * @author Wenzhi Li
  * @version 1.0, Mar 2, 2007
@@ -43,8 +94,37 @@ import javax.net.ssl.SSLServerSocket;
 public class HL7Server extends HL7Service {
 
     private static Logger log = Logger.getLogger(HL7Server.class);
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 500;
+    public static final int DEFAULT_IDLE_TIMEOUT_SECS = 300;
+    public static final int DEFAULT_WORKER_THREADS = 16;
+    public static final int DEFAULT_WORKER_QUEUE_SIZE = 100;
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    /* How long the selector waits before checking for idle connections and stop() */
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+
     private IConnectionDescription connection;
 
+    /* Routes messages to the registered applications */
+    private final MessageTypeRouter router = new MessageTypeRouter();
+
+    private final int maxConnections;
+    private final long idleTimeoutMillis;
+    private final int workerThreads;
+    private final int workerQueueSize;
+    private final int maxMessageSize;
+    private final Charset charset;
+
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private ThreadPoolExecutor workers = null;
+    private Responder responder = null;
+
+    /* Selector of the plain connections, and the work done by workers for them */
+    private Selector selector = null;
+    private final Queue<Client> completed = new ConcurrentLinkedQueue<Client>();
+    private final List<Client> stalled = new LinkedList<Client>();
+
     /**
      * Constructor. Creates a new instance of SimpleServer that listens
      * on the given port.
@@ -52,46 +132,458 @@ public class HL7Server extends HL7Service {
     public HL7Server(IConnectionDescription conn, LowerLayerProtocol llp, Parser parser) {
         super(parser, llp);
         this.connection = conn;
+        this.maxConnections = getIntProperty("maxConnections", DEFAULT_MAX_CONNECTIONS);
+        this.idleTimeoutMillis = getIntProperty("idleTimeoutSecs", DEFAULT_IDLE_TIMEOUT_SECS) * 1000L;
+        this.workerThreads = Math.max(1, getIntProperty("workerThreads", DEFAULT_WORKER_THREADS));
+        this.workerQueueSize = Math.max(1, getIntProperty("workerQueueSize", DEFAULT_WORKER_QUEUE_SIZE));
+        this.maxMessageSize = getIntProperty("maxMessageSize", DEFAULT_MAX_MESSAGE_SIZE);
+        String cs = conn.getProperty("charset");
+        this.charset = (cs == null) ? Charset.defaultCharset() : Charset.forName(cs);
     }
 
     /**
-     * Loop that waits for a connection and starts a ConnectionManager
-     * when it gets one.
+     * Registers an application to handle the messages of the given type
+     * and trigger event.
+     */
+    public synchronized void registerApplication(String messageType, String triggerEvent, Application handler) {
+        super.registerApplication(messageType, triggerEvent, handler);
+        router.registerApplication(messageType, triggerEvent, handler);
+    }
+
+    /**
+     * Loop that accepts connections and serves them until the server
+     * is stopped.
      */
     public void run() {
         try {
-            IServerConnection serverConn = ConnectionFactory.getServerConnection(connection);
-            ServerSocket ss = serverConn.getServerSocket();
-            if(ss instanceof SSLServerSocket)
-            {
-                SSLServerSocket ssl = (SSLServerSocket)ss;
-                ssl.setNeedClientAuth(true);
-                String[] e = new String[]{"SSL_RSA_WITH_NULL_SHA", "TLS_RSA_WITH_AES_128_CBC_SHA", "SSL_RSA_WITH_3DES_EDE_CBC_SHA", "SSL_RSA_WITH_DES_CBC_SHA"};
-                ssl.setEnabledCipherSuites(e);
+            responder = new Responder(parser);
+            responder.registerApplication(router);
+            workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(workerQueueSize), new WorkerThreadFactory());
+
+            if (connection.isSecure())
+                runSecure();
+            else
+                runPlain();
+        } catch (Exception e) {
+            log.error(e);
+        } finally {
+            if (workers != null)
+                workers.shutdown();
+            this.stop();
+        }
+    }
+
+    /**
+     * Serves plain connections from the selector thread.
+     */
+    private void runPlain() throws IOException {
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        selector = Selector.open();
+        try {
+            ssc.socket().setReuseAddress(true);
+            ssc.socket().bind(new InetSocketAddress(connection.getPort()));
+            ssc.configureBlocking(false);
+            ssc.register(selector, SelectionKey.OP_ACCEPT);
+
+            log.info(connection.getDescription() + " is running on port " + ssc.socket().getLocalPort());
+            long lastIdleCheck = System.currentTimeMillis();
+            while (keepRunning()) {
+                selector.select(SELECT_TIMEOUT_MILLIS);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            accept(ssc);
+                        else {
+                            Client client = (Client) key.attachment();
+                            if (key.isWritable())
+                                client.write();
+                            if (key.isValid() && key.isReadable())
+                                client.read();
+                        }
+                    } catch (Exception e) {
+                        if (key.attachment() != null) {
+                            Client client = (Client) key.attachment();
+                            log.info("Closing HL7 connection from " + client.address + ": " + e.getMessage());
+                            client.close();
+                        } else {
+                            log.error("Error accepting HL7 connections: ", e);
+                        }
+                    }
+                }
+
+                Client client;
+                while ((client = completed.poll()) != null)
+                    client.completed();
+                retryStalled();
+
+                long now = System.currentTimeMillis();
+                if (idleTimeoutMillis > 0 && now - lastIdleCheck >= SELECT_TIMEOUT_MILLIS) {
+                    closeIdle(now);
+                    lastIdleCheck = now;
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null)
+                    ((Client) key.attachment()).close();
+            }
+            selector.close();
+            ssc.close();
+        }
+    }
+
+    private void accept(ServerSocketChannel ssc) throws IOException {
+        SocketChannel sc = ssc.accept();
+        if (sc == null)
+            return;
+        String address = sc.socket().getInetAddress().getHostAddress();
+        if (openConnections.get() >= maxConnections) {
+            log.warn("Refusing HL7 connection from " + address + ", " + maxConnections + " connections open");
+            sc.close();
+            return;
+        }
+        openConnections.incrementAndGet();
+        log.info("Accepted connection from " + address);
+        sc.configureBlocking(false);
+        sc.socket().setTcpNoDelay(true);
+        Client client = new Client(sc, address);
+        client.key = sc.register(selector, SelectionKey.OP_READ, client);
+    }
+
+    /**
+     * Queues the messages of connections the pool had no room for, oldest
+     * first.
+     */
+    private void retryStalled() {
+        Iterator<Client> iter = stalled.iterator();
+        while (iter.hasNext()) {
+            Client client = iter.next();
+            if (!client.dispatch())
+                break;
+            iter.remove();
+        }
+    }
+
+    private void closeIdle(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Client client = (Client) key.attachment();
+            if (client != null && client.isIdle(now)) {
+                log.info("Closing idle HL7 connection from " + client.address);
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Processes a message with the registered applications, returning the
+     * response or null if there is none.
+     */
+    private String process(String message, String address) {
+        try {
+            return responder.processMessage(message);
+        } catch (Exception e) {
+            log.error("Error processing HL7 message from " + address, e);
+            return null;
+        }
+    }
+
+    /**
+     * A plain connection.  Its state is only changed on the selector
+     * thread; the worker processing its message hands the response back
+     * through the completed queue.
+     */
+    private class Client implements Runnable {
+        private final SocketChannel channel;
+        private final String address;
+        private final MllpFramer framer = new MllpFramer(charset, maxMessageSize);
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        private final LinkedList<String> received = new LinkedList<String>();
+        private final LinkedList<ByteBuffer> writes = new LinkedList<ByteBuffer>();
+        private SelectionKey key;
+        private long lastActivity = System.currentTimeMillis();
+        private boolean busy = false;
+        private boolean closed = false;
+
+        /* Set by the worker */
+        private volatile String request;
+        private volatile String response;
+
+        Client(SocketChannel channel, String address) {
+            this.channel = channel;
+            this.address = address;
+        }
+
+        void read() throws IOException {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            readBuffer.flip();
+            framer.decode(readBuffer, received);
+            if (!received.isEmpty() && !busy && !dispatch())
+                stalled.add(this);
+            updateInterest();
+        }
+
+        void write() throws IOException {
+            while (!writes.isEmpty()) {
+                ByteBuffer buf = writes.getFirst();
+                channel.write(buf);
+                if (buf.hasRemaining())
+                    break;
+                writes.removeFirst();
+            }
+            lastActivity = System.currentTimeMillis();
+            updateInterest();
+        }
+
+        /**
+         * Hands the next message received to the workers, returning false
+         * if their queue is full.
+         */
+        boolean dispatch() {
+            if (closed || received.isEmpty())
+                return true;
+            request = received.removeFirst();
+            busy = true;
+            try {
+                workers.execute(this);
+                return true;
+            } catch (RejectedExecutionException e) {
+                received.addFirst(request);
+                busy = false;
+                return false;
+            }
+        }
+
+        /**
+         * Runs on a worker thread.
+         */
+        public void run() {
+            response = process(request, address);
+            completed.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Called on the selector thread once the worker is done.
+         */
+        void completed() {
+            busy = false;
+            if (closed)
+                return;
+            if (response != null)
+                writes.add(framer.encode(response));
+            response = null;
+            request = null;
+            lastActivity = System.currentTimeMillis();
+            if (!received.isEmpty() && !dispatch())
+                stalled.add(this);
+            updateInterest();
+        }
+
+        boolean isIdle(long now) {
+            return !busy && writes.isEmpty() && received.isEmpty() &&
+                   now - lastActivity >= idleTimeoutMillis;
+        }
+
+        /**
+         * Reads only when nothing is being processed, writes only when
+         * there is something to write.
+         */
+        private void updateInterest() {
+            if (closed || !key.isValid())
+                return;
+            int ops = 0;
+            if (!busy && received.isEmpty())
+                ops |= SelectionKey.OP_READ;
+            if (!writes.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            stalled.remove(this);
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                //ignore
             }
+            openConnections.decrementAndGet();
+        }
+    }
 
-            ss.setSoTimeout(10000);
+    /**
+     * Loop that waits for a secure connection and starts a thread serving
+     * it.
+     */
+    private void runSecure() throws Exception {
+        IServerConnection serverConn = ConnectionFactory.getServerConnection(connection);
+        ServerSocket ss = serverConn.getServerSocket();
+        if(ss instanceof SSLServerSocket)
+        {
+            SSLServerSocket ssl = (SSLServerSocket)ss;
+            ssl.setNeedClientAuth(true);
+            String[] e = new String[]{"SSL_RSA_WITH_NULL_SHA", "TLS_RSA_WITH_AES_128_CBC_SHA", "SSL_RSA_WITH_3DES_EDE_CBC_SHA", "SSL_RSA_WITH_DES_CBC_SHA"};
+            ssl.setEnabledCipherSuites(e);
+        }
 
-            log.info(connection.getDescription() + " is running on port " + ss.getLocalPort());
+        ss.setSoTimeout(10000);
+
+        log.info(connection.getDescription() + " is running on port " + ss.getLocalPort());
+        List<Socket> sockets = new ArrayList<Socket>();
+        try {
             while (keepRunning()) {
                 try {
                     Socket newSocket = ss.accept();
-                    log.info("Accepted connection from " + newSocket.getInetAddress().getHostAddress());
-                    Connection conn = new Connection(parser, this.llp, newSocket);
-                    newConnection(conn);
+                    String address = newSocket.getInetAddress().getHostAddress();
+                    if (openConnections.get() >= maxConnections) {
+                        log.warn("Refusing HL7 connection from " + address + ", " + maxConnections + " connections open");
+                        newSocket.close();
+                        continue;
+                    }
+                    openConnections.incrementAndGet();
+                    log.info("Accepted connection from " + address);
+                    synchronized (sockets) {
+                        sockets.add(newSocket);
+                    }
+                    Thread t = new Thread(new SecureClient(newSocket, address, sockets),
+                            "HL7Server-" + connection.getPort() + "-" + address);
+                    t.setDaemon(true);
+                    t.start();
                 } catch (InterruptedIOException ie) {
                     //ignore - just timed out waiting for connection
                 } catch (Exception e) {
                     log.error("Error accepting HL7 connections: ", e);
                 }
             }
-
-            ss.close();
-        } catch (Exception e) {
-            log.error(e);
         } finally {
-            this.stop();
+            ss.close();
+            synchronized (sockets) {
+                for (Socket s : sockets) {
+                    try {
+                        s.close();
+                    } catch (IOException e) {
+                        //ignore
+                    }
+                }
+            }
         }
     }
 
+    /**
+     * Serves a secure connection on its own thread.  The TLS handshake
+     * happens on the first read.  Messages are processed by the workers,
+     * one at a time, so the pool bounds the work done at once as for plain
+     * connections.
+     */
+    private class SecureClient implements Runnable {
+        private final Socket socket;
+        private final String address;
+        private final List<Socket> sockets;
+
+        SecureClient(Socket socket, String address, List<Socket> sockets) {
+            this.socket = socket;
+            this.address = address;
+            this.sockets = sockets;
+        }
+
+        public void run() {
+            MllpFramer framer = new MllpFramer(charset, maxMessageSize);
+            List<String> received = new ArrayList<String>();
+            byte[] buf = new byte[8192];
+            try {
+                if (idleTimeoutMillis > 0)
+                    socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, idleTimeoutMillis));
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                int n;
+                while (keepRunning() && (n = in.read(buf)) >= 0) {
+                    framer.decode(ByteBuffer.wrap(buf, 0, n), received);
+                    for (String message : received) {
+                        String response = submit(message);
+                        if (response != null) {
+                            ByteBuffer frame = framer.encode(response);
+                            out.write(frame.array(), 0, frame.limit());
+                            out.flush();
+                        }
+                    }
+                    received.clear();
+                }
+            } catch (InterruptedIOException e) {
+                log.info("Closing idle HL7 connection from " + address);
+            } catch (Exception e) {
+                if (keepRunning())
+                    log.info("Closing HL7 connection from " + address + ": " + e.getMessage());
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+                synchronized (sockets) {
+                    sockets.remove(socket);
+                }
+                openConnections.decrementAndGet();
+            }
+        }
+
+        /**
+         * Processes a message on a worker, waiting for room in the pool
+         * queue if it is full.
+         */
+        private String submit(final String message) throws Exception {
+            Callable<String> task = new Callable<String>() {
+                public String call() {
+                    return process(message, address);
+                }
+            };
+            while (true) {
+                try {
+                    return workers.submit(task).get();
+                } catch (RejectedExecutionException e) {
+                    if (workers.isShutdown())
+                        throw e;
+                    Thread.sleep(10);
+                }
+            }
+        }
+    }
+
+    private int getIntProperty(String name, int defaultValue) {
+        String value = connection.getProperty(name);
+        if (value == null || value.trim().length() == 0)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid " + name + " property of " + connection.getDescription() + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "HL7Server-worker-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
 }
@@ -313,6 +313,26 @@ public class HL7v25 {
      */
     public static void populateERR(ERR err, String segmentId, String sequence, String fieldPosition, String fieldRepetition,
                                    String componentNumber, String hl7ErrorCode, String hl7ErrorText) throws DataTypeException, HL7Exception {
+        populateERR(err, segmentId, sequence, fieldPosition, fieldRepetition, componentNumber, hl7ErrorCode, hl7ErrorText, "E");
+    }
+
+    /**
+     * Populates ERR segment with a given severity.
+     *
+     * @param err the ERR segment to be populated
+     * @param segmentId the id of the segment that caused the error
+     * @param sequence the sequence of the segment
+     * @param fieldPosition the field position where the error is
+     * @param fieldRepetition the repetition of the error field
+     * @param componentNumber the component number in the error field
+     * @param hl7ErrorCode the HL7 error code
+     * @param hl7ErrorText the HL7 error text
+     * @param severity the severity, E for an error, W for a warning or I for information
+     * @throws DataTypeException When ERR segment values cannot be set.
+     * @throws HL7Exception When HL7 related issue happens
+     */
+    public static void populateERR(ERR err, String segmentId, String sequence, String fieldPosition, String fieldRepetition,
+                                   String componentNumber, String hl7ErrorCode, String hl7ErrorText, String severity) throws DataTypeException, HL7Exception {
         ERL erl = err.getErrorLocation(0);
         //ERR-2
         erl.getSegmentID().setValue( segmentId );
@@ -324,7 +344,7 @@ public class HL7v25 {
         err.getHL7ErrorCode().getIdentifier().setValue( hl7ErrorCode );
         err.getHL7ErrorCode().getText().setValue( hl7ErrorText );
         //ERR-4
-        err.getSeverity().setValue("E");
+        err.getSeverity().setValue(severity);
     }
 
     /**
@@ -0,0 +1,118 @@
+/* Copyright 2009 Misys PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License. 
+ */
+
+
+package com.hinacom.pix.ihe.impl_v2.hl7;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Frames and unframes HL7 messages with the Minimal Lower Layer Protocol
+ * (MLLP): a start block byte (0x0B), the message, then an end block byte
+ * (0x1C) and a carriage return.  Bytes received outside a frame are
+ * discarded, as HAPI's MinLowerLayerProtocol does.
+ * <p/>
+ * A framer keeps the partial frame of one connection between reads, and
+ * is not thread safe.
+ */
+public class MllpFramer {
+
+    public static final byte START_BLOCK = 0x0b;
+    public static final byte END_BLOCK = 0x1c;
+    public static final byte CARRIAGE_RETURN = 0x0d;
+
+    private final Charset charset;
+    private final int maxMessageSize;
+    private final ByteArrayOutputStream frame = new ByteArrayOutputStream(1024);
+    private boolean inFrame = false;
+    private boolean endBlock = false;
+
+    /**
+     * Creates a framer.
+     *
+     * @param charset the character encoding of the messages
+     * @param maxMessageSize the largest message accepted, in bytes, or 0 for no limit
+     */
+    public MllpFramer(Charset charset, int maxMessageSize) {
+        this.charset = charset;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Reads the bytes remaining in a buffer and adds each message they
+     * complete to a list.
+     *
+     * @param in the bytes read
+     * @param messages the list the complete messages are added to
+     * @throws IOException when a message is larger than the maximum size
+     */
+    public void decode(ByteBuffer in, List<String> messages) throws IOException {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (!inFrame) {
+                if (b == START_BLOCK) {
+                    inFrame = true;
+                    frame.reset();
+                }
+                continue;
+            }
+            if (endBlock) {
+                endBlock = false;
+                if (b == CARRIAGE_RETURN) {
+                    inFrame = false;
+                    messages.add(new String(frame.toByteArray(), charset));
+                    frame.reset();
+                    continue;
+                }
+                // not the end after all
+                frame.write(END_BLOCK);
+            }
+            if (b == END_BLOCK) {
+                endBlock = true;
+            } else if (b == START_BLOCK) {
+                // the sender gave up on the previous frame
+                frame.reset();
+            } else {
+                frame.write(b);
+                if (maxMessageSize > 0 && frame.size() > maxMessageSize) {
+                    inFrame = false;
+                    frame.reset();
+                    throw new IOException("HL7 message larger than " + maxMessageSize + " bytes");
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the frame of a message, ready to be written.
+     *
+     * @param message the HL7 message
+     * @return a buffer holding the framed message
+     */
+    public ByteBuffer encode(String message) {
+        byte[] bytes = message.getBytes(charset);
+        ByteBuffer out = ByteBuffer.allocate(bytes.length + 3);
+        out.put(START_BLOCK);
+        out.put(bytes);
+        out.put(END_BLOCK);
+        out.put(CARRIAGE_RETURN);
+        out.flip();
+        return out;
+    }
+}
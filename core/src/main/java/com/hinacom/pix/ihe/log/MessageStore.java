@@ -24,7 +24,7 @@ import java.util.Date;
  */
 public class MessageStore {
 
-	private int id;
+	private long id;
 	private String ip;
 	private String outMessage;
 	private String inMessage;
@@ -38,6 +38,7 @@ public class MessageStore {
 	private String sendingApplication;
 	private String receivingFacility;
 	private String receivingApplication;
+	private String patientId;
 
 	public String getMessageCode() {
 		return messageCode;
@@ -67,7 +68,7 @@ public class MessageStore {
 	 * 
 	 * @return
 	 */
-	public int getId() {
+	public long getId() {
 		return id;
 	}
 
@@ -75,7 +76,7 @@ public class MessageStore {
 	 * 
 	 * @param id
 	 */
-	public void setId(int id) {
+	public void setId(long id) {
 		this.id = id;
 	}
 
@@ -240,6 +241,22 @@ public class MessageStore {
 		this.receivingApplication = receivingApplication;
 	}
 
+	/**
+	 * 
+	 * @return the first patient identifier (PID-3) of the message
+	 */
+	public String getPatientId() {
+		return patientId;
+	}
+
+	/**
+	 * 
+	 * @param patientId
+	 */
+	public void setPatientId(String patientId) {
+		this.patientId = patientId;
+	}
+
 	
 	
 }
@@ -2,26 +2,306 @@ package com.hinacom.pix.ihe.log;
 
 
 import com.hinacom.pix.dao.MessageStoreMapper;
+import com.hinacom.pix.po.MessageStoreCriteria;
+import org.apache.ibatis.session.ExecutorType;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.log4j.Logger;
+import org.openempi.ics.utility.BatchingQueue;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
+ * Stores the HL7 messages in the MESSAGE_STORE table from a background
+ * thread, so that the inserts are not on the path of the transactions.
+ * <p/>
+ * Messages are queued and written in MyBatis batches of up to batchSize
+ * messages, or of the messages queued within flushMillis.  When a batch
+ * fails its messages are inserted one at a time, so that only the bad
+ * ones are lost.  When the queue is full the overflow policy applies:
+ * BLOCK waits for room, DROP_OLDEST drops the oldest queued message and
+ * CALLER inserts the message on the calling thread.  {@link #close()}
+ * writes the queued messages before stopping the thread; messages logged
+ * from then on are dropped.
+ * <p/>
+ * The message control id, type, sending and receiving applications and
+ * facilities and the first patient identifier are read from the message
+ * when not set, so that the messages can be looked up by these indexed
+ * columns.  When retentionDays is set the same thread deletes the older
+ * messages every purgeIntervalMillis, purgeBatchSize rows at a time.  At
+ * the same interval it adds the monthly partitions of the table up to
+ * partitionMonthsAhead months ahead, so that each month is split while
+ * still empty.
+ *
+ * @see BatchingQueue
+ *
  * Created by fyu on 2016/8/16.
  */
 @SuppressWarnings("SpringJavaAutowiringInspection")
 public class SqlMessageStoreLogger implements IMessageStoreLogger {
+    private static Logger log = Logger.getLogger(SqlMessageStoreLogger.class);
+
+    public static final String BLOCK = BatchingQueue.BLOCK;
+    public static final String DROP_OLDEST = BatchingQueue.DROP_OLDEST;
+    public static final String CALLER = BatchingQueue.CALLER;
+
+    // Indexes into the statistics array
+    public static final int STAT_QUEUED = BatchingQueue.STAT_QUEUED;
+    public static final int STAT_WRITTEN = BatchingQueue.STAT_WRITTEN;
+    public static final int STAT_BATCHES = BatchingQueue.STAT_BATCHES;
+    public static final int STAT_BATCH_FAILURES = BatchingQueue.STAT_BATCH_FAILURES;
+    public static final int STAT_DROPPED = BatchingQueue.STAT_DROPPED;
+    public static final int STAT_BACKLOG = BatchingQueue.STAT_BACKLOG;
+    public static final int STAT_PURGED = 6;
+
     @Autowired
     protected MessageStoreMapper messageStoreMapper;
+    @Autowired(required = false)
+    protected SqlSessionFactory sqlSessionFactory;
+
+    private int queueSize = 10000;
+    private int batchSize = 100;
+    private long flushMillis = 1000;
+    private long closeTimeoutMillis = 30000;
+    private String overflowPolicy = DROP_OLDEST;
+    private int retentionDays = 0;
+    private long purgeIntervalMillis = 3600000;
+    private int purgeBatchSize = 5000;
+    private int partitionMonthsAhead = 3;
+    private long nextPurge = 0;
+
+    /** Created by the first message logged, guarded by this */
+    private Writer writer;
+    private volatile boolean closed = false;
+    private volatile long purged = 0;
 
     @Override
     public void saveLog(MessageStore messageStore) {
+        writer().add(toPo(messageStore));
+    }
+
+    /**
+     * Gets the writer, starting it unless the logger was closed.
+     */
+    private synchronized Writer writer() {
+        if (writer == null) {
+            writer = new Writer();
+            if (!closed)
+                writer.start();
+        }
+        return writer;
+    }
+
+    /**
+     * Writes the queued messages and stops the writer thread, waiting at
+     * most closeTimeoutMillis.  Messages still queued after that are dropped.
+     */
+    public void close() {
+        Writer queue;
+        synchronized (this) {
+            closed = true;
+            queue = writer;
+        }
+        if (queue != null)
+            queue.close(closeTimeoutMillis);
+    }
+
+    /**
+     * Inserts a batch in one MyBatis batch.
+     *
+     * @return false if the batch failed
+     */
+    private boolean write(List<com.hinacom.pix.po.MessageStore> batch) {
+        SqlSession session = sqlSessionFactory.openSession(ExecutorType.BATCH, false);
+        try {
+            MessageStoreMapper mapper = session.getMapper(MessageStoreMapper.class);
+            for (com.hinacom.pix.po.MessageStore record : batch)
+                mapper.insert(record);
+            session.flushStatements();
+            session.commit();
+            return true;
+        } catch (RuntimeException e) {
+            log.warn("Unable to store a batch of " + batch.size() + " messages, storing them one at a time: " + e.getMessage());
+            try {
+                session.rollback();
+            } catch (RuntimeException re) {
+                // the connection is closed below
+            }
+        } finally {
+            session.close();
+        }
+        return false;
+    }
+
+    /**
+     * Adds the partitions of the next months and purges the old messages.
+     */
+    private void maintain() {
+        nextPurge = System.currentTimeMillis() + purgeIntervalMillis;
+        if (partitionMonthsAhead > 0) {
+            try {
+                messageStoreMapper.addMonths(new Date(), partitionMonthsAhead);
+            } catch (RuntimeException e) {
+                log.warn("Unable to add the monthly partitions of the message store, no longer trying: " + e.getMessage());
+                partitionMonthsAhead = 0;
+            }
+        }
+        if (retentionDays > 0)
+            purge();
+    }
+
+    /**
+     * Deletes the messages older than retentionDays, in transactions of
+     * purgeBatchSize rows so that the table is never locked for long.
+     */
+    private void purge() {
+        Calendar cutoff = Calendar.getInstance();
+        cutoff.add(Calendar.DAY_OF_MONTH, -retentionDays);
+        Date before = cutoff.getTime();
+        try {
+            int deleted;
+            do {
+                deleted = messageStoreMapper.deleteBefore(before, purgeBatchSize);
+                purged += deleted;
+            } while (deleted >= purgeBatchSize && !closed);
+        } catch (RuntimeException e) {
+            log.error("Unable to purge the messages stored before " + before, e);
+        }
+    }
+
+    private boolean insert(com.hinacom.pix.po.MessageStore record) {
+        try {
+            messageStoreMapper.insert(record);
+            return true;
+        } catch (RuntimeException e) {
+            log.error("Unable to store message " + record.getMessageid(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Gets the statistics, indexed by the STAT_ constants: messages queued,
+     * messages and batches written, batches that failed, messages dropped,
+     * the messages waiting to be written and the messages purged.
+     */
+    public long[] getStatistics() {
+        Writer queue;
+        synchronized (this) {
+            queue = writer;
+        }
+        long[] stats = Arrays.copyOf((queue != null) ? queue.getStatistics() : new long[STAT_BACKLOG + 1], STAT_PURGED + 1);
+        stats[STAT_PURGED] = purged;
+        return stats;
+    }
+
+    /**
+     * Sets the most messages waiting to be written; read when the first
+     * message is logged.
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Sets the most messages written in one batch.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Sets the longest time a message waits for its batch to fill up.
+     */
+    public void setFlushMillis(long flushMillis) {
+        this.flushMillis = Math.max(1, flushMillis);
+    }
+
+    /**
+     * Sets the longest time {@link #close()} waits for the queued messages
+     * to be written.
+     */
+    public void setCloseTimeoutMillis(long closeTimeoutMillis) {
+        this.closeTimeoutMillis = closeTimeoutMillis;
+    }
+
+    /**
+     * Sets how many days the messages are kept, or 0 to keep them all.
+     */
+    public void setRetentionDays(int retentionDays) {
+        this.retentionDays = retentionDays;
+    }
+
+    /**
+     * Sets the time between two purges of the old messages.
+     */
+    public void setPurgeIntervalMillis(long purgeIntervalMillis) {
+        this.purgeIntervalMillis = purgeIntervalMillis;
+    }
+
+    /**
+     * Sets the most messages deleted in one purge transaction.
+     */
+    public void setPurgeBatchSize(int purgeBatchSize) {
+        this.purgeBatchSize = Math.max(1, purgeBatchSize);
+    }
+
+    /**
+     * Sets how many months after the current one are given their partition
+     * ahead of time, or 0 not to add partitions.
+     */
+    public void setPartitionMonthsAhead(int partitionMonthsAhead) {
+        this.partitionMonthsAhead = partitionMonthsAhead;
+    }
+
+    /**
+     * Sets what happens when the queue is full: BLOCK, DROP_OLDEST or CALLER.
+     */
+    public void setOverflowPolicy(String overflowPolicy) {
+        this.overflowPolicy = overflowPolicy.trim().toUpperCase();
+    }
+
+    /**
+     * Writes the queued messages in batches from one thread, which also
+     * adds the partitions and purges the old messages while it is idle.
+     * Without a session factory the messages are inserted one at a time.
+     */
+    private class Writer extends BatchingQueue<com.hinacom.pix.po.MessageStore> {
+        Writer() {
+            super("SqlMessageStoreLogger", queueSize, (sqlSessionFactory != null) ? batchSize : 1,
+                    flushMillis, overflowPolicy, 1);
+        }
+
+        protected boolean save(List<com.hinacom.pix.po.MessageStore> batch) {
+            return (batch.size() == 1) ? insert(batch.get(0)) : write(batch);
+        }
+
+        protected boolean save(com.hinacom.pix.po.MessageStore record) {
+            return insert(record);
+        }
+
+        protected void addedWhenClosed(com.hinacom.pix.po.MessageStore record) {
+            log.error("Message store closed, dropping message " + record.getMessageid());
+            count(STAT_DROPPED, 1);
+        }
+
+        protected void idle() {
+            if (System.currentTimeMillis() >= nextPurge)
+                maintain();
+        }
+    }
+
+    private com.hinacom.pix.po.MessageStore toPo(MessageStore messageStore) {
         com.hinacom.pix.po.MessageStore poMessageStore = new com.hinacom.pix.po.MessageStore();
         poMessageStore.setIp(messageStore.getIp());
         poMessageStore.setOutmessage(messageStore.getOutMessage());
         poMessageStore.setInmessage(messageStore.getInMessage());
-        poMessageStore.setMessagedate(messageStore.getMessageDate());
+        poMessageStore.setMessagedate(messageStore.getMessageDate() != null ? messageStore.getMessageDate() : new Date());
         poMessageStore.setMessageid(messageStore.getMessageId());
         poMessageStore.setErrormessage(messageStore.getErrorMessage());
         poMessageStore.setSendingfacility(messageStore.getSendingFacility());
@@ -30,35 +310,120 @@ public class SqlMessageStoreLogger implements IMessageStoreLogger {
         poMessageStore.setMessagecode(messageStore.getMessageCode());
         poMessageStore.setTriggerevent(messageStore.getTriggerEvent());
         poMessageStore.setReceivingfacility(messageStore.getReceivingFacility());
+        poMessageStore.setPatientid(messageStore.getPatientId());
+        String message = messageStore.getInMessage() != null ? messageStore.getInMessage() : messageStore.getOutMessage();
+        if (message != null)
+            extractKeys(message, poMessageStore);
+        return poMessageStore;
+    }
 
-        messageStoreMapper.insert(poMessageStore);
+    /**
+     * Fills the key columns not already set from the MSH and first PID
+     * segments of an ER7 encoded message.
+     */
+    static void extractKeys(String message, com.hinacom.pix.po.MessageStore poMessageStore) {
+        if (!message.startsWith("MSH") || message.length() < 8)
+            return;
+        String fieldSeparator = String.valueOf(message.charAt(3));
+        char componentSeparator = message.charAt(4);
+        char repetitionSeparator = message.charAt(5);
+        for (String segment : message.split("[\\r\\n]+")) {
+            if (segment.startsWith("MSH")) {
+                // MSH-1 is the separator itself, so MSH-n is at n - 1
+                String[] fields = segment.split(Pattern.quote(fieldSeparator), -1);
+                if (poMessageStore.getSendingapplication() == null)
+                    poMessageStore.setSendingapplication(limit(component(field(fields, 2), componentSeparator, 0)));
+                if (poMessageStore.getSendingfacility() == null)
+                    poMessageStore.setSendingfacility(limit(component(field(fields, 3), componentSeparator, 0)));
+                if (poMessageStore.getReceivingapplication() == null)
+                    poMessageStore.setReceivingapplication(limit(component(field(fields, 4), componentSeparator, 0)));
+                if (poMessageStore.getReceivingfacility() == null)
+                    poMessageStore.setReceivingfacility(limit(component(field(fields, 5), componentSeparator, 0)));
+                if (poMessageStore.getMessagecode() == null)
+                    poMessageStore.setMessagecode(limit(component(field(fields, 8), componentSeparator, 0)));
+                if (poMessageStore.getTriggerevent() == null)
+                    poMessageStore.setTriggerevent(limit(component(field(fields, 8), componentSeparator, 1)));
+                if (poMessageStore.getMessageid() == null)
+                    poMessageStore.setMessageid(limit(field(fields, 9)));
+            } else if (segment.startsWith("PID" + fieldSeparator)) {
+                if (poMessageStore.getPatientid() == null) {
+                    String[] fields = segment.split(Pattern.quote(fieldSeparator), -1);
+                    String identifiers = field(fields, 3);
+                    int repetition = (identifiers == null) ? -1 : identifiers.indexOf(repetitionSeparator);
+                    if (repetition >= 0)
+                        identifiers = identifiers.substring(0, repetition);
+                    poMessageStore.setPatientid(limit(component(identifiers, componentSeparator, 0)));
+                }
+                break;
+            }
+        }
     }
 
-    public List<MessageStore> searchLog(MessageStore messageLog){
-        // convert message bo to po in order to search
-        com.hinacom.pix.po.MessageStore poMessageStore = new com.hinacom.pix.po.MessageStore();
-        poMessageStore.setIp(messageLog.getIp());
-        poMessageStore.setOutmessage(messageLog.getOutMessage());
-        poMessageStore.setInmessage(messageLog.getInMessage());
-        poMessageStore.setMessagedate(messageLog.getMessageDate());
-        poMessageStore.setMessageid(messageLog.getMessageId());
-        poMessageStore.setErrormessage(messageLog.getErrorMessage());
-        poMessageStore.setSendingfacility(messageLog.getSendingFacility());
-        poMessageStore.setSendingapplication(messageLog.getSendingApplication());
-        poMessageStore.setReceivingapplication(messageLog.getReceivingApplication());
-        poMessageStore.setMessagecode(messageLog.getMessageCode());
-        poMessageStore.setTriggerevent(messageLog.getTriggerEvent());
-        poMessageStore.setReceivingfacility(messageLog.getReceivingFacility());
-
-        // query po list to bo list
+    private static String field(String[] fields, int index) {
+        return (index < fields.length && fields[index].length() > 0) ? fields[index] : null;
+    }
+
+    private static String component(String field, char separator, int index) {
+        if (field == null)
+            return null;
+        int start = 0;
+        for (int i = 0; i < index; i++) {
+            start = field.indexOf(separator, start) + 1;
+            if (start == 0)
+                return null;
+        }
+        int end = field.indexOf(separator, start);
+        String component = (end < 0) ? field.substring(start) : field.substring(start, end);
+        return component.length() > 0 ? component : null;
+    }
+
+    private static String limit(String value) {
+        // the key columns are nvarchar(100)
+        return (value != null && value.length() > 100) ? value.substring(0, 100) : value;
+    }
+
+    /**
+     * Searches the messages by the key columns set in a message store.  A
+     * message date matches the messages of that day.  Returns the first
+     * page of the newest messages, see {@link #searchLog(MessageStoreCriteria)}.
+     */
+    public List<MessageStore> searchLog(MessageStore messageLog) {
+        MessageStoreCriteria criteria = new MessageStoreCriteria();
+        criteria.setIp(messageLog.getIp());
+        criteria.setMessageid(messageLog.getMessageId());
+        criteria.setSendingfacility(messageLog.getSendingFacility());
+        criteria.setSendingapplication(messageLog.getSendingApplication());
+        criteria.setReceivingapplication(messageLog.getReceivingApplication());
+        criteria.setMessagecode(messageLog.getMessageCode());
+        criteria.setTriggerevent(messageLog.getTriggerEvent());
+        criteria.setReceivingfacility(messageLog.getReceivingFacility());
+        criteria.setPatientid(messageLog.getPatientId());
+        if (messageLog.getMessageDate() != null) {
+            Calendar day = Calendar.getInstance();
+            day.setTime(messageLog.getMessageDate());
+            day.set(Calendar.HOUR_OF_DAY, 0);
+            day.set(Calendar.MINUTE, 0);
+            day.set(Calendar.SECOND, 0);
+            day.set(Calendar.MILLISECOND, 0);
+            criteria.setFromdate(day.getTime());
+            day.add(Calendar.DAY_OF_MONTH, 1);
+            criteria.setTodate(day.getTime());
+        }
+        return searchLog(criteria);
+    }
+
+    /**
+     * Gets one page of the messages matching a criteria, newest first.
+     */
+    public List<MessageStore> searchLog(MessageStoreCriteria criteria) {
         List<com.hinacom.pix.po.MessageStore> rPoMessageStoreList
-                = messageStoreMapper.selectListByCondition(poMessageStore);
+                = messageStoreMapper.selectListByCondition(criteria);
         List<MessageStore> result = new ArrayList<MessageStore>();
         for(com.hinacom.pix.po.MessageStore rPoMessageStor:rPoMessageStoreList)
         {
             MessageStore messageStore = new MessageStore();
-            messageStore.setId(messageLog.getId());
-            messageStore.setIp(messageLog.getIp());
+            messageStore.setId(rPoMessageStor.getId());
+            messageStore.setIp(rPoMessageStor.getIp());
             messageStore.setOutMessage(rPoMessageStor.getOutmessage());
             messageStore.setInMessage(rPoMessageStor.getInmessage());
             messageStore.setMessageDate(rPoMessageStor.getMessagedate());
@@ -70,8 +435,16 @@ public class SqlMessageStoreLogger implements IMessageStoreLogger {
             messageStore.setMessageCode(rPoMessageStor.getMessagecode());
             messageStore.setTriggerEvent(rPoMessageStor.getTriggerevent());
             messageStore.setReceivingFacility(rPoMessageStor.getReceivingfacility());
+            messageStore.setPatientId(rPoMessageStor.getPatientid());
             result.add(messageStore);
         }
         return result;
     }
+
+    /**
+     * Counts the messages matching a criteria, for paging.
+     */
+    public int countLog(MessageStoreCriteria criteria) {
+        return messageStoreMapper.countByCondition(criteria);
+    }
 }
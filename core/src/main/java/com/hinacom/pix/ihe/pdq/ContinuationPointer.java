@@ -26,6 +26,11 @@ import com.misyshealthcare.connect.net.Identifier;
 
 /**
  * This class is a container to store the PDQ continuation information that pointer pointers to.
+ * <p/>
+ * The records not returned yet are held either as the keys the 
+ * {@link com.hinacom.pix.ihe.IPdSupplierPagingAdapter} loads the patients
+ * with, or as the patients themselves for other adapters.  A cursor marks
+ * the first record not returned.
  *
  * @author Wenzhi Li
  * @version 1.0, Apr 25, 2007
@@ -34,6 +39,9 @@ public class ContinuationPointer {
     private String pointer;
     private String queryTag;
     private List<List<Patient>> patients = null;
+    private List<String> patientKeys = null;
+    private int cursor = 0;
+    private String client;
     private List<Identifier> returnDomains = null;
     private long lastRequestTime = System.currentTimeMillis();
     private int totalRecords = -1;
@@ -76,7 +84,8 @@ public class ContinuationPointer {
 	}
 	
 	/**
-	 * Gets the patients stored in this Continuation Pointer.
+	 * Gets the patients stored in this Continuation Pointer, including
+	 * the ones before the cursor.
 	 * 
 	 * @return a list of list of {@link Patient}s. The first list
 	 *         is for different logic patients, while the second list is for
@@ -100,6 +109,94 @@ public class ContinuationPointer {
         this.patients = patients;
     }
 
+    /**
+     * Gets the keys of the patients stored in this Continuation Pointer,
+     * including the ones before the cursor.
+     * 
+     * @return the keys, or <code>null</code> if the patients are stored 
+     */
+    public List<String> getPatientKeys() {
+        return patientKeys;
+    }
+
+    /**
+     * Sets the keys of the patients, in the order they are returned in.
+     * 
+     * @param patientKeys the keys to set
+     */
+    public void setPatientKeys(List<String> patientKeys) {
+        this.patientKeys = patientKeys;
+    }
+
+    /**
+     * Gets the index of the first record not returned yet.
+     * 
+     * @return the cursor
+     */
+    public synchronized int getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Gets the number of records not returned yet.
+     * 
+     * @return the number of remaining records
+     */
+    public synchronized int getRemainingCount() {
+        int size = (patientKeys != null) ? patientKeys.size() : getPatients().size();
+        return Math.max(0, size - cursor);
+    }
+
+    /**
+     * Gets the keys of the next records, and moves the cursor past them.
+     * 
+     * @param count the number of records, or -1 for all the remaining ones
+     * @return the keys
+     */
+    public synchronized List<String> nextPatientKeys(int count) {
+        int end = next(count);
+        List<String> keys = new ArrayList<String>(patientKeys.subList(cursor, end));
+        cursor = end;
+        return keys;
+    }
+
+    /**
+     * Gets the next records, and moves the cursor past them.
+     * 
+     * @param count the number of records, or -1 for all the remaining ones
+     * @return a list of list of {@link Patient}s
+     */
+    public synchronized List<List<Patient>> nextPatients(int count) {
+        int end = next(count);
+        List<List<Patient>> next = new ArrayList<List<Patient>>(getPatients().subList(cursor, end));
+        cursor = end;
+        return next;
+    }
+
+    private int next(int count) {
+        int remaining = getRemainingCount();
+        return cursor + ((count < 0 || count > remaining) ? remaining : count);
+    }
+
+    /**
+     * Gets the client that started the query, its sending application and
+     * facility.
+     * 
+     * @return the client
+     */
+    public String getClient() {
+        return client;
+    }
+
+    /**
+     * Sets the client that started the query.
+     * 
+     * @param client the client to set
+     */
+    public void setClient(String client) {
+        this.client = client;
+    }
+
     /**
      * Gets the return domains of the PDQ request.
      * 
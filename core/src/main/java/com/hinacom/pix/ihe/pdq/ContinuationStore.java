@@ -0,0 +1,205 @@
+/* Copyright 2009 Misys PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License. 
+ */
+
+
+package com.hinacom.pix.ihe.pdq;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Holds the {@link ContinuationPointer}s of the paged PDQ queries of a 
+ * PD Supplier, within limits:
+ * <ul>
+ * <li>a pointer not used for the timeout is removed by a background 
+ *     task, whether or not the query is ever cancelled;</li>
+ * <li>when there are more pointers than the maximum, or they hold more
+ *     records than the maximum, the least recently used pointers are 
+ *     removed;</li>
+ * <li>a client (sending application and facility) starting more paged
+ *     queries than its maximum loses its least recently used one.</li>
+ * </ul>
+ * A query continued with a removed pointer is answered as an unknown 
+ * continuation pointer.
+ *
+ * @see ContinuationPointer
+ */
+public class ContinuationStore {
+    private static Logger log = Logger.getLogger(ContinuationStore.class);
+
+    private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ContinuationStore-evictor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final long timeoutMillis;
+    private final int maxEntries;
+    private final int maxRecords;
+    private final int maxPerClient;
+    /** The pointers, least recently used first, guarded by this */
+    private final LinkedHashMap<String, ContinuationPointer> pointers = new LinkedHashMap<String, ContinuationPointer>(16, 0.75f, true);
+    private final ScheduledFuture<?> eviction;
+
+    /**
+     * Creates a store.
+     *
+     * @param timeoutMillis how long a pointer is kept after it was last used
+     * @param maxEntries the largest number of pointers kept
+     * @param maxRecords the largest number of records kept by all the pointers
+     * @param maxPerClient the largest number of pointers kept for a client
+     */
+    public ContinuationStore(long timeoutMillis, int maxEntries, int maxRecords, int maxPerClient) {
+        this.timeoutMillis = timeoutMillis;
+        this.maxEntries = maxEntries;
+        this.maxRecords = maxRecords;
+        this.maxPerClient = maxPerClient;
+        long period = Math.max(1000, timeoutMillis / 4);
+        eviction = evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                removeExpired();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a pointer, removing the pointers needed to keep within the limits.
+     * A pointer holding more records than the maximum by itself is kept, 
+     * with no other.
+     *
+     * @param cp the pointer to add
+     */
+    public synchronized void put(ContinuationPointer cp) {
+        cp.setLastRequestTime(System.currentTimeMillis());
+        if (cp.getClient() != null && maxPerClient > 0) {
+            List<String> ofClient = new ArrayList<String>();
+            for (ContinuationPointer other : pointers.values()) {
+                if (cp.getClient().equals(other.getClient()))
+                    ofClient.add(other.getPointer());
+            }
+            for (int i = 0; i <= ofClient.size() - maxPerClient; i++) {
+                log.warn("Client " + cp.getClient() + " has more than " + maxPerClient + " paged PDQ queries, dropping continuation pointer " + ofClient.get(i));
+                pointers.remove(ofClient.get(i));
+            }
+        }
+        pointers.put(cp.getPointer(), cp);
+
+        int records = 0;
+        for (ContinuationPointer other : pointers.values())
+            records += other.getRemainingCount();
+        Iterator<ContinuationPointer> eldest = pointers.values().iterator();
+        while ((pointers.size() > maxEntries || records > maxRecords) && pointers.size() > 1) {
+            ContinuationPointer other = eldest.next();
+            if (other == cp) 
+                continue;
+            log.warn("Too many paged PDQ queries, dropping continuation pointer " + other.getPointer());
+            records -= other.getRemainingCount();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Gets a pointer, and marks it used.
+     *
+     * @param pointer the continuation pointer
+     * @return the pointer, or <code>null</code> if it is unknown or timed out
+     */
+    public synchronized ContinuationPointer get(String pointer) {
+        ContinuationPointer cp = pointers.get(pointer);
+        if (cp == null)
+            return null;
+        long now = System.currentTimeMillis();
+        if (now - cp.getLastRequestTime() > timeoutMillis) {
+            pointers.remove(pointer);
+            return null;
+        }
+        cp.setLastRequestTime(now);
+        return cp;
+    }
+
+    /**
+     * Removes a pointer.
+     *
+     * @param pointer the continuation pointer
+     */
+    public synchronized void remove(String pointer) {
+        pointers.remove(pointer);
+    }
+
+    /**
+     * Removes the pointers of a query.
+     *
+     * @param queryTag the query tag of the cancelled query
+     */
+    public synchronized void removeQuery(String queryTag) {
+        Iterator<ContinuationPointer> it = pointers.values().iterator();
+        while (it.hasNext()) {
+            if (queryTag.equals(it.next().getQueryTag()))
+                it.remove();
+        }
+    }
+
+    /**
+     * Removes the pointers not used for the timeout.
+     */
+    public synchronized void removeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<ContinuationPointer> it = pointers.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getLastRequestTime() > timeoutMillis)
+                it.remove();
+        }
+    }
+
+    /**
+     * Gets the number of pointers held.
+     */
+    public synchronized int size() {
+        return pointers.size();
+    }
+
+    /**
+     * Gets the number of pointers held for each client.
+     */
+    public synchronized Map<String, Integer> getClientCounts() {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (ContinuationPointer cp : pointers.values()) {
+            Integer count = counts.get(cp.getClient());
+            counts.put(cp.getClient(), (count == null) ? 1 : count + 1);
+        }
+        return counts;
+    }
+
+    /**
+     * Stops the background eviction and drops all pointers.
+     */
+    public synchronized void close() {
+        eviction.cancel(false);
+        pointers.clear();
+    }
+}
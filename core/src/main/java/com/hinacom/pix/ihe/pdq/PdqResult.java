@@ -33,6 +33,14 @@ public class PdqResult {
         the same patient in different domain systems. */
 	private List<List<Patient>> patients;
 	
+	/** The keys of the logic patients, in the same order, for a 
+	    <code>IPdSupplierPagingAdapter</code> to load them again; or null. */
+	private List<String> patientKeys;
+	
+	/** The number of logic patients the query matched, which may be more
+	    than the patients returned; or -1 if unknown. */
+	private int totalCount = -1;
+	
 	/** The continue reference number for subsequent PDQ query. */
 	private String continuationPointer;
 	
@@ -73,6 +81,44 @@ public class PdqResult {
 		this.patients = patients;
 	}
 
+	/**
+	 * Gets the keys of the logic patients of this search result.
+	 * 
+	 * @return the keys, in the same order as the patients, or 
+	 * <code>null</code> if the patients cannot be loaded again
+	 * @see com.hinacom.pix.ihe.IPdSupplierPagingAdapter
+	 */
+	public List<String> getPatientKeys() {
+		return patientKeys;
+	}
+	
+	/**
+	 * Sets the keys of the logic patients of this search result.
+	 * 
+	 * @param patientKeys the keys, in the same order as the patients
+	 */
+	public void setPatientKeys(List<String> patientKeys) {
+		this.patientKeys = patientKeys;
+	}
+
+	/**
+	 * Gets the number of logic patients the query matched, returned or not.
+	 * 
+	 * @return the total count, or -1 if unknown
+	 */
+	public int getTotalCount() {
+		return totalCount;
+	}
+	
+	/**
+	 * Sets the number of logic patients the query matched, returned or not.
+	 * 
+	 * @param totalCount the total count to set
+	 */
+	public void setTotalCount(int totalCount) {
+		this.totalCount = totalCount;
+	}
+
 	/**
 	 * Gets the continuation pointer for this PDQ search.
 	 * 
@@ -0,0 +1,69 @@
+package com.hinacom.pix.dao.type;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.sql.SQLException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tests that the {@link CompressedStringTypeHandler} reads back what it
+ * writes, the rows compressed by SQL Server COMPRESS of an nvarchar, and
+ * the rows stored before the column was compressed.
+ */
+public class CompressedStringTypeHandlerTest extends TestCase {
+
+    private static final String MESSAGE = "MSH|^~\\&|APP|FAC|PIX|HIS|20160816||ADT^A04|1|P|2.3.1\r"
+            + "PID|||1234^^^HIS||Müller^Jörg||19700101|M\r";
+
+    public void testRoundTrip() throws Exception {
+        byte[] compressed = CompressedStringTypeHandler.compress(MESSAGE);
+        assertEquals(0x1f, compressed[0] & 0xff);
+        assertEquals(0x8b, compressed[1] & 0xff);
+        assertEquals(MESSAGE, CompressedStringTypeHandler.decompress(compressed));
+    }
+
+    public void testRoundTripOutsideLatin1() throws Exception {
+        String text = "PID|||1^^^HIS||王^小明||😀\r";
+        assertEquals(text, CompressedStringTypeHandler.decompress(CompressedStringTypeHandler.compress(text)));
+        assertEquals("", CompressedStringTypeHandler.decompress(CompressedStringTypeHandler.compress("")));
+    }
+
+    public void testCompressesRepetitiveMessages() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50; i++)
+            sb.append("OBX|").append(i).append("|ST|1234-5^Result^LN||normal||||||F\r");
+        assertTrue(CompressedStringTypeHandler.compress(sb.toString()).length < sb.length() / 4);
+    }
+
+    public void testReadsSqlServerCompress() throws Exception {
+        // COMPRESS(CAST(InMessage AS nvarchar(max))) is the GZIP of UTF-16LE
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(MESSAGE.getBytes("UTF-16LE"));
+        gzip.close();
+        assertEquals(MESSAGE, CompressedStringTypeHandler.decompress(out.toByteArray()));
+    }
+
+    public void testReadsPlainText() throws Exception {
+        // CAST(CAST(InMessage AS nvarchar(max)) AS varbinary(max)) on servers without COMPRESS
+        assertEquals(MESSAGE, CompressedStringTypeHandler.decompress(MESSAGE.getBytes("UTF-16LE")));
+        assertEquals("", CompressedStringTypeHandler.decompress(new byte[0]));
+    }
+
+    public void testNull() throws Exception {
+        assertNull(CompressedStringTypeHandler.decompress(null));
+    }
+
+    public void testCorruptData() {
+        byte[] compressed = CompressedStringTypeHandler.compress(MESSAGE);
+        byte[] truncated = new byte[compressed.length / 2];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+        try {
+            CompressedStringTypeHandler.decompress(truncated);
+            fail("Read a truncated value");
+        } catch (SQLException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/* Copyright 2009 Misys PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License. 
+ */
+package com.hinacom.pix.ihe;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.misyshealthcare.connect.net.StandardConnectionDescription;
+
+/**
+ * Tests the per subscriber delivery, retries and journal of
+ * PixUpdateNotifier.
+ */
+public class PixUpdateNotifierTest extends TestCase {
+
+	private static int sources = 0;
+
+	private File directory;
+	private StandardConnectionDescription connection;
+	/* "subscriber:id" of each notification sent, in order */
+	private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+	private final Set<String> failing = Collections.synchronizedSet(new HashSet<String>());
+
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("notifications", "");
+		directory.delete();
+		connection = new StandardConnectionDescription();
+		// the notifier is a singleton, each test has its own source
+		connection.setName("pixman" + (++sources));
+		connection.setHostname("localhost");
+		connection.setPort(3600);
+		connection.setProperty("notificationJournalDir", directory.getPath());
+		connection.setProperty("notificationMaxAttempts", "3");
+		connection.setProperty("notificationRetrySecs", "0");
+	}
+
+	protected void tearDown() {
+		delete(directory);
+	}
+
+	public void testJournal() throws Exception {
+		PixUpdateNotificationJournal journal = new PixUpdateNotificationJournal(directory);
+		String first = journal.newEntryName();
+		String second = journal.newEntryName();
+		assertTrue(first.compareTo(second) < 0);
+
+		Properties properties = new Properties();
+		properties.setProperty("id", "2");
+		journal.write(second, properties);
+		properties.setProperty("id", "1");
+		journal.write(first, properties);
+		assertEquals(Arrays.asList(new String[] { first, second }), journal.list());
+		assertEquals("1", journal.read(first).getProperty("id"));
+
+		// replacing an entry
+		properties.setProperty("id", "one");
+		journal.write(first, properties);
+		assertEquals("one", journal.read(first).getProperty("id"));
+
+		journal.delete(first);
+		journal.bury(second, journal.read(second));
+		assertTrue(journal.list().isEmpty());
+		assertTrue(new File(new File(directory, "dead"), second + ".properties").exists());
+	}
+
+	public void testDeliveredInOrderToEachSubscriber() throws Exception {
+		PixUpdateNotifier notifier = PixUpdateNotifier.getInstance();
+		notifier.registerSource(connection, new RequestSource());
+		for (int i = 1; i <= 20; i++)
+			notifier.accept(new Request(connection.getDescription(), Integer.toString(i), "a", "b"));
+		waitFor(40);
+
+		List<String> a = new ArrayList<String>();
+		List<String> b = new ArrayList<String>();
+		synchronized (sent) {
+			for (String s : sent)
+				(s.startsWith("a:") ? a : b).add(s.substring(2));
+		}
+		for (int i = 1; i <= 20; i++) {
+			assertEquals(Integer.toString(i), a.get(i - 1));
+			assertEquals(Integer.toString(i), b.get(i - 1));
+		}
+		waitForEmptyJournal();
+		long[] stats = notifier.getStatistics().get(connection.getDescription() + "/a");
+		assertEquals(20, stats[PixUpdateNotifier.STAT_DELIVERED]);
+		assertEquals(0, stats[PixUpdateNotifier.STAT_QUEUE_DEPTH]);
+	}
+
+	public void testFailingSubscriberIsRetriedThenDead() throws Exception {
+		failing.add("down");
+		PixUpdateNotifier notifier = PixUpdateNotifier.getInstance();
+		notifier.registerSource(connection, new RequestSource());
+		notifier.accept(new Request(connection.getDescription(), "1", "up", "down"));
+
+		waitFor(1);
+		assertEquals("up:1", sent.get(0));
+		long[] stats = null;
+		for (int i = 0; i < 100; i++) {
+			stats = notifier.getStatistics().get(connection.getDescription() + "/down");
+			if (stats[PixUpdateNotifier.STAT_DEAD] == 1)
+				break;
+			Thread.sleep(50);
+		}
+		assertEquals(1, stats[PixUpdateNotifier.STAT_DEAD]);
+		assertEquals(3, stats[PixUpdateNotifier.STAT_FAILURES]);
+		assertEquals(0, stats[PixUpdateNotifier.STAT_DELIVERED]);
+
+		waitForEmptyJournal();
+		String[] dead = new File(directory, "dead").list();
+		assertEquals(1, dead.length);
+		Properties properties = new PixUpdateNotificationJournal(new File(directory, "dead"))
+				.read(dead[0].replace(".properties", ""));
+		assertEquals("down", properties.getProperty("notifier.subscriber"));
+		assertEquals("3", properties.getProperty("notifier.attempts"));
+	}
+
+	public void testPendingDeliveriesAreRestored() throws Exception {
+		PixUpdateNotificationJournal journal = new PixUpdateNotificationJournal(directory);
+		for (int i = 1; i <= 3; i++) {
+			Properties properties = new Properties();
+			properties.setProperty("id", Integer.toString(i));
+			properties.setProperty("notifier.source", connection.getDescription());
+			properties.setProperty("notifier.subscriber", "a");
+			properties.setProperty("notifier.accepted", Long.toString(System.currentTimeMillis()));
+			properties.setProperty("notifier.attempts", "1");
+			journal.write(journal.newEntryName(), properties);
+		}
+
+		PixUpdateNotifier.getInstance().registerSource(connection, new RequestSource());
+		waitFor(3);
+		assertEquals(Arrays.asList(new String[] { "a:1", "a:2", "a:3" }), sent);
+		waitForEmptyJournal();
+	}
+
+	private void waitFor(int count) throws InterruptedException {
+		for (int i = 0; i < 200 && sent.size() < count; i++)
+			Thread.sleep(25);
+		assertEquals(count, sent.size());
+	}
+
+	private void waitForEmptyJournal() throws Exception {
+		PixUpdateNotificationJournal journal = new PixUpdateNotificationJournal(directory);
+		for (int i = 0; i < 100 && !journal.list().isEmpty(); i++)
+			Thread.sleep(25);
+		assertTrue(journal.list().isEmpty());
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files)
+				delete(f);
+		}
+		file.delete();
+	}
+
+	private class RequestSource implements PixUpdateNotifier.Source {
+		public IPixUpdateNotificationRequest restore(Properties properties) {
+			return new Request(properties.getProperty("notifier.source"), properties.getProperty("id"),
+					properties.getProperty("notifier.subscriber"));
+		}
+	}
+
+	private class Request implements IPixUpdateNotificationRequest {
+		private final String source;
+		private final String id;
+		private final List<String> subscribers;
+
+		Request(String source, String id, String... subscribers) {
+			this.source = source;
+			this.id = id;
+			this.subscribers = Arrays.asList(subscribers);
+		}
+
+		public void execute() {
+		}
+
+		public List<String> getSubscribers() {
+			return subscribers;
+		}
+
+		public void send(String subscriber) throws Exception {
+			if (failing.contains(subscriber))
+				throw new Exception(subscriber + " is down");
+			sent.add(subscriber + ":" + id);
+		}
+
+		public String getSource() {
+			return source;
+		}
+
+		public void save(Properties properties) {
+			properties.setProperty("id", id);
+		}
+	}
+}
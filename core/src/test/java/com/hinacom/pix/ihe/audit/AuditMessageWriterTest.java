@@ -0,0 +1,136 @@
+/* Copyright 2009 Misys PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License. 
+ */
+
+package com.hinacom.pix.ihe.audit;
+
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import junit.framework.TestCase;
+
+import com.hinacom.pix.ihe.audit.jaxb.ActiveParticipantType;
+import com.hinacom.pix.ihe.audit.jaxb.AuditMessage;
+import com.hinacom.pix.ihe.audit.jaxb.EventIdentificationType;
+import com.hinacom.pix.ihe.audit.jaxb.ObjectFactory;
+import com.hinacom.pix.ihe.audit.jaxb.ParticipantObjectIdentificationType;
+
+/**
+ * Checks that the StAX writer produces the same XML as the JAXB marshaller,
+ * apart from the order of the attributes.
+ */
+public class AuditMessageWriterTest extends TestCase {
+
+	public void testPixFeedMessage() throws Exception {
+		assertSameXml(AuditSerializationBenchmark.createAuditMessage());
+	}
+
+	public void testMinimalMessage() throws Exception {
+		ObjectFactory factory = new ObjectFactory();
+		AuditMessage message = factory.createAuditMessage();
+		EventIdentificationType eventId = factory.createEventIdentificationType();
+		eventId.setEventID(AuditSerializationBenchmark.createCode(factory, "110112", "DCM", "Query"));
+		eventId.setEventDateTime(Calendar.getInstance());
+		eventId.setEventOutcomeIndicator(BigInteger.ZERO);
+		message.setEventIdentification(eventId);
+
+		ActiveParticipantType participant = factory.createActiveParticipantType();
+		participant.setUserID("PIX_CONSUMER");
+		participant.setUserIsRequestor(true);
+		message.getActiveParticipant().add(participant);
+		assertSameXml(message);
+	}
+
+	public void testEscaping() throws Exception {
+		AuditMessage message = AuditSerializationBenchmark.createAuditMessage();
+		ActiveParticipantType participant = (ActiveParticipantType) message.getActiveParticipant().get(0);
+		participant.setUserID("A&B <\"C\"> 'D'");
+		ParticipantObjectIdentificationType patient =
+			(ParticipantObjectIdentificationType) message.getParticipantObjectIdentification().get(0);
+		patient.setParticipantObjectName("Müller^Jörg");
+		assertSameXml(message);
+	}
+
+	public void testNameOrQuery() throws Exception {
+		AuditMessage message = AuditSerializationBenchmark.createAuditMessage();
+		ParticipantObjectIdentificationType patient =
+			(ParticipantObjectIdentificationType) message.getParticipantObjectIdentification().get(0);
+		patient.setParticipantObjectName(null);
+		patient.setParticipantObjectQuery("MSH|^~\\&|<query>".getBytes("UTF-8"));
+		assertSameXml(message);
+
+		// the schema allows one of them only
+		patient.setParticipantObjectName("ALPHA^ALAN");
+		assertSameXml(message);
+	}
+
+	public void testDateTime() throws Exception {
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT-05:00"));
+		calendar.clear();
+		calendar.set(2009, Calendar.FEBRUARY, 3, 4, 5, 6);
+		calendar.set(Calendar.MILLISECOND, 7);
+		assertEquals("2009-02-03T04:05:06.007-05:00", AuditMessageWriter.printDateTime(calendar));
+
+		calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT+05:30"));
+		calendar.clear();
+		calendar.set(2009, Calendar.DECEMBER, 31, 23, 59, 59);
+		assertEquals("2009-12-31T23:59:59.000+05:30", AuditMessageWriter.printDateTime(calendar));
+		assertNull(AuditMessageWriter.printDateTime(null));
+	}
+
+	private static void assertSameXml(AuditMessage message) throws Exception {
+		String jaxb = AuditObjectFactory.toXml(message, AuditTrailDescription.JAXB);
+		String stax = AuditObjectFactory.toXml(message, AuditTrailDescription.STAX);
+		assertEquals(canonical(jaxb), canonical(stax));
+	}
+
+	/**
+	 * Lists the elements, attributes sorted by name, and text of a document.
+	 */
+	private static String canonical(String xml) throws Exception {
+		XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(xml));
+		StringBuilder sb = new StringBuilder();
+		while (reader.hasNext()) {
+			switch (reader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				sb.append('<').append(reader.getLocalName());
+				TreeMap<String, String> attributes = new TreeMap<String, String>();
+				for (int i = 0; i < reader.getAttributeCount(); i++)
+					attributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+				for (Map.Entry<String, String> attribute : attributes.entrySet())
+					sb.append(' ').append(attribute.getKey()).append("=\"").append(attribute.getValue()).append('"');
+				sb.append(">\n");
+				break;
+			case XMLStreamConstants.CHARACTERS:
+				if (reader.getText().trim().length() > 0)
+					sb.append(reader.getText()).append('\n');
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				sb.append("</").append(reader.getLocalName()).append(">\n");
+				break;
+			}
+		}
+		reader.close();
+		return sb.toString();
+	}
+}
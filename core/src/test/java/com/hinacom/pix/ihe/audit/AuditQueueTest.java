@@ -0,0 +1,307 @@
+/* Copyright 2009 Misys PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.hinacom.pix.ihe.audit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import com.hinacom.pix.ihe.audit.jaxb.ActiveParticipantType;
+import com.hinacom.pix.ihe.audit.jaxb.AuditMessage;
+import com.misyshealthcare.connect.net.PropertySet;
+import com.misyshealthcare.connect.net.StandardConnectionDescription;
+
+/**
+ * Tests the audit queue against a fake repository that can be taken down,
+ * or held in the middle of a send to fill the queue.  The overflow policies
+ * it shares with other queues are tested by BatchingQueueTest.
+ */
+public class AuditQueueTest extends TestCase {
+
+	private static final long TIMEOUT = 10000;
+	private static final Pattern TAG = Pattern.compile("UserID=\"(MSG-\\d+)\"");
+
+	private File spillDir;
+	private final List<AuditQueue> queues = new ArrayList<AuditQueue>();
+
+	protected void setUp() throws Exception {
+		spillDir = File.createTempFile("auditqueue", "");
+		spillDir.delete();
+		spillDir.mkdirs();
+	}
+
+	protected void tearDown() throws Exception {
+		for (AuditQueue queue : queues)
+			queue.close(TIMEOUT);
+		File[] files = spillDir.listFiles();
+		if (files != null) {
+			for (File file : files)
+				file.delete();
+		}
+		spillDir.delete();
+	}
+
+	public void testSendsInBatches() throws Exception {
+		FakeRepository repository = new FakeRepository(description(100, 5, AuditTrailDescription.BLOCK));
+		AuditQueue queue = start(repository);
+		for (int i = 0; i < 12; i++)
+			queue.add(message(i));
+
+		repository.awaitSent(12);
+		assertEquals(tags(0, 12), repository.sent());
+		for (List<String> batch : repository.batches())
+			assertTrue("batch of " + batch.size(), batch.size() <= 5);
+		long[] stats = awaitStatistic(queue, AuditQueue.STAT_SENT, 12);
+		assertEquals(12, stats[AuditQueue.STAT_QUEUED]);
+		assertEquals(0, stats[AuditQueue.STAT_BACKLOG]);
+		assertEquals(repository.batches().size(), stats[AuditQueue.STAT_BATCHES]);
+		assertEquals(0, stats[AuditQueue.STAT_SPILLED]);
+	}
+
+	public void testSpillsWhileDownAndReplaysInOrder() throws Exception {
+		FakeRepository repository = new FakeRepository(description(100, 10, AuditTrailDescription.BLOCK));
+		repository.up = false;
+		AuditQueue queue = start(repository);
+		for (int i = 0; i < 3; i++)
+			queue.add(message(i));
+		awaitStatistic(queue, AuditQueue.STAT_SPILLED, 3);
+		// later messages go after the spilled ones, not straight to the repository
+		for (int i = 3; i < 6; i++)
+			queue.add(message(i));
+		awaitStatistic(queue, AuditQueue.STAT_SPILLED, 6);
+		assertTrue(spillFiles().length > 0);
+		assertTrue(queue.getStatistics()[AuditQueue.STAT_SEND_FAILURES] > 0);
+		assertEquals(6, queue.getStatistics()[AuditQueue.STAT_BACKLOG]);
+
+		repository.up = true;
+		repository.awaitSent(6);
+		assertEquals(tags(0, 6), repository.sent());
+		awaitStatistic(queue, AuditQueue.STAT_BACKLOG, 0);
+		assertEquals(0, spillFiles().length);
+	}
+
+	public void testReplaysSpillFilesOfLastRun() throws Exception {
+		AuditTrailDescription desc = description(100, 10, AuditTrailDescription.BLOCK);
+		FakeRepository down = new FakeRepository(desc);
+		down.up = false;
+		AuditQueue first = new AuditQueue(down);
+		for (int i = 0; i < 4; i++)
+			first.add(message(i));
+		first.close(TIMEOUT);
+		assertEquals(4, first.getStatistics()[AuditQueue.STAT_SPILLED]);
+		assertTrue(spillFiles().length > 0);
+
+		// an unreadable file is put aside, not sent
+		FileOutputStream out = new FileOutputStream(new File(spillDir, "0000000000000-000000.spill"));
+		out.write(new byte[] { 0, 0, 0, 9, 1 });
+		out.close();
+
+		FakeRepository repository = new FakeRepository(desc);
+		AuditQueue queue = start(repository);
+		repository.awaitSent(4);
+		assertEquals(tags(0, 4), repository.sent());
+		awaitStatistic(queue, AuditQueue.STAT_BACKLOG, 0);
+		assertEquals(0, spillFiles().length);
+		assertTrue(new File(spillDir, "0000000000000-000000.spill.bad").isFile());
+	}
+
+	public void testSpillWhenFull() throws Exception {
+		FakeRepository repository = new FakeRepository(description(1, 10, AuditTrailDescription.SPILL));
+		repository.hold();
+		AuditQueue queue = start(repository);
+		queue.add(message(0));
+		repository.awaitHeld();
+		queue.add(message(1));
+		queue.add(message(2));
+		long[] stats = queue.getStatistics();
+		assertEquals(1, stats[AuditQueue.STAT_SPILLED]);
+		assertEquals(0, stats[AuditQueue.STAT_DROPPED]);
+		assertEquals(1, spillFiles().length);
+
+		repository.release();
+		repository.awaitSent(3);
+		// the spilled message goes ahead of the one still queued
+		assertEquals(Arrays.asList("MSG-0", "MSG-2", "MSG-1"), repository.sent());
+		awaitStatistic(queue, AuditQueue.STAT_BACKLOG, 0);
+		assertEquals(0, spillFiles().length);
+	}
+
+	public void testAddAfterCloseDrops() throws Exception {
+		FakeRepository repository = new FakeRepository(description(10, 10, AuditTrailDescription.BLOCK));
+		AuditQueue queue = new AuditQueue(repository);
+		queue.close(TIMEOUT);
+		queue.add(message(0));
+		assertEquals(1, queue.getStatistics()[AuditQueue.STAT_DROPPED]);
+		assertTrue(repository.sent().isEmpty());
+	}
+
+	private AuditQueue start(FakeRepository repository) {
+		AuditQueue queue = new AuditQueue(repository);
+		queues.add(queue);
+		return queue;
+	}
+
+	private AuditTrailDescription description(int queueSize, int batchSize, String overflow) {
+		StandardConnectionDescription connection = new StandardConnectionDescription();
+		connection.setName("test");
+		connection.setHostname("localhost");
+		connection.setPort(514);
+		connection.setProperty("TYPE", AuditTrailDescription.BSD);
+		connection.setProperty("SERIALIZER", AuditTrailDescription.STAX);
+		connection.setProperty("QUEUE_SIZE", String.valueOf(queueSize));
+		connection.setProperty("BATCH_SIZE", String.valueOf(batchSize));
+		connection.setProperty("OVERFLOW", overflow);
+		connection.setProperty("SPILL_DIR", spillDir.getAbsolutePath());
+		connection.setProperty("RETRY_SECS", "0");
+		connection.addPropertySet(new PropertySet("LocalHost"));
+		connection.addPropertySet(new PropertySet("ParticipantObject"));
+		return new AuditTrailDescription(connection);
+	}
+
+	private static AuditMessage message(int n) throws Exception {
+		AuditMessage message = AuditSerializationBenchmark.createAuditMessage();
+		((ActiveParticipantType) message.getActiveParticipant().get(0)).setUserID("MSG-" + n);
+		return message;
+	}
+
+	private static List<String> tags(int from, int to) {
+		List<String> tags = new ArrayList<String>();
+		for (int i = from; i < to; i++)
+			tags.add("MSG-" + i);
+		return tags;
+	}
+
+	private File[] spillFiles() {
+		return spillDir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".spill");
+			}
+		});
+	}
+
+	private static long[] awaitStatistic(AuditQueue queue, int stat, long value) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		long[] stats;
+		while ((stats = queue.getStatistics())[stat] != value) {
+			assertTrue("timed out waiting for statistic " + stat + " to reach " + value, System.currentTimeMillis() < deadline);
+			Thread.sleep(20);
+		}
+		return stats;
+	}
+
+	/**
+	 * Records the batches sent; fails while down, and can hold the worker
+	 * inside its next send until released.
+	 */
+	private static class FakeRepository implements IMessageTransmitter {
+		private final AuditTrailDescription description;
+		private final List<List<String>> batches = new ArrayList<List<String>>();
+		volatile boolean up = true;
+		private CountDownLatch held;
+		private CountDownLatch released;
+
+		FakeRepository(AuditTrailDescription description) {
+			this.description = description;
+		}
+
+		void hold() {
+			held = new CountDownLatch(1);
+			released = new CountDownLatch(1);
+		}
+
+		void awaitHeld() throws InterruptedException {
+			assertTrue("send never started", held.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		}
+
+		void release() {
+			released.countDown();
+		}
+
+		public void sendMessages(List<String> messages) throws IOException {
+			if (held != null && held.getCount() > 0) {
+				held.countDown();
+				try {
+					released.await(TIMEOUT, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted");
+				}
+			}
+			if (!up)
+				throw new IOException("repository down");
+			synchronized (batches) {
+				batches.add(new ArrayList<String>(messages));
+				batches.notifyAll();
+			}
+		}
+
+		List<List<String>> batches() {
+			synchronized (batches) {
+				return new ArrayList<List<String>>(batches);
+			}
+		}
+
+		List<String> sent() {
+			List<String> tags = new ArrayList<String>();
+			for (List<String> batch : batches()) {
+				for (String message : batch) {
+					Matcher m = TAG.matcher(message);
+					assertTrue(message, m.find());
+					tags.add(m.group(1));
+				}
+			}
+			return tags;
+		}
+
+		void awaitSent(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			synchronized (batches) {
+				while (sent().size() < count) {
+					long wait = deadline - System.currentTimeMillis();
+					assertTrue("timed out waiting for " + count + " sent, got " + sent(), wait > 0);
+					batches.wait(wait);
+				}
+			}
+		}
+
+		public void sendMessage(String message) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void sendMessage(String message, Severity severity) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void setDefaultSeverity(Severity severity) {
+		}
+
+		public void close() {
+		}
+
+		public AuditTrailDescription getAuditTrailDescription() {
+			return description;
+		}
+	}
+}
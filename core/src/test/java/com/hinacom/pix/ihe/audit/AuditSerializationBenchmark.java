@@ -0,0 +1,162 @@
+/* Copyright 2009 Misys PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License. 
+ */
+
+package com.hinacom.pix.ihe.audit;
+
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.util.Calendar;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+
+import com.hinacom.pix.ihe.audit.jaxb.ActiveParticipantType;
+import com.hinacom.pix.ihe.audit.jaxb.AuditMessage;
+import com.hinacom.pix.ihe.audit.jaxb.AuditSourceIdentificationType;
+import com.hinacom.pix.ihe.audit.jaxb.CodedValueType;
+import com.hinacom.pix.ihe.audit.jaxb.EventIdentificationType;
+import com.hinacom.pix.ihe.audit.jaxb.ObjectFactory;
+import com.hinacom.pix.ihe.audit.jaxb.ParticipantObjectIdentificationType;
+import com.hinacom.pix.ihe.audit.jaxb.TypeValuePairType;
+
+/** Benchmark rig for the serialization of audit messages.
+ * 
+ * Formats a PIX Feed audit message (one event, two active participants,
+ * one source and one patient) with a new JAXB context per message, as
+ * AuditObjectFactory used to, with the shared context and a reused
+ * marshaller, and with the StAX writer, then prints the average time per
+ * message of each.  Run with the number of timed messages as argument.
+ * 
+ * @see AuditObjectFactory
+ * @see AuditMessageWriter
+ */
+public class AuditSerializationBenchmark {
+
+	private static final int WARMUP = 2000;
+
+	/**
+	 * Runs the benchmark.
+	 */
+	public static void main(String[] args) throws Exception {
+		int count = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		AuditMessage message = createAuditMessage();
+
+		System.out.println(AuditObjectFactory.toXml(message, AuditTrailDescription.JAXB));
+		System.out.println(AuditObjectFactory.toXml(message, AuditTrailDescription.STAX));
+
+		// A new context per message is so slow that fewer messages are enough
+		run("new context per message", message, count / 20, new Serializer() {
+			public String serialize(AuditMessage message) throws Exception {
+				JAXBContext context = JAXBContext.newInstance("com.hinacom.pix.ihe.audit.jaxb");
+				Marshaller marshaller = context.createMarshaller();
+				marshaller.setProperty( Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE );
+				StringWriter writer = new StringWriter();
+				marshaller.marshal(message, writer);
+				return writer.toString();
+			}
+		});
+		run("shared context", message, count, new Serializer() {
+			public String serialize(AuditMessage message) throws Exception {
+				return AuditObjectFactory.toXml(message, AuditTrailDescription.JAXB);
+			}
+		});
+		run("StAX writer", message, count, new Serializer() {
+			public String serialize(AuditMessage message) throws Exception {
+				return AuditObjectFactory.toXml(message, AuditTrailDescription.STAX);
+			}
+		});
+	}
+
+	private interface Serializer {
+		String serialize(AuditMessage message) throws Exception;
+	}
+
+	private static void run(String name, AuditMessage message, int count, Serializer serializer)
+		throws Exception
+	{
+		long length = 0;
+		for (int i = 0; i < Math.min(WARMUP, count); i++)
+			length += serializer.serialize(message).length();
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++)
+			length += serializer.serialize(message).length();
+		long elapsed = System.nanoTime() - start;
+		System.out.println(name + ": " + (elapsed / 1000 / Math.max(count, 1)) + " us/message (" + length + " chars)");
+	}
+
+	@SuppressWarnings("unchecked")
+	static AuditMessage createAuditMessage() throws Exception {
+		ObjectFactory factory = new ObjectFactory();
+		AuditMessage message = factory.createAuditMessage();
+
+		EventIdentificationType eventId = factory.createEventIdentificationType();
+		eventId.setEventID(createCode(factory, "110110", "DCM", "Patient Record"));
+		eventId.setEventActionCode("C");
+		eventId.setEventDateTime(Calendar.getInstance());
+		eventId.setEventOutcomeIndicator(BigInteger.ZERO);
+		eventId.getEventTypeCode().add(createCode(factory, "ITI-8", "IHE Transactions", "Patient Identity Feed"));
+		message.setEventIdentification(eventId);
+
+		ActiveParticipantType source = factory.createActiveParticipantType();
+		source.setUserID("PAT_IDENTITY_X_REF_MGR|MISYS");
+		source.setUserIsRequestor(false);
+		source.setNetworkAccessPointID("10.0.1.101");
+		source.setNetworkAccessPointTypeCode((short) 2);
+		source.getRoleIDCode().add(createCode(factory, "110152", "DCM", "Destination"));
+		message.getActiveParticipant().add(source);
+
+		ActiveParticipantType destination = factory.createActiveParticipantType();
+		destination.setUserID("MESA_ADT|XYZ_ADMITTING");
+		destination.setUserIsRequestor(true);
+		destination.setNetworkAccessPointID("10.0.1.102");
+		destination.setNetworkAccessPointTypeCode((short) 2);
+		destination.getRoleIDCode().add(createCode(factory, "110153", "DCM", "Source"));
+		message.getActiveParticipant().add(destination);
+
+		AuditSourceIdentificationType sourceId = factory.createAuditSourceIdentificationType();
+		sourceId.setAuditEnterpriseSiteID("Big Hospital");
+		sourceId.setAuditSourceID("OpenPIXPDQ");
+		AuditSourceIdentificationType.AuditSourceTypeCodeType sourceType = factory.createAuditSourceIdentificationTypeAuditSourceTypeCodeType();
+		sourceType.setCode("4");
+		sourceId.getAuditSourceTypeCode().add(sourceType);
+		message.getAuditSourceIdentification().add(sourceId);
+
+		ParticipantObjectIdentificationType patient = factory.createParticipantObjectIdentificationType();
+		patient.setParticipantObjectTypeCode((short) 1);
+		patient.setParticipantObjectTypeCodeRole((short) 1);
+		patient.setParticipantObjectID("PIX10501^^^&1.3.6.1.4.1.21367.2005.1.1&ISO");
+		patient.setParticipantObjectName("ALPHA^ALAN");
+		ParticipantObjectIdentificationType.ParticipantObjectIDTypeCodeType idType = factory.createParticipantObjectIdentificationTypeParticipantObjectIDTypeCodeType();
+		idType.setCode("2");
+		patient.setParticipantObjectIDTypeCode(idType);
+		TypeValuePairType detail = factory.createTypeValuePairType();
+		detail.setType("MessageID");
+		detail.setValue("10501108".getBytes());
+		patient.getParticipantObjectDetail().add(detail);
+		message.getParticipantObjectIdentification().add(patient);
+
+		return message;
+	}
+
+	static CodedValueType createCode(ObjectFactory factory, String code, String system, String name)
+		throws Exception
+	{
+		CodedValueType value = factory.createCodedValueType();
+		value.setCode(code);
+		value.setCodeSystemName(system);
+		value.setDisplayName(name);
+		return value;
+	}
+}
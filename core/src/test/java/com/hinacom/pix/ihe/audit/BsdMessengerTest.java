@@ -0,0 +1,111 @@
+/* Copyright 2009 Misys PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.hinacom.pix.ihe.audit;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.misyshealthcare.connect.net.PropertySet;
+import com.misyshealthcare.connect.net.StandardConnectionDescription;
+
+/**
+ * Tests the TCP transport of BsdMessenger against a local server socket.
+ */
+public class BsdMessengerTest extends TestCase {
+
+	private static final int TIMEOUT = 10000;
+
+	private ServerSocket server;
+	private BsdMessenger messenger;
+
+	protected void setUp() throws Exception {
+		server = new ServerSocket(0);
+		server.setSoTimeout(TIMEOUT);
+	}
+
+	protected void tearDown() throws Exception {
+		if (messenger != null)
+			messenger.close();
+		server.close();
+	}
+
+	public void testFramesMessagesByOctetCount() throws Exception {
+		messenger = new BsdMessenger(description());
+		messenger.sendMessages(Arrays.asList("first", "second"));
+
+		Socket socket = server.accept();
+		try {
+			assertTrue(read(socket).endsWith(": first"));
+			assertTrue(read(socket).endsWith(": second"));
+		} finally {
+			socket.close();
+		}
+	}
+
+	public void testReconnectsWhenIdleConnectionWasClosed() throws Exception {
+		messenger = new BsdMessenger(description());
+		messenger.sendMessages(Arrays.asList("before"));
+		Socket socket = server.accept();
+		assertTrue(read(socket).endsWith(": before"));
+		// the repository drops the idle connection
+		socket.close();
+		Thread.sleep(1500);
+
+		messenger.sendMessages(Arrays.asList("after"));
+		socket = server.accept();
+		try {
+			socket.setSoTimeout(TIMEOUT);
+			assertTrue(read(socket).endsWith(": after"));
+		} finally {
+			socket.close();
+		}
+	}
+
+	private AuditTrailDescription description() {
+		StandardConnectionDescription connection = new StandardConnectionDescription();
+		connection.setName("test");
+		connection.setHostname("localhost");
+		connection.setPort(server.getLocalPort());
+		connection.setProperty("TYPE", AuditTrailDescription.BSD);
+		connection.setProperty("TRANSPORT", AuditTrailDescription.TCP);
+		connection.setProperty("ENABLED", "true");
+		connection.addPropertySet(new PropertySet("LocalHost"));
+		connection.addPropertySet(new PropertySet("ParticipantObject"));
+		return new AuditTrailDescription(connection);
+	}
+
+	/**
+	 * Reads one octet counted message.
+	 */
+	private static String read(Socket socket) throws IOException {
+		socket.setSoTimeout(TIMEOUT);
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		int length = 0;
+		int c;
+		while ((c = in.read()) != ' ') {
+			assertTrue("connection closed", c >= 0);
+			length = length * 10 + (c - '0');
+		}
+		byte[] message = new byte[length];
+		in.readFully(message);
+		return new String(message, "UTF-8");
+	}
+}
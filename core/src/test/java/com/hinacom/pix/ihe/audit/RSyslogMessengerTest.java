@@ -0,0 +1,275 @@
+/* Copyright 2009 Misys PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License. 
+ */
+
+package com.hinacom.pix.ihe.audit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+/** Tests the BEEP session reuse of RSyslogMessenger.
+ * 
+ * Starts an in-process stand-in for a RFC 3195 repository, speaking just
+ * enough BEEP (RFC 3080, 3081) to accept COOKED channels and reply to 
+ * every message.
+ * 
+ * @see RSyslogMessenger
+ */
+public class RSyslogMessengerTest extends TestCase {
+
+	private static final String COOKED_PROFILE = "http://xml.resource.org/profiles/syslog/COOKED";
+	private static final Pattern NUMBER = Pattern.compile("number=['\"](\\d+)['\"]");
+
+	private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+	private final List<Socket> sessions = Collections.synchronizedList(new ArrayList<Socket>());
+	private ServerSocket server;
+	private RSyslogMessenger messenger;
+
+	protected void setUp() throws Exception {
+		int port = startServer();
+		AuditTrailDescription description = new AuditTrailDescription("TEST", "localhost", AuditTrailDescription.RELIABLE, "127.0.0.1", "localhost", port);
+		messenger = new RSyslogMessenger(description);
+	}
+
+	protected void tearDown() throws Exception {
+		messenger.close();
+		server.close();
+		synchronized (sessions) {
+			for (Socket socket : sessions)
+				socket.close();
+		}
+	}
+
+	/**
+	 * Messages sent from several threads all arrive over a single session.
+	 */
+	public void testThreadsShareOneSession() throws Exception {
+		Thread[] senders = new Thread[4];
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		for (int i = 0; i < senders.length; i++) {
+			final int sender = i;
+			senders[i] = new Thread() {
+				public void run() {
+					try {
+						for (int j = 0; j < 25; j++) 
+							messenger.sendMessages(Collections.singletonList("<AuditMessage sender='" + sender + "' n='" + j + "'/>"));
+					} catch (Throwable e) {
+						failures.add(e);
+					}
+				}
+			};
+			senders[i].start();
+		}
+		for (Thread sender : senders) 
+			sender.join();
+		assertEquals(Collections.emptyList(), failures);
+		assertEquals(100, received.size());
+		assertEquals(1, sessions.size());
+	}
+
+	/**
+	 * When the repository drops the session, the next messages go on a
+	 * new one, in order and without loss.
+	 */
+	public void testReconnectsAfterSessionLost() throws Exception {
+		messenger.sendMessages(Collections.singletonList("<AuditMessage n='first'/>"));
+		assertEquals(1, sessions.size());
+
+		sessions.get(0).close();
+		messenger.sendMessages(Arrays.asList("<AuditMessage n='a'/>", "<AuditMessage n='b'/>"));
+		assertEquals(3, received.size());
+		assertTrue(received.get(1).contains("n='a'"));
+		assertTrue(received.get(2).contains("n='b'"));
+		assertEquals(2, sessions.size());
+	}
+
+	/**
+	 * A message that fails with a runtime exception gives its channel
+	 * back, so the channels are not used up.
+	 */
+	public void testChannelReleasedAfterRuntimeException() throws Exception {
+		messenger.close();
+		AuditTrailDescription description = new AuditTrailDescription("TEST", "localhost", AuditTrailDescription.RELIABLE, "127.0.0.1", "localhost", server.getLocalPort(), "HIPAAT");
+		messenger = new RSyslogMessenger(description);
+		// more failures than BEEP_CHANNELS
+		for (int i = 0; i < 5; i++) {
+			try {
+				messenger.sendMessages(Collections.singletonList((String) null));
+				fail("A null message cannot be escaped");
+			} catch (NullPointerException e) {
+				// expected
+			}
+		}
+		long start = System.currentTimeMillis();
+		messenger.sendMessages(Collections.singletonList("<AuditMessage n='after'/>"));
+		assertTrue("waited for a free channel", System.currentTimeMillis() - start < 5000);
+	}
+
+	public void testUnreachableRepositoryFails() throws Exception {
+		ServerSocket closed = new ServerSocket(0);
+		int port = closed.getLocalPort();
+		closed.close();
+		RSyslogMessenger unreachable = new RSyslogMessenger(new AuditTrailDescription("TEST", "localhost", AuditTrailDescription.RELIABLE, "127.0.0.1", "localhost", port));
+		try {
+			unreachable.sendMessages(Collections.singletonList("<AuditMessage/>"));
+			fail("Sent to a closed port");
+		} catch (IOException e) {
+			// expected
+		} finally {
+			unreachable.close();
+		}
+	}
+
+	public void testClosedMessengerRefusesMessages() throws Exception {
+		messenger.sendMessages(Collections.singletonList("<AuditMessage/>"));
+		messenger.close();
+		try {
+			messenger.sendMessages(Collections.singletonList("<AuditMessage/>"));
+			fail("Sent after close");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Listens for sessions on a free port.
+	 * 
+	 * @return the port
+	 */
+	private int startServer() throws IOException {
+		server = new ServerSocket(0);
+		Thread listener = new Thread("BEEP stand-in") {
+			public void run() {
+				try {
+					while (true) {
+						final Socket socket = server.accept();
+						sessions.add(socket);
+						Thread session = new Thread("BEEP stand-in session") {
+							public void run() {
+								try {
+									serve(socket);
+								} catch (IOException e) {
+									// the session was dropped
+								}
+							}
+						};
+						session.setDaemon(true);
+						session.start();
+					}
+				} catch (IOException e) {
+					// the server was closed
+				}
+			}
+		};
+		listener.setDaemon(true);
+		listener.start();
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Serves one session: starts and closes channels on channel 0, and
+	 * acknowledges every message on the other channels.
+	 */
+	private void serve(Socket socket) throws IOException {
+		InputStream in = socket.getInputStream();
+		OutputStream out = socket.getOutputStream();
+		Map<Integer, Long> sent = new HashMap<Integer, Long>();
+		Map<Integer, ByteArrayOutputStream> pending = new HashMap<Integer, ByteArrayOutputStream>();
+
+		sendFrame(out, sent, "RPY", 0, 0, "<greeting><profile uri='" + COOKED_PROFILE + "' /></greeting>");
+		while (true) {
+			String header = readLine(in);
+			if (header == null) {
+				socket.close();
+				return;
+			}
+			String[] fields = header.split(" ");
+			if ("SEQ".equals(fields[0])) 
+				continue;
+			int channel = Integer.parseInt(fields[1]);
+			int msgno = Integer.parseInt(fields[2]);
+			long seqno = Long.parseLong(fields[4]);
+			int size = Integer.parseInt(fields[5]);
+			byte[] payload = new byte[size];
+			for (int read = 0; read < size; ) {
+				int n = in.read(payload, read, size - read);
+				if (n < 0) throw new IOException("Session dropped");
+				read += n;
+			}
+			readLine(in); // END
+			// Keep the window of the sender open
+			out.write(("SEQ " + channel + " " + (seqno + size) + " 4096\r\n").getBytes("US-ASCII"));
+
+			ByteArrayOutputStream message = pending.get(channel);
+			if (message == null) 
+				pending.put(channel, message = new ByteArrayOutputStream());
+			message.write(payload);
+			if (!".".equals(fields[3]) || !"MSG".equals(fields[0])) {
+				if (".".equals(fields[3])) pending.remove(channel);
+				continue;
+			}
+			pending.remove(channel);
+			String text = message.toString("UTF-8");
+			text = text.substring(text.indexOf("\r\n\r\n") + 4);
+
+			if (channel != 0) {
+				received.add(text);
+				sendFrame(out, sent, "RPY", channel, msgno, "<ok/>");
+			} else if (text.contains("<start")) {
+				sendFrame(out, sent, "RPY", 0, msgno, "<profile uri='" + COOKED_PROFILE + "' />");
+			} else if (text.contains("<close")) {
+				sendFrame(out, sent, "RPY", 0, msgno, "<ok />");
+				Matcher number = NUMBER.matcher(text);
+				if (number.find() && "0".equals(number.group(1))) {
+					socket.close();
+					return;
+				}
+			}
+		}
+	}
+
+	private static void sendFrame(OutputStream out, Map<Integer, Long> sent, String type, int channel, int msgno, String xml) throws IOException {
+		byte[] payload = ("Content-Type: application/beep+xml\r\n\r\n" + xml).getBytes("UTF-8");
+		Long seqno = sent.get(channel);
+		if (seqno == null) seqno = 0L;
+		sent.put(channel, seqno + payload.length);
+		out.write((type + " " + channel + " " + msgno + " . " + seqno + " " + payload.length + "\r\n").getBytes("US-ASCII"));
+		out.write(payload);
+		out.write("END\r\n".getBytes("US-ASCII"));
+		out.flush();
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		for (int c = in.read(); c != '\n'; c = in.read()) {
+			if (c < 0) return null;
+			if (c != '\r') line.append((char) c);
+		}
+		return line.toString();
+	}
+}
@@ -0,0 +1,201 @@
+/* Copyright 2009 Misys PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License. 
+ */
+package com.hinacom.pix.ihe.impl_v2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import com.hinacom.pix.ihe.PixManagerException;
+import com.hinacom.pix.ihe.impl_v2.hl7.HL7ConnectionPool;
+import com.hinacom.pix.ihe.impl_v2.hl7.MllpFramer;
+import com.hinacom.pix.ihe.log.IMessageStoreLogger;
+import com.hinacom.pix.ihe.log.MessageStore;
+
+import com.misyshealthcare.connect.net.StandardConnectionDescription;
+
+/**
+ * Tests the forwarding of PIX Feeds to the XDS Registry by
+ * XdsRegistryFeedRequest, against a local MLLP server standing for the
+ * XDS Registry.
+ */
+public class TestXdsRegistryFeed extends TestCase {
+
+	private static final String FEED = "MSH|^~\\&|EHR_MISYS|MISYS|PAT_IDENTITY_X_REF_MGR_IBM1|IBM|20060809155816-0400||ADT^A01|PIF_0|P|2.3.1\r"
+			+ "EVN|A01|20060809155816\r"
+			+ "PID|||12345678^^^HIMSS2005&1.3.6.1.4.1.21367.2005.1.1&ISO^PI||DePinto^Joe^V^Jr^Dr.|Wang|19580325|M\r";
+
+	private Registry registry;
+	private StandardConnectionDescription registryConnection;
+	private PixManager actor;
+	private final List<MessageStore> stores = Collections.synchronizedList(new ArrayList<MessageStore>());
+
+	protected void setUp() throws Exception {
+		registry = new Registry();
+		registryConnection = new StandardConnectionDescription();
+		registryConnection.setName("xdsregistry");
+		registryConnection.setHostname("localhost");
+		registryConnection.setPort(registry.getPort());
+		registryConnection.setProperty("responseTimeoutSecs", "5");
+
+		StandardConnectionDescription connection = new StandardConnectionDescription();
+		connection.setName("pixman");
+		connection.setHostname("localhost");
+		connection.setPort(3600);
+		actor = new PixManager(connection, null, registryConnection, null);
+		actor.setStoreLogger(new IMessageStoreLogger() {
+			public void saveLog(MessageStore store) {
+				stores.add(store);
+			}
+		});
+	}
+
+	protected void tearDown() throws Exception {
+		HL7ConnectionPool.getPool(registryConnection).close();
+		registry.close();
+	}
+
+	public void testSubscribers() throws Exception {
+		XdsRegistryFeedRequest request = new XdsRegistryFeedRequest(actor, FEED);
+		assertEquals(Collections.singletonList("xdsregistry"), request.getSubscribers());
+		assertEquals(actor.getName(), request.getSource());
+
+		PixManager noRegistry = new PixManager(registryConnection, null, null, null);
+		assertTrue(new XdsRegistryFeedRequest(noRegistry, FEED).getSubscribers().isEmpty());
+	}
+
+	public void testSaveAndRestore() throws Exception {
+		Properties properties = new Properties();
+		new XdsRegistryFeedRequest(actor, FEED).save(properties);
+		assertEquals(XdsRegistryFeedRequest.REQUEST_TYPE, properties.getProperty("request"));
+
+		XdsRegistryFeedRequest restored = XdsRegistryFeedRequest.restore(actor, properties);
+		restored.send("xdsregistry");
+		assertEquals(1, registry.received.size());
+		assertTrue(registry.received.get(0).startsWith("MSH|^~\\&|EHR_MISYS|MISYS|"));
+		assertTrue(registry.received.get(0).indexOf("PID|||12345678") > 0);
+	}
+
+	public void testAcceptedFeedIsLogged() throws Exception {
+		new XdsRegistryFeedRequest(actor, FEED).send("xdsregistry");
+		assertEquals(1, stores.size());
+		MessageStore store = stores.get(0);
+		assertTrue(store.getOutMessage().indexOf("ADT^A01") > 0);
+		assertTrue(store.getInMessage().indexOf("MSA|AA|PIF_0") > 0);
+		assertNull(store.getErrorMessage());
+	}
+
+	public void testRejectedFeedIsRetried() throws Exception {
+		registry.status = "AE";
+		try {
+			new XdsRegistryFeedRequest(actor, FEED).send("xdsregistry");
+			fail("the XDS Registry rejected the feed");
+		} catch (PixManagerException e) {
+			// expected, the notifier sends the feed again later
+		}
+		assertEquals(1, stores.size());
+		assertNotNull(stores.get(0).getErrorMessage());
+	}
+
+	public void testUnreachableRegistry() throws Exception {
+		registry.close();
+		try {
+			new XdsRegistryFeedRequest(actor, FEED).send("xdsregistry");
+			fail("the XDS Registry is down");
+		} catch (PixManagerException e) {
+			// expected
+		}
+		assertEquals(1, stores.size());
+		assertNotNull(stores.get(0).getErrorMessage());
+	}
+
+	public void testRegistryNoLongerConfigured() throws Exception {
+		new XdsRegistryFeedRequest(actor, FEED).send("oldregistry");
+		assertTrue(registry.received.isEmpty());
+		assertTrue(stores.isEmpty());
+	}
+
+	/**
+	 * An XDS Registry acknowledging each PIX Feed with the status set.
+	 */
+	private static class Registry implements Runnable {
+		private final ServerSocket serverSocket = new ServerSocket(0);
+		private final Charset charset = Charset.forName("US-ASCII");
+		final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+		volatile String status = "AA";
+
+		Registry() throws IOException {
+			Thread t = new Thread(this, "XdsRegistry");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		public void run() {
+			while (true) {
+				Socket socket;
+				try {
+					socket = serverSocket.accept();
+				} catch (IOException e) {
+					return;
+				}
+				try {
+					serve(socket);
+				} catch (IOException e) {
+					// connection closed
+				}
+			}
+		}
+
+		private void serve(Socket socket) throws IOException {
+			MllpFramer framer = new MllpFramer(charset, 0);
+			InputStream in = socket.getInputStream();
+			OutputStream out = socket.getOutputStream();
+			byte[] buffer = new byte[8192];
+			List<String> messages = new ArrayList<String>();
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				framer.decode(ByteBuffer.wrap(buffer, 0, n), messages);
+				for (String message : messages) {
+					received.add(message);
+					String controlId = message.substring(0, message.indexOf('\r')).split("\\|")[9];
+					ByteBuffer frame = framer.encode("MSH|^~\\&|XDS|XDS|EHR_MISYS|MISYS|20090101||ACK|R" + controlId
+							+ "|P|2.3.1\rMSA|" + status + "|" + controlId + "\r");
+					out.write(frame.array(), 0, frame.limit());
+					out.flush();
+				}
+				messages.clear();
+			}
+			socket.close();
+		}
+
+		void close() throws IOException {
+			serverSocket.close();
+		}
+	}
+}
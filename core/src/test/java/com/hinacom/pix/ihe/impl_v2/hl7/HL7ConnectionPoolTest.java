@@ -0,0 +1,244 @@
+/* Copyright 2009 Misys PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License. 
+ */
+package com.hinacom.pix.ihe.impl_v2.hl7;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.misyshealthcare.connect.net.StandardConnectionDescription;
+
+/**
+ * Tests HL7ConnectionPool against a local MLLP server, including the
+ * failures after which HL7Channel sends its messages again.
+ */
+public class HL7ConnectionPoolTest extends TestCase {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private MllpServer server;
+    private StandardConnectionDescription description;
+
+    protected void setUp() throws Exception {
+        server = new MllpServer();
+        description = new StandardConnectionDescription();
+        description.setName("test");
+        description.setHostname("localhost");
+        description.setPort(server.getPort());
+        description.setProperty("poolMaxSize", "1");
+        description.setProperty("poolMaxWaitMillis", "200");
+        description.setProperty("responseTimeoutSecs", "1");
+    }
+
+    protected void tearDown() throws Exception {
+        HL7ConnectionPool.getPool(description).close();
+        server.close();
+    }
+
+    public void testConnectionIsReused() throws Exception {
+        HL7ConnectionPool pool = HL7ConnectionPool.getPool(description);
+        HL7ConnectionPool.PooledConnection c = pool.borrow();
+        assertFalse(c.isReused());
+        c.send(new String[] { message("1") });
+        assertEquals("1", ackedId(c.receive()));
+        pool.release(c);
+
+        HL7ConnectionPool.PooledConnection again = pool.borrow();
+        assertSame(c, again);
+        assertTrue(again.isReused());
+        pool.release(again);
+        assertEquals(1, server.accepted.get());
+    }
+
+    public void testBorrowWaitsForMaxSize() throws Exception {
+        HL7ConnectionPool pool = HL7ConnectionPool.getPool(description);
+        HL7ConnectionPool.PooledConnection c = pool.borrow();
+        try {
+            pool.borrow();
+            fail("pool has one connection");
+        } catch (IOException e) {
+            // expected
+        }
+        pool.invalidate(c);
+        pool.release(pool.borrow());
+        assertEquals(2, server.accepted.get());
+    }
+
+    public void testIdleConnectionClosedByServer() throws Exception {
+        HL7ConnectionPool pool = HL7ConnectionPool.getPool(description);
+        HL7ConnectionPool.PooledConnection c = pool.borrow();
+        c.send(new String[] { message("1") });
+        c.receive();
+        server.closeAll();
+        Thread.sleep(100);
+
+        // the server dropped the connection before replying, so HL7Channel sends again
+        try {
+            c.send(new String[] { message("2") });
+            c.receive();
+            fail("the server closed the connection");
+        } catch (IOException e) {
+            assertTrue(c.isClosedBeforeReply(e));
+        }
+        pool.invalidate(c);
+    }
+
+    public void testResponseTimeoutIsNotAClosedConnection() throws Exception {
+        HL7ConnectionPool pool = HL7ConnectionPool.getPool(description);
+        HL7ConnectionPool.PooledConnection c = pool.borrow();
+        server.silent = true;
+        c.send(new String[] { message("1") });
+        try {
+            c.receive();
+            fail("the server does not reply");
+        } catch (SocketTimeoutException e) {
+            // the server may have processed the message, so HL7Channel does not send again
+            assertFalse(c.isClosedBeforeReply(e));
+        }
+        pool.invalidate(c);
+        assertEquals(1, server.messages.get());
+    }
+
+    public void testPartialReplyIsNotAClosedConnection() throws Exception {
+        HL7ConnectionPool pool = HL7ConnectionPool.getPool(description);
+        HL7ConnectionPool.PooledConnection c = pool.borrow();
+        server.truncate = true;
+        c.send(new String[] { message("1") });
+        try {
+            c.receive();
+            fail("the server closed the connection part way through the reply");
+        } catch (IOException e) {
+            assertFalse(c.isClosedBeforeReply(e));
+        }
+        pool.invalidate(c);
+    }
+
+    private static String message(String controlId) {
+        return "MSH|^~\\&|APP|FAC|PIX|PIX|20090101||ADT^A01|" + controlId + "|P|2.5\rEVN|A01|20090101\r";
+    }
+
+    private static String ackedId(String ack) {
+        int msa = ack.indexOf("MSA|AA|");
+        return ack.substring(msa + 7, ack.indexOf('\r', msa));
+    }
+
+    private static String controlId(String message) {
+        String[] fields = message.substring(0, message.indexOf('\r')).split("\\|");
+        return fields[9];
+    }
+
+    /**
+     * A server acknowledging each message it reads.
+     */
+    private static class MllpServer implements Runnable {
+        private final ServerSocket serverSocket = new ServerSocket(0);
+        private final List<Socket> sockets = new ArrayList<Socket>();
+        final AtomicInteger accepted = new AtomicInteger();
+        final AtomicInteger messages = new AtomicInteger();
+        volatile boolean silent = false;
+        volatile boolean truncate = false;
+
+        MllpServer() throws IOException {
+            Thread t = new Thread(this, "MllpServer");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        public void run() {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                accepted.incrementAndGet();
+                synchronized (sockets) {
+                    sockets.add(socket);
+                }
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+
+        private void serve(Socket socket) {
+            MllpFramer framer = new MllpFramer(ASCII, 0);
+            byte[] buffer = new byte[8192];
+            List<String> received = new ArrayList<String>();
+            try {
+                InputStream in = socket.getInputStream();
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    framer.decode(ByteBuffer.wrap(buffer, 0, n), received);
+                    for (int i = 0; i < received.size(); i++)
+                        reply(framer, socket, received.get(i));
+                    received.clear();
+                }
+            } catch (IOException e) {
+                // connection closed
+            }
+        }
+
+        private void reply(MllpFramer framer, Socket socket, String message) throws IOException {
+            messages.incrementAndGet();
+            if (silent)
+                return;
+            String controlId = controlId(message);
+            ByteBuffer frame = framer.encode("MSH|^~\\&|PIX|PIX|APP|FAC|20090101||ACK^A01|R" + controlId
+                    + "|P|2.5\rMSA|AA|" + controlId + "\r");
+            OutputStream out = socket.getOutputStream();
+            if (truncate) {
+                out.write(frame.array(), 0, frame.limit() / 2);
+                out.flush();
+                socket.close();
+                return;
+            }
+            out.write(frame.array(), 0, frame.limit());
+            out.flush();
+        }
+
+        void closeAll() throws IOException {
+            synchronized (sockets) {
+                for (Socket s : sockets)
+                    s.close();
+                sockets.clear();
+            }
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+            closeAll();
+        }
+    }
+}
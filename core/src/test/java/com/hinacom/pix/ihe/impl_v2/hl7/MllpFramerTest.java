@@ -0,0 +1,131 @@
+/* Copyright 2009 Misys PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or 
+ * implied. See the License for the specific language governing 
+ * permissions and limitations under the License. 
+ */
+package com.hinacom.pix.ihe.impl_v2.hl7;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests MllpFramer on messages split across reads and several messages
+ * in one read.
+ */
+public class MllpFramerTest extends TestCase {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String MSG1 = "MSH|^~\\&|A|B|C|D|20090101||ADT^A01|1|P|2.3.1\rPID|||123\r";
+    private static final String MSG2 = "MSH|^~\\&|A|B|C|D|20090101||ADT^A01|2|P|2.3.1\rPID|||é中\r";
+
+    public void testEncode() {
+        ByteBuffer out = new MllpFramer(UTF8, 0).encode("AB");
+        assertEquals(5, out.remaining());
+        assertEquals(MllpFramer.START_BLOCK, out.get(0));
+        assertEquals('A', out.get(1));
+        assertEquals('B', out.get(2));
+        assertEquals(MllpFramer.END_BLOCK, out.get(3));
+        assertEquals(MllpFramer.CARRIAGE_RETURN, out.get(4));
+    }
+
+    public void testTwoMessagesInOneRead() throws IOException {
+        MllpFramer framer = new MllpFramer(UTF8, 0);
+        byte[] bytes = concat(frame(framer, MSG1), frame(framer, MSG2));
+        List<String> messages = new ArrayList<String>();
+        framer.decode(ByteBuffer.wrap(bytes), messages);
+        assertEquals(2, messages.size());
+        assertEquals(MSG1, messages.get(0));
+        assertEquals(MSG2, messages.get(1));
+    }
+
+    public void testMessagesSplitAtEveryByte() throws IOException {
+        MllpFramer framer = new MllpFramer(UTF8, 0);
+        byte[] bytes = concat(frame(framer, MSG1), frame(framer, MSG2));
+        List<String> messages = new ArrayList<String>();
+        for (int i = 0; i < bytes.length; i++) {
+            framer.decode(ByteBuffer.wrap(bytes, i, 1), messages);
+            if (i < bytes.length - 1) {
+                // a multi-byte character split between reads is not decoded early
+                assertTrue(messages.size() < 2);
+            }
+        }
+        assertEquals(2, messages.size());
+        assertEquals(MSG1, messages.get(0));
+        assertEquals(MSG2, messages.get(1));
+    }
+
+    public void testSplitBetweenEndBlockAndCarriageReturn() throws IOException {
+        MllpFramer framer = new MllpFramer(UTF8, 0);
+        byte[] bytes = frame(framer, MSG1);
+        List<String> messages = new ArrayList<String>();
+        framer.decode(ByteBuffer.wrap(bytes, 0, bytes.length - 1), messages);
+        assertEquals(0, messages.size());
+        framer.decode(ByteBuffer.wrap(bytes, bytes.length - 1, 1), messages);
+        assertEquals(1, messages.size());
+        assertEquals(MSG1, messages.get(0));
+    }
+
+    public void testEndBlockInsideMessage() throws IOException {
+        MllpFramer framer = new MllpFramer(UTF8, 0);
+        byte[] bytes = { MllpFramer.START_BLOCK, 'A', MllpFramer.END_BLOCK, 'B',
+                MllpFramer.END_BLOCK, MllpFramer.CARRIAGE_RETURN };
+        List<String> messages = new ArrayList<String>();
+        framer.decode(ByteBuffer.wrap(bytes), messages);
+        assertEquals(1, messages.size());
+        assertEquals("A\u001cB", messages.get(0));
+    }
+
+    public void testBytesOutsideFrameAreDiscarded() throws IOException {
+        MllpFramer framer = new MllpFramer(UTF8, 0);
+        byte[] bytes = concat("noise".getBytes("US-ASCII"), frame(framer, MSG1));
+        // a frame the sender gave up on is replaced by the next start block
+        bytes = concat(new byte[] { MllpFramer.START_BLOCK, 'X' }, bytes);
+        List<String> messages = new ArrayList<String>();
+        framer.decode(ByteBuffer.wrap(bytes), messages);
+        assertEquals(1, messages.size());
+        assertEquals(MSG1, messages.get(0));
+    }
+
+    public void testMaxMessageSize() throws IOException {
+        MllpFramer framer = new MllpFramer(UTF8, 10);
+        List<String> messages = new ArrayList<String>();
+        try {
+            framer.decode(ByteBuffer.wrap(frame(framer, MSG1)), messages);
+            fail("message larger than the maximum accepted");
+        } catch (IOException e) {
+            // expected
+        }
+        // the framer recovers on the next frame
+        framer.decode(ByteBuffer.wrap(frame(framer, "MSH|1")), messages);
+        assertEquals(1, messages.size());
+        assertEquals("MSH|1", messages.get(0));
+    }
+
+    private static byte[] frame(MllpFramer framer, String message) {
+        ByteBuffer buffer = framer.encode(message);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = new byte[a.length + b.length];
+        System.arraycopy(a, 0, c, 0, a.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+}
@@ -0,0 +1,140 @@
+package com.hinacom.pix.ihe.log;
+
+import com.hinacom.pix.dao.MessageStoreMapper;
+import junit.framework.TestCase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the background writer of the {@link SqlMessageStoreLogger} against
+ * a mapper that records the inserted messages.  The overflow policies are
+ * tested by BatchingQueueTest.
+ */
+public class SqlMessageStoreLoggerTest extends TestCase {
+
+    private static final long TIMEOUT = 10000;
+
+    private FakeMapper mapper;
+    private SqlMessageStoreLogger logger;
+
+    protected void setUp() throws Exception {
+        mapper = new FakeMapper();
+        logger = new SqlMessageStoreLogger();
+        logger.messageStoreMapper = (MessageStoreMapper) Proxy.newProxyInstance(
+                MessageStoreMapper.class.getClassLoader(), new Class[] { MessageStoreMapper.class }, mapper);
+        logger.setBatchSize(1);
+        logger.setFlushMillis(1);
+        logger.setCloseTimeoutMillis(TIMEOUT);
+    }
+
+    protected void tearDown() throws Exception {
+        logger.close();
+    }
+
+    public void testWritesQueuedMessagesOnClose() throws Exception {
+        logger.setBatchSize(10);
+        logger.setFlushMillis(50);
+        for (int i = 0; i < 5; i++)
+            logger.saveLog(message("M" + i));
+        logger.close();
+
+        assertEquals(Arrays.asList("M0", "M1", "M2", "M3", "M4"), mapper.inserted());
+        long[] stats = logger.getStatistics();
+        assertEquals(5, stats[SqlMessageStoreLogger.STAT_QUEUED]);
+        assertEquals(5, stats[SqlMessageStoreLogger.STAT_WRITTEN]);
+        assertEquals(0, stats[SqlMessageStoreLogger.STAT_DROPPED]);
+        assertEquals(0, stats[SqlMessageStoreLogger.STAT_BACKLOG]);
+    }
+
+    public void testFailedInsertDropsOnlyThatMessage() throws Exception {
+        mapper.failing = "BAD";
+        logger.saveLog(message("M0"));
+        logger.saveLog(message("BAD"));
+        logger.saveLog(message("M1"));
+        logger.close();
+        assertEquals(Arrays.asList("M0", "M1"), mapper.inserted());
+        long[] stats = logger.getStatistics();
+        assertEquals(2, stats[SqlMessageStoreLogger.STAT_WRITTEN]);
+        assertEquals(1, stats[SqlMessageStoreLogger.STAT_DROPPED]);
+    }
+
+    public void testAddsMonthPartitions() throws Exception {
+        logger.setPartitionMonthsAhead(2);
+        logger.saveLog(message("M0"));
+        // the writer adds the partitions before it waits for messages
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (mapper.inserted().isEmpty() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(2, mapper.monthsAhead);
+    }
+
+    public void testSaveAfterCloseDrops() throws Exception {
+        logger.close();
+        logger.saveLog(message("M0"));
+        assertTrue(mapper.inserted().isEmpty());
+        assertEquals(1, logger.getStatistics()[SqlMessageStoreLogger.STAT_DROPPED]);
+    }
+
+    public void testMessageLoggedWhileClosingIsWrittenOrDropped() throws Exception {
+        final int count = 2000;
+        Thread caller = new Thread() {
+            public void run() {
+                for (int i = 0; i < count; i++)
+                    logger.saveLog(message("M" + i));
+            }
+        };
+        caller.start();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (mapper.inserted().size() < 10 && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        logger.close();
+        caller.join(TIMEOUT);
+
+        // none is left in the queue after close()
+        long[] stats = logger.getStatistics();
+        assertEquals(count, mapper.inserted().size() + stats[SqlMessageStoreLogger.STAT_DROPPED]);
+        assertEquals(mapper.inserted().size(), stats[SqlMessageStoreLogger.STAT_WRITTEN]);
+        assertEquals(0, stats[SqlMessageStoreLogger.STAT_BACKLOG]);
+    }
+
+    private static MessageStore message(String id) {
+        MessageStore message = new MessageStore();
+        message.setMessageId(id);
+        message.setInMessage("MSH|^~\\&|APP|FAC|PIX|HIS|20160816||ADT^A04|" + id + "|P|2.3.1\r");
+        return message;
+    }
+
+    /**
+     * Records the inserted message ids.
+     */
+    private static class FakeMapper implements InvocationHandler {
+        private final List<String> inserted = new ArrayList<String>();
+        volatile String failing = null;
+        volatile int monthsAhead = 0;
+
+        synchronized List<String> inserted() {
+            return new ArrayList<String>(inserted);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("addMonths".equals(method.getName())) {
+                monthsAhead = (Integer) args[1];
+                return null;
+            }
+            if (!"insert".equals(method.getName()))
+                throw new UnsupportedOperationException(method.getName());
+            com.hinacom.pix.po.MessageStore record = (com.hinacom.pix.po.MessageStore) args[0];
+            if (record.getMessageid().equals(failing))
+                throw new IllegalStateException("insert failed");
+            synchronized (this) {
+                inserted.add(record.getMessageid());
+            }
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/* Copyright 2009 Misys PLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.hinacom.pix.ihe.pdq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the limits of the {@link ContinuationStore}: timeout, number of
+ * pointers, number of records and pointers per client.
+ */
+public class ContinuationStoreTest extends TestCase {
+
+    private static final long HOUR = 3600 * 1000L;
+
+    private ContinuationStore store;
+
+    protected void tearDown() throws Exception {
+        if (store != null)
+            store.close();
+    }
+
+    public void testGetAndRemove() {
+        store = new ContinuationStore(HOUR, 10, 1000, 0);
+        ContinuationPointer cp = pointer("a", "APP|FAC", 5);
+        store.put(cp);
+        assertSame(cp, store.get("a"));
+        assertNull(store.get("unknown"));
+        store.remove("a");
+        assertNull(store.get("a"));
+        assertEquals(0, store.size());
+    }
+
+    public void testTimedOutPointerIsRemoved() throws Exception {
+        store = new ContinuationStore(50, 10, 1000, 0);
+        store.put(pointer("a", "APP|FAC", 5));
+        store.put(pointer("b", "APP|FAC", 5));
+        Thread.sleep(100);
+        assertNull(store.get("a"));
+        assertEquals(1, store.size());
+        store.removeExpired();
+        assertEquals(0, store.size());
+    }
+
+    public void testUseKeepsPointer() throws Exception {
+        store = new ContinuationStore(200, 10, 1000, 0);
+        store.put(pointer("a", "APP|FAC", 5));
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(100);
+            assertNotNull(store.get("a"));
+        }
+        store.removeExpired();
+        assertEquals(1, store.size());
+    }
+
+    public void testTooManyPointersDropsLeastRecentlyUsed() {
+        store = new ContinuationStore(HOUR, 3, 1000, 0);
+        store.put(pointer("a", "APP1|FAC", 1));
+        store.put(pointer("b", "APP2|FAC", 1));
+        store.put(pointer("c", "APP3|FAC", 1));
+        store.get("a");
+        store.put(pointer("d", "APP4|FAC", 1));
+        assertEquals(3, store.size());
+        assertNull(store.get("b"));
+        assertNotNull(store.get("a"));
+        assertNotNull(store.get("c"));
+        assertNotNull(store.get("d"));
+    }
+
+    public void testTooManyRecordsDropsLeastRecentlyUsed() {
+        store = new ContinuationStore(HOUR, 10, 10, 0);
+        store.put(pointer("a", "APP1|FAC", 4));
+        store.put(pointer("b", "APP2|FAC", 4));
+        store.put(pointer("c", "APP3|FAC", 4));
+        assertEquals(2, store.size());
+        assertNull(store.get("a"));
+        assertNotNull(store.get("b"));
+        assertNotNull(store.get("c"));
+    }
+
+    public void testReturnedRecordsAreNotCounted() {
+        store = new ContinuationStore(HOUR, 10, 10, 0);
+        ContinuationPointer a = pointer("a", "APP1|FAC", 8);
+        store.put(a);
+        a.nextPatientKeys(6);
+        store.put(pointer("b", "APP2|FAC", 8));
+        assertEquals(2, store.size());
+    }
+
+    public void testPointerOverRecordLimitIsKeptAlone() {
+        store = new ContinuationStore(HOUR, 10, 10, 0);
+        store.put(pointer("a", "APP1|FAC", 2));
+        store.put(pointer("b", "APP2|FAC", 2));
+        store.put(pointer("big", "APP3|FAC", 50));
+        assertEquals(1, store.size());
+        assertNotNull(store.get("big"));
+    }
+
+    public void testClientLimitDropsItsOldestPointer() {
+        store = new ContinuationStore(HOUR, 10, 1000, 2);
+        store.put(pointer("x1", "APPX|FAC", 1));
+        store.put(pointer("y1", "APPY|FAC", 1));
+        store.put(pointer("x2", "APPX|FAC", 1));
+        store.put(pointer("x3", "APPX|FAC", 1));
+
+        assertNull(store.get("x1"));
+        assertNotNull(store.get("x2"));
+        assertNotNull(store.get("x3"));
+        assertNotNull(store.get("y1"));
+        Map<String, Integer> counts = store.getClientCounts();
+        assertEquals(Integer.valueOf(2), counts.get("APPX|FAC"));
+        assertEquals(Integer.valueOf(1), counts.get("APPY|FAC"));
+    }
+
+    public void testClientLimitIgnoresPointersWithoutClient() {
+        store = new ContinuationStore(HOUR, 10, 1000, 1);
+        store.put(pointer("a", null, 1));
+        store.put(pointer("b", null, 1));
+        assertEquals(2, store.size());
+    }
+
+    public void testRemoveQuery() {
+        store = new ContinuationStore(HOUR, 10, 1000, 0);
+        ContinuationPointer a = pointer("a", "APP|FAC", 1);
+        a.setQueryTag("Q1");
+        ContinuationPointer b = pointer("b", "APP|FAC", 1);
+        b.setQueryTag("Q2");
+        store.put(a);
+        store.put(b);
+        store.removeQuery("Q1");
+        assertNull(store.get("a"));
+        assertNotNull(store.get("b"));
+    }
+
+    public void testCloseDropsPointers() {
+        store = new ContinuationStore(HOUR, 10, 1000, 0);
+        store.put(pointer("a", "APP|FAC", 1));
+        store.close();
+        assertEquals(0, store.size());
+    }
+
+    private static ContinuationPointer pointer(String name, String client, int records) {
+        ContinuationPointer cp = new ContinuationPointer();
+        cp.setPointer(name);
+        cp.setClient(client);
+        cp.setQueryTag("tag-" + name);
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < records; i++)
+            keys.add(name + "-" + i);
+        cp.setPatientKeys(keys);
+        return cp;
+    }
+}
@@ -1,22 +1,39 @@
 package com.hinacom.pix.dao;
 
 import com.hinacom.pix.po.MessageStore;
+import com.hinacom.pix.po.MessageStoreCriteria;
+import org.apache.ibatis.annotations.Param;
 
+import java.util.Date;
 import java.util.List;
 
 
 public interface MessageStoreMapper {
-    int deleteByPrimaryKey(Integer id);
+    int deleteByPrimaryKey(Long id);
+
+    /**
+     * Deletes at most limit messages older than a date; called until it
+     * deletes less than limit to purge the old messages in short transactions.
+     */
+    int deleteBefore(@Param("before") Date before, @Param("limit") int limit);
+
+    /**
+     * Adds the monthly partitions of the messages up to ahead months after
+     * the current one, see MESSAGE_STORE_ADD_MONTHS in db/hinapix.sql.
+     */
+    void addMonths(@Param("from") Date from, @Param("ahead") int ahead);
 
     int insert(MessageStore record);
 
     int insertSelective(MessageStore record);
 
-    MessageStore selectByPrimaryKey(Integer id);
+    MessageStore selectByPrimaryKey(Long id);
+
+    List<MessageStore> selectListByCondition(MessageStoreCriteria criteria);
 
-    List<MessageStore> selectListByCondition(MessageStore messageStore);
+    int countByCondition(MessageStoreCriteria criteria);
 
     int updateByPrimaryKeySelective(MessageStore record);
 
     int updateByPrimaryKey(MessageStore record);
-}
\ No newline at end of file
+}
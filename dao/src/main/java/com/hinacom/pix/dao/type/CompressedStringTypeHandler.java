@@ -0,0 +1,81 @@
+package com.hinacom.pix.dao.type;
+
+import org.apache.ibatis.type.BaseTypeHandler;
+import org.apache.ibatis.type.JdbcType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.sql.CallableStatement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores a string in a binary column as GZIP compressed UTF-16LE, the
+ * format of SQL Server COMPRESS of an nvarchar, so that the column can be
+ * read with CAST(DECOMPRESS(column) AS nvarchar(max)) and the rows migrated
+ * by COMPRESS in SQL are read the same way.  Values that are not GZIP data
+ * are read as plain UTF-16LE, so rows written before the column was
+ * compressed can still be read.
+ */
+public class CompressedStringTypeHandler extends BaseTypeHandler<String> {
+    private static final Charset UTF16 = Charset.forName("UTF-16LE");
+
+    @Override
+    public void setNonNullParameter(PreparedStatement ps, int i, String parameter, JdbcType jdbcType) throws SQLException {
+        ps.setBytes(i, compress(parameter));
+    }
+
+    @Override
+    public String getNullableResult(ResultSet rs, String columnName) throws SQLException {
+        return decompress(rs.getBytes(columnName));
+    }
+
+    @Override
+    public String getNullableResult(ResultSet rs, int columnIndex) throws SQLException {
+        return decompress(rs.getBytes(columnIndex));
+    }
+
+    @Override
+    public String getNullableResult(CallableStatement cs, int columnIndex) throws SQLException {
+        return decompress(cs.getBytes(columnIndex));
+    }
+
+    public static byte[] compress(String value) {
+        byte[] bytes = value.getBytes(UTF16);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 6 + 32);
+        try {
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            gzip.write(bytes);
+            gzip.close();
+        } catch (IOException e) {
+            // cannot happen writing to memory
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    public static String decompress(byte[] bytes) throws SQLException {
+        if (bytes == null)
+            return null;
+        if (bytes.length < 2 || (bytes[0] & 0xff) != 0x1f || (bytes[1] & 0xff) != 0x8b)
+            return new String(bytes, UTF16);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 8);
+        try {
+            InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                out.write(buffer, 0, n);
+            in.close();
+        } catch (IOException e) {
+            throw new SQLException("Corrupt compressed message", e);
+        }
+        return new String(out.toByteArray(), UTF16);
+    }
+}
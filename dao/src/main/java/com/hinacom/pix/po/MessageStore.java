@@ -3,7 +3,7 @@ package com.hinacom.pix.po;
 import java.util.Date;
 
 public class MessageStore {
-    private Integer id;
+    private Long id;
 
     private String ip;
 
@@ -29,11 +29,13 @@ public class MessageStore {
 
     private String receivingfacility;
 
-    public Integer getId() {
+    private String patientid;
+
+    public Long getId() {
         return id;
     }
 
-    public void setId(Integer id) {
+    public void setId(Long id) {
         this.id = id;
     }
 
@@ -132,4 +134,12 @@ public class MessageStore {
     public void setReceivingfacility(String receivingfacility) {
         this.receivingfacility = receivingfacility == null ? null : receivingfacility.trim();
     }
-}
\ No newline at end of file
+
+    public String getPatientid() {
+        return patientid;
+    }
+
+    public void setPatientid(String patientid) {
+        this.patientid = patientid == null ? null : patientid.trim();
+    }
+}
@@ -0,0 +1,147 @@
+package com.hinacom.pix.po;
+
+import java.util.Date;
+
+/**
+ * The conditions of a MESSAGE_STORE search.  Every condition that is set
+ * must match; the message bodies are compressed and cannot be searched.
+ * The matches are returned newest first, one page of at most limit rows
+ * after skipping offset rows.
+ */
+public class MessageStoreCriteria {
+    private String ip;
+
+    private Date fromdate;
+
+    private Date todate;
+
+    private String messageid;
+
+    private String messagecode;
+
+    private String triggerevent;
+
+    private String sendingfacility;
+
+    private String sendingapplication;
+
+    private String receivingapplication;
+
+    private String receivingfacility;
+
+    private String patientid;
+
+    private int offset = 0;
+
+    private int limit = 100;
+
+    public String getIp() {
+        return ip;
+    }
+
+    public void setIp(String ip) {
+        this.ip = ip;
+    }
+
+    public Date getFromdate() {
+        return fromdate;
+    }
+
+    /**
+     * Sets the earliest message date, inclusive.
+     */
+    public void setFromdate(Date fromdate) {
+        this.fromdate = fromdate;
+    }
+
+    public Date getTodate() {
+        return todate;
+    }
+
+    /**
+     * Sets the latest message date, exclusive.
+     */
+    public void setTodate(Date todate) {
+        this.todate = todate;
+    }
+
+    public String getMessageid() {
+        return messageid;
+    }
+
+    public void setMessageid(String messageid) {
+        this.messageid = messageid;
+    }
+
+    public String getMessagecode() {
+        return messagecode;
+    }
+
+    public void setMessagecode(String messagecode) {
+        this.messagecode = messagecode;
+    }
+
+    public String getTriggerevent() {
+        return triggerevent;
+    }
+
+    public void setTriggerevent(String triggerevent) {
+        this.triggerevent = triggerevent;
+    }
+
+    public String getSendingfacility() {
+        return sendingfacility;
+    }
+
+    public void setSendingfacility(String sendingfacility) {
+        this.sendingfacility = sendingfacility;
+    }
+
+    public String getSendingapplication() {
+        return sendingapplication;
+    }
+
+    public void setSendingapplication(String sendingapplication) {
+        this.sendingapplication = sendingapplication;
+    }
+
+    public String getReceivingapplication() {
+        return receivingapplication;
+    }
+
+    public void setReceivingapplication(String receivingapplication) {
+        this.receivingapplication = receivingapplication;
+    }
+
+    public String getReceivingfacility() {
+        return receivingfacility;
+    }
+
+    public void setReceivingfacility(String receivingfacility) {
+        this.receivingfacility = receivingfacility;
+    }
+
+    public String getPatientid() {
+        return patientid;
+    }
+
+    public void setPatientid(String patientid) {
+        this.patientid = patientid;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public void setOffset(int offset) {
+        this.offset = Math.max(0, offset);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = Math.max(1, limit);
+    }
+}
@@ -64,7 +64,10 @@ CREATE TABLE PERSON_INFO
   AN_AA_UNIV_ID_TYPE_CD     NVARCHAR(64),
   AN_AF_NAMESPACE_ID    NVARCHAR(64),
   AN_AF_UNIV_ID          NVARCHAR(64),
-  AN_AF_UNIV_ID_TYPE_CD    NVARCHAR(64)
+  AN_AF_UNIV_ID_TYPE_CD    NVARCHAR(64),
+  SOUNDEX_KEY                NVARCHAR(8),
+  NYSIIS_KEY                 NVARCHAR(8),
+  DOB_ZIP_KEY                NVARCHAR(16)
 )
 go
 
@@ -268,25 +271,102 @@ IF EXISTS (SELECT * FROM dbo.sysobjects WHERE id = OBJECT_ID(N'dbo.MESSAGE_STORE
 DROP TABLE dbo.MESSAGE_STORE
 go
 
+-- MESSAGE_STORE is partitioned by month of MessageDate.  The boundaries of
+-- the current month and the next three are created below, and
+-- SqlMessageStoreLogger adds the following months ahead of time with
+-- MESSAGE_STORE_ADD_MONTHS, which needs ALTER permission on the scheme.
+-- A month older than the retention period can then be removed at once with
+--   TRUNCATE TABLE MESSAGE_STORE WITH (PARTITIONS (2))
+--   ALTER PARTITION FUNCTION PF_MESSAGE_STORE() MERGE RANGE ('2017-01-01')
+-- SqlMessageStoreLogger also purges by date in small batches when its
+-- retentionDays is set, which works whether or not the table is split.
+IF EXISTS (SELECT * FROM dbo.sysobjects WHERE id = OBJECT_ID(N'dbo.MESSAGE_STORE_ADD_MONTHS') AND OBJECTPROPERTY(id, N'IsProcedure') = 1)
+DROP PROCEDURE dbo.MESSAGE_STORE_ADD_MONTHS
+go
+IF EXISTS (SELECT * FROM sys.partition_schemes WHERE name = 'PS_MESSAGE_STORE')
+DROP PARTITION SCHEME PS_MESSAGE_STORE
+go
+IF EXISTS (SELECT * FROM sys.partition_functions WHERE name = 'PF_MESSAGE_STORE')
+DROP PARTITION FUNCTION PF_MESSAGE_STORE
+go
+
+CREATE PARTITION FUNCTION PF_MESSAGE_STORE (datetime2(3))
+AS RANGE RIGHT FOR VALUES ()
+go
+
+CREATE PARTITION SCHEME PS_MESSAGE_STORE
+AS PARTITION PF_MESSAGE_STORE ALL TO ([PRIMARY])
+go
+
+-- Adds the monthly boundaries of PF_MESSAGE_STORE from the month of @from
+-- to @ahead months after the current one.  Months are split while they are
+-- still empty, which only changes metadata.  SqlMessageStoreLogger calls it
+-- every purgeIntervalMillis to keep partitionMonthsAhead months ready.
+CREATE PROCEDURE dbo.MESSAGE_STORE_ADD_MONTHS @from datetime2(3), @ahead int
+AS
+BEGIN
+  SET NOCOUNT ON
+  DECLARE @month datetime2(3) = DATEFROMPARTS(YEAR(@from), MONTH(@from), 1)
+  DECLARE @last datetime2(3) = DATEADD(month, @ahead, DATEFROMPARTS(YEAR(SYSDATETIME()), MONTH(SYSDATETIME()), 1))
+  WHILE @month <= @last
+  BEGIN
+    IF NOT EXISTS (SELECT * FROM sys.partition_range_values v
+                   JOIN sys.partition_functions f ON f.function_id = v.function_id
+                   WHERE f.name = 'PF_MESSAGE_STORE' AND CAST(v.value AS datetime2(3)) = @month)
+    BEGIN
+      ALTER PARTITION SCHEME PS_MESSAGE_STORE NEXT USED [PRIMARY]
+      ALTER PARTITION FUNCTION PF_MESSAGE_STORE() SPLIT RANGE (@month)
+    END
+    SET @month = DATEADD(month, 1, @month)
+  END
+END
+go
+
+DECLARE @now datetime2(3) = SYSDATETIME()
+EXEC dbo.MESSAGE_STORE_ADD_MONTHS @now, 3
+go
+
+-- OutMessage and InMessage hold the GZIP compressed UTF-16 message text,
+-- as COMPRESS of an nvarchar, readable with
+-- CAST(DECOMPRESS(InMessage) AS nvarchar(max)).
 CREATE TABLE [dbo].[MESSAGE_STORE](
-  [Id] [int] IDENTITY(1,1) NOT NULL,
-  [Ip] [varchar](15) NULL,
-  [OutMessage] [varchar](1500) NULL,
-  [InMessage] [varchar](1500) NULL,
-  [MessageDate] [date] NULL,
-  [MessageId] [varchar](20) NULL,
-  [MessageCode] [varchar] (20) null,
-  [TriggerEvent] [varchar] (20) null,
-  [ErrorMessage] [varchar](1500) NULL,
-  [SendingFacility] [varchar](200) NULL,
-  [SendingApplication] [varchar](200) NULL,
-  [ReceivingApplication] [varchar](200) NULL,
-  [ReceivingFacility] [varchar](200) NULL
+  [Id] [bigint] IDENTITY(1,1) NOT NULL,
+  [Ip] [nvarchar](45) NULL,
+  [OutMessage] [varbinary](max) NULL,
+  [InMessage] [varbinary](max) NULL,
+  [MessageDate] [datetime2](3) NOT NULL,
+  [MessageId] [nvarchar](100) NULL,
+  [MessageCode] [nvarchar](100) NULL,
+  [TriggerEvent] [nvarchar](100) NULL,
+  [ErrorMessage] [nvarchar](4000) NULL,
+  [SendingFacility] [nvarchar](100) NULL,
+  [SendingApplication] [nvarchar](100) NULL,
+  [ReceivingApplication] [nvarchar](100) NULL,
+  [ReceivingFacility] [nvarchar](100) NULL,
+  [PatientId] [nvarchar](100) NULL
  CONSTRAINT [PK_LogMessage] PRIMARY KEY CLUSTERED
 (
+  [MessageDate] ASC,
   [Id] ASC
-)WITH (PAD_INDEX = OFF, STATISTICS_NORECOMPUTE = OFF, IGNORE_DUP_KEY = OFF, ALLOW_ROW_LOCKS = ON, ALLOW_PAGE_LOCKS = ON) ON [PRIMARY]
-) ON [PRIMARY]
+)WITH (PAD_INDEX = OFF, STATISTICS_NORECOMPUTE = OFF, IGNORE_DUP_KEY = OFF, ALLOW_ROW_LOCKS = ON, ALLOW_PAGE_LOCKS = ON) ON PS_MESSAGE_STORE(MessageDate)
+) ON PS_MESSAGE_STORE(MessageDate)
+go
+
+CREATE INDEX MS_MSGID ON MESSAGE_STORE
+(MessageId, MessageDate) ON PS_MESSAGE_STORE(MessageDate)
+go
+
+CREATE INDEX MS_PATID ON MESSAGE_STORE
+(PatientId, MessageDate) ON PS_MESSAGE_STORE(MessageDate)
+go
+
+CREATE INDEX MS_SNDFAC ON MESSAGE_STORE
+(SendingFacility, MessageDate) ON PS_MESSAGE_STORE(MessageDate)
+go
+
+CREATE INDEX MS_MSGTYPE ON MESSAGE_STORE
+(MessageCode, TriggerEvent, MessageDate) ON PS_MESSAGE_STORE(MessageDate)
+go
 
 
 
@@ -345,6 +425,18 @@ CREATE INDEX PI_SK_DHID ON PERSON_INFO
 (SEARCH_KEY, DH_ID)
 go
 
+CREATE INDEX PI_SDXK_DHID ON PERSON_INFO
+(SOUNDEX_KEY, DH_ID)
+go
+
+CREATE INDEX PI_NYSK_DHID ON PERSON_INFO
+(NYSIIS_KEY, DH_ID)
+go
+
+CREATE INDEX PI_DZK_DHID ON PERSON_INFO
+(DOB_ZIP_KEY, DH_ID)
+go
+
 CREATE INDEX PI_SSN_SK_DHID ON PERSON_INFO
 (SSN, SEARCH_KEY, DH_ID)
 go
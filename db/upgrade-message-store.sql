@@ -0,0 +1,104 @@
+-- Moves an existing MESSAGE_STORE table to the partitioned table with
+-- compressed message bodies and indexed keys.  The varchar bodies are
+-- converted to nvarchar before COMPRESS, so that they are stored as UTF-16
+-- like the ones written by CompressedStringTypeHandler; COMPRESS of a
+-- varchar would keep the bytes of the code page.  COMPRESS needs SQL Server
+-- 2016; on older servers store CAST(CAST(InMessage AS nvarchar(max)) AS
+-- varbinary(max)) instead, uncompressed bodies are still read by
+-- CompressedStringTypeHandler.  The keys of the old rows are only those
+-- that were stored; SqlMessageStoreLogger fills them in for new messages.
+
+EXEC sp_rename 'MESSAGE_STORE', 'MESSAGE_STORE_OLD'
+go
+EXEC sp_rename 'dbo.PK_LogMessage', 'PK_LogMessage_Old', 'OBJECT'
+go
+
+CREATE PARTITION FUNCTION PF_MESSAGE_STORE (datetime2(3))
+AS RANGE RIGHT FOR VALUES ()
+go
+
+CREATE PARTITION SCHEME PS_MESSAGE_STORE
+AS PARTITION PF_MESSAGE_STORE ALL TO ([PRIMARY])
+go
+
+-- Adds the monthly boundaries of PF_MESSAGE_STORE from the month of @from
+-- to @ahead months after the current one.  Months are split while they are
+-- still empty, which only changes metadata.  SqlMessageStoreLogger calls it
+-- every purgeIntervalMillis to keep partitionMonthsAhead months ready.
+CREATE PROCEDURE dbo.MESSAGE_STORE_ADD_MONTHS @from datetime2(3), @ahead int
+AS
+BEGIN
+  SET NOCOUNT ON
+  DECLARE @month datetime2(3) = DATEFROMPARTS(YEAR(@from), MONTH(@from), 1)
+  DECLARE @last datetime2(3) = DATEADD(month, @ahead, DATEFROMPARTS(YEAR(SYSDATETIME()), MONTH(SYSDATETIME()), 1))
+  WHILE @month <= @last
+  BEGIN
+    IF NOT EXISTS (SELECT * FROM sys.partition_range_values v
+                   JOIN sys.partition_functions f ON f.function_id = v.function_id
+                   WHERE f.name = 'PF_MESSAGE_STORE' AND CAST(v.value AS datetime2(3)) = @month)
+    BEGIN
+      ALTER PARTITION SCHEME PS_MESSAGE_STORE NEXT USED [PRIMARY]
+      ALTER PARTITION FUNCTION PF_MESSAGE_STORE() SPLIT RANGE (@month)
+    END
+    SET @month = DATEADD(month, 1, @month)
+  END
+END
+go
+
+-- OutMessage and InMessage hold the GZIP compressed UTF-16 message text,
+-- as COMPRESS of an nvarchar, readable with
+-- CAST(DECOMPRESS(InMessage) AS nvarchar(max)).
+CREATE TABLE [dbo].[MESSAGE_STORE](
+  [Id] [bigint] IDENTITY(1,1) NOT NULL,
+  [Ip] [nvarchar](45) NULL,
+  [OutMessage] [varbinary](max) NULL,
+  [InMessage] [varbinary](max) NULL,
+  [MessageDate] [datetime2](3) NOT NULL,
+  [MessageId] [nvarchar](100) NULL,
+  [MessageCode] [nvarchar](100) NULL,
+  [TriggerEvent] [nvarchar](100) NULL,
+  [ErrorMessage] [nvarchar](4000) NULL,
+  [SendingFacility] [nvarchar](100) NULL,
+  [SendingApplication] [nvarchar](100) NULL,
+  [ReceivingApplication] [nvarchar](100) NULL,
+  [ReceivingFacility] [nvarchar](100) NULL,
+  [PatientId] [nvarchar](100) NULL
+ CONSTRAINT [PK_LogMessage] PRIMARY KEY CLUSTERED
+(
+  [MessageDate] ASC,
+  [Id] ASC
+)WITH (PAD_INDEX = OFF, STATISTICS_NORECOMPUTE = OFF, IGNORE_DUP_KEY = OFF, ALLOW_ROW_LOCKS = ON, ALLOW_PAGE_LOCKS = ON) ON PS_MESSAGE_STORE(MessageDate)
+) ON PS_MESSAGE_STORE(MessageDate)
+go
+
+CREATE INDEX MS_MSGID ON MESSAGE_STORE
+(MessageId, MessageDate) ON PS_MESSAGE_STORE(MessageDate)
+go
+
+CREATE INDEX MS_PATID ON MESSAGE_STORE
+(PatientId, MessageDate) ON PS_MESSAGE_STORE(MessageDate)
+go
+
+CREATE INDEX MS_SNDFAC ON MESSAGE_STORE
+(SendingFacility, MessageDate) ON PS_MESSAGE_STORE(MessageDate)
+go
+
+CREATE INDEX MS_MSGTYPE ON MESSAGE_STORE
+(MessageCode, TriggerEvent, MessageDate) ON PS_MESSAGE_STORE(MessageDate)
+go
+
+-- One partition per month of the old messages, split while the table is empty
+DECLARE @from datetime2(3) = (SELECT ISNULL(CAST(MIN(MessageDate) AS datetime2(3)), SYSDATETIME()) FROM MESSAGE_STORE_OLD)
+EXEC dbo.MESSAGE_STORE_ADD_MONTHS @from, 3
+go
+
+INSERT INTO MESSAGE_STORE (Ip, OutMessage, InMessage, MessageDate, MessageId, MessageCode, TriggerEvent,
+  ErrorMessage, SendingFacility, SendingApplication, ReceivingApplication, ReceivingFacility)
+SELECT Ip, COMPRESS(CAST(OutMessage AS nvarchar(max))), COMPRESS(CAST(InMessage AS nvarchar(max))), ISNULL(CAST(MessageDate AS datetime2(3)), SYSDATETIME()), MessageId, MessageCode, TriggerEvent,
+  ErrorMessage, SendingFacility, SendingApplication, ReceivingApplication, ReceivingFacility
+FROM MESSAGE_STORE_OLD
+ORDER BY Id
+go
+
+DROP TABLE MESSAGE_STORE_OLD
+go
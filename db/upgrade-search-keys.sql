@@ -0,0 +1,21 @@
+-- Adds the phonetic name and DOB/ZIP blocking key columns to an existing
+-- PERSON_INFO table.  Run org.openempi.ics.db.jdbc.SearchKeyBackfill
+-- afterwards to populate SEARCH_KEY and the new columns for existing rows.
+
+ALTER TABLE PERSON_INFO ADD
+  SOUNDEX_KEY                NVARCHAR(8),
+  NYSIIS_KEY                 NVARCHAR(8),
+  DOB_ZIP_KEY                NVARCHAR(16)
+go
+
+CREATE INDEX PI_SDXK_DHID ON PERSON_INFO
+(SOUNDEX_KEY, DH_ID)
+go
+
+CREATE INDEX PI_NYSK_DHID ON PERSON_INFO
+(NYSIIS_KEY, DH_ID)
+go
+
+CREATE INDEX PI_DZK_DHID ON PERSON_INFO
+(DOB_ZIP_KEY, DH_ID)
+go
@@ -77,6 +77,9 @@ public class Person extends TransientObject {
 
     private List accountNumbers_ = new ArrayList();
 
+    // Normalized copy of the matching attributes, built on demand
+    private transient PersonMatchView matchView_;
+
     /**
      * Gets the <code>Attributes</code> sorted by <code>DocumentHeader</code>
      *
@@ -259,6 +262,23 @@ public class Person extends TransientObject {
         return attributeMap;
     }
 
+    /**
+     * Gets the normalized view of the attributes used for matching.  The
+     * view is built on first use and kept until a name, gender, address,
+     * telephone number, drivers license, SSN or date of birth is added or
+     * removed.
+     *
+     * @return PersonMatchView The match view of this <code>Person</code>
+     */
+    public PersonMatchView getMatchView() {
+        PersonMatchView view = matchView_;
+        if (view == null) {
+            view = new PersonMatchView(this);
+            matchView_ = view;
+        }
+        return view;
+    }
+
     /**
      * Adds a <code>DocumentHeader</code>.
      *
@@ -276,6 +296,7 @@ public class Person extends TransientObject {
      *               the update.
      */
     public void updatePerson(Person person) {
+        matchView_ = null;
         races_.addAll(person.getRaces());
         names_.addAll(person.getNames());
         genders_.addAll(person.getGenders());
@@ -323,6 +344,7 @@ public class Person extends TransientObject {
      * @param newName the <code>PersonName</code> to be added
      */
     public void addName(PersonName newName) {
+        matchView_ = null;
         names_.add(newName);
     }
 
@@ -333,6 +355,7 @@ public class Person extends TransientObject {
      * @return boolean true if removed, false otherwise
      */
     public boolean removeName(PersonName name) {
+        matchView_ = null;
         return names_.remove(name);
     }
 
@@ -349,6 +372,7 @@ public class Person extends TransientObject {
      * Clears the <code>PersonName</code> list.
      */
     public void clearNames() {
+        matchView_ = null;
         names_.clear();
     }
 
@@ -498,6 +522,7 @@ public class Person extends TransientObject {
      * @param newGender the <code>Gender</code> to be added
      */
     public void addGender(Gender newGender) {
+        matchView_ = null;
         genders_.add(newGender);
     }
 
@@ -508,6 +533,7 @@ public class Person extends TransientObject {
      * @return boolean true if removed, false otherwise
      */
     public boolean removeGender(Gender gender) {
+        matchView_ = null;
         return genders_.remove(gender);
     }
 
@@ -524,6 +550,7 @@ public class Person extends TransientObject {
      * Clears the <code>Gender</code> list.
      */
     public void clearGenders() {
+        matchView_ = null;
         genders_.clear();
     }
 
@@ -533,6 +560,7 @@ public class Person extends TransientObject {
      * @param newTelephoneNumber the <code>TelephoneNumber</code> to be added
      */
     public void addTelephoneNumber(TelephoneNumber newTelephoneNumber) {
+        matchView_ = null;
         telephoneNumbers_.add(newTelephoneNumber);
     }
 
@@ -543,6 +571,7 @@ public class Person extends TransientObject {
      * @return boolean true if removed, false otherwise
      */
     public boolean removeTelephoneNumber(TelephoneNumber telephoneNumber) {
+        matchView_ = null;
         return telephoneNumbers_.remove(telephoneNumber);
     }
 
@@ -559,6 +588,7 @@ public class Person extends TransientObject {
      * Clears the <code>TelephoneNumber</code> list.
      */
     public void clearTelephoneNumbers() {
+        matchView_ = null;
         telephoneNumbers_.clear();
     }
 
@@ -603,6 +633,7 @@ public class Person extends TransientObject {
      * @param newAddress the <code>Address</code> to be added
      */
     public void addAddress(Address newAddress) {
+        matchView_ = null;
         addresses_.add(newAddress);
     }
 
@@ -613,6 +644,7 @@ public class Person extends TransientObject {
      * @return boolean true if removed, false otherwise
      */
     public boolean removeAddress(Address address) {
+        matchView_ = null;
         return addresses_.remove(address);
     }
 
@@ -629,6 +661,7 @@ public class Person extends TransientObject {
      * Clears the <code>Address</code> list.
      */
     public void clearAddresses() {
+        matchView_ = null;
         addresses_.clear();
     }
 
@@ -673,6 +706,7 @@ public class Person extends TransientObject {
      * @param newDriversLicense the <code>DriversLicense</code> to be added
      */
     public void addDriversLicense(DriversLicense newDriversLicense) {
+        matchView_ = null;
         driversLicenses_.add(newDriversLicense);
     }
 
@@ -683,6 +717,7 @@ public class Person extends TransientObject {
      * @return boolean true if removed, false otherwise
      */
     public boolean removeDriversLicense(DriversLicense driversLicense) {
+        matchView_ = null;
         return driversLicenses_.remove(driversLicense);
     }
 
@@ -699,6 +734,7 @@ public class Person extends TransientObject {
      * Clears the <code>DriversLicense</code> list.
      */
     public void clearDriversLicenses() {
+        matchView_ = null;
         driversLicenses_.clear();
     }
 
@@ -762,6 +798,7 @@ public class Person extends TransientObject {
      * @param dob the date of birth to be set
      */
     public void addDateOfBirth(DateOfBirth dob) {
+        matchView_ = null;
         dobs.add(dob);
     }
 
@@ -771,6 +808,7 @@ public class Person extends TransientObject {
      * @return Date The date of birth
      */
     public Date removeDateOfBirth(DateOfBirth dob) {
+        matchView_ = null;
         return (Date) dobs.remove(dobs.indexOf(dob));
     }
 
@@ -829,6 +867,7 @@ public class Person extends TransientObject {
      * @param ssn the value of Social Security number to be set
      */
     public void addSocialSecurityNumber(SocialSecurityNumber ssn) {
+        matchView_ = null;
         ssns.add(ssn);
     }
 
@@ -838,6 +877,7 @@ public class Person extends TransientObject {
      * @return String The Social Security number for this<code>Person</code>
      */
     public String removeSocialSecurityNumber(SocialSecurityNumber ssn) {
+        matchView_ = null;
         return (String) ssns.remove(ssns.indexOf(ssn));
     }
 
@@ -0,0 +1,250 @@
+package org.openempi.data;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An immutable, normalized copy of the attributes of a <code>Person</code>
+ * that take part in record matching.  Names, genders and license numbers
+ * are trimmed and upper cased, SSNs, zip codes and phone numbers reduced to
+ * their digits and dates of birth to an epoch day and a yyyymmdd value, so
+ * matching a candidate is a series of primitive and string comparisons
+ * that allocate nothing.
+ * <p/>
+ * A view is built once per person through {@link Person#getMatchView()},
+ * which caches it until the person's attribute lists change.  Values that
+ * are empty after normalization are left out.  The arrays returned are
+ * shared and must not be modified.
+ */
+public final class PersonMatchView {
+
+    private static final String[] NONE = new String[0];
+
+    private final String[] lastNames;
+    private final String[] firstNames;
+    private final String[] ssns;
+    private final int[] dobEpochDays;
+    private final int[] dobDates;
+    private final String[] genders;
+    private final String[] zips;
+    private final String[] phones;
+    private final String[] licenses;
+
+    /**
+     * Builds the view of a person.
+     *
+     * @param person the <code>Person</code> to normalize
+     */
+    public PersonMatchView(Person person) {
+        List names = person.getNames();
+        String[] last = new String[names.size()];
+        String[] first = new String[names.size()];
+        int nLast = 0;
+        int nFirst = 0;
+        for (Iterator iter = names.iterator(); iter.hasNext(); ) {
+            PersonName name = (PersonName) iter.next();
+            String s = normalize(name.getLastName());
+            if (s != null)
+                last[nLast++] = s;
+            s = normalize(name.getFirstName());
+            if (s != null)
+                first[nFirst++] = s;
+        }
+        lastNames = trim(last, nLast);
+        firstNames = trim(first, nFirst);
+
+        List list = person.getSocialSecurityNumbers();
+        String[] values = new String[list.size()];
+        int n = 0;
+        for (Iterator iter = list.iterator(); iter.hasNext(); ) {
+            String s = digits(((SocialSecurityNumber) iter.next()).getSSN(), 0);
+            if (s != null)
+                values[n++] = s;
+        }
+        ssns = trim(values, n);
+
+        list = person.getDatesOfBirth();
+        int[] days = new int[list.size()];
+        int[] dates = new int[list.size()];
+        n = 0;
+        Calendar cal = new GregorianCalendar();
+        for (Iterator iter = list.iterator(); iter.hasNext(); ) {
+            Date dob = ((DateOfBirth) iter.next()).getDOB();
+            if (dob == null)
+                continue;
+            cal.setTime(dob);
+            int year = cal.get(Calendar.YEAR);
+            int month = cal.get(Calendar.MONTH) + 1;
+            int day = cal.get(Calendar.DAY_OF_MONTH);
+            days[n] = epochDay(year, month, day);
+            dates[n] = year * 10000 + month * 100 + day;
+            n++;
+        }
+        dobEpochDays = trim(days, n);
+        dobDates = trim(dates, n);
+
+        list = person.getGenders();
+        values = new String[list.size()];
+        n = 0;
+        for (Iterator iter = list.iterator(); iter.hasNext(); ) {
+            String s = normalize(((Gender) iter.next()).getValue());
+            if (s != null && !s.equals("U"))
+                values[n++] = s;
+        }
+        genders = trim(values, n);
+
+        list = person.getAddresses();
+        values = new String[list.size()];
+        n = 0;
+        for (Iterator iter = list.iterator(); iter.hasNext(); ) {
+            String s = digits(((Address) iter.next()).getZipCode(), 5);
+            if (s != null)
+                values[n++] = s;
+        }
+        zips = trim(values, n);
+
+        list = person.getTelephoneNumbers();
+        values = new String[list.size()];
+        n = 0;
+        for (Iterator iter = list.iterator(); iter.hasNext(); ) {
+            TelephoneNumber phone = (TelephoneNumber) iter.next();
+            if (phone.getPhoneNumber() == null)
+                continue;
+            String area = (phone.getAreaCode() == null) ? "" : phone.getAreaCode();
+            String s = digits(area + phone.getPhoneNumber(), 0);
+            if (s != null)
+                values[n++] = s;
+        }
+        phones = trim(values, n);
+
+        list = person.getDriversLicenses();
+        values = new String[list.size()];
+        n = 0;
+        for (Iterator iter = list.iterator(); iter.hasNext(); ) {
+            String s = normalize(((DriversLicense) iter.next()).getNumber());
+            if (s != null)
+                values[n++] = s;
+        }
+        licenses = trim(values, n);
+    }
+
+    /** Upper cased last names. */
+    public String[] getLastNames() {
+        return lastNames;
+    }
+
+    /** Upper cased first names. */
+    public String[] getFirstNames() {
+        return firstNames;
+    }
+
+    /** SSN digits. */
+    public String[] getSSNs() {
+        return ssns;
+    }
+
+    /** Dates of birth as days since 1970-01-01. */
+    public int[] getDobEpochDays() {
+        return dobEpochDays;
+    }
+
+    /** Dates of birth as yyyymmdd. */
+    public int[] getDobDates() {
+        return dobDates;
+    }
+
+    /** Upper cased genders, without unknown (U). */
+    public String[] getGenders() {
+        return genders;
+    }
+
+    /** The first five digits of the zip codes. */
+    public String[] getZips() {
+        return zips;
+    }
+
+    /** Area code and number digits. */
+    public String[] getPhones() {
+        return phones;
+    }
+
+    /** Upper cased drivers license numbers. */
+    public String[] getLicenses() {
+        return licenses;
+    }
+
+    /** Returns the year of a yyyymmdd date. */
+    public static int year(int date) {
+        return date / 10000;
+    }
+
+    /** Returns the month, 1 - 12, of a yyyymmdd date. */
+    public static int month(int date) {
+        return (date / 100) % 100;
+    }
+
+    /** Returns the day of month of a yyyymmdd date. */
+    public static int day(int date) {
+        return date % 100;
+    }
+
+    /**
+     * Returns the number of days from 1970-01-01 to a date of the proleptic
+     * Gregorian calendar.
+     */
+    static int epochDay(int year, int month, int day) {
+        int y = (month <= 2) ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * Trims and upper cases a value, null if nothing is left.
+     */
+    private static String normalize(String s) {
+        if (s == null)
+            return null;
+        s = s.trim();
+        return (s.length() == 0) ? null : s.toUpperCase();
+    }
+
+    /**
+     * Returns the digits of a value, at most maxLength of them if maxLength
+     * is not 0, or null if there are none.
+     */
+    private static String digits(String s, int maxLength) {
+        if (s == null)
+            return null;
+        StringBuffer buf = new StringBuffer(s.length());
+        for (int i = 0; i < s.length() && (maxLength == 0 || buf.length() < maxLength); i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9')
+                buf.append(c);
+        }
+        return (buf.length() == 0) ? null : buf.toString();
+    }
+
+    private static String[] trim(String[] values, int length) {
+        if (length == 0)
+            return NONE;
+        if (length == values.length)
+            return values;
+        String[] result = new String[length];
+        System.arraycopy(values, 0, result, 0, length);
+        return result;
+    }
+
+    private static int[] trim(int[] values, int length) {
+        if (length == values.length)
+            return values;
+        int[] result = new int[length];
+        System.arraycopy(values, 0, result, 0, length);
+        return result;
+    }
+}
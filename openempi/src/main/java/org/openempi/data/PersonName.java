@@ -92,7 +92,7 @@ public class PersonName extends TransientObject {
 
 	public String getSearchKey() {
 		/* Lazy evaluation of getSearchKey() */
-		return SearchKeyGenerator.getInstance().generateKey(getCleanName());
+		return SearchKeyGenerator.getInstance().generateNameKey(this);
 	}
 
 	public String getLastName() {
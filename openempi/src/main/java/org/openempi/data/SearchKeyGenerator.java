@@ -42,7 +42,12 @@ All rights reserved. Any rights not expressly granted herein are reserved.
 */
 package org.openempi.data;
 
-import org.openempi.ics.ccs.OpenEmpiStringComparator;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.StringTokenizer;
+
+import org.apache.commons.codec.language.DoubleMetaphone;
+import org.apache.commons.codec.language.Soundex;
 
 /**
  * The SearchKeyGenerator is a search key and search range factory.  Search keys
@@ -50,17 +55,32 @@ import org.openempi.ics.ccs.OpenEmpiStringComparator;
  * The keys and ranges filter common string variations including keyboarding
  * errors, nicknames, sequence variations, noise and phonetic variations so that
  * similar strings are hashed to the same rows in the database.
+ * <p/>
+ * Name keys are built from the surname (the first name when there is no
+ * surname) with three phonetic codes, each persisted in its own indexed
+ * PERSON_INFO column:
+ * <ul>
+ * <li>SEARCH_KEY - Double Metaphone primary code</li>
+ * <li>SOUNDEX_KEY - Soundex code</li>
+ * <li>NYSIIS_KEY - NYSIIS code</li>
+ * </ul>
+ * DOB_ZIP_KEY holds the date of birth (yyyyMMdd) followed by the 5 digit zip
+ * code.  All keys are looked up by equality so the indexes can be used.
  *
  * @author CareScience, Inc.
  * @author Karl Fankhauser
- * @version 1.2, 20010914
+ * @version 1.3
  */
 public class SearchKeyGenerator {
 
   // singleton
   private static final SearchKeyGenerator INSTANCE = new SearchKeyGenerator();
-  private static final String NAME_SEARCH_SERVICE = "name1   ";
-  private static final String SERVICE = new String(NAME_SEARCH_SERVICE);
+
+  // Maximum length of a NYSIIS code, as in the original algorithm
+  private static final int NYSIIS_MAX_LENGTH = 6;
+
+  private final DoubleMetaphone doubleMetaphone = new DoubleMetaphone();
+  private final Soundex soundex = new Soundex();
 
   private SearchKeyGenerator() {}
 
@@ -72,32 +92,26 @@ public class SearchKeyGenerator {
   }
 
   /**
-   * Generates a search key from a string.
+   * Generates a search key from a string.  The key is the Double Metaphone
+   * primary code of the letters in the string.
    */
   public String generateKey(String s) {
-    String searchKey = null;
-
-    if (s != null) {
-    	OpenEmpiStringComparator jistObj = new OpenEmpiStringComparator(SERVICE, s);
-      searchKey = jistObj.getKey(0);
-    }
-
-    return searchKey;
+    return doubleMetaphone(s);
   }
 
   /**
-   * Generates a search range from a string.
+   * Generates a search range from a string.  Phonetic keys are matched by
+   * equality, so the start and the end of the range are the same key.
    */
   public SearchRange generateSearchRange(String s) {
     SearchRange range = null;
 
     if (s != null) {
-    	OpenEmpiStringComparator jistObj = new OpenEmpiStringComparator(SERVICE, s);
+      String key = generateKey(s);
 
       range = new SearchRange();
-      range.setStart(jistObj.getStartRange(0));
-      //range.setEnd(jistObj.getStartRange(0));
-      range.setEnd(jistObj.getEndRange(0));
+      range.setStart(key);
+      range.setEnd(key);
     }
 
     return range;
@@ -110,19 +124,197 @@ public class SearchKeyGenerator {
     String[] keys = null;
 
     if (s != null) {
-    	OpenEmpiStringComparator jistObj = new OpenEmpiStringComparator(SERVICE, s);
+      StringTokenizer st = new StringTokenizer(s);
 
-      keys = new String[jistObj.getKeyCountInt()];
+      keys = new String[st.countTokens()];
 
       for (int i = 0; i < keys.length; i++) {
-        keys[i] = jistObj.getRangeEntry(i);
+        keys[i] = generateKey(st.nextToken());
       }
     }
     return  keys;
   }
-  
-  public static void main(String[] args) {
-	  SearchRange searchRange = SearchKeyGenerator.getInstance().generateSearchRange("test");
-	  System.out.println("Search range for test is " + searchRange);
+
+  /**
+   * Generates the SEARCH_KEY of a name: the Double Metaphone code of the
+   * surname.
+   */
+  public String generateNameKey(PersonName name) {
+    return doubleMetaphone(getSurname(name));
+  }
+
+  /**
+   * Generates the SOUNDEX_KEY of a name.
+   */
+  public String generateSoundexKey(PersonName name) {
+    return soundex(getSurname(name));
+  }
+
+  /**
+   * Generates the NYSIIS_KEY of a name.
+   */
+  public String generateNysiisKey(PersonName name) {
+    return nysiis(getSurname(name));
+  }
+
+  /**
+   * Generates the DOB_ZIP_KEY from a date of birth and a zip code.
+   *
+   * @return the key, or null if either the date or a 5 digit zip is missing
+   */
+  public String generateDobZipKey(Date dob, String zip) {
+    if (dob == null || zip == null)
+      return null;
+
+    StringBuffer digits = new StringBuffer(5);
+    for (int i = 0; i < zip.length() && digits.length() < 5; i++) {
+      char c = zip.charAt(i);
+      if (c >= '0' && c <= '9')
+        digits.append(c);
+    }
+    if (digits.length() < 5)
+      return null;
+
+    return new SimpleDateFormat("yyyyMMdd").format(dob) + digits;
+  }
+
+  /**
+   * Returns the Double Metaphone primary code of a string, or null if the
+   * string has no letters.
+   */
+  public String doubleMetaphone(String s) {
+    String clean = normalize(s);
+    if (clean == null)
+      return null;
+    return doubleMetaphone.doubleMetaphone(clean);
+  }
+
+  /**
+   * Returns the Soundex code of a string, or null if the string has no
+   * letters.
+   */
+  public String soundex(String s) {
+    String clean = normalize(s);
+    if (clean == null)
+      return null;
+    return soundex.soundex(clean);
+  }
+
+  /**
+   * Returns the NYSIIS code of a string, or null if the string has no
+   * letters.
+   */
+  public String nysiis(String s) {
+    String clean = normalize(s);
+    if (clean == null)
+      return null;
+
+    // Translate the first characters of the name
+    if (clean.startsWith("MAC"))
+      clean = "MCC" + clean.substring(3);
+    else if (clean.startsWith("KN"))
+      clean = "NN" + clean.substring(2);
+    else if (clean.startsWith("K"))
+      clean = "C" + clean.substring(1);
+    else if (clean.startsWith("PH") || clean.startsWith("PF"))
+      clean = "FF" + clean.substring(2);
+    else if (clean.startsWith("SCH"))
+      clean = "SSS" + clean.substring(3);
+
+    // Translate the last characters of the name
+    if (clean.endsWith("EE") || clean.endsWith("IE"))
+      clean = clean.substring(0, clean.length() - 2) + "Y";
+    else if (clean.endsWith("DT") || clean.endsWith("RT") || clean.endsWith("RD") ||
+             clean.endsWith("NT") || clean.endsWith("ND"))
+      clean = clean.substring(0, clean.length() - 2) + "D";
+
+    char[] chars = clean.toCharArray();
+    StringBuffer key = new StringBuffer(chars.length);
+    key.append(chars[0]);
+
+    for (int i = 1; i < chars.length; i++) {
+      char prev = chars[i - 1];
+      char curr = chars[i];
+      char next = (i < chars.length - 1) ? chars[i + 1] : ' ';
+      char aNext = (i < chars.length - 2) ? chars[i + 2] : ' ';
+
+      String translated;
+      if (curr == 'E' && next == 'V')
+        translated = "AF";
+      else if (isVowel(curr))
+        translated = "A";
+      else if (curr == 'Q')
+        translated = "G";
+      else if (curr == 'Z')
+        translated = "S";
+      else if (curr == 'M')
+        translated = "N";
+      else if (curr == 'K')
+        translated = (next == 'N') ? "NN" : "C";
+      else if (curr == 'S' && next == 'C' && aNext == 'H')
+        translated = "SSS";
+      else if (curr == 'P' && next == 'H')
+        translated = "FF";
+      else if (curr == 'H' && (!isVowel(prev) || !isVowel(next)))
+        translated = String.valueOf(prev);
+      else if (curr == 'W' && isVowel(prev))
+        translated = String.valueOf(prev);
+      else
+        translated = String.valueOf(curr);
+
+      translated.getChars(0, translated.length(), chars, i);
+
+      if (chars[i] != chars[i - 1])
+        key.append(chars[i]);
+    }
+
+    int len = key.length();
+    if (len > 1 && key.charAt(len - 1) == 'S')
+      key.setLength(--len);
+    if (len > 2 && key.charAt(len - 2) == 'A' && key.charAt(len - 1) == 'Y')
+      key.replace(len - 2, len, "Y");
+    len = key.length();
+    if (len > 1 && key.charAt(len - 1) == 'A')
+      key.setLength(--len);
+
+    if (key.length() > NYSIIS_MAX_LENGTH)
+      key.setLength(NYSIIS_MAX_LENGTH);
+
+    return key.toString();
+  }
+
+  /**
+   * Returns the surname used for the name keys, the first name if there is
+   * no surname.
+   */
+  private static String getSurname(PersonName name) {
+    if (name == null)
+      return null;
+    String s = name.getLastName();
+    if (s == null || s.trim().length() == 0)
+      s = name.getFirstName();
+    return s;
+  }
+
+  /**
+   * Upper cases a string and strips everything but the letters A-Z.
+   *
+   * @return the cleaned string, or null if nothing is left
+   */
+  private static String normalize(String s) {
+    if (s == null)
+      return null;
+
+    StringBuffer buf = new StringBuffer(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = Character.toUpperCase(s.charAt(i));
+      if (c >= 'A' && c <= 'Z')
+        buf.append(c);
+    }
+    return (buf.length() == 0) ? null : buf.toString();
+  }
+
+  private static boolean isVowel(char c) {
+    return c == 'A' || c == 'E' || c == 'I' || c == 'O' || c == 'U';
   }
 }
@@ -20,6 +20,9 @@ import org.openempi.ics.utility.Profile;
  * birth places, home addresses, birth dates.  When performing comparisons
  * the AttributeComparator filters out string variations including: keyboarding
  * errors, nicknames, sequence variations, noise and phonetic variations.
+ * <p/>
+ * Each kind of attribute is compared with the <code>StringComparator</code>
+ * configured for it through the <code>StringComparatorFactory</code>.
  *
  * @author CareScience
  * @version 1.5, 20020324
@@ -35,6 +38,14 @@ public class AttributeComparator {
 
   private int scoringMethod = MEDIAN_SCORING;
 
+  private StringComparator nameComparator = StringComparatorFactory.getComparator(StringComparatorFactory.NAME);
+  private StringComparator streetComparator = StringComparatorFactory.getComparator(StringComparatorFactory.STREET);
+  private StringComparator alfaComparator = StringComparatorFactory.getComparator(StringComparatorFactory.ALFA);
+  private StringComparator numberComparator = StringComparatorFactory.getComparator(StringComparatorFactory.NUMBER);
+  private StringComparator phoneComparator = StringComparatorFactory.getComparator(StringComparatorFactory.PHONE);
+  private StringComparator dateComparator = StringComparatorFactory.getComparator(StringComparatorFactory.DATE);
+  private StringComparator defaultComparator = StringComparatorFactory.getComparator(StringComparatorFactory.DEFAULT);
+
   /**
    * Compares two street names.
    *
@@ -56,17 +67,33 @@ public class AttributeComparator {
   }
 
   /**
-   * Compares two phone numbers.
+   * Compares the digits of two phone numbers with the PHONE comparator,
+   * exact by default: numbers a digit apart belong to different people.
    *
    * @return a value between 0 and 1, where 0 represents no correlation and 1
    * represents a perfect correlation.
    */
   public double comparePhoneNumbers(String phone1, String phone2) {
-    return compare(phone1, phone2, STREET_NAME_SEARCH_SERVICE);
+    double correlation = CorrelationSystem.UNKNOWN;
+
+    if (phone1 != null && phone2 != null)
+      correlation = phoneComparator.compare(digits(phone1), digits(phone2));
+    return correlation;
+  }
+
+  private static String digits(String s) {
+    StringBuffer buf = new StringBuffer(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c >= '0' && c <= '9')
+        buf.append(c);
+    }
+    return buf.toString();
   }
 
   /**
-   * Compares two dates strings.
+   * Compares two dates strings in MMddyyyy format.  Swapped month and day,
+   * transposed digits and single digit typos are tolerated.
    *
    * @return a value between 0 and 1, where 0 represents no correlation and 1
    * represents a perfect correlation.
@@ -76,32 +103,8 @@ public class AttributeComparator {
     double correlation = 0.0;
     if (date1.length() > 0 && date2.length() > 0 && date1.equals(date2)) 
         correlation = CorrelationSystem.EXACT_MATCH;
-    else {
-    	OpenEmpiStringComparator dateCompObj = new OpenEmpiStringComparator(date1,date2);
-        correlation = dateCompObj.getScoreInt()/100.0;
-    }
-    if(correlation < .55 && correlation > .45){
-      // get the year off each string
-      int year1 = Integer.parseInt(date1.substring(4));
-      int year2 = Integer.parseInt(date2.substring(4));
-
-      if (year1 != year2) {
-          int difference = Math.abs(year1 - year2);
-          // deal with typo in decade
-          if (difference == 10) {
-            correlation = 0.8;
-          }
-          // deal with typo in year
-          else if (difference <= 2) {
-            correlation = 0.8;
-          }
-          // deal with typo in century
-          else if (difference == 100) {
-            correlation = 0.8;
-          }
-          // anything else is assumed to be a different date
-      }
-    }
+    else
+        correlation = dateComparator.compare(date1, date2);
     Profile.end("AttributeComparator.compareDates");
     return correlation;
   }
@@ -157,7 +160,9 @@ public class AttributeComparator {
   }
 
   /**
-   * Updates the scoring method that is used in comparisons.
+   * Updates the scoring method that is used in comparisons.  The configured
+   * comparators produce a single score, so the method only matters to
+   * comparators returning several.
    */
   public void setScoringMethod(int method) throws IllegalArgumentException {
     if ((method != MEDIAN_SCORING) && (method != MEAN_SCORING) &&
@@ -168,8 +173,8 @@ public class AttributeComparator {
   }
 
   /**
-   * Makes a comparison using NameSearch.  Does not apply name or street
-   * matching heuristics.
+   * Makes a comparison with the ALFA comparator.  Does not apply name or
+   * street matching heuristics.
    */
   public double alfaCompare(String x, String y) {
     Profile.begin("AttributeComparator.alfaCompare");
@@ -179,23 +184,7 @@ public class AttributeComparator {
       if (x.length() > 0 && y.length() > 0 && x.equals(y)) {
           correlation = CorrelationSystem.EXACT_MATCH;
       } else {
-          OpenEmpiStringComparator alfaCompObj = new OpenEmpiStringComparator(x, y);
-          
-          int[] scores = new int[alfaCompObj.getNumberOfScores()];
-     //JWW 04-14-2007 Look at this!!!     
-          for (int i = 1; i < scores.length; i++) {
-              scores[i] = alfaCompObj.getScoreInt(i);
-          }
-          
-          if (scoringMethod == MEAN_SCORING) {
-//              correlation = Stats.mean(scores)/100.0;
-          }
-          else if (scoringMethod == MEDIAN_SCORING) {
-//              correlation = Stats.median(scores)/100.0;
-          }
-          else if (scoringMethod == MODE_SCORING) {
-//              correlation = Stats.mode(scores)/100.0;
-          }
+          correlation = alfaComparator.compare(x, y);
       }
     }
     Profile.end("AttributeComparator.alfaCompare");
@@ -203,7 +192,7 @@ public class AttributeComparator {
   }
 
   /**
-   * Makes a comparison using NameSearch numcomp.  Good for SSN comparisons
+   * Makes a comparison with the NUMBER comparator.  Good for SSN comparisons
    * Does not apply name or street matching heuristics.
    */
   public double numCompare(String x, String y) {
@@ -211,21 +200,7 @@ public class AttributeComparator {
     double correlation = CorrelationSystem.UNKNOWN;
 
     if (x != null && y != null) {
-    	OpenEmpiStringComparator numCompObj = new OpenEmpiStringComparator(x,y);
-
-      int[] scores = new int[numCompObj.getNumberOfScores()];
-
-      for (int i = 1; i < scores.length; i++) {
-        scores[i] = numCompObj.getScoreInt(i);
-      }
-
-      if (scoringMethod == MEAN_SCORING) {
-//        correlation = Stats.mean(scores)/100.0;
-      } else if (scoringMethod == MEDIAN_SCORING) {
-//        correlation = Stats.median(scores)/100.0;
-      } else if (scoringMethod == MODE_SCORING) {
-//        correlation = Stats.mode(scores)/100.0;
-      }
+      correlation = numberComparator.compare(x, y);
     }
 
     Profile.end("AttributeComparator.numCompare");
@@ -233,7 +208,9 @@ public class AttributeComparator {
   }
 
   /**
-   * Makes a comparison using NameSearch.
+   * Makes a comparison with the comparator of the given service: the NAME
+   * comparator for names, the STREET comparator for streets and the DEFAULT
+   * comparator for anything else.
    */
   public double compare(String x, String y, String service) {
     Profile.begin("AttributeComparator.compare");
@@ -242,27 +219,20 @@ public class AttributeComparator {
     if (x != null && y != null && service != null) {
       if (x.length() > 0 && y.length() > 0 && x.equals(y)) 
           correlation = CorrelationSystem.EXACT_MATCH;
-      else {
-    	  OpenEmpiStringComparator comp2Obj = new OpenEmpiStringComparator(service, x, y);
-          
-          int[] scores = new int[comp2Obj.getNumberOfScores()];
-          
-          for (int i = 1; i < scores.length; i++) {
-              scores[i] = comp2Obj.getScoreInt(i);
-          }
-          
-          if (scoringMethod == MEAN_SCORING) {
-//              correlation = Stats.mean(scores)/100.0;
-          } else if (scoringMethod == MEDIAN_SCORING) {
-//              correlation = Stats.median(scores)/100.0;
-          } else if (scoringMethod == MODE_SCORING) {
-//              correlation = Stats.mode(scores)/100.0;
-          }
-      }
+      else
+          correlation = getComparator(service).compare(x, y);
     }
 
     Profile.end("AttributeComparator.compare");
     return correlation;
   }
 
+  private StringComparator getComparator(String service) {
+    if (service.startsWith("name"))
+      return nameComparator;
+    if (service.startsWith(STREET_NAME_SEARCH_SERVICE))
+      return streetComparator;
+    return defaultComparator;
+  }
+
 }
@@ -0,0 +1,460 @@
+package org.openempi.ics.ccs;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.StringTokenizer;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.openempi.data.Address;
+import org.openempi.data.DateOfBirth;
+import org.openempi.data.DomainIdentifier;
+import org.openempi.data.Person;
+import org.openempi.data.PersonIdentifier;
+import org.openempi.data.PersonName;
+import org.openempi.data.SearchKeyGenerator;
+import org.openempi.data.SearchRange;
+import org.openempi.data.SocialSecurityNumber;
+import org.openempi.ics.db.AttributeType;
+import org.openempi.ics.db.DatabaseException;
+import org.openempi.ics.db.DatabaseServices;
+import org.openempi.ics.db.DatabaseServicesFactory;
+import org.openempi.ics.db.QueryParamList;
+import org.openempi.ics.utility.ICSProperties;
+import org.openempi.ics.utility.IcsTrace;
+import org.openempi.ics.utility.Profile;
+
+/**
+ * Multi-pass blocking index used to retrieve correlation candidates.
+ * <p/>
+ * Rather than one wide query, each configured <code>BlockingPass</code>
+ * runs its own narrow query through <code>DatabaseServices.queryIterator</code>,
+ * reading only the columns record matching compares (PROJECTION_MATCH) and
+ * streaming the rows into the candidate set, at most BLOCKING_MAX_CANDIDATES
+ * persons per pass.  The candidate sets are unioned and de-duplicated by
+ * person id, so a
+ * record that is missed by one pass (a typo in the name, a missing SSN)
+ * can still be found by another.
+ * <p/>
+ * The passes are configured with the comma separated BLOCKING_PASSES
+ * property in ICS.properties.  Each entry is either one of the built-in
+ * pass names below or the class name of a <code>BlockingPass</code>
+ * implementation:
+ * <ul>
+ * <li><code>phonetic_year</code> - phonetic surname keys + year of birth</li>
+ * <li><code>ssn</code> - social security number</li>
+ * <li><code>dob_zip</code> - date of birth + zip code</li>
+ * <li><code>identifier</code> - person identifier + assigning authority</li>
+ * <li><code>name_prefix</code> - last/first name prefix (the original
+ *     single-pass blocking)</li>
+ * </ul>
+ * Per-pass candidate counts are written to the ICS trace and the debug log
+ * for every query, and are accumulated in {@link #getStatistics()} so the
+ * pair reduction of each pass can be weighed against its recall.
+ */
+public class BlockingIndex
+{
+    /** Passes used when BLOCKING_PASSES is not set. */
+    public static final String DEFAULT_PASSES = "phonetic_year,ssn,dob_zip,identifier";
+
+    // Indexes into the per-pass statistics arrays
+    public static final int STAT_QUERIES = 0;
+    public static final int STAT_CANDIDATES = 1;
+    public static final int STAT_UNIQUE = 2;
+
+    private static Logger log = Logger.getLogger("ICS");
+
+    // pass name -> long[] { queries, candidates, candidates first found by the pass }
+    private static final Map statistics = new LinkedHashMap();
+
+    private List passes = new ArrayList();
+
+    // persons read per pass, 0 for no limit
+    private int maxCandidates = ICSProperties.getInt("BLOCKING_MAX_CANDIDATES", 0);
+
+    /**
+     * Constructs a BlockingIndex from the BLOCKING_PASSES property.
+     */
+    public BlockingIndex()
+    {
+        this(ICSProperties.getProperty("BLOCKING_PASSES", DEFAULT_PASSES));
+    }
+
+    /**
+     * Constructs a BlockingIndex from a comma separated list of pass names
+     * or <code>BlockingPass</code> class names.
+     */
+    public BlockingIndex(String passNames)
+    {
+        StringTokenizer st = new StringTokenizer(passNames, ",");
+        while (st.hasMoreTokens()) {
+            String name = st.nextToken().trim();
+            if (name.length() == 0)
+                continue;
+            BlockingPass pass = createPass(name);
+            if (pass != null)
+                passes.add(pass);
+        }
+    }
+
+    /**
+     * Constructs a BlockingIndex from the given passes.
+     */
+    public BlockingIndex(List passes)
+    {
+        this.passes.addAll(passes);
+    }
+
+    /**
+     * Returns the configured passes in the order they are run.
+     */
+    public List getPasses()
+    {
+        return passes;
+    }
+
+    /**
+     * Runs every pass for the given person and returns the union of the
+     * candidates found, de-duplicated by person id, in the order they were
+     * first found.
+     *
+     * @param person the Person to find candidates for
+     * @param trace the trace to report the per-pass counts to
+     * @return List of candidate Person objects, never null
+     */
+    public List query(Person person, IcsTrace trace)
+    {
+        Map candidates = new LinkedHashMap();
+
+        if (person == null)
+            return new ArrayList();
+        if (trace == null)
+            trace = IcsTrace.NONE;
+
+        Profile.begin("BlockingIndex.query");
+        long stage = trace.startStage();
+        try {
+            DatabaseServices dbServices = DatabaseServicesFactory.getInstance();
+            Iterator iter = passes.iterator();
+            while (iter.hasNext()) {
+                BlockingPass pass = (BlockingPass) iter.next();
+                QueryParamList params = pass.buildQuery(person);
+                if (params == null || params.size() == 0)
+                    continue;
+
+                if (trace.isRecording())
+                    trace.add("Blocking pass " + pass.getName() + " querying for: " + params.toString());
+
+                int found = 0;
+                int unique = 0;
+                Iterator results = null;
+                try {
+                    results = dbServices.queryIterator(params, DatabaseServices.PROJECTION_MATCH,
+                                                       maxCandidates);
+                    while (results.hasNext()) {
+                        Person candidate = (Person) results.next();
+                        found++;
+                        Object key = candidate.getOid();
+                        if (key == null)
+                            key = candidate;
+                        if (!candidates.containsKey(key)) {
+                            candidates.put(key, candidate);
+                            unique++;
+                        }
+                    }
+                } catch (DatabaseException e) {
+                    log.error(e, e);
+                    continue;
+                } catch (NoSuchElementException e) {
+                    // the result set failed part way, keep what was read
+                    log.error(e, e);
+                } finally {
+                    try {
+                        if (results != null)
+                            dbServices.releaseIterator(results);
+                    } catch (DatabaseException e) {
+                        log.error(e, e);
+                    }
+                }
+                record(pass.getName(), found, unique);
+
+                if (trace.isRecording())
+                    trace.add("Blocking pass " + pass.getName() + " found " + found +
+                              " candidates, " + unique + " new");
+                if (log.isDebugEnabled())
+                    log.debug("Blocking pass " + pass.getName() + ": " + found +
+                              " candidates, " + unique + " new");
+            }
+        } finally {
+            Profile.end("BlockingIndex.query");
+            trace.endStage("blocking", stage);
+        }
+
+        if (trace.isRecording())
+            trace.add("Blocking found " + candidates.size() + " distinct candidates");
+
+        return new ArrayList(candidates.values());
+    }
+
+    /**
+     * Returns a snapshot of the candidate counts accumulated since startup
+     * or the last {@link #resetStatistics()}.  The Map is keyed by pass name
+     * and each value is a long[] indexed by the STAT_* constants.
+     */
+    public static Map getStatistics()
+    {
+        Map snapshot = new LinkedHashMap();
+        synchronized (statistics) {
+            Iterator iter = statistics.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                snapshot.put(entry.getKey(), ((long[]) entry.getValue()).clone());
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Clears the accumulated candidate counts.
+     */
+    public static void resetStatistics()
+    {
+        synchronized (statistics) {
+            statistics.clear();
+        }
+    }
+
+    private static void record(String name, int found, int unique)
+    {
+        synchronized (statistics) {
+            long[] stats = (long[]) statistics.get(name);
+            if (stats == null)
+                statistics.put(name, stats = new long[3]);
+            stats[STAT_QUERIES]++;
+            stats[STAT_CANDIDATES] += found;
+            stats[STAT_UNIQUE] += unique;
+        }
+    }
+
+    /**
+     * Creates the pass for a built-in pass name or a class name.
+     */
+    private static BlockingPass createPass(String name)
+    {
+        if (name.equalsIgnoreCase("phonetic_year"))
+            return new PhoneticYearPass();
+        if (name.equalsIgnoreCase("ssn"))
+            return new SsnPass();
+        if (name.equalsIgnoreCase("dob_zip"))
+            return new DobZipPass();
+        if (name.equalsIgnoreCase("identifier"))
+            return new IdentifierPass();
+        if (name.equalsIgnoreCase("name_prefix"))
+            return new NamePrefixPass();
+
+        try {
+            return (BlockingPass) Class.forName(name).newInstance();
+        } catch (Exception e) {
+            log.error("Cannot create blocking pass " + name + ": " + e, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the DOB range covering the whole year of the given date.
+     */
+    private static SearchRange yearRange(java.util.Date date)
+    {
+        GregorianCalendar c = new GregorianCalendar();
+        c.setTime(date);
+        int year = c.get(Calendar.YEAR);
+
+        SearchRange range = new SearchRange();
+        range.setStart(year + "-01-01");
+        range.setEnd(year + "-12-31");
+        return range;
+    }
+
+    /**
+     * Blocks on the phonetic name keys (Double Metaphone, Soundex and
+     * NYSIIS of the surname) together with the year of birth.  Persons
+     * without a date of birth are blocked on the name keys alone.
+     */
+    public static class PhoneticYearPass implements BlockingPass
+    {
+        private SearchKeyGenerator searchKeyGen = SearchKeyGenerator.getInstance();
+
+        public String getName()
+        {
+            return "phonetic_year";
+        }
+
+        public QueryParamList buildQuery(Person person)
+        {
+            QueryParamList params = new QueryParamList(QueryParamList.OR_LIST);
+
+            Iterator names = person.getNames().iterator();
+            while (names.hasNext()) {
+                PersonName name = (PersonName) names.next();
+                QueryParamList keyParam = new QueryParamList(QueryParamList.OR_LIST);
+                String key = searchKeyGen.generateNameKey(name);
+                if (key != null)
+                    keyParam.add(AttributeType.NAME_SEARCH_KEY, key);
+                key = searchKeyGen.generateSoundexKey(name);
+                if (key != null)
+                    keyParam.add(AttributeType.NAME_SOUNDEX_KEY, key);
+                key = searchKeyGen.generateNysiisKey(name);
+                if (key != null)
+                    keyParam.add(AttributeType.NAME_NYSIIS_KEY, key);
+                if (keyParam.size() == 0)
+                    continue;
+
+                if (person.getDatesOfBirth().size() == 0) {
+                    params.add(keyParam);
+                    continue;
+                }
+
+                Iterator dobs = person.getDatesOfBirth().iterator();
+                while (dobs.hasNext()) {
+                    DateOfBirth dob = (DateOfBirth) dobs.next();
+                    if (dob.getDOB() == null)
+                        continue;
+                    QueryParamList nameParam = new QueryParamList(QueryParamList.AND_LIST);
+                    nameParam.add(keyParam);
+                    nameParam.add(AttributeType.DATE_OF_BIRTH, yearRange(dob.getDOB()));
+                    params.add(nameParam);
+                }
+            }
+            return params;
+        }
+    }
+
+    /**
+     * Blocks on the social security number.
+     */
+    public static class SsnPass implements BlockingPass
+    {
+        public String getName()
+        {
+            return "ssn";
+        }
+
+        public QueryParamList buildQuery(Person person)
+        {
+            QueryParamList params = new QueryParamList(QueryParamList.OR_LIST);
+
+            Iterator ssns = person.getSocialSecurityNumbers().iterator();
+            while (ssns.hasNext()) {
+                SocialSecurityNumber ssn = (SocialSecurityNumber) ssns.next();
+                if (StringUtils.isNotEmpty(ssn.getSSN()))
+                    params.add(AttributeType.SOCIAL_SECURITY_NUMBER, ssn.getSSN());
+            }
+            return params;
+        }
+    }
+
+    /**
+     * Blocks on the DOB_ZIP_KEY: the exact date of birth together with the
+     * zip code.
+     */
+    public static class DobZipPass implements BlockingPass
+    {
+        public String getName()
+        {
+            return "dob_zip";
+        }
+
+        public QueryParamList buildQuery(Person person)
+        {
+            QueryParamList params = new QueryParamList(QueryParamList.OR_LIST);
+            SearchKeyGenerator searchKeyGen = SearchKeyGenerator.getInstance();
+
+            Iterator dobs = person.getDatesOfBirth().iterator();
+            while (dobs.hasNext()) {
+                DateOfBirth dob = (DateOfBirth) dobs.next();
+
+                Iterator addresses = person.getAddresses().iterator();
+                while (addresses.hasNext()) {
+                    Address a = (Address) addresses.next();
+                    String key = searchKeyGen.generateDobZipKey(dob.getDOB(), a.getZipCode());
+                    if (key != null)
+                        params.add(AttributeType.DOB_ZIP_KEY, key);
+                }
+            }
+            return params;
+        }
+    }
+
+    /**
+     * Blocks on the person identifier within its assigning authority.
+     */
+    public static class IdentifierPass implements BlockingPass
+    {
+        public String getName()
+        {
+            return "identifier";
+        }
+
+        public QueryParamList buildQuery(Person person)
+        {
+            QueryParamList params = new QueryParamList(QueryParamList.OR_LIST);
+
+            Iterator ids = person.getPersonIdentifiers().iterator();
+            while (ids.hasNext()) {
+                PersonIdentifier pi = (PersonIdentifier) ids.next();
+                if (pi == null || StringUtils.isEmpty(pi.getId()))
+                    continue;
+
+                QueryParamList idParam = new QueryParamList(QueryParamList.AND_LIST);
+                idParam.add(AttributeType.PERSON_IDENTIFIER, pi.getId());
+                DomainIdentifier aa = pi.getAssigningAuthority();
+                if (aa != null && aa.getNameSpaceID() != null)
+                    idParam.add(AttributeType.AA_NAMESPACE_ID, aa.getNameSpaceID());
+                params.add(idParam);
+            }
+            return params;
+        }
+    }
+
+    /**
+     * Blocks on last and first name prefixes.  This is the original
+     * single-pass blocking of <code>CorrelationSystem.query</code>; it is
+     * wide on large tables and is not part of the default passes.
+     */
+    public static class NamePrefixPass implements BlockingPass
+    {
+        public String getName()
+        {
+            return "name_prefix";
+        }
+
+        public QueryParamList buildQuery(Person person)
+        {
+            QueryParamList params = new QueryParamList(QueryParamList.OR_LIST);
+
+            Iterator names = person.getNames().iterator();
+            while (names.hasNext()) {
+                PersonName name = (PersonName) names.next();
+                QueryParamList nameParam = new QueryParamList(QueryParamList.AND_LIST);
+
+                String nameStr = name.getLastName();
+                if (nameStr != null && nameStr.length() > 0)
+                    nameParam.add(AttributeType.LAST_NAME_ALIAS, nameStr.toUpperCase() + "%");
+
+                nameStr = name.getFirstName();
+                if (nameStr != null && nameStr.length() > 0)
+                    nameParam.add(AttributeType.FIRST_NAME_ALIAS, nameStr.toUpperCase() + "%");
+
+                if (nameParam.size() > 0)
+                    params.add(nameParam);
+            }
+            return params;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.openempi.ics.ccs;
+
+import org.openempi.data.Person;
+import org.openempi.ics.db.QueryParamList;
+
+/**
+ * A single pass of the multi-pass blocking index used by the
+ * <code>CorrelationSystem</code> to retrieve match candidates.  Each pass
+ * turns the incoming <code>Person</code> into an independent
+ * <code>QueryParamList</code>; the candidates of all passes are unioned
+ * and de-duplicated by the <code>BlockingIndex</code> before matching.
+ * <p/>
+ * Implementations must have a public no-argument constructor so they can
+ * be named by class in the BLOCKING_PASSES property.
+ *
+ * @see BlockingIndex
+ */
+public interface BlockingPass
+{
+  /**
+   * Returns the name this pass is reported under in the candidate counts.
+   */
+  public String getName();
+
+  /**
+   * Builds the blocking query for the given person.
+   *
+   * @param person the Person being correlated
+   * @return the QueryParamList to run, or null if the person does not carry
+   *         the attributes this pass blocks on.
+   */
+  public QueryParamList buildQuery(Person person);
+}
@@ -54,6 +54,7 @@ import org.openempi.ics.db.DatabaseException;
 import org.openempi.ics.db.DatabaseServices;
 import org.openempi.ics.db.DatabaseServicesFactory;
 import org.openempi.ics.db.QueryParamList;
+import org.openempi.ics.utility.ICSProperties;
 import org.openempi.ics.utility.IcsTrace;
 import org.openempi.ics.utility.Profile;
 
@@ -122,8 +123,15 @@ public class CorrelationSystem implements Serializable {
     private static final Integer ATTR_ADDRESS = new Integer(4);
     private static Logger log = Logger.getLogger("ICS");
     private AttributeComparator comparator = new AttributeComparator();
+    private StringComparator nameComparator = StringComparatorFactory.getComparator(StringComparatorFactory.NAME);
+    private double nameAgreement = ICSProperties.getDouble("NAME_AGREEMENT_THRESHOLD",
+                                                           FellegiSunterScorer.DEFAULT_NAME_AGREEMENT);
     private List listeners = new ArrayList();
     private SearchKeyGenerator searchKeyGen = SearchKeyGenerator.getInstance();
+    private BlockingIndex blockingIndex = new BlockingIndex();
+    // persons read by a ranked search, 0 for no limit
+    private int searchMaxScan = ICSProperties.getInt("SEARCH_MAX_SCAN", 10000);
+    private FellegiSunterScorer scorer = FellegiSunterScorer.getInstance();
     private IcsTrace trace = null;
 
     /**
@@ -132,7 +140,7 @@ public class CorrelationSystem implements Serializable {
      * @throws org.openempi.ics.ccs.CorrelationSystemException
      */
     public CorrelationSystem(IcsTrace trace) {
-        this.trace = trace;
+        this.trace = (trace == null) ? IcsTrace.NONE : trace;
     }
 
     /**
@@ -141,7 +149,7 @@ public class CorrelationSystem implements Serializable {
      * @throws org.openempi.ics.ccs.CorrelationSystemException
      */
     public CorrelationSystem() {
-        this(new IcsTrace(0, null));
+        this(IcsTrace.NONE);
     }
 
     /**
@@ -233,8 +241,11 @@ public class CorrelationSystem implements Serializable {
                 Iterator names2 = candidate.getNames().iterator();
                 if (names2.hasNext()) {
                     PersonName name2 = (PersonName) names2.next();
-                    FN = comparator.compare(name1.getFirstName(), name2.getFirstName(), ""); // last string is service
-                    LN = comparator.compare(name1.getLastName(), name2.getLastName(), ""); // last string is service
+                    // names within NAME_AGREEMENT_THRESHOLD count as equal
+                    if (comparator.compareNames(name1.getFirstName(), name2.getFirstName()) >= nameAgreement)
+                        FN = 1.0;
+                    if (comparator.compareNames(name1.getLastName(), name2.getLastName()) >= nameAgreement)
+                        LN = 1.0;
                 }
             }
         }
@@ -530,26 +541,229 @@ public class CorrelationSystem implements Serializable {
         return matches;
     }
 
+    /**
+     * Searches for the Persons matching the attributes filled in for the
+     * person, like lookUp(), and returns the best of them ranked by a cheap
+     * search score: the share of the searched attributes the candidate agrees
+     * with.  Only the columns record matching compares are read while
+     * ranking (PROJECTION_MATCH), at most SEARCH_MAX_SCAN persons (10000 by
+     * default), and only maxMatches candidates are kept; the returned
+     * candidates hold these columns only.
+     * <p/>
+     * The persons whose names equal the searched ones are read first, with
+     * an equality the name indexes answer, then those whose names only start
+     * with them.  As the query requires every other searched attribute, the
+     * first score at least as high, and the second read is skipped when the
+     * first found maxMatches candidates.  When more persons match than are
+     * scanned, the candidates are the best of the first ones read.
+     * <p/>
+     * The total count is counted by the database when minScore is 0, and
+     * is the number of persons scoring minScore or more that were read
+     * otherwise.
+     * <p/>
+     * This method is NOT appropriate for use in correlation, only UI searching.
+     *
+     * @param person     the person to search for
+     * @param minScore   the lowest search score (0 - 1) returned
+     * @param maxMatches Maximum number of returned Persons, or 0 for no limit
+     * @return the ranked candidates, never null
+     */
+    public RankedCandidates lookUpRanked(Person person, double minScore, int maxMatches) {
+        Profile.begin("CorrelationSystem.lookUpRanked");
+        RankedCandidates ret = new RankedCandidates();
+        Iterator iter = null;
+        DatabaseServices dbServices = null;
+
+        try {
+            if (person == null || person.equals(EMPTY_PERSON))
+                return ret;
+            QueryParamList params = buildQueryParams(person, true);
+
+            if (trace.isRecording())
+                trace.add("Ranked search for: " + params.toString());
+
+            // min-heap of the best candidates so far, worst on top
+            PriorityQueue best = new PriorityQueue(16, new Comparator() {
+                public int compare(Object o1, Object o2) {
+                    return Double.compare(((ScoredPerson) o1).score, ((ScoredPerson) o2).score);
+                }
+            });
+            int matched = 0;
+            int scanned = 0;
+            Set read = new HashSet();
+            dbServices = DatabaseServicesFactory.getInstance();
+            QueryParamList[] passes = !searchesName(person) ? new QueryParamList[] { params }
+                    : new QueryParamList[] { buildQueryParams(person, true, true), params };
+            for (int pass = 0; pass < passes.length; pass++) {
+                if (pass > 0 && maxMatches > 0 && best.size() >= maxMatches)
+                    break;
+                iter = dbServices.queryIterator(passes[pass], DatabaseServices.PROJECTION_MATCH, searchMaxScan);
+                while (iter.hasNext() && (searchMaxScan <= 0 || scanned < searchMaxScan)) {
+                    Person candidate = (Person) iter.next();
+                    // the second read returns the persons of the first again
+                    if (!read.add(candidate.getOid()))
+                        continue;
+                    scanned++;
+                    double score = searchScore(person, candidate);
+                    if (score < minScore)
+                        continue;
+                    matched++;
+                    if (maxMatches > 0 && best.size() >= maxMatches) {
+                        // ties keep the candidate read first
+                        if (score <= ((ScoredPerson) best.peek()).score)
+                            continue;
+                        best.poll();
+                    }
+                    best.add(new ScoredPerson(candidate, score));
+                }
+                queryDone(iter);
+                iter = null;
+            }
+
+            ScoredPerson[] ranked = (ScoredPerson[]) best.toArray(new ScoredPerson[best.size()]);
+            Arrays.sort(ranked, Collections.reverseOrder(best.comparator()));
+            for (int i = 0; i < ranked.length; i++)
+                ret.add(ranked[i].person, ranked[i].score);
+
+            ret.setTotalCount(minScore <= 0 ? dbServices.queryCount(params) : matched);
+        } catch (DatabaseException e) {
+            log.error(e, e);
+        } finally {
+            if (iter != null)
+                queryDone(iter);
+            Profile.end("CorrelationSystem.lookUpRanked");
+        }
+
+        if (trace.isRecording())
+            trace.add("Ranked search kept " + ret.getCandidates().size() + " of " + ret.getTotalCount());
+        return ret;
+    }
+
+    /**
+     * Returns the share (0 - 1) of the attributes filled in for the searched
+     * person that the candidate agrees with: names (a name starting with the
+     * searched one counts half), SSN, date of birth, gender, zip code and
+     * phone number.  1 if no such attribute is searched.
+     */
+    private double searchScore(Person person, Person candidate) {
+        double agreed = 0;
+        int searched = 0;
+
+        if (person.getNames().size() > 0) {
+            PersonName name = (PersonName) person.getNames().get(0);
+            double first = 0, last = 0;
+            for (Iterator iter = candidate.getNames().iterator(); iter.hasNext(); ) {
+                PersonName other = (PersonName) iter.next();
+                first = Math.max(first, searchNameScore(name.getFirstName(), other.getFirstName()));
+                last = Math.max(last, searchNameScore(name.getLastName(), other.getLastName()));
+            }
+            if (StringUtils.isNotEmpty(name.getLastName())) {
+                searched++;
+                agreed += last;
+            }
+            if (StringUtils.isNotEmpty(name.getFirstName())) {
+                searched++;
+                agreed += first;
+            }
+        }
+        if (person.getSocialSecurityNumbers().size() > 0) {
+            searched++;
+            String ssn = ((SocialSecurityNumber) person.getSocialSecurityNumbers().get(0)).getSSN();
+            for (Iterator iter = candidate.getSocialSecurityNumbers().iterator(); iter.hasNext(); ) {
+                if (StringUtils.equals(ssn, ((SocialSecurityNumber) iter.next()).getSSN())) {
+                    agreed++;
+                    break;
+                }
+            }
+        }
+        if (person.getDatesOfBirth().size() > 0) {
+            searched++;
+            if (calculateDOBsCor(person, candidate) == EXACT_MATCH)
+                agreed++;
+        }
+        if (person.getGenders().size() > 0) {
+            searched++;
+            if (calculateGendersCor(person, candidate) == EXACT_MATCH)
+                agreed++;
+        }
+        if (person.getAddresses().size() > 0) {
+            String zip = ((Address) person.getAddresses().get(0)).getZipCode();
+            if (StringUtils.isNotEmpty(zip)) {
+                searched++;
+                for (Iterator iter = candidate.getAddresses().iterator(); iter.hasNext(); ) {
+                    if (zip.equals(((Address) iter.next()).getZipCode())) {
+                        agreed++;
+                        break;
+                    }
+                }
+            }
+        }
+        if (person.getTelephoneNumbers().size() > 0) {
+            String phone = ((TelephoneNumber) person.getTelephoneNumbers().get(0)).getPhoneNumber();
+            if (StringUtils.isNotEmpty(phone)) {
+                searched++;
+                for (Iterator iter = candidate.getTelephoneNumbers().iterator(); iter.hasNext(); ) {
+                    if (phone.equals(((TelephoneNumber) iter.next()).getPhoneNumber())) {
+                        agreed++;
+                        break;
+                    }
+                }
+            }
+        }
+
+        return (searched == 0) ? EXACT_MATCH : agreed / searched;
+    }
+
+    private static boolean searchesName(Person person) {
+        for (Iterator iter = person.getNames().iterator(); iter.hasNext(); ) {
+            PersonName name = (PersonName) iter.next();
+            if (StringUtils.isNotEmpty(name.getLastName()) || StringUtils.isNotEmpty(name.getFirstName()))
+                return true;
+        }
+        return false;
+    }
+
+    private double searchNameScore(String searched, String name) {
+        if (StringUtils.isEmpty(searched) || name == null)
+            return NO_MATCH;
+        if (searched.equalsIgnoreCase(name) || comparator.compareNames(searched, name) >= nameAgreement)
+            return EXACT_MATCH;
+        if (name.toUpperCase().startsWith(searched.toUpperCase()))
+            return 0.5;
+        return NO_MATCH;
+    }
+
+    private static class ScoredPerson {
+        final Person person;
+        final double score;
+
+        ScoredPerson(Person person, double score) {
+            this.person = person;
+            this.score = score;
+        }
+    }
+
     /**
      * Compares two <code>Person</code> using their demographic data to obtain a
      * correlation factor.  This is use by the correlation system to determine
      * if the match person qualified for correlation.  This is NOT appropriate
      * for use in general UI searching.
+     * <p/>
+     * The correlation factor is the Fellegi-Sunter match weight of the pair.
      *
      * @param person the <code>Person</code> to be compared
      * @param match  the <code>Person</code> to be compared against
      * @return double the output correlation factor
+     * @see FellegiSunterScorer
      */
     public double comparePersons(Person person, Person match) {
         double cor = CorrelationSystem.UNKNOWN;
 
         try {
             double[] correlations = buildCorrelationVector(person, match);
-//      double[] output = neuralNetwork.calculateOutputs(correlations);
-            double[] output = {};
-            cor = output[0];
+            cor = scorer.score(person, match);
 
-            if (IcsTrace.isEnabled()) {
+            if (trace.isRecording()) {
                 trace.add("Checking correlation with:");
                 trace.add(match, true);
                 trace.add("names = " + correlations[0]);
@@ -1138,10 +1352,8 @@ public class CorrelationSystem implements Serializable {
             if (phone1.getPhoneNumber() == null || phone2.getPhoneNumber() == null) {
                 pnCor = UNKNOWN;
             } else {
-                // use alfa compare on this one just in case the phone string is all
-                // merged together.
-                pnCor = comparator.alfaCompare(getNonNullString(phone1.getPhoneNumber()),
-                        getNonNullString(phone2.getPhoneNumber()));
+                pnCor = comparator.comparePhoneNumbers(phone1.getPhoneNumber(),
+                        phone2.getPhoneNumber());
             }
 
             if (phone1.getExtension() != null && phone2.getExtension() != null) {
@@ -1289,12 +1501,49 @@ public class CorrelationSystem implements Serializable {
      */
     private Iterator queryPerson(Person person, boolean search) {
         Iterator queryResults = null;
+        QueryParamList params = buildQueryParams(person, search);
+
+        if (params != null) {
+            if (trace.isRecording())
+                trace.add("Querying for: " + params.toString());
+
+            try {
+                DatabaseServices dbServices = DatabaseServicesFactory.getInstance();
+                queryResults = dbServices.queryIterator(params, false);
+            } catch (DatabaseException e) {
+                log.error(e, e);
+            }
+        }
+
+        return queryResults;
+    }
+
+    /**
+     * Builds the parameters queryPerson() queries the database with.
+     *
+     * @param person The Person to search for in the Database.
+     * @param search If true, this query is for UI searching.  If false,
+     *               this query is for correlation.
+     * @return the query parameters, or null if person is null
+     */
+    QueryParamList buildQueryParams(Person person, boolean search) {
+        return buildQueryParams(person, search, false);
+    }
+
+    /**
+     * Builds the parameters queryPerson() queries the database with, a
+     * search requiring names equal to the searched ones when exactNames is
+     * true instead of names starting with them.
+     */
+    QueryParamList buildQueryParams(Person person, boolean search, boolean exactNames) {
+        QueryParamList params = null;
+        String wildcard = exactNames ? "" : "%";
         String nameStr;
 
         if (person != null) {
             // Build a QueryParamList from the relevant fields
             // This is an OR_LIST because we want to match SSNs, names, etc.
-            QueryParamList params = new QueryParamList(QueryParamList.AND_LIST);
+            params = new QueryParamList(QueryParamList.AND_LIST);
 
             // PID.19 SSN
             // For each alias, add a parameter to the query
@@ -1365,14 +1614,12 @@ public class CorrelationSystem implements Serializable {
                 }
 
                 if ((name != null) && (nameStr != null)) {
-                    SearchRange range = searchKeyGen.generateSearchRange(name.getCleanName());
+                    // a search matches names by prefix, which the phonetic key
+                    // of the full name would contradict
+                    String searchKey = search ? null : searchKeyGen.generateNameKey(name);
 
-                    if ((range.getStart() != null) || (range.getEnd() != null)) {
-                        if (range.getStart().equals(range.getEnd()))
-                            params.add(AttributeType.NAME_SEARCH_KEY, range.getStart());
-                        else
-                            params.add(AttributeType.NAME_SEARCH_KEY, range);
-                    }
+                    if (searchKey != null)
+                        params.add(AttributeType.NAME_SEARCH_KEY, searchKey);
                     if (search) {
                         // Special name matching logic: If last name is specified we will
                         // match anything beginning with the specified name.  If
@@ -1382,12 +1629,12 @@ public class CorrelationSystem implements Serializable {
                         nameStr = name.getLastName();
                         if (nameStr != null && nameStr.length() > 0)
                             nameParam.add(AttributeType.LAST_NAME_ALIAS,
-                                    nameStr.toUpperCase() + "%");
+                                    nameStr.toUpperCase() + wildcard);
 
                         nameStr = name.getFirstName();
                         if (nameStr != null && nameStr.length() > 0)
                             nameParam.add(AttributeType.FIRST_NAME_ALIAS,
-                                    nameStr.toUpperCase() + "%");
+                                    nameStr.toUpperCase() + wildcard);
 
                         Iterator ids = person.getPersonIdentifiers().iterator();
                         while (ids.hasNext()) {
@@ -1518,71 +1765,22 @@ public class CorrelationSystem implements Serializable {
                     params.add(nameParam);
                 }
             }
-
-
-            if (IcsTrace.isEnabled())
-                trace.add("Querying for: " + params.toString());
-
-            try {
-                DatabaseServices dbServices = DatabaseServicesFactory.getInstance();
-                queryResults = dbServices.queryIterator(params, false);
-            } catch (DatabaseException e) {
-                log.error(e, e);
-            }
         }
 
-        return queryResults;
+        return params;
     }
 
+    /**
+     * Retrieves the correlation candidates for a <code>Person</code>.  The
+     * candidates are the union of the passes of the configured
+     * <code>BlockingIndex</code>, de-duplicated by person id.
+     *
+     * @param person The Person to find candidates for.
+     * @return List of candidate Person objects, never null.
+     * @see BlockingIndex
+     */
     public List query(Person person) {
-        List queryResults = new ArrayList();
-        String nameStr;
-
-        if (person == null) {
-            return queryResults;
-        }
-
-        // Build a QueryParamList from the relevant fields
-        // This is an OR_LIST because we want to match SSNs, names, etc.
-        QueryParamList params = new QueryParamList(QueryParamList.OR_LIST);
-
-        // For each alias, add a parameter to the query
-        Iterator names = person.getNames().iterator();
-        while (names.hasNext()) {
-            PersonName name = (PersonName) names.next();
-            QueryParamList nameParam = new QueryParamList(
-                    QueryParamList.AND_LIST);
-            nameStr = name.getLastName();
-
-            if ((name != null) && (nameStr != null)) {
-                nameParam.add(AttributeType.LAST_NAME_ALIAS, nameStr
-                        .toUpperCase()
-                        + "%");
-            }
-
-            nameStr = name.getFirstName();
-            if (nameStr != null && nameStr.length() > 0) {
-                nameParam.add(AttributeType.FIRST_NAME_ALIAS, nameStr
-                        .toUpperCase()
-                        + "%");
-            }
-
-            if (nameParam.size() > 0) {
-                params.add(nameParam);
-            }
-        }
-
-        if (IcsTrace.isEnabled())
-            trace.add("Querying for: " + params.toString());
-
-        try {
-            DatabaseServices dbServices = DatabaseServicesFactory.getInstance();
-            queryResults = dbServices.query(params);
-        } catch (DatabaseException e) {
-            log.error(e, e);
-        }
-
-        return queryResults;
+        return blockingIndex.query(person, trace);
     }
 
     /**
@@ -1606,96 +1804,102 @@ public class CorrelationSystem implements Serializable {
         return (s == null) ? "" : s;
     }
 
-    // This method is invoked when two patients are not found to match based on the identifier from any domain so
-    // we need to assess whether there is a match based on the demographics.
-    public boolean match(Person person, Person candidate) {
-        double SSN = 0.0, FN = 0.0, LN = 0.0, MB = 0.0, DB = 0.0, YB = 0.0, ZIP = 0.0;
-
+    /**
+     * Classifies a pair of persons by their Fellegi-Sunter match weight.
+     *
+     * @param person    the <code>Person</code> being correlated
+     * @param candidate a candidate returned by query()
+     * @return FellegiSunterScorer.LINK, REVIEW or NON_LINK
+     */
+    public int classify(Person person, Person candidate) {
         if (person == null || candidate == null)
-            return false;
-
-        // SSN + FN + LN
-        if (person.getSocialSecurityNumbers().size() > 0 && candidate.getSocialSecurityNumbers().size() > 0) {
-            Iterator ssns1 = person.getSocialSecurityNumbers().iterator();
-            if (ssns1.hasNext()) {
-                SocialSecurityNumber ssn1 = (SocialSecurityNumber) ssns1.next();
-
-                Iterator ssns2 = candidate.getSocialSecurityNumbers().iterator();
-                if (ssns2.hasNext()) {
-                    SSN = comparator.compare(ssn1.getSSN(), ((SocialSecurityNumber) ssns2.next()).getSSN(), "");  // last string is service
-                }
-            }
-        }
+            return FellegiSunterScorer.NON_LINK;
 
-        if (person.getNames().size() > 0 && candidate.getNames().size() > 0) {
-            Iterator names1 = person.getNames().iterator();
+        double score = scorer.score(person, candidate);
+        int decision = scorer.classify(score);
 
-            if (names1.hasNext()) {
-                PersonName name1 = (PersonName) names1.next();
+        if (trace.isRecording())
+            trace.add("Fellegi-Sunter score = " + score + ", decision = " + decision);
 
-                Iterator names2 = candidate.getNames().iterator();
-                if (names2.hasNext()) {
-                    PersonName name2 = (PersonName) names2.next();
-                    FN = comparator.compare(name1.getFirstName(), name2.getFirstName(), ""); // last string is service
-                    LN = comparator.compare(name1.getLastName(), name2.getLastName(), ""); // last string is service
-                }
-            }
-        }
+        return decision;
+    }
 
-        if (SSN == 1.0 && FN == 1.0 && LN == 1.0)
-            return true;
+    // This method is invoked when two patients are not found to match based on the identifier from any domain so
+    // we need to assess whether there is a match based on the demographics.
+    // The original rule set is used unless MATCH_ALGORITHM=fellegi_sunter,
+    // which matches the pair if its Fellegi-Sunter weight is a LINK.
+    public boolean match(Person person, Person candidate) {
+        if ("fellegi_sunter".equalsIgnoreCase(ICSProperties.getProperty("MATCH_ALGORITHM", "deterministic")))
+            return classify(person, candidate) == FellegiSunterScorer.LINK;
 
-        // SSN + YB + MB + DB
-        if (person.getDatesOfBirth().size() > 0 && candidate.getDatesOfBirth().size() > 0) {
-            Iterator dobs1 = person.getDatesOfBirth().iterator();
+        return matchDeterministic(person, candidate);
+    }
 
-            if (dobs1.hasNext()) {
-                DateOfBirth dob1 = (DateOfBirth) dobs1.next();
-                Iterator dobs2 = candidate.getDatesOfBirth().iterator();
+    /**
+     * Decides a pair of persons with a single scoring: LINK if they match
+     * as match() decides, otherwise REVIEW or NON_LINK by their
+     * Fellegi-Sunter weight.
+     *
+     * @return FellegiSunterScorer.LINK, REVIEW or NON_LINK
+     */
+    public int decide(Person person, Person candidate) {
+        if ("fellegi_sunter".equalsIgnoreCase(ICSProperties.getProperty("MATCH_ALGORITHM", "deterministic")))
+            return classify(person, candidate);
+
+        if (matchDeterministic(person, candidate))
+            return FellegiSunterScorer.LINK;
+        return (classify(person, candidate) == FellegiSunterScorer.REVIEW)
+            ? FellegiSunterScorer.REVIEW : FellegiSunterScorer.NON_LINK;
+    }
 
-                if (dobs2.hasNext()) {
-                    DateOfBirth dob2 = (DateOfBirth) dobs2.next();
+    /**
+     * The original deterministic rule set, evaluated on the persons' match
+     * views.  Package visible for MatchBenchmark.
+     */
+    boolean matchDeterministic(Person person, Person candidate) {
+        if (person == null || candidate == null)
+            return false;
 
-                    GregorianCalendar c1 = new GregorianCalendar();
-                    GregorianCalendar c2 = new GregorianCalendar();
+        PersonMatchView view1 = person.getMatchView();
+        PersonMatchView view2 = candidate.getMatchView();
 
-                    c1.setTime(dob1.getDOB());
-                    c2.setTime(dob2.getDOB());
+        // SSN + FN + LN
+        boolean SSN = firstEqual(view1.getSSNs(), view2.getSSNs());
+        boolean FN = firstNameAgrees(view1.getFirstNames(), view2.getFirstNames());
+        boolean LN = firstNameAgrees(view1.getLastNames(), view2.getLastNames());
+        if (SSN && FN && LN)
+            return true;
 
-                    if (c1.get(Calendar.YEAR) == c2.get(Calendar.YEAR))
-                        YB = 1.0;
-                    if (c1.get(Calendar.MONTH) == c2.get(Calendar.MONTH))
-                        MB = 1.0;
-                    if (c1.get(Calendar.DAY_OF_MONTH) == c2.get(Calendar.DAY_OF_MONTH))
-                        DB = 1.0;
-                }
-            }
+        // SSN + YB + MB + DB
+        boolean YB = false, MB = false, DB = false;
+        int[] dobs1 = view1.getDobDates();
+        int[] dobs2 = view2.getDobDates();
+        if (dobs1.length > 0 && dobs2.length > 0) {
+            YB = PersonMatchView.year(dobs1[0]) == PersonMatchView.year(dobs2[0]);
+            MB = PersonMatchView.month(dobs1[0]) == PersonMatchView.month(dobs2[0]);
+            DB = PersonMatchView.day(dobs1[0]) == PersonMatchView.day(dobs2[0]);
         }
-        if (SSN == 1.0 && YB == 1.0 && MB == 1.0 && DB == 1.0)
+        if (SSN && YB && MB && DB)
             return true;
 
         // SSN + FN + YB + ZIP
-        if (person.getAddresses().size() > 0 && candidate.getAddresses().size() > 0) {
-            Iterator addresses1 = person.getAddresses().iterator();
-
-            if (addresses1.hasNext()) {
-                Address address1 = (Address) addresses1.next();
-                Iterator addresses2 = candidate.getAddresses().iterator();
-
-                if (addresses2.hasNext()) {
-                    Address address2 = (Address) addresses2.next();
-                    ZIP = comparator.compare(address1.getZipCode(), address2.getZipCode(), "");
-                }
-            }
-        }
-        if (SSN == 1.0 && FN == 1.0 && YB == 1.0 && ZIP == 1.0)
+        boolean ZIP = firstEqual(view1.getZips(), view2.getZips());
+        if (SSN && FN && YB && ZIP)
             return true;
 
         // FN + LN + YB + MB + DB
-        if (FN == 1.0 && LN == 1.0 && YB == 1.0 && MB == 1.0 && DB == 1.0)
-            return true;
+        return FN && LN && YB && MB && DB;
+    }
 
-        return false;
+    private static boolean firstEqual(String[] values1, String[] values2) {
+        return values1.length > 0 && values2.length > 0 && values1[0].equals(values2[0]);
+    }
+
+    // names within NAME_AGREEMENT_THRESHOLD count as equal
+    private boolean firstNameAgrees(String[] names1, String[] names2) {
+        if (names1.length == 0 || names2.length == 0)
+            return false;
+        return names1[0].equals(names2[0]) || nameComparator.compare(names1[0], names2[0]) >= nameAgreement;
     }
 
 }
@@ -0,0 +1,85 @@
+package org.openempi.ics.ccs;
+
+/**
+ * Compares dates formatted as MMddyyyy strings, tolerating the keying
+ * errors commonly made entering dates of birth:
+ * <ul>
+ * <li>month and day swapped, or two adjacent digits transposed: 0.9</li>
+ * <li>a single digit wrong, or the year off by up to two years, a decade
+ * or a century: 0.8</li>
+ * </ul>
+ * Equal dates score 1, any other difference 0.  Values of another length
+ * are compared digit by digit with the same transposition and single digit
+ * rules.  No memory is allocated.
+ */
+public class DateTranspositionComparator implements StringComparator
+{
+    public static final double TRANSPOSITION_SCORE = 0.9;
+    public static final double TYPO_SCORE = 0.8;
+
+    private static final int DATE_LENGTH = 8;
+
+    public double compare(String x, String y)
+    {
+        if (x == null || y == null)
+            return 0.0;
+        int n = x.length();
+        if (n == 0 || n != y.length())
+            return 0.0;
+
+        int diffs = 0;
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < n; i++) {
+            if (x.charAt(i) != y.charAt(i)) {
+                diffs++;
+                if (first < 0)
+                    first = i;
+                last = i;
+            }
+        }
+
+        if (diffs == 0)
+            return 1.0;
+        if (diffs == 1)
+            return TYPO_SCORE;
+        if (diffs == 2 && last == first + 1 &&
+            x.charAt(first) == y.charAt(last) && x.charAt(last) == y.charAt(first))
+            return TRANSPOSITION_SCORE;
+
+        if (n != DATE_LENGTH)
+            return 0.0;
+
+        boolean sameYear = x.regionMatches(4, y, 4, 4);
+        if (sameYear && x.regionMatches(0, y, 2, 2) && x.regionMatches(2, y, 0, 2))
+            return TRANSPOSITION_SCORE;
+
+        if (x.regionMatches(0, y, 0, 4)) {
+            int year1 = digits(x, 4, 8);
+            int year2 = digits(y, 4, 8);
+            if (year1 >= 0 && year2 >= 0) {
+                int difference = Math.abs(year1 - year2);
+                // typo in year, decade or century
+                if (difference <= 2 || difference == 10 || difference == 100)
+                    return TYPO_SCORE;
+            }
+        }
+        return 0.0;
+    }
+
+    /**
+     * Returns the number formed by the digits from start to end, -1 if
+     * they are not all digits.
+     */
+    private static int digits(String s, int start, int end)
+    {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
@@ -0,0 +1,14 @@
+package org.openempi.ics.ccs;
+
+/**
+ * Case insensitive equality: 1 if the values are equal, 0 otherwise.
+ */
+public class ExactComparator implements StringComparator
+{
+    public double compare(String x, String y)
+    {
+        if (x == null || y == null || x.length() == 0)
+            return 0.0;
+        return x.equalsIgnoreCase(y) ? 1.0 : 0.0;
+    }
+}
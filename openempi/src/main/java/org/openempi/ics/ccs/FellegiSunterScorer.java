@@ -0,0 +1,390 @@
+package org.openempi.ics.ccs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import org.openempi.data.Person;
+import org.openempi.data.PersonMatchView;
+import org.openempi.ics.utility.ICSProperties;
+import org.openempi.ics.utility.Profile;
+
+/**
+ * Probabilistic record linkage scorer after Fellegi and Sunter.
+ * <p/>
+ * Each pair of persons is reduced to an agreement pattern: every field
+ * either agrees, disagrees or is missing on one side.  A field that agrees
+ * adds log2(m/u) to the score, one that disagrees adds log2((1-m)/(1-u)),
+ * a missing field adds nothing.  m is the probability the field agrees for
+ * a true match and u the probability it agrees by chance.
+ * <p/>
+ * The score is classified with two thresholds: at or above the upper
+ * threshold the pair is linked, below the lower threshold it is not, and
+ * in between it is sent for review.
+ * <p/>
+ * The m/u weights are read from the properties file named by
+ * FS_WEIGHTS_FILE in ICS.properties (written by
+ * <code>FellegiSunterTrainer</code>); fields not in the file keep the
+ * built-in defaults.  The thresholds are FS_UPPER_THRESHOLD and
+ * FS_LOWER_THRESHOLD.
+ * <p/>
+ * Names agree when the NAME comparator of the
+ * <code>StringComparatorFactory</code> scores them at least
+ * NAME_AGREEMENT_THRESHOLD, so a typo does not turn a name into a
+ * disagreement; the other fields must agree exactly.
+ *
+ * @see FellegiSunterTrainer
+ */
+public class FellegiSunterScorer
+{
+    // Fields of the agreement pattern
+    public static final int FIELD_LAST_NAME = 0;
+    public static final int FIELD_FIRST_NAME = 1;
+    public static final int FIELD_SSN = 2;
+    public static final int FIELD_DOB = 3;
+    public static final int FIELD_GENDER = 4;
+    public static final int FIELD_ZIP = 5;
+    public static final int FIELD_PHONE = 6;
+    public static final int FIELD_DRIVERS_LICENSE = 7;
+    public static final int FIELD_COUNT = 8;
+
+    public static final String[] FIELD_NAMES = {
+        "LAST_NAME", "FIRST_NAME", "SSN", "DOB", "GENDER", "ZIP", "PHONE", "DRIVERS_LICENSE"
+    };
+
+    // Values of a field in an agreement pattern
+    public static final int MISSING = -1;
+    public static final int DISAGREE = 0;
+    public static final int AGREE = 1;
+
+    // Classification of a score
+    public static final int NON_LINK = 0;
+    public static final int REVIEW = 1;
+    public static final int LINK = 2;
+
+    public static final double DEFAULT_UPPER_THRESHOLD = 15.0;
+    public static final double DEFAULT_LOWER_THRESHOLD = 5.0;
+    public static final double DEFAULT_NAME_AGREEMENT = 0.92;
+
+    private static final double[] DEFAULT_M = {
+        0.95, 0.90, 0.98, 0.97, 0.98, 0.85, 0.80, 0.90
+    };
+    private static final double[] DEFAULT_U = {
+        0.01, 0.02, 0.0001, 0.003, 0.5, 0.05, 0.001, 0.0001
+    };
+
+    // Keeps the weights finite when a trained m or u reaches 0 or 1
+    private static final double MIN_PROBABILITY = 0.00001;
+
+    private static Logger log = Logger.getLogger("ICS");
+    private static FellegiSunterScorer instance = null;
+
+    private double[] m = new double[FIELD_COUNT];
+    private double[] u = new double[FIELD_COUNT];
+    private double[] agreeWeight = new double[FIELD_COUNT];
+    private double[] disagreeWeight = new double[FIELD_COUNT];
+    private double upperThreshold;
+    private double lowerThreshold;
+
+    // Names agree when their similarity reaches nameAgreement
+    private StringComparator nameComparator = StringComparatorFactory.getComparator(StringComparatorFactory.NAME);
+    private double nameAgreement = ICSProperties.getDouble("NAME_AGREEMENT_THRESHOLD", DEFAULT_NAME_AGREEMENT);
+
+    /**
+     * Constructs a scorer with the given weights and thresholds.
+     *
+     * @param m per field probability of agreement for a true match
+     * @param u per field probability of agreement for a non-match
+     * @param upperThreshold scores at or above are linked
+     * @param lowerThreshold scores below are not linked
+     */
+    public FellegiSunterScorer(double[] m, double[] u,
+                               double upperThreshold, double lowerThreshold)
+    {
+        if (m.length != FIELD_COUNT || u.length != FIELD_COUNT)
+            throw new IllegalArgumentException("Expected " + FIELD_COUNT + " m and u weights");
+        if (lowerThreshold > upperThreshold)
+            throw new IllegalArgumentException("Lower threshold " + lowerThreshold +
+                                               " is above upper threshold " + upperThreshold);
+        for (int i = 0; i < FIELD_COUNT; i++)
+            setWeights(i, m[i], u[i]);
+        this.upperThreshold = upperThreshold;
+        this.lowerThreshold = lowerThreshold;
+    }
+
+    /**
+     * Constructs a scorer with the built-in default weights and thresholds.
+     */
+    public FellegiSunterScorer()
+    {
+        this(DEFAULT_M, DEFAULT_U, DEFAULT_UPPER_THRESHOLD, DEFAULT_LOWER_THRESHOLD);
+    }
+
+    /**
+     * Returns the shared scorer configured from ICS.properties.  The weights
+     * file is read once; call {@link #reload()} after retraining.
+     */
+    public static synchronized FellegiSunterScorer getInstance()
+    {
+        if (instance == null)
+            instance = load();
+        return instance;
+    }
+
+    /**
+     * Rereads the weights file and thresholds.
+     */
+    public static synchronized void reload()
+    {
+        instance = load();
+    }
+
+    private static FellegiSunterScorer load()
+    {
+        FellegiSunterScorer scorer = new FellegiSunterScorer(
+                DEFAULT_M, DEFAULT_U,
+                ICSProperties.getDouble("FS_UPPER_THRESHOLD", DEFAULT_UPPER_THRESHOLD),
+                ICSProperties.getDouble("FS_LOWER_THRESHOLD", DEFAULT_LOWER_THRESHOLD));
+
+        String fileName = ICSProperties.getProperty("FS_WEIGHTS_FILE", "fs-weights.properties");
+        InputStream is = null;
+        try {
+            File file = new File(fileName);
+            if (file.exists())
+                is = new FileInputStream(file);
+            else
+                is = FellegiSunterScorer.class.getResourceAsStream("/" + fileName);
+
+            if (is == null) {
+                if ("fellegi_sunter".equalsIgnoreCase(ICSProperties.getProperty("MATCH_ALGORITHM", "deterministic")))
+                    log.warn("No Fellegi-Sunter weights file " + fileName
+                             + ", matching with the untrained default weights");
+                else
+                    log.info("No Fellegi-Sunter weights file " + fileName + ", using default weights");
+            } else {
+                Properties props = new Properties();
+                props.load(is);
+                scorer.loadWeights(props);
+                log.info("Loaded Fellegi-Sunter weights from " + fileName);
+            }
+        } catch (IOException e) {
+            log.error("Cannot read Fellegi-Sunter weights from " + fileName + ", using default weights", e);
+        } finally {
+            try {
+                if (is != null)
+                    is.close();
+            } catch (IOException e) {
+            }
+        }
+        return scorer;
+    }
+
+    /**
+     * Sets the weights of the fields present in the given properties.  Keys
+     * are &lt;FIELD_NAME&gt;.m and &lt;FIELD_NAME&gt;.u.
+     */
+    public void loadWeights(Properties props)
+    {
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            String mStr = props.getProperty(FIELD_NAMES[i] + ".m");
+            String uStr = props.getProperty(FIELD_NAMES[i] + ".u");
+            setWeights(i,
+                       (mStr == null) ? m[i] : Double.parseDouble(mStr.trim()),
+                       (uStr == null) ? u[i] : Double.parseDouble(uStr.trim()));
+        }
+    }
+
+    /**
+     * Writes the weights to a properties file readable by
+     * {@link #loadWeights(Properties)}.
+     */
+    public void storeWeights(File file, String comment)
+        throws IOException
+    {
+        Properties props = new Properties();
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            props.setProperty(FIELD_NAMES[i] + ".m", Double.toString(m[i]));
+            props.setProperty(FIELD_NAMES[i] + ".u", Double.toString(u[i]));
+        }
+
+        OutputStream os = new FileOutputStream(file);
+        try {
+            props.store(os, comment);
+        } finally {
+            os.close();
+        }
+    }
+
+    private void setWeights(int field, double mValue, double uValue)
+    {
+        m[field] = clamp(mValue);
+        u[field] = clamp(uValue);
+        agreeWeight[field] = log2(m[field] / u[field]);
+        disagreeWeight[field] = log2((1.0 - m[field]) / (1.0 - u[field]));
+    }
+
+    public double getM(int field)
+    {
+        return m[field];
+    }
+
+    public double getU(int field)
+    {
+        return u[field];
+    }
+
+    public double getUpperThreshold()
+    {
+        return upperThreshold;
+    }
+
+    public double getLowerThreshold()
+    {
+        return lowerThreshold;
+    }
+
+    /**
+     * Returns the score of an agreement pattern.
+     */
+    public double score(int[] pattern)
+    {
+        double score = 0.0;
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            if (pattern[i] == AGREE)
+                score += agreeWeight[i];
+            else if (pattern[i] == DISAGREE)
+                score += disagreeWeight[i];
+        }
+        return score;
+    }
+
+    /**
+     * Returns the score of a pair of persons.  The fields are compared on
+     * the persons' match views, without building the pattern.
+     */
+    public double score(Person person, Person candidate)
+    {
+        PersonMatchView v1 = person.getMatchView();
+        PersonMatchView v2 = candidate.getMatchView();
+        double score = 0.0;
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            int agreement = compareField(i, v1, v2);
+            if (agreement == AGREE)
+                score += agreeWeight[i];
+            else if (agreement == DISAGREE)
+                score += disagreeWeight[i];
+        }
+        return score;
+    }
+
+    /**
+     * Classifies a score as LINK, REVIEW or NON_LINK.
+     */
+    public int classify(double score)
+    {
+        if (score >= upperThreshold)
+            return LINK;
+        if (score >= lowerThreshold)
+            return REVIEW;
+        return NON_LINK;
+    }
+
+    /**
+     * Builds the agreement pattern of a pair of persons.  A multi-valued
+     * field agrees if any pair of its values agrees.
+     */
+    public int[] compare(Person person, Person candidate)
+    {
+        Profile.begin("FellegiSunterScorer.compare");
+        PersonMatchView v1 = person.getMatchView();
+        PersonMatchView v2 = candidate.getMatchView();
+        int[] pattern = new int[FIELD_COUNT];
+        for (int i = 0; i < FIELD_COUNT; i++)
+            pattern[i] = compareField(i, v1, v2);
+        Profile.end("FellegiSunterScorer.compare");
+        return pattern;
+    }
+
+    private int compareField(int field, PersonMatchView v1, PersonMatchView v2)
+    {
+        switch (field) {
+        case FIELD_LAST_NAME:
+            return compareNames(v1.getLastNames(), v2.getLastNames());
+        case FIELD_FIRST_NAME:
+            return compareNames(v1.getFirstNames(), v2.getFirstNames());
+        case FIELD_SSN:
+            return compareValues(v1.getSSNs(), v2.getSSNs());
+        case FIELD_DOB:
+            return compareValues(v1.getDobEpochDays(), v2.getDobEpochDays());
+        case FIELD_GENDER:
+            return compareValues(v1.getGenders(), v2.getGenders());
+        case FIELD_ZIP:
+            return compareValues(v1.getZips(), v2.getZips());
+        case FIELD_PHONE:
+            return compareValues(v1.getPhones(), v2.getPhones());
+        case FIELD_DRIVERS_LICENSE:
+            return compareValues(v1.getLicenses(), v2.getLicenses());
+        default:
+            return MISSING;
+        }
+    }
+
+    private int compareNames(String[] names1, String[] names2)
+    {
+        if (names1.length == 0 || names2.length == 0)
+            return MISSING;
+        for (int i = 0; i < names1.length; i++) {
+            for (int j = 0; j < names2.length; j++) {
+                if (names1[i].equals(names2[j]) ||
+                    nameComparator.compare(names1[i], names2[j]) >= nameAgreement)
+                    return AGREE;
+            }
+        }
+        return DISAGREE;
+    }
+
+    private static int compareValues(String[] values1, String[] values2)
+    {
+        if (values1.length == 0 || values2.length == 0)
+            return MISSING;
+        for (int i = 0; i < values1.length; i++) {
+            for (int j = 0; j < values2.length; j++) {
+                if (values1[i].equals(values2[j]))
+                    return AGREE;
+            }
+        }
+        return DISAGREE;
+    }
+
+    private static int compareValues(int[] values1, int[] values2)
+    {
+        if (values1.length == 0 || values2.length == 0)
+            return MISSING;
+        for (int i = 0; i < values1.length; i++) {
+            for (int j = 0; j < values2.length; j++) {
+                if (values1[i] == values2[j])
+                    return AGREE;
+            }
+        }
+        return DISAGREE;
+    }
+
+    private static double clamp(double p)
+    {
+        if (p < MIN_PROBABILITY)
+            return MIN_PROBABILITY;
+        if (p > 1.0 - MIN_PROBABILITY)
+            return 1.0 - MIN_PROBABILITY;
+        return p;
+    }
+
+    private static double log2(double x)
+    {
+        return Math.log(x) / Math.log(2.0);
+    }
+}
@@ -0,0 +1,300 @@
+package org.openempi.ics.ccs;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.jdom.Element;
+import org.openempi.data.Person;
+import org.openempi.ics.db.AttributeType;
+import org.openempi.ics.db.DatabaseException;
+import org.openempi.ics.db.DatabaseServices;
+import org.openempi.ics.db.DatabaseServicesFactory;
+import org.openempi.ics.db.QueryParamList;
+import org.openempi.ics.utility.IcsSqlXML;
+import org.openempi.ics.utility.JdbcHelper;
+
+/**
+ * Offline EM trainer for the <code>FellegiSunterScorer</code> m/u weights.
+ * <p/>
+ * Candidate pairs are drawn from the existing PERSON_INFO data, blocked on
+ * SEARCH_KEY the same way the correlation system blocks, and reduced to
+ * agreement patterns.  The expectation maximization algorithm then
+ * estimates, per field, the probability of agreement among matches (m)
+ * and among non-matches (u), together with the proportion of matches,
+ * under the usual conditional independence assumption.  Missing fields
+ * are left out of the likelihood of the pairs that miss them.
+ * <p/>
+ * The estimates are biased toward non-matches: the pairs are drawn from
+ * PERSON_INFO rows of distinct persons, and records the correlation system
+ * already linked are rows of the same person, so true matches are rare in
+ * the training set.  The match proportion comes out low and m is estimated
+ * from few pairs.  Check the trained weights against known links, such
+ * as resolved reviews, before installing them.
+ * <p/>
+ * Usage: <code>FellegiSunterTrainer weightsFile [maxBlocks [maxPairsPerBlock]]</code>
+ * <p/>
+ * The weights file is written in the format read through FS_WEIGHTS_FILE.
+ */
+public class FellegiSunterTrainer
+{
+    public static final int DEFAULT_MAX_BLOCKS = 10000;
+    public static final int DEFAULT_MAX_PAIRS_PER_BLOCK = 200;
+    public static final int MAX_ITERATIONS = 100;
+    public static final double CONVERGENCE = 0.000001;
+
+    private static Logger log = Logger.getLogger("ICS");
+
+    private FellegiSunterScorer scorer = new FellegiSunterScorer();
+
+    // pattern key -> { pattern, count }
+    private Map patterns = new HashMap();
+    private long pairCount = 0;
+
+    private double[] m = new double[FellegiSunterScorer.FIELD_COUNT];
+    private double[] u = new double[FellegiSunterScorer.FIELD_COUNT];
+    private double matchProportion = 0.1;
+
+    public FellegiSunterTrainer()
+    {
+        for (int i = 0; i < FellegiSunterScorer.FIELD_COUNT; i++) {
+            m[i] = scorer.getM(i);
+            u[i] = scorer.getU(i);
+        }
+    }
+
+    /**
+     * Adds the agreement pattern of a pair of persons to the training set.
+     */
+    public void addPair(Person person, Person candidate)
+    {
+        addPattern(scorer.compare(person, candidate));
+    }
+
+    /**
+     * Adds an agreement pattern to the training set.
+     */
+    public void addPattern(int[] pattern)
+    {
+        int key = 0;
+        for (int i = 0; i < pattern.length; i++)
+            key = key * 3 + (pattern[i] + 1);
+
+        Object[] entry = (Object[]) patterns.get(new Integer(key));
+        if (entry == null) {
+            entry = new Object[] { pattern.clone(), new long[1] };
+            patterns.put(new Integer(key), entry);
+        }
+        ((long[]) entry[1])[0]++;
+        pairCount++;
+    }
+
+    public long getPairCount()
+    {
+        return pairCount;
+    }
+
+    public double getM(int field)
+    {
+        return m[field];
+    }
+
+    public double getU(int field)
+    {
+        return u[field];
+    }
+
+    public double getMatchProportion()
+    {
+        return matchProportion;
+    }
+
+    /**
+     * Runs EM over the training set until the weights converge.
+     *
+     * @return the number of iterations run
+     */
+    public int train()
+    {
+        int fields = FellegiSunterScorer.FIELD_COUNT;
+        int iteration = 0;
+
+        while (iteration < MAX_ITERATIONS) {
+            iteration++;
+
+            double[] mAgree = new double[fields];
+            double[] mSeen = new double[fields];
+            double[] uAgree = new double[fields];
+            double[] uSeen = new double[fields];
+            double matches = 0.0;
+
+            // E step: the probability each pattern is a match, weighted by its count
+            Iterator iter = patterns.values().iterator();
+            while (iter.hasNext()) {
+                Object[] entry = (Object[]) iter.next();
+                int[] pattern = (int[]) entry[0];
+                long count = ((long[]) entry[1])[0];
+
+                double pm = matchProportion;
+                double pu = 1.0 - matchProportion;
+                for (int i = 0; i < fields; i++) {
+                    if (pattern[i] == FellegiSunterScorer.AGREE) {
+                        pm *= m[i];
+                        pu *= u[i];
+                    } else if (pattern[i] == FellegiSunterScorer.DISAGREE) {
+                        pm *= 1.0 - m[i];
+                        pu *= 1.0 - u[i];
+                    }
+                }
+                double g = (pm + pu > 0.0) ? pm / (pm + pu) : 0.0;
+
+                matches += g * count;
+                for (int i = 0; i < fields; i++) {
+                    if (pattern[i] == FellegiSunterScorer.MISSING)
+                        continue;
+                    mSeen[i] += g * count;
+                    uSeen[i] += (1.0 - g) * count;
+                    if (pattern[i] == FellegiSunterScorer.AGREE) {
+                        mAgree[i] += g * count;
+                        uAgree[i] += (1.0 - g) * count;
+                    }
+                }
+            }
+
+            // M step
+            double change = 0.0;
+            for (int i = 0; i < fields; i++) {
+                if (mSeen[i] > 0.0) {
+                    double v = mAgree[i] / mSeen[i];
+                    change = Math.max(change, Math.abs(v - m[i]));
+                    m[i] = v;
+                }
+                if (uSeen[i] > 0.0) {
+                    double v = uAgree[i] / uSeen[i];
+                    change = Math.max(change, Math.abs(v - u[i]));
+                    u[i] = v;
+                }
+            }
+            if (pairCount > 0) {
+                double p = matches / pairCount;
+                change = Math.max(change, Math.abs(p - matchProportion));
+                matchProportion = p;
+            }
+
+            if (change < CONVERGENCE)
+                break;
+        }
+
+        log.info("FellegiSunterTrainer: " + pairCount + " pairs, " + patterns.size() +
+                 " patterns, converged after " + iteration + " iterations, match proportion " +
+                 matchProportion);
+        return iteration;
+    }
+
+    /**
+     * Returns a scorer with the trained weights and the given thresholds.
+     */
+    public FellegiSunterScorer getScorer(double upperThreshold, double lowerThreshold)
+    {
+        return new FellegiSunterScorer(m, u, upperThreshold, lowerThreshold);
+    }
+
+    /**
+     * Draws candidate pairs from PERSON_INFO: for up to maxBlocks search keys
+     * shared by more than one row, the persons with that key are queried and
+     * up to maxPairsPerBlock of their pairs are added to the training set.
+     * The pairs are all of distinct persons; see the class comment for the
+     * bias this gives.
+     */
+    public void loadPairs(int maxBlocks, int maxPairsPerBlock)
+        throws DatabaseException
+    {
+        List keys = loadBlockKeys(maxBlocks);
+        DatabaseServices dbServices = DatabaseServicesFactory.getInstance();
+
+        Iterator iter = keys.iterator();
+        while (iter.hasNext()) {
+            QueryParamList params = new QueryParamList(QueryParamList.AND_LIST);
+            params.add(AttributeType.NAME_SEARCH_KEY, iter.next());
+            List persons = dbServices.query(params);
+
+            int pairs = 0;
+            for (int i = 0; i < persons.size() && pairs < maxPairsPerBlock; i++) {
+                for (int j = i + 1; j < persons.size() && pairs < maxPairsPerBlock; j++) {
+                    addPair((Person) persons.get(i), (Person) persons.get(j));
+                    pairs++;
+                }
+            }
+        }
+        log.info("FellegiSunterTrainer: loaded " + pairCount + " pairs from " + keys.size() + " blocks");
+    }
+
+    private List loadBlockKeys(int maxBlocks)
+        throws DatabaseException
+    {
+        List keys = new ArrayList();
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+
+        try {
+            Element sqlElement = IcsSqlXML.getInstance().getElement("QUERY-TRAINING-BLOCKS");
+            if (sqlElement == null)
+                throw new DatabaseException("Cannot retrieve QUERY-TRAINING-BLOCKS from SQL XML");
+
+            conn = JdbcHelper.getConnection();
+            st = conn.prepareStatement(sqlElement.getChildText("SQL-SELECT"));
+            st.setMaxRows(maxBlocks);
+            rs = st.executeQuery();
+            while (rs.next())
+                keys.add(rs.getString(1));
+        } catch (SQLException se) {
+            throw new DatabaseException("Cannot read training blocks: " + se);
+        } finally {
+            try {
+                if (rs != null)
+                    rs.close();
+                if (st != null)
+                    st.close();
+                if (conn != null)
+                    conn.close();
+            } catch (SQLException e) {
+                log.error(e, e);
+            }
+        }
+        return keys;
+    }
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        if (args.length < 1) {
+            System.err.println("Usage: FellegiSunterTrainer weightsFile [maxBlocks [maxPairsPerBlock]]");
+            System.exit(1);
+        }
+        int maxBlocks = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_MAX_BLOCKS;
+        int maxPairs = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_MAX_PAIRS_PER_BLOCK;
+
+        FellegiSunterTrainer trainer = new FellegiSunterTrainer();
+        trainer.loadPairs(maxBlocks, maxPairs);
+        trainer.train();
+
+        FellegiSunterScorer trained = trainer.getScorer(FellegiSunterScorer.DEFAULT_UPPER_THRESHOLD,
+                                                        FellegiSunterScorer.DEFAULT_LOWER_THRESHOLD);
+        trained.storeWeights(new File(args[0]), "Fellegi-Sunter weights trained on " +
+                             trainer.getPairCount() + " pairs");
+
+        for (int i = 0; i < FellegiSunterScorer.FIELD_COUNT; i++) {
+            System.out.println(FellegiSunterScorer.FIELD_NAMES[i] + ": m=" + trained.getM(i) +
+                               " u=" + trained.getU(i));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.openempi.ics.ccs;
+
+/**
+ * Jaro-Winkler similarity, suited to short strings such as names where
+ * typing errors are mostly transpositions and agreement on the first
+ * characters matters most.
+ * <p/>
+ * The matched characters are tracked in two 64 bit masks so no memory is
+ * allocated; only the first 64 characters of each value are compared.
+ */
+public class JaroWinklerComparator implements StringComparator
+{
+    public static final double DEFAULT_PREFIX_SCALE = 0.1;
+    public static final double DEFAULT_BOOST_THRESHOLD = 0.7;
+
+    private static final int MAX_LENGTH = 64;
+    private static final int MAX_PREFIX = 4;
+
+    private double prefixScale;
+    private double boostThreshold;
+
+    public JaroWinklerComparator()
+    {
+        this(DEFAULT_PREFIX_SCALE, DEFAULT_BOOST_THRESHOLD);
+    }
+
+    /**
+     * @param prefixScale    the weight of each common prefix character, at most 0.25
+     * @param boostThreshold the Jaro similarity above which the prefix is rewarded
+     */
+    public JaroWinklerComparator(double prefixScale, double boostThreshold)
+    {
+        this.prefixScale = prefixScale;
+        this.boostThreshold = boostThreshold;
+    }
+
+    public double compare(String x, String y)
+    {
+        if (x == null || y == null)
+            return 0.0;
+        int n1 = Math.min(x.length(), MAX_LENGTH);
+        int n2 = Math.min(y.length(), MAX_LENGTH);
+        if (n1 == 0 || n2 == 0)
+            return 0.0;
+
+        int window = Math.max(0, Math.max(n1, n2) / 2 - 1);
+        long matched1 = 0L;
+        long matched2 = 0L;
+        int matches = 0;
+
+        for (int i = 0; i < n1; i++) {
+            char c = Character.toUpperCase(x.charAt(i));
+            int lo = Math.max(0, i - window);
+            int hi = Math.min(n2 - 1, i + window);
+            for (int j = lo; j <= hi; j++) {
+                if ((matched2 & (1L << j)) == 0 && c == Character.toUpperCase(y.charAt(j))) {
+                    matched1 |= 1L << i;
+                    matched2 |= 1L << j;
+                    matches++;
+                    break;
+                }
+            }
+        }
+        if (matches == 0)
+            return 0.0;
+
+        // Matched characters that are out of order, counted in halves
+        int halfTranspositions = 0;
+        int k = 0;
+        for (int i = 0; i < n1; i++) {
+            if ((matched1 & (1L << i)) == 0)
+                continue;
+            while ((matched2 & (1L << k)) == 0)
+                k++;
+            if (Character.toUpperCase(x.charAt(i)) != Character.toUpperCase(y.charAt(k)))
+                halfTranspositions++;
+            k++;
+        }
+
+        int transpositions = halfTranspositions / 2;
+        double m = matches;
+        double jaro = (m / n1 + m / n2 + (m - transpositions) / m) / 3.0;
+        if (jaro <= boostThreshold)
+            return jaro;
+
+        int prefix = 0;
+        int maxPrefix = Math.min(MAX_PREFIX, Math.min(n1, n2));
+        while (prefix < maxPrefix &&
+               Character.toUpperCase(x.charAt(prefix)) == Character.toUpperCase(y.charAt(prefix)))
+            prefix++;
+
+        return jaro + prefix * prefixScale * (1.0 - jaro);
+    }
+}
@@ -0,0 +1,101 @@
+package org.openempi.ics.ccs;
+
+/**
+ * Similarity from the Levenshtein edit distance, 1 - distance / length of
+ * the longer value.  The distance is bounded: once every cell of a row of
+ * the distance matrix exceeds the maximum distance the comparison stops
+ * and the values are scored 0.
+ * <p/>
+ * The two matrix rows are per thread scratch buffers, so no memory is
+ * allocated once a thread's buffers have grown to the longest value seen.
+ */
+public class LevenshteinComparator implements StringComparator
+{
+    public static final int DEFAULT_MAX_DISTANCE = 2;
+
+    private static ThreadLocal scratch = new ThreadLocal() {
+        protected Object initialValue()
+        {
+            return new int[2][32];
+        }
+    };
+
+    private int maxDistance;
+
+    public LevenshteinComparator()
+    {
+        this(DEFAULT_MAX_DISTANCE);
+    }
+
+    /**
+     * @param maxDistance the largest number of edits for which values are
+     *                    still considered similar
+     */
+    public LevenshteinComparator(int maxDistance)
+    {
+        this.maxDistance = maxDistance;
+    }
+
+    public int getMaxDistance()
+    {
+        return maxDistance;
+    }
+
+    public double compare(String x, String y)
+    {
+        if (x == null || y == null)
+            return 0.0;
+        int n1 = x.length();
+        int n2 = y.length();
+        if (n1 == 0 || n2 == 0)
+            return 0.0;
+
+        int d = distance(x, y);
+        if (d > maxDistance)
+            return 0.0;
+        return 1.0 - (double) d / Math.max(n1, n2);
+    }
+
+    /**
+     * Returns the case insensitive edit distance between the values, or
+     * maxDistance + 1 if it is larger than maxDistance.
+     */
+    public int distance(String x, String y)
+    {
+        int n1 = x.length();
+        int n2 = y.length();
+        if (Math.abs(n1 - n2) > maxDistance)
+            return maxDistance + 1;
+
+        int[][] rows = (int[][]) scratch.get();
+        if (rows[0].length <= n2) {
+            rows = new int[2][n2 + 1];
+            scratch.set(rows);
+        }
+        int[] prev = rows[0];
+        int[] cur = rows[1];
+
+        for (int j = 0; j <= n2; j++)
+            prev[j] = j;
+
+        for (int i = 1; i <= n1; i++) {
+            char c = Character.toUpperCase(x.charAt(i - 1));
+            cur[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= n2; j++) {
+                int cost = (c == Character.toUpperCase(y.charAt(j - 1))) ? 0 : 1;
+                int v = Math.min(Math.min(cur[j - 1], prev[j]) + 1, prev[j - 1] + cost);
+                cur[j] = v;
+                if (v < rowMin)
+                    rowMin = v;
+            }
+            if (rowMin > maxDistance)
+                return maxDistance + 1;
+
+            int[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return Math.min(prev[n2], maxDistance + 1);
+    }
+}
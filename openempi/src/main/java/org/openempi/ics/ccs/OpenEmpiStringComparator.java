@@ -7,16 +7,26 @@ public class OpenEmpiStringComparator
 	private double score = 0.0 ;
 	
 	public OpenEmpiStringComparator(String x, String y) {
-		this.x = x ;
-		this.y = y ;
-		score = OpenEmpiExactMatchComparator.compare(x,y);
+		this(StringComparatorFactory.getComparator(StringComparatorFactory.DEFAULT), x, y);
 	}
 
+	// service selects the comparator: "name..." names, "street..." streets
 	public OpenEmpiStringComparator(String service, String x, String y) {
-		// note - this ignores service.  implement later
+		this(comparatorFor(service), x, y);
+	}
+
+	public OpenEmpiStringComparator(StringComparator comparator, String x, String y) {
 		this.x = x ;
 		this.y = y ;
-		score = OpenEmpiExactMatchComparator.compare(x,y);
+		score = comparator.compare(x,y);
+	}
+
+	private static StringComparator comparatorFor(String service) {
+		if (service != null && service.startsWith("name"))
+			return StringComparatorFactory.getComparator(StringComparatorFactory.NAME);
+		if (service != null && service.startsWith("street"))
+			return StringComparatorFactory.getComparator(StringComparatorFactory.STREET);
+		return StringComparatorFactory.getComparator(StringComparatorFactory.DEFAULT);
 	}
 
 	// since lists are not part of this implementation, only one score exists
@@ -24,18 +34,18 @@ public class OpenEmpiStringComparator
 		return 1;
 	}
 
-	// returns score
+	// returns score, 0 - 100
 	public int getScoreInt(int i) {
-		if (score == 1.0) {
-			return 1;
-		} else {
-			return 0;
-		}
+		return (int) Math.round(score * 100);
 	}
 
 	public double getScoreInt() {
-		// TODO Auto-generated method stub
-		return 0.99;
+		return score * 100;
+	}
+
+	// returns score, 0 - 1
+	public double getScore() {
+		return score;
 	}
 
 	public String getKey(int i) {
@@ -64,13 +74,3 @@ public class OpenEmpiStringComparator
 	}
 
 }
-
-class OpenEmpiExactMatchComparator 
-{
-  public static double compare(String x, String y)
-  {
-	  	  if (x.equalsIgnoreCase(y))
-		  return 1.0 ;
-	  return 0.0 ;
-  }
-}
\ No newline at end of file
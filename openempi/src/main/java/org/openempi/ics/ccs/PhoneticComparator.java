@@ -0,0 +1,26 @@
+package org.openempi.ics.ccs;
+
+import org.openempi.data.SearchKeyGenerator;
+
+/**
+ * Phonetic equality: 1 if the values are equal or have the same Double
+ * Metaphone code, 0 otherwise.  Equal values are detected without
+ * encoding; the encoder itself allocates its result.
+ */
+public class PhoneticComparator implements StringComparator
+{
+    private SearchKeyGenerator searchKeyGen = SearchKeyGenerator.getInstance();
+
+    public double compare(String x, String y)
+    {
+        if (x == null || y == null || x.length() == 0 || y.length() == 0)
+            return 0.0;
+        if (x.equalsIgnoreCase(y))
+            return 1.0;
+
+        String code1 = searchKeyGen.doubleMetaphone(x);
+        if (code1 == null || code1.length() == 0)
+            return 0.0;
+        return code1.equals(searchKeyGen.doubleMetaphone(y)) ? 1.0 : 0.0;
+    }
+}
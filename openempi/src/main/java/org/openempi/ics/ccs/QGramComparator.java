@@ -0,0 +1,76 @@
+package org.openempi.ics.ccs;
+
+/**
+ * Jaccard similarity of the sets of q-grams (substrings of q characters)
+ * of two values: the number of q-grams they share over the number of
+ * distinct q-grams of both.  Insensitive to the order of words, which
+ * suits street addresses.
+ * <p/>
+ * The q-grams are compared in place with <code>regionMatches</code>, so
+ * no memory is allocated; the cost is quadratic in the length of the
+ * values.
+ */
+public class QGramComparator implements StringComparator
+{
+    public static final int DEFAULT_Q = 2;
+
+    private int q;
+
+    public QGramComparator()
+    {
+        this(DEFAULT_Q);
+    }
+
+    public QGramComparator(int q)
+    {
+        if (q < 1)
+            throw new IllegalArgumentException("q must be at least 1: " + q);
+        this.q = q;
+    }
+
+    public double compare(String x, String y)
+    {
+        if (x == null || y == null || x.length() == 0 || y.length() == 0)
+            return 0.0;
+
+        int grams1 = x.length() - q + 1;
+        int grams2 = y.length() - q + 1;
+        if (grams1 <= 0 || grams2 <= 0)
+            return x.equalsIgnoreCase(y) ? 1.0 : 0.0;
+
+        int distinct1 = 0;
+        int common = 0;
+        for (int i = 0; i < grams1; i++) {
+            if (!firstOccurrence(x, i))
+                continue;
+            distinct1++;
+            for (int j = 0; j < grams2; j++) {
+                if (x.regionMatches(true, i, y, j, q)) {
+                    common++;
+                    break;
+                }
+            }
+        }
+
+        int distinct2 = 0;
+        for (int j = 0; j < grams2; j++) {
+            if (firstOccurrence(y, j))
+                distinct2++;
+        }
+
+        return (double) common / (distinct1 + distinct2 - common);
+    }
+
+    /**
+     * Returns true if the q-gram starting at index does not occur earlier
+     * in the value.
+     */
+    private boolean firstOccurrence(String s, int index)
+    {
+        for (int i = 0; i < index; i++) {
+            if (s.regionMatches(true, i, s, index, q))
+                return false;
+        }
+        return true;
+    }
+}
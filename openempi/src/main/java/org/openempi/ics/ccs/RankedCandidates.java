@@ -0,0 +1,61 @@
+package org.openempi.ics.ccs;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openempi.data.Person;
+
+/**
+ * The best candidates of a ranked search, best first, with their search
+ * scores and the number of persons the search matched in total.
+ *
+ * @see CorrelationSystem#lookUpRanked(Person, double, int)
+ */
+public class RankedCandidates implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private List candidates = new ArrayList();
+    private List scores = new ArrayList();
+    private int totalCount;
+
+    /**
+     * Adds the next best candidate.
+     */
+    public void add(Person candidate, double score)
+    {
+        candidates.add(candidate);
+        scores.add(new Double(score));
+    }
+
+    /**
+     * Returns the candidate Person objects, best first.
+     */
+    public List getCandidates()
+    {
+        return candidates;
+    }
+
+    /**
+     * Returns the search score (0 - 1) of the candidate at an index.
+     */
+    public double getScore(int index)
+    {
+        return ((Double) scores.get(index)).doubleValue();
+    }
+
+    /**
+     * Returns the number of persons the search matched, which may be more
+     * than the candidates returned.
+     */
+    public int getTotalCount()
+    {
+        return totalCount;
+    }
+
+    public void setTotalCount(int totalCount)
+    {
+        this.totalCount = totalCount;
+    }
+}
@@ -0,0 +1,22 @@
+package org.openempi.ics.ccs;
+
+/**
+ * A similarity measure between two attribute values, used by the
+ * <code>AttributeComparator</code> and the <code>FellegiSunterScorer</code>.
+ * <p/>
+ * Comparators run in the innermost loop of the correlation system so
+ * implementations should not allocate per call and must be safe to share
+ * between threads.  Comparisons are case insensitive.
+ *
+ * @see StringComparatorFactory
+ */
+public interface StringComparator
+{
+    /**
+     * Compares two values.
+     *
+     * @return a value between 0 and 1, where 0 represents no similarity and 1
+     *         represents equal values.  0 if either value is null or empty.
+     */
+    public double compare(String x, String y);
+}
@@ -0,0 +1,120 @@
+package org.openempi.ics.ccs;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.openempi.ics.utility.ICSProperties;
+
+/**
+ * Creates the <code>StringComparator</code> used for each kind of attribute.
+ * <p/>
+ * The comparator of an attribute is configured with the COMPARATOR_&lt;attribute&gt;
+ * property in ICS.properties, e.g. <code>COMPARATOR_NAME=jaro_winkler</code>.
+ * Each value is either one of the built-in comparator names below or the
+ * class name of a <code>StringComparator</code> implementation:
+ * <ul>
+ * <li><code>exact</code> - case insensitive equality</li>
+ * <li><code>jaro_winkler</code> - Jaro-Winkler similarity</li>
+ * <li><code>levenshtein</code> - edit distance, bounded by LEVENSHTEIN_MAX_DISTANCE</li>
+ * <li><code>qgram</code> - Jaccard similarity of bigrams</li>
+ * <li><code>phonetic</code> - Double Metaphone equality</li>
+ * <li><code>date_transposition</code> - MMddyyyy dates, tolerating keying errors</li>
+ * </ul>
+ * Comparators are stateless, so one instance per attribute is shared.
+ */
+public class StringComparatorFactory
+{
+    // Attributes
+    public static final String NAME = "NAME";
+    public static final String STREET = "STREET";
+    public static final String ALFA = "ALFA";
+    public static final String NUMBER = "NUMBER";
+    public static final String PHONE = "PHONE";
+    public static final String DATE = "DATE";
+    public static final String DEFAULT = "DEFAULT";
+
+    private static final String[][] DEFAULTS = {
+        { NAME, "jaro_winkler" },
+        { STREET, "qgram" },
+        { ALFA, "levenshtein" },
+        { NUMBER, "levenshtein" },
+        { PHONE, "exact" },
+        { DATE, "date_transposition" },
+        { DEFAULT, "exact" },
+    };
+
+    private static Logger log = Logger.getLogger("ICS");
+
+    // attribute -> StringComparator
+    private static final Map comparators = new HashMap();
+
+    private StringComparatorFactory()
+    {
+    }
+
+    /**
+     * Returns the comparator configured for an attribute, the DEFAULT
+     * comparator if the attribute has none.
+     */
+    public static synchronized StringComparator getComparator(String attribute)
+    {
+        StringComparator comparator = (StringComparator) comparators.get(attribute);
+        if (comparator == null) {
+            String name = ICSProperties.getProperty("COMPARATOR_" + attribute, defaultName(attribute));
+            comparator = createComparator(name);
+            if (comparator == null)
+                comparator = new ExactComparator();
+            comparators.put(attribute, comparator);
+        }
+        return comparator;
+    }
+
+    /**
+     * Discards the comparators created so far so they are rebuilt from the
+     * current properties.
+     */
+    public static synchronized void reset()
+    {
+        comparators.clear();
+    }
+
+    /**
+     * Creates a comparator from a built-in name or a class name.
+     *
+     * @return the comparator, or null if it cannot be created
+     */
+    public static StringComparator createComparator(String name)
+    {
+        name = name.trim();
+        if (name.equalsIgnoreCase("exact"))
+            return new ExactComparator();
+        if (name.equalsIgnoreCase("jaro_winkler"))
+            return new JaroWinklerComparator();
+        if (name.equalsIgnoreCase("levenshtein"))
+            return new LevenshteinComparator(ICSProperties.getInt("LEVENSHTEIN_MAX_DISTANCE",
+                                                                  LevenshteinComparator.DEFAULT_MAX_DISTANCE));
+        if (name.equalsIgnoreCase("qgram"))
+            return new QGramComparator();
+        if (name.equalsIgnoreCase("phonetic"))
+            return new PhoneticComparator();
+        if (name.equalsIgnoreCase("date_transposition"))
+            return new DateTranspositionComparator();
+
+        try {
+            return (StringComparator) Class.forName(name).newInstance();
+        } catch (Exception e) {
+            log.error("Cannot create comparator " + name + ": " + e, e);
+            return null;
+        }
+    }
+
+    private static String defaultName(String attribute)
+    {
+        for (int i = 0; i < DEFAULTS.length; i++) {
+            if (DEFAULTS[i][0].equals(attribute))
+                return DEFAULTS[i][1];
+        }
+        return ICSProperties.getProperty("COMPARATOR_" + DEFAULT, "exact");
+    }
+}
@@ -55,4 +55,8 @@ public interface AttributeType {
     public static final Integer DRV_LICENSE_NUM = new Integer(42);
     public static final Integer DRV_LICENSE_ISSUING_STATE = new Integer(43);
     public static final Integer DRV_LICENSE_ISSUE_DATE = new Integer(44);
+
+    public static final Integer NAME_SOUNDEX_KEY = new Integer(45);
+    public static final Integer NAME_NYSIIS_KEY = new Integer(46);
+    public static final Integer DOB_ZIP_KEY = new Integer(47);
 }
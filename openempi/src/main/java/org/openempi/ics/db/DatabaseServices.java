@@ -55,6 +55,12 @@ public interface DatabaseServices
     public static final String PRIMARY_LANGUAGE = "PrimaryLanguage";
     public static final String PERSON_IDENTIFIER = "PersonIdentifier";
 
+    /* attribute families selected by queryIterator(QueryParamList, int, int) */
+    /** Every column: document headers and all person attributes. */
+    public static final int PROJECTION_FULL = 0;
+    /** Person, document header and person info ids plus the fields record matching compares. */
+    public static final int PROJECTION_MATCH = 1;
+
   /**
    * Returns a list of <code>Person</code> objects matching the specified attribute.
    * <p>
@@ -150,6 +156,37 @@ public interface DatabaseServices
                                 boolean usePreparedStatement)
       throws DatabaseException;
 
+  /**
+     Returns an Iterator of Person objects that match the QueryParamList
+     value specified, reading only the attribute families of the given
+     projection.  Attributes outside the projection are left empty on the
+     returned Person objects, so they must not be stored back or handed
+     to clients.  Rows are read from the database as the Iterator is
+     advanced.  Caller must call releaseIterator() on the returned Iterator
+     when processing is finished.
+
+    @param params A QueryParamList.  These will be used to generate the query.
+    @param projection One of the PROJECTION_ constants.
+    @param maxResults The maximum number of Person objects returned, 0 for
+                      no limit.
+    @return Iterator of Person objects
+    @throws DatabaseException
+   */
+  public Iterator queryIterator(QueryParamList params, int projection,
+                                int maxResults)
+      throws DatabaseException;
+
+  /**
+     Returns the number of distinct persons that match the QueryParamList
+     specified, counted by the database without reading the persons.
+
+    @param params A QueryParamList.  These will be used to generate the query.
+    @return the number of matching persons
+    @throws DatabaseException
+   */
+  public int queryCount(QueryParamList params)
+      throws DatabaseException;
+
   /**
      Called to release the iterator returned from the queryIterator()
      method.  This method is responsible for closing out the
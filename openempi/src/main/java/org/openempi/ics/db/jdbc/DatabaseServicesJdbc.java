@@ -50,6 +50,7 @@ import org.openempi.ics.db.DatabaseException;
 import org.openempi.ics.db.DatabaseServices;
 import org.openempi.ics.db.DatabaseServicesListener;
 import org.openempi.ics.db.QueryParamList;
+import org.openempi.ics.utility.ICSProperties;
 import org.openempi.ics.utility.IcsSqlXML;
 import org.openempi.ics.utility.JdbcHelper;
 import org.openempi.ics.utility.Profile;
@@ -161,6 +162,27 @@ public class DatabaseServicesJdbc implements DatabaseServices
     public static final int SEL_ORD_CORPORATE_ID           = 82;
     public static final int SEL_ORD_UPDATED_CORPORATE_ID   = 83;
 
+    /**
+     * Columns, as SEL_ORD_ constants, in the order they must be returned from the
+     * SQL-SELECT-MATCH statement of QUERY-GETPERSONS in the IcsSql XML file.
+     */
+    private static final int[] MATCH_COLUMNS = {
+        SEL_ORD_PERSON_ID, SEL_ORD_DH_ID, SEL_ORD_PERSON_INFO_ID,
+        SEL_ORD_LNAME, SEL_ORD_FNAME, SEL_ORD_SECNAME, SEL_ORD_SSN, SEL_ORD_BIRTHDATE,
+        SEL_ORD_GENDER, SEL_ORD_ZIP, SEL_ORD_PH_AREA_CD, SEL_ORD_PH_NUM, SEL_ORD_DRV_LIC_NUM
+    };
+
+    /**
+     * Result set position of each SEL_ORD_ column, 0 if not selected, indexed by projection.
+     */
+    private static final int[][] PROJECTION_COLUMNS = {
+        columnPositions(null),
+        columnPositions(MATCH_COLUMNS)
+    };
+
+    /** Rows fetched per round trip when QUERY_FETCH_SIZE is not set. */
+    public static final int DEFAULT_FETCH_SIZE = 250;
+
     private static transient List listeners = new ArrayList();
     
     private IcsSqlXML icssql = IcsSqlXML.getInstance(); // contains all SQL needed from xml file
@@ -174,6 +196,9 @@ public class DatabaseServicesJdbc implements DatabaseServices
     
     private Logger log = Logger.getLogger("ICS");
 
+    // rows fetched per round trip by queries
+    private int fetchSize = ICSProperties.getInt("QUERY_FETCH_SIZE", DEFAULT_FETCH_SIZE);
+
     // only ran by calling getInstance()
     private DatabaseServicesJdbc()
     {}
@@ -719,6 +744,8 @@ public class DatabaseServicesJdbc implements DatabaseServices
      * to insert one or more Document Headers and establish the relationship between them. Finally,
      * for each Document Header, there can be one or more Attributes such as person address, email, etc..
      * The Document Header ID will be used for each of these attributes.</b>
+     * <p>
+     * All inserts run in a single transaction, which is rolled back if any of them fails.
      *
      * From IcsSql.xml: <INSERT-PERSON>, <INSERT-DOCUMENT-HEADER>, <INSERT-PERSON-INFO>
      *
@@ -741,8 +768,7 @@ public class DatabaseServicesJdbc implements DatabaseServices
             
             // start this transaction block
             conn = JdbcHelper.getConnection();
-
-//            conn.setAutoCommit(false);
+            conn.setAutoCommit(false);
             
             // First, add the actual Person record. This is needed to obtain the new Person_Id
             // that'll be used to insert new Document Headers.
@@ -791,9 +817,10 @@ public class DatabaseServicesJdbc implements DatabaseServices
             } // while more doc headers
             
             Profile.begin("Connection.commit");
-//            conn.commit();
+            conn.commit();
             Profile.end("Connection.commit");
-            conn.close();
+            endTransaction(conn);
+            conn = null;
             
             // signal registered listeners that a Person has been added.
             personAdded(person);
@@ -802,23 +829,23 @@ public class DatabaseServicesJdbc implements DatabaseServices
         }
         catch (Exception e) // doesn't matter what it is
         {
-            try
-            {
-                // always rollback if we got far enough to have inserted something
-                if ( conn != null ) conn.rollback();
-            }
-            catch ( SQLException se2 )
-            { }
-            try
-            {
-                if ( conn != null ) conn.close();
-            }
-            catch ( SQLException se2 )
-            { }
+            // always rollback if we got far enough to have inserted something
+            rollbackTransaction(conn);
             throw new DatabaseException("Cannot ADD a Person Object: " + e.toString());
         }
     }
     
+    /**
+     * Adds the attributes of a <code>Person</code> to the database, as Person Info
+     * records of the person's first Document Header. The inserts run in a single
+     * transaction.
+     *
+     * From IcsSql.xml: <INSERT-PERSON-INFO>
+     *
+     * @param person The <code>Person</code> whose attributes are to be added.
+     * @returns int ID of the Document Header the attributes were added to
+     * @throws DatabaseException
+     */    
     public int addPersonInfo(Person person) throws DatabaseException
     {        
         Connection conn = null;
@@ -827,6 +854,7 @@ public class DatabaseServicesJdbc implements DatabaseServices
         {
             // start this transaction block
             conn = JdbcHelper.getConnection();
+            conn.setAutoCommit(false);
                 
             // This will insert ONE OR MORE person info records depending on how many instances of the attributes
             // there are.
@@ -834,7 +862,11 @@ public class DatabaseServicesJdbc implements DatabaseServices
             DocumentHeader personDocHeader = (DocumentHeader) person.getDocumentHeaders().get(0);
             personinfosql.insertPersonInfo(icssql, conn, personDocHeader.getOidInt(), person );
                 
-            conn.close();
+            Profile.begin("Connection.commit");
+            conn.commit();
+            Profile.end("Connection.commit");
+            endTransaction(conn);
+            conn = null;
             
             // signal registered listeners that a Person has been added.
             personAdded(person);
@@ -843,23 +875,52 @@ public class DatabaseServicesJdbc implements DatabaseServices
         }
         catch (Exception e) // doesn't matter what it is
         {
-            try
-            {
-                // always rollback if we got far enough to have inserted something
-                if ( conn != null ) conn.rollback();
-            }
-            catch ( SQLException se2 )
-            { }
-            try
-            {
-                if ( conn != null ) conn.close();
-            }
-            catch ( SQLException se2 )
-            { }
+            // always rollback if we got far enough to have inserted something
+            rollbackTransaction(conn);
             throw new DatabaseException("Cannot ADD a Person Object: " + e.toString());
         }
     }
     
+    /**
+     * Rolls back the transaction of a connection, if there is one, and
+     * releases the connection.
+     */
+    private void rollbackTransaction(Connection conn)
+    {
+        if ( conn == null )
+            return;
+        try
+        {
+            conn.rollback();
+        }
+        catch ( SQLException se )
+        {
+            log.error("Cannot rollback: " + se.toString());
+        }
+        endTransaction(conn);
+    }
+    
+    /**
+     * Restores auto commit on a connection used for a transaction and
+     * releases it, so the pool does not hand out a connection left in a
+     * transaction.
+     */
+    private void endTransaction(Connection conn)
+    {
+        try
+        {
+            conn.setAutoCommit(true);
+        }
+        catch ( SQLException se )
+        { }
+        try
+        {
+            conn.close();
+        }
+        catch ( SQLException se )
+        { }
+    }
+    
     
     //    /**
     //     * Adds a <code>Person</code> to the database.
@@ -1246,7 +1307,7 @@ public class DatabaseServicesJdbc implements DatabaseServices
             {
                 // Retrieve connection and set transaction block
                 conn = JdbcHelper.getConnection();
-//                conn.setAutoCommit(false);
+                conn.setAutoCommit(false);
                 
                 if (obj instanceof String)
                 {
@@ -1296,26 +1357,17 @@ public class DatabaseServicesJdbc implements DatabaseServices
             } // instanceof String (Person)
             
             Profile.begin("Connection.commit");
-//            conn.commit();
+            conn.commit();
             Profile.end("Connection.commit");
-            conn.close();
+            endTransaction(conn);
+            conn = null;
             
             objectsRemoved = true;
         }
         catch ( Exception e )
         {
-//            try
-//            {
-////                if ( conn != null ) conn.rollback();
-//            } // always rollback if we got far enough to have deleted something
-//            catch ( SQLException se2 )
-//            { }
-            try
-            {
-                if ( conn != null ) conn.close();
-            } // always rollback if we got far enough to have deleted something
-            catch ( SQLException se2 )
-            { }
+            // always rollback if we got far enough to have deleted something
+            rollbackTransaction(conn);
             throw new DatabaseException("Cannot DELETE a Person Object: " + e.toString());
         }
         
@@ -1388,7 +1440,7 @@ public class DatabaseServicesJdbc implements DatabaseServices
             if (usePreparedStatement)
             {
                 st = Sql.buildQuery(icssql, params, conn);
-                st.setFetchSize(250);
+                st.setFetchSize(fetchSize);
                 Profile.begin("PreparedStatement.executeQuery");
                 rs = ((PreparedStatement) st).executeQuery();
                 Profile.end("PreparedStatement.executeQuery");
@@ -1399,13 +1451,14 @@ public class DatabaseServicesJdbc implements DatabaseServices
                 log.debug(sql);
                 Profile.begin("Connection.createStatement");
                 st = conn.createStatement();
-                st.setFetchSize(250);
+                st.setFetchSize(fetchSize);
                 Profile.end("Connection.createStatement");
                 Profile.begin("Statement.executeQuery");
                 rs = st.executeQuery(sql);
                 Profile.end("Statement.executeQuery");
             }
-            iter = (Iterator) new PersonIteratorJdbc(conn, st, rs);
+            iter = (Iterator) new PersonIteratorJdbc(conn, st, rs,
+                    PROJECTION_COLUMNS[PROJECTION_FULL], 0);
         }
         catch (SQLException se)
         {
@@ -1427,6 +1480,135 @@ public class DatabaseServicesJdbc implements DatabaseServices
         return iter;
     }
     
+    /**
+     * Jdbc specific implementation of the projected queryIterator() interface.
+     * Only the columns of the projection are selected, and only those are mapped
+     * by the returned PersonIteratorJdbc. The full select is used when the
+     * projection has no select list configured in the IcsSql XML file.
+     */
+    public Iterator queryIterator(QueryParamList params, int projection,
+            int maxResults)
+            throws DatabaseException
+    {
+        Profile.begin("DatabaseServicesJdbc.queryIterator");
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        Iterator iter = null;
+        
+        if (!SqlTemplateCache.getInstance().hasProjection(projection))
+        {
+            log.debug("No select list for projection " + projection + ", selecting all columns");
+            projection = PROJECTION_FULL;
+        }
+        
+        try
+        {
+            Profile.begin("JdbcHelper.getConnection");
+            conn = JdbcHelper.getConnection();
+            Profile.end("JdbcHelper.getConnection");
+            st = Sql.buildQuery(icssql, params, conn, projection);
+            // set on every query, the statement may come from the statement pool
+            st.setFetchSize(fetchSize);
+            Profile.begin("PreparedStatement.executeQuery");
+            try
+            {
+                rs = st.executeQuery();
+            }
+            finally
+            {
+                Profile.end("PreparedStatement.executeQuery");
+            }
+            iter = (Iterator) new PersonIteratorJdbc(conn, st, rs,
+                    PROJECTION_COLUMNS[projection], maxResults);
+            return iter;
+        }
+        catch (SQLException se)
+        {
+            throw new DatabaseException("Cannot execute SQL against database with error: " + se.toString());
+        }
+        finally
+        {
+            // the iterator owns the connection once created, release it on any other exit
+            if ( iter == null )
+            {
+                try
+                { if ( rs != null ) rs.close(); }
+                catch (SQLException e)
+                {}
+                try
+                { if ( st != null ) st.close(); }
+                catch (SQLException e)
+                {}
+                try
+                { if ( conn != null ) conn.close(); }
+                catch (SQLException e)
+                {}
+            }
+            Profile.end("DatabaseServicesJdbc.queryIterator");
+        }
+    }
+    
+    /**
+     * Jdbc specific implementation of the queryCount() interface.
+     */
+    public int queryCount(QueryParamList params)
+            throws DatabaseException
+    {
+        Profile.begin("DatabaseServicesJdbc.queryCount");
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try
+        {
+            conn = JdbcHelper.getConnection();
+            st = Sql.buildCountQuery(icssql, params, conn);
+            rs = st.executeQuery();
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+        catch (SQLException se)
+        {
+            throw new DatabaseException("Cannot execute SQL against database with error: " + se.toString());
+        }
+        finally
+        {
+            try
+            { if ( rs != null ) rs.close(); }
+            catch (SQLException e)
+            {}
+            try
+            { if ( st != null ) st.close(); }
+            catch (SQLException e)
+            {}
+            try
+            { if ( conn != null ) conn.close(); }
+            catch (SQLException e)
+            {}
+            Profile.end("DatabaseServicesJdbc.queryCount");
+        }
+    }
+    
+    /**
+     * Returns the result set position of each SEL_ORD_ column for a select
+     * returning the given columns in order, or the identity for the full
+     * select (columns null).
+     */
+    private static int[] columnPositions(int[] columns)
+    {
+        int[] positions = new int[SEL_ORD_UPDATED_CORPORATE_ID + 1];
+        if (columns == null)
+        {
+            for (int i = 1; i < positions.length; i++)
+                positions[i] = i;
+        }
+        else
+        {
+            for (int i = 0; i < columns.length; i++)
+                positions[columns[i]] = i + 1;
+        }
+        return positions;
+    }
+    
     /**
      * Jdbc specific implementation of the releaseIterator() interface.
      * This closes PreparedStatements and releases Connections associated
@@ -1641,7 +1823,8 @@ public class DatabaseServicesJdbc implements DatabaseServices
     
     /**
      * Private class that implements Iterator and is returned by the
-     * queryIterator() method.
+     * queryIterator() method. Rows are read as the Iterator is advanced;
+     * columns outside the projection read as null and are not mapped.
      */
     private class PersonIteratorJdbc
             implements Iterator
@@ -1651,13 +1834,18 @@ public class DatabaseServicesJdbc implements DatabaseServices
         private ResultSet rs = null;
         private boolean moreResults = false;
         private String lastOid = null;
+        private int[] columns = null; // result set position by SEL_ORD_, 0 if not selected
+        private int maxResults = 0;   // 0 for no limit
+        private int returned = 0;
         
         public PersonIteratorJdbc(Connection conn, Statement st,
-                ResultSet rs)
+                ResultSet rs, int[] columns, int maxResults)
         {
             this.rs = rs;
             this.st = st;
             this.conn = conn;
+            this.columns = columns;
+            this.maxResults = maxResults;
             try
             {
                 Profile.begin("ResultSet.next");
@@ -1678,7 +1866,7 @@ public class DatabaseServicesJdbc implements DatabaseServices
         
         public boolean hasNext()
         {
-            return moreResults;
+            return moreResults && (maxResults == 0 || returned < maxResults);
         }
         
         public Object next()
@@ -1687,22 +1875,23 @@ public class DatabaseServicesJdbc implements DatabaseServices
             Person person = null;
             try
             {
+                returned++;
                 String currPersonOid = rs.getString(SEL_ORD_PERSON_ID);
                 person = new Person(); // OID will remain null to start
                 
                 person.setOid( currPersonOid );
-                person.setNationality( rs.getString(SEL_ORD_NATIONALITY_CD) );
-                person.setNameSearchKey( rs.getString(SEL_ORD_NAMESEARCHKEY) );
-                person.setPrimaryLanguage( rs.getString(SEL_ORD_PRIMLANG) );
-                person.setExpired( rs.getBoolean(SEL_ORD_EXPIRED) );
-                person.setProvider( rs.getBoolean(SEL_ORD_ISPROVIDER) );
-                person.setBirthPlace( rs.getString(SEL_ORD_BIRTH_PLACE) );
+                person.setNationality( string(SEL_ORD_NATIONALITY_CD) );
+                person.setNameSearchKey( string(SEL_ORD_NAMESEARCHKEY) );
+                person.setPrimaryLanguage( string(SEL_ORD_PRIMLANG) );
+                person.setExpired( bool(SEL_ORD_EXPIRED) );
+                person.setProvider( bool(SEL_ORD_ISPROVIDER) );
+                person.setBirthPlace( string(SEL_ORD_BIRTH_PLACE) );
                 
                 DocumentHeader last = null;
                 while(true)
                 {
                     DocumentHeader documentHeader;
-                    String dhId = rs.getString(SEL_ORD_DH_ID);
+                    String dhId = string(SEL_ORD_DH_ID);
                     
                     if (last != null && last.getOid().equals(dhId))
                         documentHeader = last;
@@ -1710,131 +1899,134 @@ public class DatabaseServicesJdbc implements DatabaseServices
                     {
                         documentHeader = addDocumentHeader(person,
                                 dhId,
-                                rs.getTimestamp(SEL_ORD_MSG_DATE),
-                                rs.getString(SEL_ORD_MSG_CTRL_ID),
-                                rs.getString(SEL_ORD_SEQ_NUM),
-                                rs.getString(SEL_ORD_CONT_PTR),
-                                rs.getString(SEL_ORD_ACK_TYPE),
-                                rs.getString(SEL_ORD_APP_ACK_TYPE),
-                                rs.getString(SEL_ORD_MSG_SECURITY),
-                                rs.getString(SEL_ORD_REC_APP),
-                                rs.getString(SEL_ORD_REC_FAC),
-                                rs.getString(SEL_ORD_SEND_APP),
-                                rs.getString(SEL_ORD_SEND_FAC),
-                                rs.getString(SEL_ORD_EVENT_CD),
-                                rs.getString(SEL_ORD_MSG_TYPE),
-                                rs.getString(SEL_ORD_TRIGGER_EVENT),
-                                rs.getString(SEL_ORD_MSG_STRUCTURE)
+                                timestamp(SEL_ORD_MSG_DATE),
+                                string(SEL_ORD_MSG_CTRL_ID),
+                                string(SEL_ORD_SEQ_NUM),
+                                string(SEL_ORD_CONT_PTR),
+                                string(SEL_ORD_ACK_TYPE),
+                                string(SEL_ORD_APP_ACK_TYPE),
+                                string(SEL_ORD_MSG_SECURITY),
+                                string(SEL_ORD_REC_APP),
+                                string(SEL_ORD_REC_FAC),
+                                string(SEL_ORD_SEND_APP),
+                                string(SEL_ORD_SEND_FAC),
+                                string(SEL_ORD_EVENT_CD),
+                                string(SEL_ORD_MSG_TYPE),
+                                string(SEL_ORD_TRIGGER_EVENT),
+                                string(SEL_ORD_MSG_STRUCTURE)
                                 );
                         last = documentHeader;
                     }
                     
                     
                     // build a PersonName object for the Maiden name using doc header, and set to person
-                    PersonName maidenName = new PersonName(documentHeader,
-                            rs.getString(SEL_ORD_MAIDEN_LNAME),
-                            rs.getString(SEL_ORD_MAIDEN_FNAME),
-                            rs.getString(SEL_ORD_MAIDEN_SECNAME));
-                    person.setMaidenName(maidenName);
+                    if (columns[SEL_ORD_MAIDEN_LNAME] != 0)
+                    {
+                        PersonName maidenName = new PersonName(documentHeader,
+                                string(SEL_ORD_MAIDEN_LNAME),
+                                string(SEL_ORD_MAIDEN_FNAME),
+                                string(SEL_ORD_MAIDEN_SECNAME));
+                        person.setMaidenName(maidenName);
+                    }
                     
-                    addPersonSSN(person, documentHeader, rs.getString(SEL_ORD_SSN));
-                    addPersonDOB(person, documentHeader, rs.getTimestamp(SEL_ORD_BIRTHDATE));
+                    addPersonSSN(person, documentHeader, string(SEL_ORD_SSN));
+                    addPersonDOB(person, documentHeader, timestamp(SEL_ORD_BIRTHDATE));
                     
                     addPersonName(person, documentHeader,
-                            rs.getString(SEL_ORD_LNAME),
-                            rs.getString(SEL_ORD_FNAME),
-                            rs.getString(SEL_ORD_SECNAME),
-                            rs.getString(SEL_ORD_SUFFIX),
-                            rs.getString(SEL_ORD_PREFIX),
-                            rs.getString(SEL_ORD_DEGREE),
-                            rs.getString(SEL_ORD_NAMETYPE_CD),
-                            rs.getString(SEL_ORD_NAMETYPEREP_CD),
-                            rs.getString(SEL_ORD_PN_SEARCHKEY),
-                            rs.getTimestamp(SEL_ORD_PN_STARTDATE),
-                            rs.getTimestamp(SEL_ORD_PN_ENDDATE),
-                            rs.getBoolean(SEL_ORD_PN_ALIAS),
-                            rs.getString(SEL_ORD_PERSON_INFO_ID)
+                            string(SEL_ORD_LNAME),
+                            string(SEL_ORD_FNAME),
+                            string(SEL_ORD_SECNAME),
+                            string(SEL_ORD_SUFFIX),
+                            string(SEL_ORD_PREFIX),
+                            string(SEL_ORD_DEGREE),
+                            string(SEL_ORD_NAMETYPE_CD),
+                            string(SEL_ORD_NAMETYPEREP_CD),
+                            string(SEL_ORD_PN_SEARCHKEY),
+                            timestamp(SEL_ORD_PN_STARTDATE),
+                            timestamp(SEL_ORD_PN_ENDDATE),
+                            bool(SEL_ORD_PN_ALIAS),
+                            string(SEL_ORD_PERSON_INFO_ID)
                             );
                     
                     addPersonAddress(person,  documentHeader,
-                            rs.getString(SEL_ORD_ADDRESS_1),
-                            rs.getString(SEL_ORD_ADDRESS_2),
-                            rs.getString(SEL_ORD_CITY),
-                            rs.getString(SEL_ORD_STATEPROV),
-                            rs.getString(SEL_ORD_ZIP),
-                            rs.getString(SEL_ORD_COUNTRY),
-                            rs.getString(SEL_ORD_PARISH_CD),
-                            rs.getTimestamp(SEL_ORD_PN_STARTDATE),
-                            rs.getTimestamp(SEL_ORD_PN_ENDDATE),
-                            rs.getString(SEL_ORD_PERSON_INFO_ID)
+                            string(SEL_ORD_ADDRESS_1),
+                            string(SEL_ORD_ADDRESS_2),
+                            string(SEL_ORD_CITY),
+                            string(SEL_ORD_STATEPROV),
+                            string(SEL_ORD_ZIP),
+                            string(SEL_ORD_COUNTRY),
+                            string(SEL_ORD_PARISH_CD),
+                            timestamp(SEL_ORD_PN_STARTDATE),
+                            timestamp(SEL_ORD_PN_ENDDATE),
+                            string(SEL_ORD_PERSON_INFO_ID)
                             );
                     
                     addPersonIdentifier(person,  documentHeader,
-                            rs.getString(SEL_ORD_PI_IDENTIFIER),
-                            rs.getString(SEL_ORD_ID_TYPE_CD),
-                            rs.getTimestamp(SEL_ORD_PI_EFF_DATE),
-                            rs.getTimestamp(SEL_ORD_PI_EXP_DATE),
-                            rs.getBoolean(SEL_ORD_CONSENT),
-                            rs.getString(SEL_ORD_AA_UNIV_ID),
-                            rs.getString(SEL_ORD_AA_UNIV_ID_TYPE_CD),
-                            rs.getString(SEL_ORD_AA_NAMESPACE_ID),
-                            rs.getString(SEL_ORD_AF_UNIV_ID),
-                            rs.getString(SEL_ORD_AF_UNIV_ID_TYPE_CD),
-                            rs.getString(SEL_ORD_AF_NAMESPACE_ID),
-                            rs.getString(SEL_ORD_PERSON_INFO_ID),
-                            rs.getString(SEL_ORD_CORPORATE_ID),
-                            rs.getString(SEL_ORD_UPDATED_CORPORATE_ID)
+                            string(SEL_ORD_PI_IDENTIFIER),
+                            string(SEL_ORD_ID_TYPE_CD),
+                            timestamp(SEL_ORD_PI_EFF_DATE),
+                            timestamp(SEL_ORD_PI_EXP_DATE),
+                            bool(SEL_ORD_CONSENT),
+                            string(SEL_ORD_AA_UNIV_ID),
+                            string(SEL_ORD_AA_UNIV_ID_TYPE_CD),
+                            string(SEL_ORD_AA_NAMESPACE_ID),
+                            string(SEL_ORD_AF_UNIV_ID),
+                            string(SEL_ORD_AF_UNIV_ID_TYPE_CD),
+                            string(SEL_ORD_AF_NAMESPACE_ID),
+                            string(SEL_ORD_PERSON_INFO_ID),
+                            string(SEL_ORD_CORPORATE_ID),
+                            string(SEL_ORD_UPDATED_CORPORATE_ID)
                             );
                     
                     addPersonPhone(person,  documentHeader,
-                            rs.getString(SEL_ORD_PH_USE_CD),
-                            rs.getString(SEL_ORD_PH_COUNTRY_CD),
-                            rs.getString(SEL_ORD_PH_AREA_CD),
-                            rs.getString(SEL_ORD_PH_NUM),
-                            rs.getString(SEL_ORD_PH_EXT),
-                            rs.getString(SEL_ORD_PERSON_INFO_ID)
+                            string(SEL_ORD_PH_USE_CD),
+                            string(SEL_ORD_PH_COUNTRY_CD),
+                            string(SEL_ORD_PH_AREA_CD),
+                            string(SEL_ORD_PH_NUM),
+                            string(SEL_ORD_PH_EXT),
+                            string(SEL_ORD_PERSON_INFO_ID)
                             );
                     
                     addPersonEmail(person,  documentHeader,
-                            rs.getString(SEL_ORD_EMAIL),
-                            rs.getString(SEL_ORD_PERSON_INFO_ID)
+                            string(SEL_ORD_EMAIL),
+                            string(SEL_ORD_PERSON_INFO_ID)
                             );
                     
                     addPersonGender(person,  documentHeader,
-                            rs.getString(SEL_ORD_GENDER),
-                            rs.getString(SEL_ORD_PERSON_INFO_ID)
+                            string(SEL_ORD_GENDER),
+                            string(SEL_ORD_PERSON_INFO_ID)
                             );
                     
                     addPersonMaritalStatus(person,  documentHeader,
-                            rs.getString(SEL_ORD_MARITAL_STATUS),
-                            rs.getString(SEL_ORD_PERSON_INFO_ID)
+                            string(SEL_ORD_MARITAL_STATUS),
+                            string(SEL_ORD_PERSON_INFO_ID)
                             );
                     
-                    //                    java.util.Date drvLicDate = rs.getTimestamp(SEL_ORD_DRV_ISSUE_DATE);
+                    //                    java.util.Date drvLicDate = timestamp(SEL_ORD_DRV_ISSUE_DATE);
                     //                    long drvLicDateLong = 0;
                     //                    if ( drvLicDate != null ) drvLicDateLong = drvLicDate.getTime();
                     
                     addDriversLicense(person,  documentHeader,
-                            rs.getString(SEL_ORD_DRV_LIC_NUM),
-                            rs.getString(SEL_ORD_DRV_ISSUE_STATE),
+                            string(SEL_ORD_DRV_LIC_NUM),
+                            string(SEL_ORD_DRV_ISSUE_STATE),
                             //drvLicDateLong,
-                            rs.getTimestamp(SEL_ORD_DRV_ISSUE_DATE),
-                            rs.getString(SEL_ORD_PERSON_INFO_ID)
+                            timestamp(SEL_ORD_DRV_ISSUE_DATE),
+                            string(SEL_ORD_PERSON_INFO_ID)
                             );
                     
                     addEthnicGroup(person,  documentHeader,
-                            rs.getString(SEL_ORD_ETHNIC_CD),
-                            rs.getString(SEL_ORD_PERSON_INFO_ID)
+                            string(SEL_ORD_ETHNIC_CD),
+                            string(SEL_ORD_PERSON_INFO_ID)
                             );
                     
                     addReligion(person,  documentHeader,
-                            rs.getString(SEL_ORD_RELIGION_CD),
-                            rs.getString(SEL_ORD_PERSON_INFO_ID)
+                            string(SEL_ORD_RELIGION_CD),
+                            string(SEL_ORD_PERSON_INFO_ID)
                             );
                     
                     addRace(person,  documentHeader,
-                            rs.getString(SEL_ORD_RACE_CD),
-                            rs.getString(SEL_ORD_PERSON_INFO_ID)
+                            string(SEL_ORD_RACE_CD),
+                            string(SEL_ORD_PERSON_INFO_ID)
                             );
                     Profile.begin("ResultSet.next");
                     moreResults = rs.next();
@@ -1848,6 +2040,9 @@ public class DatabaseServicesJdbc implements DatabaseServices
                     else
                         break;
                 }
+                
+                // build the match view once here rather than per comparison
+                person.getMatchView();
             }
             catch ( SQLException se )
             {
@@ -1866,6 +2061,24 @@ public class DatabaseServicesJdbc implements DatabaseServices
             throw new UnsupportedOperationException();
         }
         
+        private String string(int column) throws SQLException
+        {
+            int i = columns[column];
+            return (i == 0) ? null : rs.getString(i);
+        }
+        
+        private Timestamp timestamp(int column) throws SQLException
+        {
+            int i = columns[column];
+            return (i == 0) ? null : rs.getTimestamp(i);
+        }
+        
+        private boolean bool(int column) throws SQLException
+        {
+            int i = columns[column];
+            return (i == 0) ? false : rs.getBoolean(i);
+        }
+        
         public void release()
         {
             try
@@ -12,6 +12,7 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Map;
@@ -121,32 +122,16 @@ public class DocumentHeaderSql {
     ResultSet rs = null;
     PreparedStatement pstmt = null;
 
-    Element sqlElement = null;      // xml element containg the SQL from doc header element.
-
-    String sqlINSERTINTO = null;    // insert into tbl (col1, col2 ...
-    String sqlINSERTVALUES = null;  // values (?, ?, ...
-    String sqlINSERTFULL = null;    // complete sql to be executed
-
-    String sqlGETPREID = null;      // If this isn't null, it'll be used to retrieve the next value of the PK ID
-    String sqlGETPOSTID = null;     // If the GETPRID is null, this will be used to retrieve the value AFTER the insert (like in sequences)
-
-    // retrieve the element that contains all SQL needed (including sequence/ID retrieval)
-    try
-    { sqlElement = icssql.getElement("INSERT-DOCUMENT-HEADER"); }
-    catch ( NullPointerException npe )
-    { throw new DatabaseException("Cannot retrieve INSERT-DOCUMENT-HEADER from SQL XML"); }
-
-    sqlINSERTINTO = sqlElement.getChildText("SQL-INSERTINTO");
-    sqlINSERTVALUES = sqlElement.getChildText("SQL-INSERTVALUES");
-    sqlINSERTFULL = sqlINSERTINTO + " " + sqlINSERTVALUES;
-
-    sqlGETPREID = sqlElement.getChildText("SQL-GET-PREINSERTID");
-    sqlGETPOSTID = sqlElement.getChildText("SQL-GET-POSTINSERTID");
+    // the SQL needed (including sequence/ID retrieval), resolved once from INSERT-DOCUMENT-HEADER
+    SqlTemplateCache.InsertTemplate template = SqlTemplateCache.getInstance().getInsertDocumentHeader();
 
+    String sqlINSERTFULL = template.getInsertSql();        // complete sql to be executed
+    String sqlGETPREID = template.getPreInsertIdSql();     // If this isn't null, it'll be used to retrieve the next value of the PK ID
+    String sqlGETPOSTID = template.getPostInsertIdSql();   // If the GETPRID is null, this will be used to retrieve the value AFTER the insert (like in sequences)
 
     try
     {
-      if ( sqlGETPREID.trim().length() > 0 )
+      if ( sqlGETPREID != null )
       {
         // First, retrieve the new ID that will be used for this record
         // This ID will also be the one returned.
@@ -211,8 +196,17 @@ public class DocumentHeaderSql {
       Profile.end("PreparedStatement.executeUpdate");
       log.debug("insertDocumentHeader(): rows inserted = " + rows);
 
+      // the ID generated by the insert, if the driver returns it
+      boolean generated = false;
+      if ( sqlGETPREID == null )
+      {
+        newID = SqlTemplateCache.InsertTemplate.getGeneratedId(pstmt);
+        generated = ( newID != 0 );
+      }
+      pstmt.close(); pstmt = null;
+
       // check if there's a query needed to return the proper new Person ID
-      if ( sqlGETPOSTID.trim().length() > 0 )
+      if ( sqlGETPOSTID != null && !generated )
       {
         Profile.begin("Connection.prepareStatement");
         pstmt = conn.prepareStatement(sqlGETPOSTID);
@@ -251,6 +245,7 @@ public class DocumentHeaderSql {
    * Used to build the PreparedStatement for inserting into a Document Header table.
    * Expects no Doc Header ID (assumes to use a sequence already in VALUES() clause).
    * Will subtract 1 from each constant position in order to compensate for the sequence in the first position.
+   * The statement returns the generated Doc Header ID.
    *
    * @return PreparedStatement
    */
@@ -279,7 +274,7 @@ public class DocumentHeaderSql {
     try
     {
       Profile.begin("Connection.prepareStatement");
-      pstmt = conn.prepareStatement( sql );
+      pstmt = conn.prepareStatement( sql, Statement.RETURN_GENERATED_KEYS );
       Profile.end("Connection.prepareStatement");
 
       pstmt.setInt(DH_ORD_PERSON_ID-1, personId);
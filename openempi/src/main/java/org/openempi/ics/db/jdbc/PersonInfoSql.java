@@ -18,7 +18,6 @@ import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
-import org.jdom.Element;
 import org.openempi.data.Address;
 import org.openempi.data.DateOfBirth;
 import org.openempi.data.DriversLicense;
@@ -31,6 +30,7 @@ import org.openempi.data.PersonIdentifier;
 import org.openempi.data.PersonName;
 import org.openempi.data.Race;
 import org.openempi.data.Religion;
+import org.openempi.data.SearchKeyGenerator;
 import org.openempi.data.SocialSecurityNumber;
 import org.openempi.data.TelephoneNumber;
 import org.openempi.ics.db.AttributeType;
@@ -116,6 +116,10 @@ public class PersonInfoSql {
     public static final int PI_ORD_AN_AF_UNIV_ID_TYPE_CD = 59;
     public static final int PI_ORD_AN_AF_NAMESPACE_ID = 60;
 
+    public static final int PI_ORD_SOUNDEX_KEY = 61;
+    public static final int PI_ORD_NYSIIS_KEY = 62;
+    public static final int PI_ORD_DOB_ZIP_KEY = 63;
+
 
     private static final int PI_COLUMN_MAX = 64; // capacity of List (column count) used for adding Person Info records
 
@@ -146,6 +150,7 @@ public class PersonInfoSql {
     public static final int UPDATECONSENT_PI_IDENTIFIER = 2;
 
     private Logger log = Logger.getLogger("ICS");
+    private SearchKeyGenerator searchKeyGen = SearchKeyGenerator.getInstance();
 
     private PersonInfoSql() {
     }
@@ -156,7 +161,7 @@ public class PersonInfoSql {
 
 
     /**
-     * Insert a Person Info Record into the table holding the DENORMALIZATION of all Person Attributes.
+     * Insert Person Info Records into the table holding the DENORMALIZATION of all Person Attributes.
      * What?
      * For each Name, Address, Email, Authorizing Authority, etc..., there will be a SINGLE record in this table.
      * If there is more then one instance of ANY of those, they'll be that many records.
@@ -164,83 +169,97 @@ public class PersonInfoSql {
      * From the SQL XML, if <PREINSERTID> is null, it'll expect a sequence to be in the first VALUES column,
      * else it'll use the value from that query for the new Primary Key ID.
      * <POSTINSERTID> isn't required since we're not doing anything with the new created.
+     * <p/>
+     * The INSERT is prepared once and all records are sent as a single JDBC batch.
+     * The <PREINSERTID> query runs once per <PREINSERTID-BLOCK> records, each id it
+     * returns reserving that many.
      *
      * @param icssql the helper class for reading in the IcsSQL XML File
      * @param conn   <code>Connection</code> used for transaction
-     * @param vars   indexed by PI_ORD_xyz to extract all column values for a single record.
+     * @param rows   one Object[] per record, indexed by PI_ORD_xyz to extract all column values.
      * @return void
      * @throws DatabaseException
      */
     private void insertPersonInfo(IcsSqlXML icssql, Connection conn,
-                                  Object[] vars)
+                                  List rows)
             throws DatabaseException {
+        if (rows.isEmpty())
+            return;
+
         Profile.begin("PersonInfoSql.insertPersonInfo");
         int newID = 0; // will be the current PERSON_INFO ID used
+        int reserved = 0; // ids left after newID in the block last retrieved
         ResultSet rs = null;
+        PreparedStatement idStmt = null;
         PreparedStatement pstmt = null;
 
-        Element sqlElement = null;      // xml element containg the SQL from person element.
-
-        String sqlINSERTINTO = null;    // insert into tbl (col1, col2 ...
-        String sqlINSERTVALUES = null;  // values (?, ?, ...
-        String sqlINSERTFULL = null;    // complete sql to be executed
-
-        String sqlGETPREID = null;      // If this isn't null, it'll be used to retrieve the next value of the PK ID
-
-        // retrieve the element that contains all SQL needed (including sequence/ID retrieval)
-        try {
-            sqlElement = icssql.getElement("INSERT-PERSON-INFO");
-        } catch (NullPointerException npe) {
-            throw new DatabaseException("Cannot retrieve INSERT-PERSON-INFO from SQL XML");
-        }
-
-        sqlINSERTINTO = sqlElement.getChildText("SQL-INSERTINTO");
-        sqlINSERTVALUES = sqlElement.getChildText("SQL-INSERTVALUES");
-        sqlINSERTFULL = sqlINSERTINTO + " " + sqlINSERTVALUES;
+        // the SQL needed (including sequence/ID retrieval), resolved once from INSERT-PERSON-INFO
+        SqlTemplateCache.InsertTemplate template = SqlTemplateCache.getInstance().getInsertPersonInfo();
 
-        sqlGETPREID = sqlElement.getChildText("SQL-GET-PREINSERTID");
+        String sqlINSERTFULL = template.getInsertSql();        // complete sql to be executed
+        String sqlGETPREID = template.getPreInsertIdSql();     // If this isn't null, it'll be used to retrieve the next value of the PK ID
+        int idBlock = template.getPreInsertIdBlock();          // number of ids reserved by each value retrieved
 
         log.debug("SQL: " + sqlINSERTFULL);
 
         try {
-            if (sqlGETPREID.trim().length() > 0) {
-                // First, retrieve the new ID that will be used for this record
-                // This ID will also be the one returned.
-                Profile.begin("Connection.prepareStatement");
-                pstmt = conn.prepareStatement(sqlGETPREID);
-                Profile.end("Connection.prepareStatement");
-                Profile.begin("PreparedStatement.executeQuery");
-                rs = pstmt.executeQuery(); // should only return a single record
-                Profile.end("PreparedStatement.executeQuery");
-                while (rs.next()) {
-                    newID = rs.getInt(1);
-                }
-                pstmt.close();
-                pstmt = null;
-                if (newID == 0) {
-                    throw new DatabaseException("Cannot retrieve a new PERSON_INFO ID from SQL-GET-PREINSERTID in SQL XML");
-                }
+            Profile.begin("Connection.prepareStatement");
+            pstmt = conn.prepareStatement(sqlINSERTFULL);
+            if (sqlGETPREID != null) {
+                idStmt = conn.prepareStatement(sqlGETPREID);
+            }
+            Profile.end("Connection.prepareStatement");
 
-                // insert using the new ID
-                log.debug("insertPerson(): " + sqlINSERTFULL);
-                pstmt = personInfoBuildStmt(conn, sqlINSERTFULL, newID, vars);
-            } else {
-                // if there's no PREID, then the column must be a sequence that is already inside the VALUE clause.
-                pstmt = personInfoBuildStmt(conn, sqlINSERTFULL, vars);
+            Iterator iter = rows.iterator();
+            while (iter.hasNext()) {
+                Object[] vars = (Object[]) iter.next();
+
+                if (idStmt != null && reserved > 0) {
+                    // the next ID of the block already retrieved
+                    newID++;
+                    reserved--;
+                    personInfoSetValues(pstmt, newID, vars);
+                } else if (idStmt != null) {
+                    // First, retrieve the new ID that will be used for this record
+                    newID = 0;
+                    Profile.begin("PreparedStatement.executeQuery");
+                    rs = idStmt.executeQuery(); // should only return a single record
+                    Profile.end("PreparedStatement.executeQuery");
+                    while (rs.next()) {
+                        newID = rs.getInt(1);
+                    }
+                    rs.close();
+                    rs = null;
+                    if (newID == 0) {
+                        throw new DatabaseException("Cannot retrieve a new PERSON_INFO ID from SQL-GET-PREINSERTID in SQL XML");
+                    }
+                    reserved = idBlock - 1;
+
+                    // insert using the new ID
+                    personInfoSetValues(pstmt, newID, vars);
+                } else {
+                    // if there's no PREID, then the column must be a sequence that is already inside the VALUE clause.
+                    personInfoSetValues(pstmt, vars);
+                }
+                pstmt.addBatch();
             }
 
-            Profile.begin("PreparedStatement.executeUpdate");
-            int rows = pstmt.executeUpdate();
-            Profile.end("PreparedStatement.executeUpdate");
-            log.debug("insertPersonInfo(): rows inserted = " + rows);
+            Profile.begin("PreparedStatement.executeBatch");
+            int[] counts = pstmt.executeBatch();
+            Profile.end("PreparedStatement.executeBatch");
+            log.debug("insertPersonInfo(): rows inserted = " + counts.length);
         } catch (NullPointerException npe) {
             throw new DatabaseException("Cannot insert a PERSON INFO record (Check IcsSql.xml file for configuration): " + npe.toString());
         } catch (SQLException se) {
-            throw new DatabaseException("Cannot insert a PERSON INFO record: " + se.toString());
+            // a batch failure may chain the error of the failing row
+            SQLException next = se.getNextException();
+            throw new DatabaseException("Cannot insert a PERSON INFO record: " + se.toString() +
+                    (next != null ? " (" + next.toString() + ")" : ""));
         } finally {
             try {
-                if (pstmt != null) pstmt.close();
                 if (rs != null) rs.close();
+                if (idStmt != null) idStmt.close();
+                if (pstmt != null) pstmt.close();
             } catch (SQLException se2) {
             }
         }
@@ -249,21 +268,13 @@ public class PersonInfoSql {
 
 
     /**
-     * Used to build the PreparedStatement for inserting into a Person_Info table.
+     * Used to set the parameters of the PreparedStatement inserting into a Person_Info table.
      * Expects no Person Info ID in first column (assumes to use a sequence already in VALUES() clause
      * Will subtract 1 from each constant position in order to compensate for the sequence in the first position.
-     *
-     * @return PreparedStatement
      */
-    private static PreparedStatement personInfoBuildStmt(Connection conn, String sql, Object[] vars)
+    private static void personInfoSetValues(PreparedStatement pstmt, Object[] vars)
             throws DatabaseException {
-        PreparedStatement pstmt = null;
-
         try {
-            Profile.begin("Connection.prepareStatement");
-            pstmt = conn.prepareStatement(sql);
-            Profile.end("Connection.prepareStatement");
-
             if (vars[PI_ORD_DH_ID] != null) {
                 pstmt.setInt(PI_ORD_DH_ID - 1, ((Integer) vars[PI_ORD_DH_ID]).intValue());
             } else {
@@ -406,29 +417,23 @@ public class PersonInfoSql {
             pstmt.setString(PI_ORD_AN_AF_UNIV_ID - 1, (String) vars[PI_ORD_AN_AF_UNIV_ID]);
             pstmt.setString(PI_ORD_AN_AF_UNIV_ID_TYPE_CD - 1, (String) vars[PI_ORD_AN_AF_UNIV_ID_TYPE_CD]);
             pstmt.setString(PI_ORD_AN_AF_NAMESPACE_ID - 1, (String) vars[PI_ORD_AN_AF_NAMESPACE_ID]);
+
+            pstmt.setString(PI_ORD_SOUNDEX_KEY - 1, (String) vars[PI_ORD_SOUNDEX_KEY]);
+            pstmt.setString(PI_ORD_NYSIIS_KEY - 1, (String) vars[PI_ORD_NYSIIS_KEY]);
+            pstmt.setString(PI_ORD_DOB_ZIP_KEY - 1, (String) vars[PI_ORD_DOB_ZIP_KEY]);
         } catch (SQLException se) {
-            throw new DatabaseException("Cannot Prepare Person_Info Insert Statement: " + se.toString());
+            throw new DatabaseException("Cannot set Person_Info Insert Statement values: " + se.toString());
         }
-
-        return pstmt;
     }
 
 
     /**
-     * Used to build the PreparedStatement for inserting into a Person_Info table.
+     * Used to set the parameters of the PreparedStatement inserting into a Person_Info table.
      * Expects a Person_Info ID in first column.
-     *
-     * @return PreparedStatement
      */
-    private static PreparedStatement personInfoBuildStmt(Connection conn, String sql, int personInfoId, Object[] vars)
+    private static void personInfoSetValues(PreparedStatement pstmt, int personInfoId, Object[] vars)
             throws DatabaseException {
-        PreparedStatement pstmt = null;
-
         try {
-            Profile.begin("Connection.prepareStatement");
-            pstmt = conn.prepareStatement(sql);
-            Profile.end("Connection.prepareStatement");
-
             pstmt.setInt(PI_ORD_PI_ID, personInfoId);
 
             if (vars[PI_ORD_DH_ID] != null) {
@@ -574,11 +579,13 @@ public class PersonInfoSql {
             pstmt.setString(PI_ORD_AN_AF_UNIV_ID_TYPE_CD, (String) vars[PI_ORD_AN_AF_UNIV_ID_TYPE_CD]);
             pstmt.setString(PI_ORD_AN_AF_NAMESPACE_ID, (String) vars[PI_ORD_AN_AF_NAMESPACE_ID]);
 
+            pstmt.setString(PI_ORD_SOUNDEX_KEY, (String) vars[PI_ORD_SOUNDEX_KEY]);
+            pstmt.setString(PI_ORD_NYSIIS_KEY, (String) vars[PI_ORD_NYSIIS_KEY]);
+            pstmt.setString(PI_ORD_DOB_ZIP_KEY, (String) vars[PI_ORD_DOB_ZIP_KEY]);
+
         } catch (SQLException se) {
-            throw new DatabaseException("Cannot Prepare Person_Info Insert Statement: " + se.toString());
+            throw new DatabaseException("Cannot set Person_Info Insert Statement values: " + se.toString());
         }
-
-        return pstmt;
     }
 
 
@@ -633,7 +640,7 @@ public class PersonInfoSql {
     /**
      * This method is used when INSERTING a new Person Object. It will iterate through each attribute in the person
      * class that is associated with the denormalized Person Info table. If there's more then one instance of an attribute
-     * (ex: two addresses) it will insert TWO records.
+     * (ex: two addresses) it will insert TWO records.  The records are inserted in a single batch.
      *
      * @param icssql the helper class for reading in the IcsSQL XML File
      * @param conn   <code>Connection</code> used for transaction
@@ -648,6 +655,8 @@ public class PersonInfoSql {
         // column values, indexed by PI_ORD_xyz, that will be used to create the Person Info Record
         // Array MUST be pre-sized in order to load with proper indexes.
         Object[] personInfoVars = new Object[PI_COLUMN_MAX];
+        // a copy of personInfoVars for each record, inserted together at the end
+        List rows = new ArrayList();
 
         // Get all the iterators for each attribute. These will all be combined into this single table.
         Iterator iteratorAddresses = person.getAddresses().iterator();
@@ -741,6 +750,8 @@ public class PersonInfoSql {
                 personInfoVars[PI_ORD_NAME_TYPE_CD] = pName.getNameTypeCode();
                 personInfoVars[PI_ORD_NAME_TYPE_REP_CD] = pName.getNameRepresentationCode();
                 personInfoVars[PI_ORD_SEARCH_KEY] = pName.getSearchKey();
+                personInfoVars[PI_ORD_SOUNDEX_KEY] = searchKeyGen.generateSoundexKey(pName);
+                personInfoVars[PI_ORD_NYSIIS_KEY] = searchKeyGen.generateNysiisKey(pName);
                 personInfoVars[PI_ORD_START_DATE] = pName.getStartDate();
                 personInfoVars[PI_ORD_END_DATE] = pName.getEndDate();
                 personInfoVars[PI_ORD_ALIAS] = new Integer((pName.isAlias() ? 1 : 0));
@@ -863,10 +874,13 @@ public class PersonInfoSql {
             // -----------------------------------------------------------------------------
             if (lookForMoreRecords) {
                 personInfoVars[PI_ORD_DH_ID] = new Integer(dhId);
-                insertPersonInfo(icssql, conn, personInfoVars);
+                personInfoVars[PI_ORD_DOB_ZIP_KEY] = searchKeyGen.generateDobZipKey(
+                        (java.util.Date) personInfoVars[PI_ORD_DOB], (String) personInfoVars[PI_ORD_ZIP]);
+                rows.add(personInfoVars.clone());
             }
 
         } // while more attributes (another instance of an attribute) exist
+        insertPersonInfo(icssql, conn, rows);
         Profile.end("PersonInfoSql.insertPersonInfo");
     }
 
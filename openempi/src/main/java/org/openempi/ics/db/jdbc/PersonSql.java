@@ -14,6 +14,7 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -91,6 +92,7 @@ public class PersonSql {
      * Used to build the PreparedStatement for inserting into a Person table.
      * Expects no person ID (assumes to use a sequence already in VALUES() clause).
      * Will subtract 1 from each constant position in order to compensate for the sequence in the first position.
+     * The statement returns the generated Person ID.
      * @return PreparedStatement
      */
     private static PreparedStatement personBuildStmt(Connection conn, String sql,
@@ -109,7 +111,7 @@ public class PersonSql {
         try {
             log.debug(sql);
             Profile.begin("Connection.prepareStatement");
-            pstmt = conn.prepareStatement(sql);
+            pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
             Profile.end("Connection.prepareStatement");
 
             pstmt.setString(PERSON_ORD_NATIONALITY_CD - 1, nationCd);
@@ -283,31 +285,15 @@ public class PersonSql {
         ResultSet rs = null;
         PreparedStatement pstmt = null;
 
-        Element sqlElement = null;      // xml element containg the SQL from person element.
-
-        String sqlINSERTINTO = null;    // insert into tbl (col1, col2 ...
-        String sqlINSERTVALUES = null;  // values (?, ?, ...
-        String sqlINSERTFULL = null;    // complete sql to be executed
-
-        String sqlGETPREID = null;      // If this isn't null, it'll be used to retrieve the next value of the PK ID
-        String sqlGETPOSTID = null;     // If the GETPRID is null, this will be used to retrieve the value AFTER the insert (like in sequences)
-
-        // retrieve the element that contains all SQL needed (including sequence/ID retrieval)
-        try {
-            sqlElement = icssql.getElement("INSERT-PERSON");
-        } catch (NullPointerException npe) {
-            throw new DatabaseException("Cannot retrieve INSERT-PERSON from SQL XML");
-        }
-
-        sqlINSERTINTO = sqlElement.getChildText("SQL-INSERTINTO");
-        sqlINSERTVALUES = sqlElement.getChildText("SQL-INSERTVALUES");
-        sqlINSERTFULL = sqlINSERTINTO + " " + sqlINSERTVALUES;
+        // the SQL needed (including sequence/ID retrieval), resolved once from INSERT-PERSON
+        SqlTemplateCache.InsertTemplate template = SqlTemplateCache.getInstance().getInsertPerson();
 
-        sqlGETPREID = sqlElement.getChildText("SQL-GET-PREINSERTID");
-        sqlGETPOSTID = sqlElement.getChildText("SQL-GET-POSTINSERTID");
+        String sqlINSERTFULL = template.getInsertSql();        // complete sql to be executed
+        String sqlGETPREID = template.getPreInsertIdSql();     // If this isn't null, it'll be used to retrieve the next value of the PK ID
+        String sqlGETPOSTID = template.getPostInsertIdSql();   // If the GETPRID is null, this will be used to retrieve the value AFTER the insert (like in sequences)
 
         try {
-            if (sqlGETPREID.trim().length() > 0) {
+            if (sqlGETPREID != null) {
                 // First, retrieve the new ID that will be used for this record
                 // This ID will also be the one returned.
                 Profile.begin("Connection.prepareStatement");
@@ -357,12 +343,19 @@ public class PersonSql {
             Profile.begin("PreparedStatement.executeUpdate");
             int rows = pstmt.executeUpdate();
             Profile.end("PreparedStatement.executeUpdate");
+            log.debug("insertPerson(): rows inserted = " + rows);
+
+            // the ID generated by the insert, if the driver returns it
+            boolean generated = false;
+            if (sqlGETPREID == null) {
+                newID = SqlTemplateCache.InsertTemplate.getGeneratedId(pstmt);
+                generated = (newID != 0);
+            }
             pstmt.close();
             pstmt = null;
-            log.debug("insertPerson(): rows inserted = " + rows);
 
             // check if there's a query needed to return the proper new Person ID
-            if (sqlGETPOSTID.trim().length() > 0) {
+            if (sqlGETPOSTID != null && !generated) {
                 Profile.begin("Connection.prepareStatement");
                 pstmt = conn.prepareStatement(sqlGETPOSTID);
                 Profile.end("Connection.prepareStatement");
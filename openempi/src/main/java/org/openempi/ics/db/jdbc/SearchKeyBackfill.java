@@ -0,0 +1,158 @@
+package org.openempi.ics.db.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.log4j.Logger;
+import org.jdom.Element;
+import org.openempi.data.PersonName;
+import org.openempi.data.SearchKeyGenerator;
+import org.openempi.ics.db.DatabaseException;
+import org.openempi.ics.utility.IcsSqlXML;
+import org.openempi.ics.utility.JdbcHelper;
+import org.openempi.ics.utility.Profile;
+
+/**
+ * Regenerates the SEARCH_KEY, SOUNDEX_KEY, NYSIIS_KEY and DOB_ZIP_KEY columns
+ * of existing PERSON_INFO rows so an MPI loaded before the keys were written
+ * can use the key based blocking without a reload.
+ * <p/>
+ * Rows are processed in PERSON_INFO_ID order, one batch per transaction.
+ * The last id processed is logged after every batch; a run that is
+ * interrupted can be resumed by passing that id as the starting point.
+ * <p/>
+ * Usage: <code>SearchKeyBackfill [startAfterId [batchSize]]</code>
+ */
+public class SearchKeyBackfill
+{
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+
+  private static Logger log = Logger.getLogger("ICS");
+
+  private IcsSqlXML icssql = IcsSqlXML.getInstance();
+  private SearchKeyGenerator searchKeyGen = SearchKeyGenerator.getInstance();
+  private int batchSize;
+
+  public SearchKeyBackfill(int batchSize)
+  {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Backfills every PERSON_INFO row with an id greater than startAfterId.
+   *
+   * @param startAfterId the last PERSON_INFO_ID already processed, 0 for all
+   * @return the number of rows updated
+   * @throws DatabaseException
+   */
+  public long run(int startAfterId)
+    throws DatabaseException
+  {
+    long total = 0;
+    int lastId = startAfterId;
+
+    while (true) {
+      int[] result = runBatch(lastId);
+      if (result[0] == 0)
+        break;
+      total += result[0];
+      lastId = result[1];
+      log.info("SearchKeyBackfill: " + total + " rows updated, last PERSON_INFO_ID " + lastId);
+    }
+    return total;
+  }
+
+  /**
+   * Updates the keys of the next batch of rows.
+   *
+   * @return { rows updated, last PERSON_INFO_ID updated }
+   */
+  private int[] runBatch(int startAfterId)
+    throws DatabaseException
+  {
+    Connection conn = null;
+    PreparedStatement select = null;
+    PreparedStatement update = null;
+    ResultSet rs = null;
+    int rows = 0;
+    int lastId = startAfterId;
+
+    Profile.begin("SearchKeyBackfill.runBatch");
+    try {
+      Element selectElement = icssql.getElement("QUERY-SEARCH-KEY-BACKFILL");
+      Element updateElement = icssql.getElement("UPDATE-SEARCH-KEYS");
+      if (selectElement == null || updateElement == null)
+        throw new DatabaseException("Cannot retrieve QUERY-SEARCH-KEY-BACKFILL or UPDATE-SEARCH-KEYS from SQL XML");
+
+      String updateSql = updateElement.getChildText("SQL-UPDATETABLE") + " " +
+                         updateElement.getChildText("SQL-SETTABLE") + " " +
+                         updateElement.getChildText("SQL-UPDATEWHERE");
+
+      conn = JdbcHelper.getConnection();
+      conn.setAutoCommit(false);
+
+      select = conn.prepareStatement(selectElement.getChildText("SQL-SELECT"));
+      select.setMaxRows(batchSize);
+      select.setFetchSize(batchSize);
+      select.setInt(1, startAfterId);
+      update = conn.prepareStatement(updateSql);
+
+      rs = select.executeQuery();
+      while (rs.next()) {
+        lastId = rs.getInt(1);
+        PersonName name = new PersonName(rs.getString(2), rs.getString(3), null);
+
+        update.setString(1, name.getSearchKey());
+        update.setString(2, searchKeyGen.generateSoundexKey(name));
+        update.setString(3, searchKeyGen.generateNysiisKey(name));
+        update.setString(4, searchKeyGen.generateDobZipKey(rs.getDate(4), rs.getString(5)));
+        update.setInt(5, lastId);
+        update.addBatch();
+        rows++;
+      }
+
+      if (rows > 0)
+        update.executeBatch();
+      conn.commit();
+    } catch (SQLException se) {
+      try {
+        if (conn != null)
+          conn.rollback();
+      } catch (SQLException e) {
+        log.error(e, e);
+      }
+      throw new DatabaseException("Cannot backfill PERSON_INFO search keys after id " +
+                                  startAfterId + ": " + se);
+    } finally {
+      try {
+        if (rs != null)
+          rs.close();
+        if (select != null)
+          select.close();
+        if (update != null)
+          update.close();
+        if (conn != null) {
+          conn.setAutoCommit(true);
+          conn.close();
+        }
+      } catch (SQLException e) {
+        log.error(e, e);
+      }
+      Profile.end("SearchKeyBackfill.runBatch");
+    }
+
+    return new int[] { rows, lastId };
+  }
+
+  public static void main(String[] args)
+    throws Exception
+  {
+    int startAfterId = (args.length > 0) ? Integer.parseInt(args[0]) : 0;
+    int batchSize = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_BATCH_SIZE;
+
+    long rows = new SearchKeyBackfill(batchSize).run(startAfterId);
+    System.out.println("Updated search keys of " + rows + " PERSON_INFO rows");
+  }
+}
@@ -20,6 +20,7 @@ import org.apache.log4j.Logger;
 import org.jdom.Element;
 import org.openempi.data.SearchRange;
 import org.openempi.ics.db.DatabaseException;
+import org.openempi.ics.db.DatabaseServices;
 import org.openempi.ics.db.QueryParam;
 import org.openempi.ics.db.QueryParamList;
 import org.openempi.ics.utility.IcsSqlXML;
@@ -201,11 +202,94 @@ public class Sql {
     return buf;
   }
   
+  /**
+     Builds the bind-parameter SQL of the specified QueryParamList, as
+     used by the SqlTemplateCache to render a query shape.
+
+     @param icssql the helper class for reading in the IcsSQL XML File
+     @param params The QueryParamList to build the SQL for
+     @param buf StringBuffer to append SQL to
+     @return The SQL generated from the QueryParamList
+  */
+  static StringBuffer buildSql(IcsSqlXML icssql, QueryParamList params,
+                               StringBuffer buf)
+    throws DatabaseException
+  {
+    return buildSql(icssql, params, new ArrayList(), buf);
+  }
+
+  /**
+     Adds the values of the specified QueryParamList to valueList, in the
+     order of the parameters of the SQL built by buildSql().
+
+     @param params The QueryParamList to read the values of
+     @param valueList a List to which the SQL parameter values are added
+  */
+  public static void addValues(QueryParamList params, List valueList)
+  {
+    Iterator iter = params.iterator();
+    while(iter.hasNext()) {
+      Object p = iter.next();
+
+      if (p instanceof QueryParamList) {
+        addValues((QueryParamList) p, valueList);
+        continue;
+      }
+      Object value = ((QueryParam) p).getValue();
+      if (value instanceof SearchRange) {
+        valueList.add(((SearchRange) value).getStart());
+        valueList.add(((SearchRange) value).getEnd());
+      } else if (value instanceof java.util.Date) {
+        valueList.add(new java.sql.Date(((java.util.Date) value).getTime()));
+      } else {
+        valueList.add(value);
+      }
+    }
+  }
+
+  /**
+     Build the SQL statement counting the distinct persons matching the
+     QueryParam array.
+
+     @param icssql the helper class for reading in the IcsSQL XML File
+     @param params The QueryParamsList containing the search parameters 
+     to build the where clause
+     @param conn The database Connection to use
+     @throws DatabaseException
+     @return The PreparedStatement ready to be executed.
+     @see SqlTemplateCache#getCountQuery(QueryParamList)
+  */
+  public static PreparedStatement buildCountQuery(IcsSqlXML icssql, 
+                                                  QueryParamList params, 
+                                                  Connection conn)
+    throws DatabaseException
+  {
+    ArrayList valueList = new ArrayList();
+    PreparedStatement st;
+    String sql = SqlTemplateCache.getInstance().getCountQuery(params);
+    addValues(params, valueList);
+
+    Logger log = Logger.getLogger("ICS");
+    try {
+      log.debug(sql);
+      st = conn.prepareStatement(sql);
+      int len = valueList.size();
+      for (int i = 0; i < len; i++) {
+        st.setObject(i+1, valueList.get(i));
+      }
+    } catch (SQLException e) {
+      log.error(e, e);
+      throw new DatabaseException(e);
+    }
+    return st;
+  }
+
   /**
      Build the entire SQL statement based on the QueryParam array.
      QueryParams are looked up in the IcsSql XML file and a SQL statement 
      is constructed with ORs between each of the parameters in the 
-     QueryParams array.  
+     QueryParams array.  The SQL text is taken from the SqlTemplateCache,
+     so it is only built the first time a query shape is seen.
      
      @param icssql the helper class for reading in the IcsSQL XML File
      @param params The QueryParamsList containing the search parameters 
@@ -213,40 +297,52 @@ public class Sql {
      @param conn The database Connection to use
      @throws DatabaseException
      @return The PreparedStatement ready to be executed.
+     @see SqlTemplateCache
   */
   public static PreparedStatement buildQuery(IcsSqlXML icssql, 
                                              QueryParamList params, 
                                              Connection conn)
     throws DatabaseException
   {
-    Element sqlElement = null;  // xml element containing SQL
+    return buildQuery(icssql, params, conn, DatabaseServices.PROJECTION_FULL);
+  }
+
+  /**
+     Build the SQL statement based on the QueryParam array, selecting only
+     the columns of the given projection.
+
+     @param icssql the helper class for reading in the IcsSQL XML File
+     @param params The QueryParamsList containing the search parameters 
+     to build the where clause
+     @param conn The database Connection to use
+     @param projection One of the DatabaseServices.PROJECTION_ constants
+     @throws DatabaseException
+     @return The PreparedStatement ready to be executed.
+     @see SqlTemplateCache
+  */
+  public static PreparedStatement buildQuery(IcsSqlXML icssql, 
+                                             QueryParamList params, 
+                                             Connection conn,
+                                             int projection)
+    throws DatabaseException
+  {
     ArrayList valueList = new ArrayList(); // Use to track values for st
     PreparedStatement st;  // Prepapred statement to build and return
-    StringBuffer buf = new StringBuffer();  // Used to build SQL
+    String sql;
     int i;
     
     try {
-      sqlElement =  icssql.getElement("QUERY-GETPERSONS");
-
-      buf.append(sqlElement.getChildText("SQL-SELECT")).append(" ");
-      buf.append(sqlElement.getChildText("SQL-FROM")).append(" ");
-      buf.append(sqlElement.getChildText("SQL-JOIN")).append(" and ( ");
-
-      buf = buildSql(icssql, params, valueList, buf);
-      
-      // The sqlJOIN currently has a sub-select with an open left-paren.
-      // This is why we have an extraclose right-paren before the order 
-      // by. It's a hack, but there you go.
-      buf.append(")) order by 1"); // order must be PERSON ID
+      sql = SqlTemplateCache.getInstance().getQuery(params, projection);
     } catch ( NullPointerException npe ) {
       throw new DatabaseException("Cannot retrieve QUERY-GETPERSONS or QUERY-ATTRIBUTE-TYPES from SQL XML"); 
     }
+    addValues(params, valueList);
 
     Logger log = Logger.getLogger("ICS");
     try {
-      log.debug(buf);
+      log.debug(sql);
       Profile.begin("Connection.prepareStatement");
-      st = conn.prepareStatement(buf.toString());
+      st = conn.prepareStatement(sql);
       Profile.end("Connection.prepareStatement");
       
       int len = valueList.size();
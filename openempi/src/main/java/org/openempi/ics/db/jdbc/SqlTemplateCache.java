@@ -0,0 +1,366 @@
+package org.openempi.ics.db.jdbc;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jdom.Element;
+import org.openempi.data.SearchRange;
+import org.openempi.ics.db.DatabaseException;
+import org.openempi.ics.db.DatabaseServices;
+import org.openempi.ics.db.QueryParam;
+import org.openempi.ics.db.QueryParamList;
+import org.openempi.ics.utility.ICSProperties;
+import org.openempi.ics.utility.IcsSqlXML;
+
+/**
+ * Caches the SQL text of the statements the JDBC layer runs most often, so
+ * it is not rebuilt from the IcsSql XML on every call.
+ * <p/>
+ * The text of QUERY-GETPERSONS depends only on the projection selected and
+ * on the shape of the <code>QueryParamList</code>: its AND/OR nesting, the
+ * attribute types and whether each value is a range, a date, a string or
+ * another value.  The text of each shape is rendered once and reused for
+ * every query of that shape; the values are bound as statement parameters.
+ * The select list of the match projection is read from SQL-SELECT-MATCH;
+ * if it is not configured the projection is not available.  The insert
+ * statements for PERSON, DOCUMENT_HEADER and PERSON_INFO are resolved once
+ * when the cache is created.
+ * <p/>
+ * Because the text of a shape never changes, the statement pool of the
+ * data source (poolPreparedStatements) reuses the prepared statement of
+ * each connection instead of parsing the SQL again.
+ * <p/>
+ * At most SQL_CACHE_SIZE shapes are kept; the least recently used shape is
+ * dropped to make room for a new one.  Callers building lists of a varying
+ * length should keep them to a few fixed lengths, so that each length is
+ * a single shape.
+ */
+public class SqlTemplateCache
+{
+    // Indexes into the statistics array
+    public static final int STAT_HITS = 0;
+    public static final int STAT_MISSES = 1;
+    public static final int STAT_EVICTIONS = 2;
+    public static final int STAT_SIZE = 3;
+
+    /** Used when QUERY-GETPERSONS has no SQL-SELECT-COUNT. */
+    public static final String DEFAULT_SELECT_COUNT = "select count(distinct p.person_id)";
+
+    private static SqlTemplateCache instance = null;
+
+    private final IcsSqlXML icssql;
+    // projection -> select, from and join of QUERY-GETPERSONS, null if not configured
+    private final String[] queryPrefixes = new String[2];
+    // select count, from and join of QUERY-GETPERSONS
+    private final String countPrefix;
+    private final InsertTemplate insertPerson;
+    private final InsertTemplate insertDocumentHeader;
+    private final InsertTemplate insertPersonInfo;
+
+    // query shape -> SQL text, in access order, guarded by itself
+    private final Map queries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * The SQL of an insert and of the queries retrieving the new id before
+     * or after it.  The id queries are null when not configured.  Each id
+     * the pre insert query returns reserves SQL-PREINSERTID-BLOCK ids (1 if
+     * not configured), the sequence incrementing by that many.
+     */
+    public static final class InsertTemplate
+    {
+        private final String insertSql;
+        private final String preInsertIdSql;
+        private final String postInsertIdSql;
+        private final int preInsertIdBlock;
+
+        InsertTemplate(Element sqlElement)
+        {
+            insertSql = sqlElement.getChildText("SQL-INSERTINTO") + " " +
+                        sqlElement.getChildText("SQL-INSERTVALUES");
+            preInsertIdSql = nonBlank(sqlElement.getChildText("SQL-GET-PREINSERTID"));
+            postInsertIdSql = nonBlank(sqlElement.getChildText("SQL-GET-POSTINSERTID"));
+            String block = nonBlank(sqlElement.getChildText("SQL-PREINSERTID-BLOCK"));
+            preInsertIdBlock = (block == null) ? 1 : Math.max(1, Integer.parseInt(block.trim()));
+        }
+
+        public String getInsertSql()
+        {
+            return insertSql;
+        }
+
+        public String getPreInsertIdSql()
+        {
+            return preInsertIdSql;
+        }
+
+        public String getPostInsertIdSql()
+        {
+            return postInsertIdSql;
+        }
+
+        public int getPreInsertIdBlock()
+        {
+            return preInsertIdBlock;
+        }
+
+        /**
+         * Returns the key generated by an insert prepared with
+         * <code>Statement.RETURN_GENERATED_KEYS</code>, or 0 if the driver
+         * returns none or it is not an integer (an Oracle ROWID, say).  The
+         * caller then falls back to the post insert id query.
+         */
+        public static int getGeneratedId(PreparedStatement pstmt)
+        {
+            ResultSet rs = null;
+            try {
+                rs = pstmt.getGeneratedKeys();
+                if (rs != null && rs.next())
+                    return rs.getInt(1);
+            } catch (SQLException e) {
+                // not supported by the driver
+            } finally {
+                try {
+                    if (rs != null)
+                        rs.close();
+                } catch (SQLException e) {
+                }
+            }
+            return 0;
+        }
+
+        private static String nonBlank(String s)
+        {
+            return (s == null || s.trim().length() == 0) ? null : s;
+        }
+    }
+
+    private SqlTemplateCache(IcsSqlXML icssql)
+        throws DatabaseException
+    {
+        this.icssql = icssql;
+        final int maxShapes = Math.max(1, ICSProperties.getInt("SQL_CACHE_SIZE", 256));
+        queries = new LinkedHashMap(16, 0.75f, true)
+        {
+            protected boolean removeEldestEntry(Map.Entry eldest)
+            {
+                if (size() <= maxShapes)
+                    return false;
+                evictions.incrementAndGet();
+                return true;
+            }
+        };
+
+        Element sqlElement = icssql.getElement("QUERY-GETPERSONS");
+        if (sqlElement == null)
+            throw new DatabaseException("Cannot retrieve QUERY-GETPERSONS from SQL XML");
+        String from = " " + sqlElement.getChildText("SQL-FROM") + " " +
+                      sqlElement.getChildText("SQL-JOIN") + " and ( ";
+        queryPrefixes[DatabaseServices.PROJECTION_FULL] = sqlElement.getChildText("SQL-SELECT") + from;
+        queryPrefixes[DatabaseServices.PROJECTION_MATCH] = prefix(sqlElement, "SQL-SELECT-MATCH", from);
+        String count = prefix(sqlElement, "SQL-SELECT-COUNT", from);
+        countPrefix = (count != null) ? count : DEFAULT_SELECT_COUNT + from;
+
+        insertPerson = new InsertTemplate(getElement("INSERT-PERSON"));
+        insertDocumentHeader = new InsertTemplate(getElement("INSERT-DOCUMENT-HEADER"));
+        insertPersonInfo = new InsertTemplate(getElement("INSERT-PERSON-INFO"));
+    }
+
+    /**
+     * Returns the cache of the shared IcsSql XML, creating it on first use.
+     */
+    public static synchronized SqlTemplateCache getInstance()
+        throws DatabaseException
+    {
+        if (instance == null)
+            instance = new SqlTemplateCache(IcsSqlXML.getInstance());
+        return instance;
+    }
+
+    /**
+     * Returns the QUERY-GETPERSONS SQL for the shape of the given
+     * parameters, rendering it on the first query of that shape.
+     */
+    public String getQuery(QueryParamList params)
+        throws DatabaseException
+    {
+        return getQuery(params, DatabaseServices.PROJECTION_FULL);
+    }
+
+    /**
+     * Returns whether the select list of a projection is configured.
+     */
+    public boolean hasProjection(int projection)
+    {
+        return projection >= 0 && projection < queryPrefixes.length &&
+               queryPrefixes[projection] != null;
+    }
+
+    /**
+     * Returns the QUERY-GETPERSONS SQL selecting the columns of the given
+     * projection for the shape of the given parameters, rendering it on the
+     * first query of that projection and shape.
+     */
+    public String getQuery(QueryParamList params, int projection)
+        throws DatabaseException
+    {
+        if (!hasProjection(projection))
+            throw new DatabaseException("No select list configured in QUERY-GETPERSONS for projection " + projection);
+
+        StringBuffer key = new StringBuffer();
+        key.append(projection).append(':');
+        appendShape(params, key);
+        String shape = key.toString();
+
+        String sql = lookup(shape);
+        if (sql != null)
+            return sql;
+
+        StringBuffer buf = new StringBuffer(queryPrefixes[projection]);
+        Sql.buildSql(icssql, params, buf);
+        // The sqlJOIN currently has a sub-select with an open left-paren.
+        // This is why we have an extraclose right-paren before the order
+        // by. It's a hack, but there you go.
+        buf.append(")) order by 1"); // order must be PERSON ID
+        sql = buf.toString();
+        store(shape, sql);
+        return sql;
+    }
+
+    /**
+     * Returns the SQL counting the distinct persons QUERY-GETPERSONS
+     * returns for the given parameters, rendering it on the first count
+     * of that shape.
+     */
+    public String getCountQuery(QueryParamList params)
+        throws DatabaseException
+    {
+        StringBuffer key = new StringBuffer("count:");
+        appendShape(params, key);
+        String shape = key.toString();
+
+        String sql = lookup(shape);
+        if (sql != null)
+            return sql;
+
+        StringBuffer buf = new StringBuffer(countPrefix);
+        Sql.buildSql(icssql, params, buf);
+        // close the sub-select of the sqlJOIN, no order by for a count
+        buf.append("))");
+        sql = buf.toString();
+        store(shape, sql);
+        return sql;
+    }
+
+    public InsertTemplate getInsertPerson()
+    {
+        return insertPerson;
+    }
+
+    public InsertTemplate getInsertDocumentHeader()
+    {
+        return insertDocumentHeader;
+    }
+
+    public InsertTemplate getInsertPersonInfo()
+    {
+        return insertPersonInfo;
+    }
+
+    /**
+     * Returns the number of query shapes cached.
+     */
+    public int size()
+    {
+        synchronized (queries) {
+            return queries.size();
+        }
+    }
+
+    /**
+     * Returns { hits, misses, evictions, size } of the query cache.
+     */
+    public long[] getStatistics()
+    {
+        return new long[] { hits.get(), misses.get(), evictions.get(), size() };
+    }
+
+    public void resetStatistics()
+    {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
+    private String lookup(String shape)
+    {
+        String sql;
+        synchronized (queries) {
+            sql = (String) queries.get(shape);
+        }
+        if (sql != null)
+            hits.incrementAndGet();
+        else
+            misses.incrementAndGet();
+        return sql;
+    }
+
+    private void store(String shape, String sql)
+    {
+        synchronized (queries) {
+            queries.put(shape, sql);
+        }
+    }
+
+    /**
+     * Appends a key identifying the SQL text the parameters render to:
+     * A(...) or O(...) for lists and attributeType:kind for each parameter,
+     * kind being R for ranges, D for dates, S for strings and V otherwise.
+     */
+    private static void appendShape(QueryParamList params, StringBuffer key)
+    {
+        key.append(params.getType() == QueryParamList.OR_LIST ? "O(" : "A(");
+        for (Iterator iter = params.iterator(); iter.hasNext(); ) {
+            Object p = iter.next();
+            if (p instanceof QueryParamList) {
+                appendShape((QueryParamList) p, key);
+            } else {
+                QueryParam param = (QueryParam) p;
+                Object value = param.getValue();
+                key.append(param.getAttributeType()).append(':');
+                if (value instanceof SearchRange)
+                    key.append('R');
+                else if (value instanceof java.util.Date)
+                    key.append('D');
+                else if (value instanceof String)
+                    key.append('S');
+                else
+                    key.append('V');
+            }
+            key.append(',');
+        }
+        key.append(')');
+    }
+
+    private static String prefix(Element sqlElement, String select, String from)
+    {
+        String text = sqlElement.getChildText(select);
+        return (text == null || text.trim().length() == 0) ? null : text + from;
+    }
+
+    private Element getElement(String name)
+        throws DatabaseException
+    {
+        Element sqlElement = icssql.getElement(name);
+        if (sqlElement == null)
+            throw new DatabaseException("Cannot retrieve " + name + " from SQL XML");
+        return sqlElement;
+    }
+}
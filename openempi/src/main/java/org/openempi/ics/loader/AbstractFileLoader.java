@@ -52,7 +52,13 @@ public abstract class AbstractFileLoader implements FileLoader
 					done = true;
 					continue;
 				}
-				Person person = processLine(line, lineIndex++);
+				Person person;
+				try {
+					person = processLine(line, lineIndex++);
+				} catch (RecordRejectedException e) {
+					log.warn("Failed to parse file line: " + line + " due to " + e.getMessage());
+					continue;
+				}
 				if (person == null) {
 					continue;
 				}
@@ -64,22 +70,47 @@ public abstract class AbstractFileLoader implements FileLoader
 		}
 	}
 
-	protected abstract Person processLine(String line, int lineIndex);
+	/**
+	 * Loads a file through the parallel {@link BulkImporter}, which can be
+	 * restarted where it stopped.
+	 */
+	public void importFile(File file) {
+		new BulkImporter(this).importFile(file);
+	}
+
+	/**
+	 * Parses a line of the input file.  Implementations must be thread
+	 * safe, as the bulk importer parses lines in parallel.
+	 *
+	 * @param line the line
+	 * @param lineIndex the number of the line, from 0
+	 * @return the person, or null for a line holding no record, such as a header
+	 * @throws RecordRejectedException when the line is not a valid record
+	 */
+	protected abstract Person processLine(String line, int lineIndex) throws RecordRejectedException;
 
 	private PersonIdService getPersonIdService() {
+		if (personIdService == null) {
+			personIdService = createPersonIdService();
+		}
+		return personIdService;
+	}
+
+	/**
+	 * Creates a new reference to the PersonIdService, one for each thread
+	 * of the bulk importer.
+	 */
+	protected PersonIdService createPersonIdService() {
 		try {
-			if (personIdService == null) {
-				personIdService = getPersonIdServiceHome().create();
-			}
+			return getPersonIdServiceHome().create();
 		} catch (Exception e) {
 			log.error("Failed while attempting to retrieve reference to the PersonIdService. Error: " + e);
 			throw new RuntimeException("Failed while obtaining reference to the Person Id Service.");
 		}
-		return personIdService;
 	}
 
 
-	private PersonIdServiceHome getPersonIdServiceHome() throws NamingException {
+	private synchronized PersonIdServiceHome getPersonIdServiceHome() throws NamingException {
 		if (personIdServiceHome == null) {
 			personIdServiceHome = getHome();
 		}
@@ -0,0 +1,554 @@
+package org.openempi.ics.loader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.openempi.data.Person;
+import org.openempi.data.PersonName;
+import org.openempi.data.SearchKeyGenerator;
+import org.openempi.data.SocialSecurityNumber;
+import org.openempi.ics.pids.PersonIdService;
+import org.openempi.ics.utility.ICSProperties;
+import org.openempi.ics.utility.metrics.Metrics;
+import org.openempi.ics.utility.metrics.Timer;
+
+/**
+ * Loads a large file of person records through a pipeline of threads:
+ * <ul>
+ * <li>the calling thread reads the file in chunks of IMPORT_CHUNK_LINES lines
+ * and hands each chunk to a pool of IMPORT_PARSE_THREADS parsers;</li>
+ * <li>a dispatcher takes the parsed chunks back in file order and routes each
+ * person to one of IMPORT_PARTITIONS matching threads by its blocking key,
+ * the Soundex of its surname, so that persons blocked together are matched
+ * one after the other, in file order, and do not race to create the same
+ * person twice;</li>
+ * <li>each matching thread sends its persons to the PersonIdService in
+ * batches of IMPORT_BATCH_SIZE, one remote call per batch.</li>
+ * </ul>
+ * The partitions follow the surname only, or the SSN of a person without a
+ * name.  Persons that block together through their SSN or their date of
+ * birth and ZIP code but whose surnames sound different may be matched at
+ * the same time by two threads, and both added when neither is stored yet;
+ * set IMPORT_PARTITIONS to 1 to load a file with such duplicates in file
+ * order.
+ * Progress is kept in <code>&lt;file&gt;.checkpoint</code>, which holds the
+ * first line not known to be loaded; a load that stops is resumed from there
+ * by running it again, and the checkpoint is deleted once the whole file is
+ * loaded.  Lines after the checkpoint that were loaded before the stop are
+ * loaded again and found by their identifier, so they are not duplicated.
+ * <p/>
+ * Records that cannot be parsed or are not valid are written to
+ * <code>&lt;file&gt;.rejects</code>, one per line: the line number, the
+ * reason and the record, separated by tabs.  Any other failure to add a
+ * batch, such as a database error, stops the load before the checkpoint
+ * passes the batch.  The throughput is logged every IMPORT_REPORT_SECS
+ * seconds.
+ */
+public class BulkImporter
+{
+	private static Logger log = Logger.getLogger(BulkImporter.class);
+
+	private static final Timer batchTimer = Metrics.timer("BulkImporter.addPersons");
+
+	/** Marks the end of the parsed chunks */
+	private static final Future<Chunk> END_OF_CHUNKS = new FutureTask<Chunk>(new Runnable() {
+		public void run() {
+		}
+	}, null);
+
+	/** Marks the end of the records of a partition */
+	private static final Record END_OF_RECORDS = new Record(null, -1, null);
+
+	private final AbstractFileLoader loader;
+	private int parseThreads = ICSProperties.getInt("IMPORT_PARSE_THREADS", Runtime.getRuntime().availableProcessors());
+	private int partitions = ICSProperties.getInt("IMPORT_PARTITIONS", 4);
+	private int batchSize = ICSProperties.getInt("IMPORT_BATCH_SIZE", 100);
+	private int chunkLines = ICSProperties.getInt("IMPORT_CHUNK_LINES", 1000);
+	private int reportSecs = ICSProperties.getInt("IMPORT_REPORT_SECS", 30);
+
+	private File file;
+	private File checkpointFile;
+	private Writer rejects;
+	private volatile Throwable failure;
+
+	private final AtomicLong read = new AtomicLong();
+	private final AtomicLong loaded = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/** The chunks done out of order, guarded by this */
+	private final TreeMap<Integer, Chunk> doneChunks = new TreeMap<Integer, Chunk>();
+	private int nextChunk = 0;
+	private volatile int checkpointLine = 0;
+
+	private long lastReportMillis;
+	private long lastReportLoaded;
+
+	public BulkImporter(AbstractFileLoader loader) {
+		this.loader = loader;
+	}
+
+	/**
+	 * Loads a file, resuming from its checkpoint if there is one.
+	 *
+	 * @param file the file to load
+	 * @throws RuntimeException when the load stops before the end of the file
+	 */
+	public void importFile(File file) {
+		this.file = file;
+		checkpointFile = new File(file.getPath() + ".checkpoint");
+		File rejectFile = new File(file.getPath() + ".rejects");
+		int startLine = readCheckpoint();
+		checkpointLine = startLine;
+		if (startLine > 0) {
+			log.info("Resuming the import of " + file + " at line " + startLine);
+		}
+
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			rejects = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(rejectFile, startLine > 0), "UTF-8"));
+		} catch (IOException e) {
+			closeQuietly(reader);
+			log.error("Unable to open the files of the import. Error: " + e);
+			throw new RuntimeException("Unable to open the files of the import of " + file + ".");
+		}
+
+		long startMillis = System.currentTimeMillis();
+		lastReportMillis = startMillis;
+		ExecutorService parsers = Executors.newFixedThreadPool(Math.max(1, parseThreads), daemonThreads("BulkImporter-parser"));
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(daemonThreads("BulkImporter-reporter"));
+		if (reportSecs > 0) {
+			reporter.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					report();
+				}
+			}, reportSecs, reportSecs, TimeUnit.SECONDS);
+		}
+
+		BlockingQueue<Future<Chunk>> parsed = new LinkedBlockingQueue<Future<Chunk>>(Math.max(1, parseThreads) * 2);
+		List<BlockingQueue<Record>> queues = new ArrayList<BlockingQueue<Record>>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < Math.max(1, partitions); i++) {
+			BlockingQueue<Record> queue = new LinkedBlockingQueue<Record>(batchSize * 2);
+			queues.add(queue);
+			threads.add(new Thread(new Matcher(queue), "BulkImporter-matcher-" + i));
+		}
+		threads.add(new Thread(new Dispatcher(parsed, queues), "BulkImporter-dispatcher"));
+		for (Thread thread : threads) {
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		try {
+			readChunks(reader, startLine, parsers, parsed);
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail(e);
+		} finally {
+			parsers.shutdownNow();
+			reporter.shutdownNow();
+			closeQuietly(reader);
+			closeQuietly(rejects);
+		}
+
+		long seconds = Math.max(1, (System.currentTimeMillis() - startMillis) / 1000);
+		if (failure != null) {
+			log.error("Import of " + file + " stopped at line " + checkpointLine + "; run it again to resume. Error: " + failure, failure);
+			throw new RuntimeException("Import of " + file + " stopped at line " + checkpointLine + ".");
+		}
+		checkpointFile.delete();
+		log.info("Imported " + file + ": " + read.get() + " lines read, " + loaded.get() + " persons loaded, "
+				+ rejected.get() + " rejected in " + seconds + "s, " + (loaded.get() / seconds) + " persons/s");
+	}
+
+	/**
+	 * Reads the lines after the checkpoint and submits them to the parsers
+	 * chunk by chunk.
+	 */
+	private void readChunks(BufferedReader reader, int startLine, ExecutorService parsers,
+			BlockingQueue<Future<Chunk>> parsed) throws InterruptedException {
+		int lineIndex = 0;
+		int chunkNumber = 0;
+		List<String> lines = new ArrayList<String>(chunkLines);
+		try {
+			String line;
+			while (failure == null && (line = reader.readLine()) != null) {
+				if (lineIndex++ < startLine) {
+					continue;
+				}
+				lines.add(line);
+				read.incrementAndGet();
+				if (lines.size() >= chunkLines) {
+					if (!put(parsed, parsers.submit(new Chunk(chunkNumber++, lineIndex - lines.size(), lines)))) {
+						return;
+					}
+					lines = new ArrayList<String>(chunkLines);
+				}
+			}
+			if (!lines.isEmpty()) {
+				put(parsed, parsers.submit(new Chunk(chunkNumber++, lineIndex - lines.size(), lines)));
+			}
+		} catch (IOException e) {
+			fail(e);
+		} finally {
+			put(parsed, END_OF_CHUNKS);
+		}
+	}
+
+	/**
+	 * Takes the parsed chunks in file order, rejects the records that could
+	 * not be parsed and routes the persons to the matchers.
+	 */
+	private class Dispatcher implements Runnable
+	{
+		private final BlockingQueue<Future<Chunk>> parsed;
+		private final List<BlockingQueue<Record>> queues;
+
+		Dispatcher(BlockingQueue<Future<Chunk>> parsed, List<BlockingQueue<Record>> queues) {
+			this.parsed = parsed;
+			this.queues = queues;
+		}
+
+		public void run() {
+			try {
+				while (failure == null) {
+					Future<Chunk> future = parsed.poll(1, TimeUnit.SECONDS);
+					if (future == null) {
+						continue;
+					}
+					if (future == END_OF_CHUNKS) {
+						break;
+					}
+					dispatch(future.get());
+				}
+				for (BlockingQueue<Record> queue : queues) {
+					put(queue, END_OF_RECORDS);
+				}
+			} catch (InterruptedException e) {
+				fail(e);
+			} catch (ExecutionException e) {
+				fail(e.getCause());
+			} catch (IOException e) {
+				fail(e);
+			} catch (RuntimeException e) {
+				fail(e);
+			}
+		}
+
+		private void dispatch(Chunk chunk) throws IOException, InterruptedException {
+			int persons = 0;
+			for (Record record : chunk.records) {
+				if (record.person != null) {
+					persons++;
+				}
+			}
+			chunk.pending.set(persons);
+			for (Record record : chunk.records) {
+				if (record.person == null) {
+					reject(record, record.reason);
+				} else if (!put(queues.get(partition(record)), record)) {
+					return;
+				}
+			}
+			if (persons == 0) {
+				chunkDone(chunk);
+			}
+		}
+
+		/**
+		 * Returns the partition of a person: the Soundex of its first
+		 * surname, else its SSN, else its line.
+		 */
+		private int partition(Record record) {
+			String key = null;
+			List names = record.person.getNames();
+			if (!names.isEmpty()) {
+				key = SearchKeyGenerator.getInstance().generateSoundexKey((PersonName) names.get(0));
+			}
+			if (key == null && !record.person.getSocialSecurityNumbers().isEmpty()) {
+				key = ((SocialSecurityNumber) record.person.getSocialSecurityNumbers().get(0)).getSSN();
+			}
+			int hash = (key == null) ? record.lineIndex : key.hashCode();
+			return (hash & Integer.MAX_VALUE) % queues.size();
+		}
+	}
+
+	/**
+	 * Adds the persons of a partition in batches.
+	 */
+	private class Matcher implements Runnable
+	{
+		private final BlockingQueue<Record> queue;
+
+		Matcher(BlockingQueue<Record> queue) {
+			this.queue = queue;
+		}
+
+		public void run() {
+			try {
+				PersonIdService service = loader.createPersonIdService();
+				List<Record> batch = new ArrayList<Record>(batchSize);
+				boolean end = false;
+				while (!end && failure == null) {
+					Record record = queue.poll(1, TimeUnit.SECONDS);
+					if (record == null) {
+						continue;
+					}
+					batch.add(record);
+					queue.drainTo(batch, batchSize - 1);
+					end = batch.remove(END_OF_RECORDS);
+					if (!batch.isEmpty()) {
+						load(service, batch);
+						batch.clear();
+					}
+				}
+			} catch (InterruptedException e) {
+				fail(e);
+			} catch (Exception e) {
+				fail(e);
+			}
+		}
+
+		private void load(PersonIdService service, List<Record> batch) throws Exception {
+			Person[] persons = new Person[batch.size()];
+			for (int i = 0; i < persons.length; i++) {
+				persons[i] = batch.get(i).person;
+			}
+			long start = System.nanoTime();
+			String[] errors = service.addPersons(persons);
+			batchTimer.update(System.nanoTime() - start);
+			for (int i = 0; i < errors.length; i++) {
+				if (errors[i] != null) {
+					reject(batch.get(i), errors[i]);
+				} else {
+					loaded.incrementAndGet();
+				}
+			}
+			for (Record record : batch) {
+				if (record.chunk.pending.decrementAndGet() == 0) {
+					chunkDone(record.chunk);
+				}
+			}
+		}
+	}
+
+	private void reject(Record record, String reason) throws IOException {
+		rejected.incrementAndGet();
+		String line = record.lineIndex + "\t" + reason.replace('\t', ' ').replace('\r', ' ').replace('\n', ' ')
+				+ "\t" + record.line + "\n";
+		synchronized (rejects) {
+			rejects.write(line);
+		}
+	}
+
+	/**
+	 * Moves the checkpoint past a chunk once every chunk before it is done.
+	 */
+	private synchronized void chunkDone(Chunk chunk) throws IOException {
+		doneChunks.put(chunk.number, chunk);
+		int line = -1;
+		while ((chunk = doneChunks.remove(nextChunk)) != null) {
+			line = chunk.endLine;
+			nextChunk++;
+		}
+		if (line >= 0) {
+			synchronized (rejects) {
+				rejects.flush();
+			}
+			writeCheckpoint(line);
+			checkpointLine = line;
+		}
+	}
+
+	private int readCheckpoint() {
+		if (!checkpointFile.exists()) {
+			return 0;
+		}
+		Properties properties = new Properties();
+		try {
+			InputStream in = new FileInputStream(checkpointFile);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+			return Integer.parseInt(properties.getProperty("line", "0"));
+		} catch (Exception e) {
+			log.error("Cannot read the checkpoint " + checkpointFile + ". Error: " + e);
+			throw new RuntimeException("Cannot read the checkpoint " + checkpointFile + ".");
+		}
+	}
+
+	/**
+	 * Writes the checkpoint to a temporary file then renames it, so a crash
+	 * leaves either the old or the new checkpoint.
+	 */
+	private void writeCheckpoint(int line) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("file", file.getPath());
+		properties.setProperty("line", Integer.toString(line));
+		File temp = new File(checkpointFile.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			properties.store(out, "First line not known to be loaded");
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(checkpointFile)) {
+			// renameTo does not replace an existing file on every platform
+			checkpointFile.delete();
+			if (!temp.renameTo(checkpointFile)) {
+				throw new IOException("Cannot write the checkpoint " + checkpointFile);
+			}
+		}
+	}
+
+	private void report() {
+		long now = System.currentTimeMillis();
+		long count = loaded.get();
+		long rate = (count - lastReportLoaded) * 1000 / Math.max(1, now - lastReportMillis);
+		lastReportMillis = now;
+		lastReportLoaded = count;
+		log.info("Importing " + file + ": " + read.get() + " lines read, " + count + " persons loaded, "
+				+ rejected.get() + " rejected, " + rate + " persons/s, checkpoint at line " + checkpointLine);
+	}
+
+	private void fail(Throwable e) {
+		synchronized (this) {
+			if (failure != null) {
+				return;
+			}
+			failure = e;
+		}
+		log.error("Import of " + file + " failed. Error: " + e, e);
+	}
+
+	/**
+	 * Puts an element in a bounded queue, waiting for room unless the
+	 * import fails.
+	 *
+	 * @return false if the import failed
+	 */
+	private <T> boolean put(BlockingQueue<T> queue, T element) {
+		try {
+			while (!queue.offer(element, 1, TimeUnit.SECONDS)) {
+				if (failure != null) {
+					return false;
+				}
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail(e);
+			return false;
+		}
+	}
+
+	private static void closeQuietly(java.io.Closeable closeable) {
+		if (closeable == null) {
+			return;
+		}
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			log.warn("Cannot close " + closeable + ". Error: " + e);
+		}
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * A chunk of consecutive lines, parsed into records by a parser thread.
+	 */
+	private class Chunk implements Callable<Chunk>
+	{
+		final int number;
+		final int endLine;
+		private final int firstLine;
+		private List<String> lines;
+		List<Record> records;
+		/** The persons of the chunk not yet added */
+		final AtomicInteger pending = new AtomicInteger();
+
+		Chunk(int number, int firstLine, List<String> lines) {
+			this.number = number;
+			this.firstLine = firstLine;
+			this.endLine = firstLine + lines.size();
+			this.lines = lines;
+		}
+
+		public Chunk call() {
+			records = new ArrayList<Record>(lines.size());
+			for (int i = 0; i < lines.size(); i++) {
+				Record record = new Record(this, firstLine + i, lines.get(i));
+				try {
+					record.person = loader.processLine(record.line, record.lineIndex);
+				} catch (RecordRejectedException e) {
+					record.reason = e.getMessage();
+				} catch (RuntimeException e) {
+					record.reason = e.toString();
+				}
+				if (record.person != null || record.reason != null) {
+					records.add(record);
+				}
+			}
+			lines = null;
+			return this;
+		}
+	}
+
+	private static class Record
+	{
+		final Chunk chunk;
+		final int lineIndex;
+		final String line;
+		Person person;
+		String reason;
+
+		Record(Chunk chunk, int lineIndex, String line) {
+			this.chunk = chunk;
+			this.lineIndex = lineIndex;
+			this.line = line;
+		}
+	}
+}
@@ -16,25 +16,33 @@ import org.apache.commons.lang.builder.ToStringBuilder;
 public class CDCFileLoader extends AbstractFileLoader
 {
 	private final static int MAX_FIELD_COUNT = 14;
-	private long id = 100000;
-	private long ssn = 555555555;
+	private final static long FIRST_ID = 100000;
+	private final static long FIRST_SSN = 555555555;
 	
-	protected Person processLine(String line, int lineIndex) {
+	/**
+	 * The identifier and SSN assigned to a record are derived from its line
+	 * number, so that lines can be parsed in parallel and a restarted load
+	 * assigns the same identifiers again.
+	 */
+	protected Person processLine(String line, int lineIndex) throws RecordRejectedException {
 		// Skip the first line since its a header.
 		if (lineIndex == 0) {
 			return null;
 		}
 		log.debug("Needs to parse the line " + line);
+		long id = FIRST_ID + lineIndex - 1;
+		long ssn = FIRST_SSN + lineIndex - 1;
 		try {
 			CDCPersonData cdcPerson = getCDCPerson(line);
-			Person person = createPerson("CDC", "CDC", new Long(id++).toString(), 
+			Person person = createPerson("CDC", "CDC", Long.toString(id), 
 					cdcPerson.getLastName(), cdcPerson.getFirstName(), cdcPerson.getSuffix(),
-					cdcPerson.getGender(), new Long(ssn++).toString(),
+					cdcPerson.getGender(), Long.toString(ssn),
 					cdcPerson.getDob());
 			return person;
 		} catch (ParseException e) {
-			log.warn("Failed to parse file line: " + line + " due to " + e);
-			return null;
+			throw new RecordRejectedException("Invalid date of birth: " + e.getMessage(), e);
+		} catch (RuntimeException e) {
+			throw new RecordRejectedException("Malformed record: " + e, e);
 		}
 	}
 
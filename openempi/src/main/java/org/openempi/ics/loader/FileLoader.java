@@ -8,5 +8,7 @@ public interface FileLoader
 {
 	public void parseFile(File file);
 	
+	public void importFile(File file);
+	
 	public void loadPerson(Person person);
 }
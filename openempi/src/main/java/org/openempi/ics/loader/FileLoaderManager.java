@@ -13,26 +13,35 @@ public class FileLoaderManager
 	}
 	
 	public void loadFile(String filename, String loaderAlias) {
+		loadFile(filename, loaderAlias, false);
+	}
+	
+	public void loadFile(String filename, String loaderAlias, boolean bulk) {
 		 File file = new File(filename);
 		 if (!file.isFile() || !file.canRead()) {
 			 log.error("Input file is not available.");
 			 throw new RuntimeException("Input file " + filename + " is not readable.");
 		 }
 		 FileLoader loader = FileLoaderFactory.getFileLoader(loaderAlias);
-		 loader.parseFile(file);
+		 if (bulk) {
+			 loader.importFile(file);
+		 } else {
+			 loader.parseFile(file);
+		 }
 	}
 	
 	public static void main(String[] args) {
-		if (args.length != 2) {
+		if (args.length < 2 || args.length > 3 || (args.length == 3 && !args[2].equals("bulk"))) {
 			usage();
 			System.exit(-1);
 		}
 		String filename = args[0];
 		String loaderAlias = args[1];
-		log.info("Loading the data file " + filename + " using loader " + loaderAlias);
+		boolean bulk = (args.length == 3);
+		log.info("Loading the data file " + filename + " using loader " + loaderAlias + (bulk ? " in bulk" : ""));
 		FileLoaderManager fileLoaderManager = new FileLoaderManager();
 		fileLoaderManager.setup();
-		fileLoaderManager.loadFile(filename, loaderAlias);
+		fileLoaderManager.loadFile(filename, loaderAlias, bulk);
 
 	}
 
@@ -40,7 +49,7 @@ public class FileLoaderManager
 	}
 	
 	public static void usage() {
-		System.out.println("Usage: " + FileLoaderManager.class.getName() + " <file-to-loader> <loader-alias>");
+		System.out.println("Usage: " + FileLoaderManager.class.getName() + " <file-to-loader> <loader-alias> [bulk]");
 	}
 
 }
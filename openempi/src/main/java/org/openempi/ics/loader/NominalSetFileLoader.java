@@ -19,26 +19,34 @@ import org.apache.commons.lang.builder.ToStringBuilder;
 public class NominalSetFileLoader extends AbstractFileLoader
 {
 	private final static int MAX_FIELD_COUNT = 14;
-	private long id = 100000;
-	private long ssn = 555555555;
+	private final static long FIRST_ID = 100000;
+	private final static long FIRST_SSN = 555555555;
 	
-	protected Person processLine(String line, int lineIndex) {
+	/**
+	 * The identifier and SSN assigned to a record are derived from its line
+	 * number, so that lines can be parsed in parallel and a restarted load
+	 * assigns the same identifiers again.
+	 */
+	protected Person processLine(String line, int lineIndex) throws RecordRejectedException {
 		// Skip the first line since its a header.
 		if (lineIndex == 0) {
 			return null;
 		}
 		log.debug("Needs to parse the line " + line);
+		long id = FIRST_ID + lineIndex - 1;
+		long ssn = FIRST_SSN + lineIndex - 1;
 		try {
 			PersonData cdcPerson = getPerson(line);
-			Person person = createPerson("Nominal", "Nominal", new Long(id++).toString(), cdcPerson.getAddressOne(),
+			Person person = createPerson("Nominal", "Nominal", Long.toString(id), cdcPerson.getAddressOne(),
 					cdcPerson.getAddressTwo(), cdcPerson.getCity(), cdcPerson.getState(), cdcPerson.getZip(),
 					cdcPerson.getLastName(), cdcPerson.getFirstName(), "",
-					cdcPerson.getGender(), new Long(ssn++).toString(),
+					cdcPerson.getGender(), Long.toString(ssn),
 					cdcPerson.getDob(), cdcPerson.getAreaCode(), cdcPerson.getPhoneNum());
 			return person;
 		} catch (ParseException e) {
-			log.warn("Failed to parse file line: " + line + " due to " + e);
-			return null;
+			throw new RecordRejectedException("Invalid date of birth: " + e.getMessage(), e);
+		} catch (RuntimeException e) {
+			throw new RecordRejectedException("Malformed record: " + e, e);
 		}
 	}
 
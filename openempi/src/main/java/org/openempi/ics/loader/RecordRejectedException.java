@@ -0,0 +1,18 @@
+package org.openempi.ics.loader;
+
+/**
+ * Thrown by a file loader for a line that does not hold a valid person
+ * record.  The message is the reason written to the reject file.
+ */
+public class RecordRejectedException extends Exception
+{
+	private static final long serialVersionUID = 1L;
+
+	public RecordRejectedException(String reason) {
+		super(reason);
+	}
+
+	public RecordRejectedException(String reason, Throwable cause) {
+		super(reason, cause);
+	}
+}
@@ -35,6 +35,9 @@ public interface IdentityService
    public List findCandidates(Person person, double confidence, int max)
       throws org.openempi.ics.pids.IdentityServiceException, java.rmi.RemoteException;
 
+   public org.openempi.ics.ccs.RankedCandidates findRankedCandidates(Person person, double minScore, int max)
+      throws org.openempi.ics.pids.IdentityServiceException, java.rmi.RemoteException;
+
    public List getProfileList(List identifiers)
       throws org.openempi.ics.pids.IdentityServiceException, java.rmi.RemoteException;
 
@@ -17,11 +17,13 @@ import org.openempi.data.Person;
 import org.openempi.data.PersonIdentifier;
 import org.openempi.ics.ccs.CorrelationSystem;
 import org.openempi.ics.ccs.LookUpObj;
+import org.openempi.ics.ccs.RankedCandidates;
 import org.openempi.ics.db.AttributeType;
 import org.openempi.ics.db.DatabaseServices;
 import org.openempi.ics.db.DatabaseServicesFactory;
 import org.openempi.ics.db.QueryParamList;
 import org.openempi.ics.utility.ICSProperties;
+import org.openempi.ics.utility.IcsTrace;
 import org.openempi.ics.utility.Profile;
 
 
@@ -42,6 +44,13 @@ public class IdentityServiceBean implements SessionBean {
 	 */
 	private final static long QUERY_SESSION_TIMEOUT = 300000;
 
+	/**
+	 * Number of persons read by each query of findRankedCandidates().  The
+	 * last query is padded to this size so that every query has the same
+	 * SQL text.
+	 */
+	private final static int FETCH_CHUNK_SIZE = 20;
+
 	/**
 	 * A Map containing the LookUpObjs initiated by this session. This is
 	 * transient because the objects contain DB state information which is not
@@ -62,6 +71,9 @@ public class IdentityServiceBean implements SessionBean {
 
 	private Logger log = Logger.getLogger(IdentityServiceBean.class);
 
+	/**
+	 * The CorrelationSystem of the searches not traced.
+	 */
 	private CorrelationSystem corrSys = new CorrelationSystem();
 
 	private SessionContext ctx;
@@ -166,7 +178,7 @@ public class IdentityServiceBean implements SessionBean {
 		List candidates = null;
 
 		try {
-			List matches = corrSys.lookUp(person, confidence, max);
+			List matches = correlationSystem().lookUp(person, confidence, max);
 
 			if (matches.size() > 0)
 				candidates = matches;
@@ -185,13 +197,92 @@ public class IdentityServiceBean implements SessionBean {
 		return candidates;
 	}
 	
+	/**
+	 * @ejb.interface-method
+	 * 		view-type="remote"
+	 * 
+	 * Finds the best candidates for a search, ranked by search score, and
+	 * the number of persons the search matched in total.  Only the returned
+	 * candidates are read in full.
+	 * 
+	 * @param person the search criteria
+	 * @param minScore the lowest search score (0 - 1) returned
+	 * @param max the maximum number of candidates returned, 0 for no limit
+	 * @return the ranked candidates
+	 * @see CorrelationSystem#lookUpRanked(Person, double, int)
+	 */
+	public RankedCandidates findRankedCandidates(Person person, double minScore, int max)
+			throws EJBException, IdentityServiceException {
+		Profile.begin("IdentityServiceBean.findRankedCandidates");
+		log.debug("findRankedCandidates(): person = " + person + ", minScore = "
+				+ minScore + ", max = " + max);
+		RankedCandidates ranked = null;
+
+		try {
+			ranked = correlationSystem().lookUpRanked(person, minScore, max);
+
+			// the ranked candidates hold the matched columns only, read
+			// the ones not cached in chunks of FETCH_CHUNK_SIZE
+			List candidates = ranked.getCandidates();
+			Person[] persons = new Person[candidates.size()];
+			List missing = new ArrayList();
+			for (int i = 0; i < persons.length; i++) {
+				int oid = Integer.parseInt(((Person) candidates.get(i)).getOid());
+				persons[i] = idCache.getOid(oid);
+				if (persons[i] == null)
+					missing.add(new Integer(oid));
+			}
+			if (missing.size() > 0) {
+				DatabaseServices dbServices = DatabaseServicesFactory.getInstance();
+				HashMap read = new HashMap();
+				for (int start = 0; start < missing.size(); start += FETCH_CHUNK_SIZE) {
+					QueryParamList params = new QueryParamList(QueryParamList.OR_LIST);
+					for (int i = 0; i < FETCH_CHUNK_SIZE; i++) {
+						// repeat the last oid to pad the last chunk
+						int index = Math.min(start + i, missing.size() - 1);
+						params.add(AttributeType.PERSON_OID, ((Integer) missing.get(index)).intValue());
+					}
+					for (Iterator iter = dbServices.query(params).iterator(); iter.hasNext(); ) {
+						Person p = (Person) iter.next();
+						// not cached: a search page is read once, and would
+						// evict the persons the feeds look up
+						read.put(p.getOid(), p);
+					}
+				}
+				for (int i = 0; i < persons.length; i++) {
+					if (persons[i] == null)
+						persons[i] = (Person) read.get(((Person) candidates.get(i)).getOid());
+				}
+			}
+			RankedCandidates full = new RankedCandidates();
+			for (int i = 0; i < persons.length; i++) {
+				// null if the person was removed since it was ranked
+				if (persons[i] != null)
+					full.add(persons[i], ranked.getScore(i));
+			}
+			full.setTotalCount(ranked.getTotalCount());
+			ranked = full;
+		} catch (java.security.AccessControlException acc) {
+			throw acc;
+		} catch (Exception e) {
+			log.error(e, e);
+			throw new IdentityServiceException(e);
+		} finally {
+			Profile.end("IdentityServiceBean.findRankedCandidates");
+		}
+
+		log.debug("findRankedCandidates(): candidates.size() = " + ranked.getCandidates().size()
+				+ ", total = " + ranked.getTotalCount());
+		return ranked;
+	}
+
 	public List findPersons(Person person) throws EJBException, IdentityServiceException {
 		Profile.begin("IdentityServiceBean.findPersons");
 		log.debug("findPersons(): person = " + person);
 		List candidates = null;
 
 		try {
-			List matches = corrSys.lookUp(person);
+			List matches = correlationSystem().lookUp(person);
 
 			if (matches.size() > 0)
 				candidates = matches;
@@ -203,7 +294,7 @@ public class IdentityServiceBean implements SessionBean {
 			log.error(e, e);
 			throw new IdentityServiceException(e);
 		} finally {
-			Profile.end("IdentityServiceBean.findCandidates");
+			Profile.end("IdentityServiceBean.findPersons");
 		}
 
 		log.debug("findPersons(): persons.size() = " + candidates.size());
@@ -355,7 +446,7 @@ public class IdentityServiceBean implements SessionBean {
 		if (queryObj != null)
 			corrSys.lookUpEnd(queryObj);
 
-		queryObj = corrSys.lookUpStart(person, confidence);
+		queryObj = correlationSystem().lookUpStart(person, confidence);
 		Integer refInt = new Integer(ref);
 		queryMap.put(refInt, queryObj);
 		Timeout timeout = new Timeout(ref, QUERY_SESSION_TIMEOUT);
@@ -536,6 +627,15 @@ public class IdentityServiceBean implements SessionBean {
 
 	}
 
+	/**
+	 * Returns a CorrelationSystem tracing into the trace of the transaction
+	 * of the calling thread if it is recorded, the shared one otherwise.
+	 */
+	private CorrelationSystem correlationSystem() {
+		IcsTrace trace = IcsTrace.current();
+		return trace.isRecording() ? new CorrelationSystem(trace) : corrSys;
+	}
+
 	public void ejbActivate() throws EJBException, RemoteException {
 		log = Logger.getLogger("ICS");
 		idCache = PersonCache.getInstance();
@@ -1,7 +1,10 @@
 package org.openempi.ics.pids;
 
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.openempi.data.DomainIdentifier;
 import org.openempi.data.Person;
@@ -14,12 +17,73 @@ import org.openempi.ics.utility.Profile;
  * Derived implementation of the Cache class to add Person specific handling.
  * This adds methods specific to the needs of ICS for managing the Cache
  * of PersonIdentifiers.
+ * <p/>
+ * Lookups by identifier are keyed on the id, assigning authority and
+ * assigning facility of the PersonIdentifier.  The identifier entries each
+ * person appears in are indexed by the person's oid, so removing a person
+ * also drops the entries of identifiers it no longer carries, as after a
+ * merge or a split.  An identifier entry weighs the number of persons it
+ * holds, for CACHE_MAX_WEIGHT; the persons cached by oid weigh 1 each, so
+ * CACHE_MAX_WEIGHT also caps their number.
  */
 public class PersonCache
 {
     private static Cache pidCache = null;
     private static Cache oidCache = null;
     private static PersonCache instance = null;
+
+    // oid -> Set of PidKey whose cached List contains the person
+    private static final ConcurrentHashMap pidsByOid = new ConcurrentHashMap();
+
+    /**
+     * The identifier cache key: id, assigning authority namespace and
+     * assigning facility namespace, any of which may be null.
+     */
+    private static final class PidKey
+    {
+        private final String id;
+        private final String domain;
+        private final String facility;
+        private final int hash;
+
+        PidKey(String id, String domain, String facility)
+        {
+            this.id = id;
+            this.domain = domain;
+            this.facility = facility;
+            this.hash = 31 * (31 * hashCode(id) + hashCode(domain)) + hashCode(facility);
+        }
+
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (!(o instanceof PidKey))
+                return false;
+            PidKey k = (PidKey) o;
+            return equals(id, k.id) && equals(domain, k.domain) && equals(facility, k.facility);
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public String toString()
+        {
+            return id + ":" + domain + ":" + facility;
+        }
+
+        private static int hashCode(String s)
+        {
+            return (s == null) ? 0 : s.hashCode();
+        }
+
+        private static boolean equals(String a, String b)
+        {
+            return (a == null) ? b == null : a.equals(b);
+        }
+    }
     
     private PersonCache()
     {
@@ -31,14 +95,30 @@ public class PersonCache
         // sure proper initialization has occurred of logging facilities
         if (instance == null)
         {
+            int maxWeight = ICSProperties.getInt("CACHE_MAX_WEIGHT", 0);
             pidCache = new Cache();
             pidCache.setSize(ICSProperties.getInt("CACHE_SIZE", 1000));
-            pidCache.setAgeMillis(ICSProperties.getInt("CACHE_AGE_SECS", 3600) * 1000);
+            pidCache.setAgeMillis(ICSProperties.getInt("CACHE_AGE_SECS", 3600) * 1000L);
             pidCache.setLRU(false);
+            pidCache.setWeigher(new Cache.Weigher() {
+                public int weigh(Object key, Object value)
+                {
+                    return Math.max(1, ((List) value).size());
+                }
+            });
+            pidCache.setMaxWeight(maxWeight);
+            pidCache.setRemovalListener(new Cache.RemovalListener() {
+                public void removed(Object key, Object value)
+                {
+                    unindex(key, (List) value);
+                }
+            });
             oidCache = new Cache();
             oidCache.setSize(ICSProperties.getInt("CACHE_SIZE", 1000));
-            oidCache.setAgeMillis(ICSProperties.getInt("CACHE_AGE_SECS", 3600) * 1000);
+            oidCache.setAgeMillis(ICSProperties.getInt("CACHE_AGE_SECS", 3600) * 1000L);
             oidCache.setLRU(false);
+            // no weigher: each person weighs 1
+            oidCache.setMaxWeight(maxWeight);
             
             instance = new PersonCache();
         }
@@ -49,6 +129,7 @@ public class PersonCache
     {
         pidCache.clear();
         oidCache.clear();
+        pidsByOid.clear();
     }
     
     public List getPid(PersonIdentifier pid)
@@ -70,8 +151,13 @@ public class PersonCache
     public void put(PersonIdentifier pid, List val)
     {
         Profile.begin("PersonCache.put");
-        pidCache.put(getKey(pid), val);
+        PidKey key = getKey(pid);
+        // index first, so a remove() racing with this put finds the key
         Iterator iter = val.iterator();
+        while(iter.hasNext())
+            index(((Person) iter.next()).getOid(), key);
+        pidCache.put(key, val);
+        iter = val.iterator();
         while(iter.hasNext())
         {
             Person p = (Person) iter.next();
@@ -93,7 +179,17 @@ public class PersonCache
         Iterator ids = p.getPersonIdentifiers().iterator();
         while (ids.hasNext())
             pidCache.remove(getKey((PersonIdentifier) ids.next()));
-        oidCache.remove(p.getOid());
+        if (p.getOid() != null)
+        {
+            Set keys = (Set) pidsByOid.remove(p.getOid());
+            if (keys != null)
+            {
+                Iterator iter = keys.iterator();
+                while (iter.hasNext())
+                    pidCache.remove(iter.next());
+            }
+            oidCache.remove(p.getOid());
+        }
         Profile.end("PersonCache.remove");
     }
     
@@ -103,7 +199,57 @@ public class PersonCache
             remove(persons[i]);
     }
     
-    private String getKey(PersonIdentifier pid)
+    /**
+     * Returns { hits, misses, evictions, expirations } of the identifier
+     * cache.
+     */
+    public long[] getPidStatistics()
+    {
+        return pidCache.getStatistics();
+    }
+
+    /**
+     * Returns { hits, misses, evictions, expirations } of the oid cache.
+     */
+    public long[] getOidStatistics()
+    {
+        return oidCache.getStatistics();
+    }
+
+    private static void index(String oid, PidKey key)
+    {
+        if (oid == null)
+            return;
+        Set keys = (Set) pidsByOid.get(oid);
+        if (keys == null)
+        {
+            Set created = Collections.newSetFromMap(new ConcurrentHashMap());
+            keys = (Set) pidsByOid.putIfAbsent(oid, created);
+            if (keys == null)
+                keys = created;
+        }
+        keys.add(key);
+    }
+
+    private static void unindex(Object key, List val)
+    {
+        Iterator iter = val.iterator();
+        while (iter.hasNext())
+        {
+            String oid = ((Person) iter.next()).getOid();
+            if (oid == null)
+                continue;
+            Set keys = (Set) pidsByOid.get(oid);
+            if (keys != null)
+            {
+                keys.remove(key);
+                if (keys.isEmpty())
+                    pidsByOid.remove(oid, keys);
+            }
+        }
+    }
+
+    private PidKey getKey(PersonIdentifier pid)
     {
         DomainIdentifier did;
         String id = pid.getId();
@@ -115,7 +261,7 @@ public class PersonCache
         if ((did = pid.getAssigningFacility()) != null)
             facility = did.getNameSpaceID();
         
-        return id + ":" + domain + ":" + facility;
+        return new PidKey(id, domain, facility);
     }
     
 }
@@ -13,6 +13,9 @@ public interface PersonIdService
    public org.openempi.data.Person addPerson(org.openempi.data.Person person)
       throws org.openempi.ics.pids.PersonIdServiceException, java.rmi.RemoteException;
 
+   public java.lang.String[] addPersons(org.openempi.data.Person[] persons)
+      throws org.openempi.ics.pids.PersonIdServiceException, java.rmi.RemoteException;
+
    public boolean removePerson(org.openempi.data.Person person)
       throws org.openempi.ics.pids.PersonIdServiceException, java.rmi.RemoteException;
 
@@ -34,6 +34,7 @@ import org.openempi.data.PersonIdentifier;
 import org.openempi.data.PersonName;
 import org.openempi.data.PersonReview;
 import org.openempi.ics.ccs.CorrelationSystem;
+import org.openempi.ics.ccs.FellegiSunterScorer;
 import org.openempi.ics.db.AttributeType;
 import org.openempi.ics.db.DatabaseException;
 import org.openempi.ics.db.DatabaseServices;
@@ -41,6 +42,7 @@ import org.openempi.ics.db.DatabaseServicesFactory;
 import org.openempi.ics.db.QueryParamList;
 import org.openempi.ics.utility.ICSProperties;
 import org.openempi.ics.utility.IcsTrace;
+import org.openempi.ics.utility.JdbcHelper;
 import org.openempi.ics.utility.JndiHelper;
 import org.openempi.ics.utility.Profile;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -127,11 +129,43 @@ public class PersonIdServiceBean implements SessionBean {
 		return addPerson(person, false);
 	}
 
+	/**
+	 * Adds each person of a batch as addPerson() does, so that a bulk load
+	 * makes one remote call per batch rather than one per person.  A person
+	 * that is not valid is reported and does not stop the others.  Any other
+	 * failure, such as a database error, is thrown and leaves the rest of
+	 * the batch unadded; adding the batch again finds the persons already
+	 * added by their identifiers.
+	 *
+	 * @return the validation error of each person, null for those added
+	 * @ejb.interface-method
+	 * 		view-type="remote"
+	 */
+	public String[] addPersons(Person[] persons) throws EJBException,
+			PersonIdServiceException {
+		Profile.begin("PersonIdServiceBean.addPersons");
+		try {
+			String[] errors = new String[persons.length];
+			for (int i = 0; i < persons.length; i++) {
+				try {
+					persons[i].isValid();
+				} catch (IllegalArgumentException e) {
+					errors[i] = String.valueOf(e.getMessage());
+					continue;
+				}
+				addPerson(persons[i], false);
+			}
+			return errors;
+		} finally {
+			Profile.end("PersonIdServiceBean.addPersons");
+		}
+	}
+
 	private Person addPerson(Person person, boolean eidcheck)
 			throws EJBException, PersonIdServiceException {
 		try {
 			person.isValid();
-			IcsTrace trace = new IcsTrace(IcsTrace.ADD_PERSON, person);
+			IcsTrace trace = IcsTrace.open(IcsTrace.ADD_PERSON, person);
 			Person toreturn = savePerson(person, trace);
 			trace.save();
 			if (eidcheck) {
@@ -231,7 +265,7 @@ public class PersonIdServiceBean implements SessionBean {
 		try {
 			person.isValid();
 			Person toreturn;
-			IcsTrace trace = new IcsTrace(IcsTrace.UPDATE_PERSON, person);
+			IcsTrace trace = IcsTrace.open(IcsTrace.UPDATE_PERSON, person);
 			// boolean success = savePerson(person, trace);
 
 			toreturn = updatePerson(person, trace);
@@ -273,36 +307,9 @@ public class PersonIdServiceBean implements SessionBean {
 			CorrelationSystem correlationSystem = new CorrelationSystem(trace);
 			matches = correlationSystem.query(person);
 
-			if ((matches != null) && (matches.size() > 0)) {
-
-				for (Iterator iter = matches.iterator(); iter.hasNext();) {
-
-					Person dupe = (Person) iter.next();
-					if (trace.isEnabled()) {
-						trace.add("Possible Match found with Person:");
-						trace.add(dupe, true);
-					}
-
-					// If there is a match based on the demographics based on the
-					// matching algorithm used, then we need to add the patient to the database in
-					// association with the matching patient.
-					//
-					if (correlationSystem.match(person, dupe)) {
-						log.debug("Need to build an association between " + person + " and " + dupe);
-						DocumentHeader dupeDocHeader = (DocumentHeader) dupe.getDocumentHeaders().get(0);
-						log.debug("The DH ID of the dupe is " + dupeDocHeader.getOid());
-						DocumentHeader personDocHeader = (DocumentHeader) person.getDocumentHeaders().get(0);
-						log.debug("The DH ID of the person is " + personDocHeader.getOid());
-						personDocHeader.setOid(dupeDocHeader.getOid());
-						dbServices.addPersonInfo(person);
-						break;
-					}
-				}
-			} else {
-				// Here we need to add the person in the database since the
-				// patient is not in the system yet.
-				dbServices.addPerson(person);
-			}
+			List changed = new ArrayList();
+			correlate(person, matches, correlationSystem, dbServices, trace, changed);
+			idCache.remove((Person[]) changed.toArray(new Person[changed.size()]));
 		} catch (Exception e) {
 			e.printStackTrace();
 			log.error(e, e);
@@ -314,9 +321,17 @@ public class PersonIdServiceBean implements SessionBean {
 		return toreturn;
 	}
 
+	/**
+	 * Removes the stored alias of the person and correlates the person again.
+	 * The removal, the correlation queries and the re-add all run in one
+	 * transaction on the connection of this thread, so a failure part way
+	 * through rolls back the removal rather than losing the person.  The
+	 * cached persons are dropped once the transaction is committed, so that
+	 * a concurrent lookup cannot cache them again as they were before it.
+	 */
 	private Person updatePerson(Person person, IcsTrace trace) throws RemoteException,
 			PersonIdServiceException {
-		Profile.begin("PersonIdServiceBean.savePerson");
+		Profile.begin("PersonIdServiceBean.updatePerson");
 
 		int personId;
 		Person toreturn = null;
@@ -326,8 +341,10 @@ public class PersonIdServiceBean implements SessionBean {
 		// IdentityService IDS;
 		try {
 			// IDS = _idshome.create();
+			JdbcHelper.beginTransaction();
 			Person foundPerson = checkForExactPIDMatch(person, trace);
 			if (foundPerson == null) {
+				JdbcHelper.commitTransaction();
 				return person;
 			}
 			
@@ -342,6 +359,8 @@ public class PersonIdServiceBean implements SessionBean {
 			} else {
 				dbServices.removeObject(foundPerson.getOid());
 			}
+			List changed = new ArrayList();
+			changed.add(foundPerson);
 
 			Collection matches = null;
 			SortedMap matchMap = null;
@@ -351,53 +370,104 @@ public class PersonIdServiceBean implements SessionBean {
 			CorrelationSystem correlationSystem = new CorrelationSystem(trace);
 			matches = correlationSystem.query(person);
 
-			if ((matches != null) && (matches.size() > 0)) {
-
-				for (Iterator iter = matches.iterator(); iter.hasNext();) {
-
-					Person dupe = (Person) iter.next();
-					if (trace.isEnabled()) {
-						trace.add("Possible Match found with Person:");
-						trace.add(dupe, true);
-					}
-
-					// If there is a match based on the demographics based on the
-					// matching algorithm used, then we need to add the patient to the database in
-					// association with the matching patient.
-					//
-					if (correlationSystem.match(person, dupe)) {
-						log.debug("Need to build an association between " + person + " and " + dupe);
-						DocumentHeader dupeDocHeader = (DocumentHeader) dupe.getDocumentHeaders().get(0);
-						log.debug("The DH ID of the dupe is " + dupeDocHeader.getOid());
-						DocumentHeader personDocHeader = (DocumentHeader) person.getDocumentHeaders().get(0);
-						log.debug("The DH ID of the person is " + personDocHeader.getOid());
-						personDocHeader.setOid(dupeDocHeader.getOid());
-						dbServices.addPersonInfo(person);
-						break;
-					}
-				}
-			} else {
-				// Here we need to add the person in the database since the
-				// patient is not in the system yet.
-				dbServices.addPerson(person);
-			}
+			correlate(person, matches, correlationSystem, dbServices, trace, changed);
+			JdbcHelper.commitTransaction();
+			idCache.remove((Person[]) changed.toArray(new Person[changed.size()]));
 		} catch (Exception e) {
 			e.printStackTrace();
 			log.error(e, e);
 			throw new PersonIdServiceException(e.getMessage());
 		} finally {
-			Profile.end("PersonIdServiceBean.savePerson");
+			// no-op once committed
+			JdbcHelper.rollbackTransaction();
+			Profile.end("PersonIdServiceBean.updatePerson");
 		}
 		// return success;
 		return toreturn;
 	}
 
+	/**
+	 * Links the person to the first correlation candidate classified as a
+	 * LINK.  If there is none the person is added as a new person, and any
+	 * candidates falling between the Fellegi-Sunter thresholds are submitted
+	 * to the review queue together with it.  The persons changed are added
+	 * to <code>changed</code>, for the caller to drop from the cache once
+	 * the changes are committed.
+	 */
+	private void correlate(Person person, Collection matches, CorrelationSystem correlationSystem,
+			DatabaseServices dbServices, IcsTrace trace, List changed) throws DatabaseException,
+			RemoteException, PersonIdServiceException {
+		List reviews = new ArrayList();
+		long stage = trace.startStage();
+
+		if (matches != null) {
+			for (Iterator iter = matches.iterator(); iter.hasNext();) {
+
+				Person dupe = (Person) iter.next();
+				if (trace.isRecording()) {
+					trace.add("Possible Match found with Person:");
+					trace.add(dupe, true);
+				}
+
+				// If there is a match based on the demographics based on the
+				// matching algorithm used, then we need to add the patient to the database in
+				// association with the matching patient.
+				//
+				int decision = correlationSystem.decide(person, dupe);
+				if (decision == FellegiSunterScorer.LINK) {
+					log.debug("Need to build an association between " + person + " and " + dupe);
+					DocumentHeader dupeDocHeader = (DocumentHeader) dupe.getDocumentHeaders().get(0);
+					log.debug("The DH ID of the dupe is " + dupeDocHeader.getOid());
+					DocumentHeader personDocHeader = (DocumentHeader) person.getDocumentHeaders().get(0);
+					log.debug("The DH ID of the person is " + personDocHeader.getOid());
+					personDocHeader.setOid(dupeDocHeader.getOid());
+					trace.endStage("match_loop", stage);
+					stage = trace.startStage();
+					dbServices.addPersonInfo(person);
+					trace.endStage("insert", stage);
+					// drops the identifiers of person cached as not found
+					changed.add(person);
+					changed.add(dupe);
+					return;
+				}
+				if (decision == FellegiSunterScorer.REVIEW) {
+					reviews.add(dupe);
+				}
+			}
+		}
+
+		trace.endStage("match_loop", stage);
+
+		// Here we need to add the person in the database since the
+		// patient is not in the system yet.
+		stage = trace.startStage();
+		person.setOid(dbServices.addPerson(person));
+		trace.endStage("insert", stage);
+		changed.add(person);
+
+		if (reviews.size() > 0) {
+			String description = "Possible duplicate person (Fellegi-Sunter review)";
+			if (!new ReviewQueue().exists(description, person)) {
+				PersonReview r = new PersonReview();
+				r.setDescr(description);
+				r.setUserId("System");
+				r.addPerson(person);
+				r.addPersons(reviews);
+				submitReview(r);
+				log.debug("Possible duplicate PersonReview sent for " + person + " with "
+						+ reviews.size() + " candidates");
+			}
+		}
+	}
+
 	private Person checkForExactPIDMatch(Person person, IcsTrace trace) {
 		Collection matches;
 		SortedMap matchMap;
 		// Step 1: Check for PID match
 		trace.add("Checking for PID match");
+		long stage = trace.startStage();
 		matchMap = searchByPID(person, trace);
+		trace.endStage("pid_search", stage);
 		matches = matchMap.values();
 		
 		// If we get an exact match based on the PID, then the patient
@@ -405,7 +475,7 @@ public class PersonIdServiceBean implements SessionBean {
 		// so we are done.
 		if (matches.size() > 0) {
 			// Special logic to merge with best pid match
-			if (trace.isEnabled()) {
+			if (trace.isRecording()) {
 				trace.add("PID matches found: " + matches.size());
 				Iterator vals = matchMap.values().iterator();
 				while (vals.hasNext()) {
@@ -428,8 +498,13 @@ public class PersonIdServiceBean implements SessionBean {
 
 		try {
 			DatabaseServices dbServices = DatabaseServicesFactory.getInstance();
+			Person merged = dbServices.mergePersons(persons);
+			// after the database change, so a concurrent lookup cannot
+			// cache the persons as they were before the merge
 			idCache.remove(persons);
-			return dbServices.mergePersons(persons);
+			if (merged != null)
+				idCache.remove(merged);
+			return merged;
 		} catch (DatabaseException dbe) {
 			// Log the exception.
 			log.error(dbe, dbe);
@@ -448,8 +523,9 @@ public class PersonIdServiceBean implements SessionBean {
 
 		try {
 			DatabaseServices dbServices = DatabaseServicesFactory.getInstance();
+			int newPersonId = dbServices.splitPerson(person, docHeaders);
 			idCache.remove(person);
-			return dbServices.splitPerson(person, docHeaders);
+			return newPersonId;
 		} catch (DatabaseException dbe) {
 			// Log the exception.
 			log.error(dbe, dbe);
@@ -493,7 +569,7 @@ public class PersonIdServiceBean implements SessionBean {
 			}
 			matches = dbServices.query(params);
 
-			if (trace.isEnabled()) {
+			if (trace.isRecording()) {
 				trace.add("Persons that match PIDS:");
 				Iterator i = matches.iterator();
 				while (i.hasNext())
@@ -1210,7 +1286,7 @@ public class PersonIdServiceBean implements SessionBean {
 		// oldPerson = newperson; //demographics from HL7message only
 		// doing a new DB search so should have proper updated_corpId values
 		Collection folksToMerge = searchByPID(oldPerson,
-				new IcsTrace(IcsTrace.MERGE_PERSON, oldPerson)).values();
+				IcsTrace.open(IcsTrace.MERGE_PERSON, oldPerson)).values();
 		if (folksToMerge.size() == 0) {
 			// addPerson(oldPerson);
 			// check for EID mismatch, possible Admin Queue message...
@@ -0,0 +1,414 @@
+package org.openempi.ics.utility;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded queue of items saved in batches by background writer threads, so
+ * that the callers adding the items do not wait for them to be saved.
+ * <p/>
+ * Each writer takes up to batchSize items, or the items queued within
+ * flushMillis of the first one, and passes them to {@link #save(List)}.  A
+ * flushMillis of 0 takes the items already queued without waiting.  When a
+ * batch fails its items are saved one at a time by {@link #failed(List)}.
+ * When the queue is full the overflow policy applies: BLOCK waits for room,
+ * DROP_OLDEST drops the oldest queued item and CALLER hands the item to
+ * {@link #overflow(Object)}, which saves it on the calling thread.
+ * <p/>
+ * {@link #close(long)} stops taking items and waits for the writers to save
+ * the queued ones.  Items added before {@link #start()} or after close()
+ * are handed to {@link #addedWhenClosed(Object)}, including those offered
+ * while close() was running, so that no item is left in the queue unsaved.
+ * <p/>
+ * Items queued, written and dropped are counted, see
+ * {@link #getStatistics()}.
+ */
+public abstract class BatchingQueue<T>
+{
+    public static final String BLOCK = "BLOCK";
+    public static final String DROP_OLDEST = "DROP_OLDEST";
+    public static final String CALLER = "CALLER";
+
+    // Indexes into the statistics array
+    public static final int STAT_QUEUED = 0;
+    public static final int STAT_WRITTEN = 1;
+    public static final int STAT_BATCHES = 2;
+    public static final int STAT_BATCH_FAILURES = 3;
+    public static final int STAT_DROPPED = 4;
+    public static final int STAT_BACKLOG = 5;
+
+    /** Longest time a writer waits for an item before calling idle() */
+    private static final long IDLE_MILLIS = 1000;
+
+    private static Logger log = Logger.getLogger(BatchingQueue.class);
+
+    private final String name;
+    private final int batchSize;
+    private final long flushMillis;
+    private final String overflowPolicy;
+    private final BlockingQueue<T> queue;
+    private final Thread[] writers;
+    private volatile boolean running = false;
+    private final long[] stats = new long[6];
+
+    /**
+     * Creates a queue; its writer threads run once {@link #start()} is
+     * called.
+     *
+     * @param name the name of the writer threads
+     * @param queueSize the most items waiting to be saved
+     * @param batchSize the most items saved in one batch
+     * @param flushMillis the longest time an item waits for its batch to fill
+     * @param overflowPolicy BLOCK, DROP_OLDEST or CALLER
+     * @param writerCount the number of writer threads
+     */
+    protected BatchingQueue(String name, int queueSize, int batchSize, long flushMillis,
+                            String overflowPolicy, int writerCount)
+    {
+        this.name = name;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushMillis = Math.max(0, flushMillis);
+        this.overflowPolicy = overflowPolicy.trim().toUpperCase();
+        this.queue = new LinkedBlockingQueue<T>(Math.max(1, queueSize));
+        this.writers = new Thread[Math.max(1, writerCount)];
+    }
+
+    /**
+     * Starts the writer threads.
+     */
+    public synchronized void start()
+    {
+        if (running)
+            return;
+        running = true;
+        for (int i = 0; i < writers.length; i++)
+        {
+            writers[i] = new Thread(new Writer(), (writers.length == 1) ? name : name + "-" + i);
+            writers[i].setDaemon(true);
+            writers[i].start();
+        }
+    }
+
+    /**
+     * Queues an item, applying the overflow policy if the queue is full.
+     */
+    public void add(T item)
+    {
+        if (!running)
+        {
+            addedWhenClosed(item);
+            return;
+        }
+        if (queue.offer(item))
+        {
+            queued(item);
+            return;
+        }
+        if (BLOCK.equals(overflowPolicy))
+        {
+            try
+            {
+                queue.put(item);
+                queued(item);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                log.warn(name + ": interrupted, dropping " + item);
+                count(STAT_DROPPED, 1);
+            }
+        }
+        else if (CALLER.equals(overflowPolicy))
+        {
+            overflow(item);
+        }
+        else
+        {
+            // drop the oldest
+            while (!queue.offer(item))
+            {
+                T dropped = queue.poll();
+                if (dropped != null)
+                {
+                    log.warn(name + ": queue full, dropping " + dropped);
+                    count(STAT_DROPPED, 1);
+                }
+            }
+            queued(item);
+        }
+    }
+
+    /**
+     * Counts an item just queued, unless close() ran since add() checked
+     * that the queue was open: the writers may then have stopped, so the
+     * item is taken back and handled as added when closed.
+     */
+    private void queued(T item)
+    {
+        if (!running && queue.remove(item))
+        {
+            addedWhenClosed(item);
+            return;
+        }
+        count(STAT_QUEUED, 1);
+    }
+
+    /**
+     * Saves the queued items and stops the writer threads, waiting at most
+     * timeoutMillis.  Items still queued after that are handed to
+     * {@link #unsaved(List)}.
+     */
+    public void close(long timeoutMillis)
+    {
+        Thread[] started;
+        synchronized (this)
+        {
+            running = false;
+            started = writers.clone();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean finished = true;
+        try
+        {
+            for (Thread writer : started)
+            {
+                long wait = deadline - System.currentTimeMillis();
+                if (writer != null && wait > 0)
+                    writer.join(wait);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        for (Thread writer : started)
+        {
+            if (writer != null && writer.isAlive())
+            {
+                writer.interrupt();
+                finished = false;
+            }
+        }
+        List<T> left = new ArrayList<T>();
+        queue.drainTo(left);
+        if (left.isEmpty())
+            return;
+        if (finished)
+        {
+            // queued after the writers saw the queue empty
+            for (T item : left)
+                addedWhenClosed(item);
+        }
+        else
+        {
+            unsaved(left);
+        }
+    }
+
+    /**
+     * Returns true from start() until close().
+     */
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * Gets the number of items waiting to be saved.
+     */
+    public int size()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Gets the statistics, indexed by the STAT_ constants: items queued,
+     * items and batches saved, batches that failed, items dropped and the
+     * items waiting to be saved.
+     */
+    public long[] getStatistics()
+    {
+        synchronized (stats)
+        {
+            long[] copy = stats.clone();
+            copy[STAT_BACKLOG] = queue.size();
+            return copy;
+        }
+    }
+
+    protected void count(int stat, long n)
+    {
+        synchronized (stats)
+        {
+            stats[stat] += n;
+        }
+    }
+
+    /**
+     * Saves a batch of items, in one transaction where possible.
+     *
+     * @return false if the batch failed and its items should be saved one
+     *         at a time
+     */
+    protected abstract boolean save(List<T> batch);
+
+    /**
+     * Saves one item.  By default it is saved as a batch of one.
+     *
+     * @return false if the item could not be saved
+     */
+    protected boolean save(T item)
+    {
+        return save(Collections.singletonList(item));
+    }
+
+    /**
+     * Called with a batch that {@link #save(List)} could not save.  By
+     * default its items are saved one at a time and those that fail are
+     * dropped; a batch of one item is not tried again.
+     */
+    protected void failed(List<T> batch)
+    {
+        if (batch.size() == 1)
+        {
+            drop(batch.get(0));
+            return;
+        }
+        for (T item : batch)
+            saveNow(item);
+    }
+
+    /**
+     * Called on the calling thread with an item that does not fit in the
+     * queue under the CALLER policy.  By default it is saved straight away.
+     */
+    protected void overflow(T item)
+    {
+        saveNow(item);
+    }
+
+    /**
+     * Called on the calling thread with an item added while the queue is
+     * not running.  By default it is saved straight away.
+     */
+    protected void addedWhenClosed(T item)
+    {
+        saveNow(item);
+    }
+
+    /**
+     * Called by close() with the items the writers did not save in time.
+     * By default they are dropped.
+     */
+    protected void unsaved(List<T> items)
+    {
+        log.error(name + ": dropping " + items.size() + " items not saved before close");
+        count(STAT_DROPPED, items.size());
+    }
+
+    /**
+     * Called by the writer threads before they wait for the next batch, so
+     * at least every flushMillis, or every second when flushMillis is 0,
+     * while the queue is running.  Does nothing by default.
+     */
+    protected void idle()
+    {
+    }
+
+    /**
+     * Saves one item on the current thread, dropping it if it fails.
+     */
+    protected void saveNow(T item)
+    {
+        if (save(item))
+            count(STAT_WRITTEN, 1);
+        else
+            drop(item);
+    }
+
+    private void drop(T item)
+    {
+        log.warn(name + ": cannot save " + item);
+        count(STAT_DROPPED, 1);
+    }
+
+    /**
+     * Saves a batch, or hands it to failed() if the batch fails.
+     */
+    private void write(List<T> batch)
+    {
+        if (save(batch))
+        {
+            synchronized (stats)
+            {
+                stats[STAT_WRITTEN] += batch.size();
+                stats[STAT_BATCHES]++;
+            }
+            if (log.isDebugEnabled())
+                log.debug(name + ": saved " + batch.size() + " items");
+            return;
+        }
+        count(STAT_BATCH_FAILURES, 1);
+        failed(batch);
+    }
+
+    /**
+     * Takes the queued items in batches and saves them, until closed and
+     * the queue is empty.
+     */
+    private class Writer implements Runnable
+    {
+        public void run()
+        {
+            long pollMillis = (flushMillis > 0) ? flushMillis : IDLE_MILLIS;
+            List<T> batch = new ArrayList<T>(batchSize);
+            while (running || !queue.isEmpty())
+            {
+                try
+                {
+                    if (running)
+                        idle();
+                    T first = queue.poll(pollMillis, TimeUnit.MILLISECONDS);
+                    if (first == null)
+                        continue;
+                    batch.add(first);
+                    // wait up to flushMillis for a full batch
+                    long flushAt = System.currentTimeMillis() + flushMillis;
+                    while (batch.size() < batchSize && running)
+                    {
+                        queue.drainTo(batch, batchSize - batch.size());
+                        long wait = flushAt - System.currentTimeMillis();
+                        if (batch.size() >= batchSize || wait <= 0)
+                            break;
+                        T next = queue.poll(wait, TimeUnit.MILLISECONDS);
+                        if (next == null)
+                            break;
+                        batch.add(next);
+                    }
+                    queue.drainTo(batch, batchSize - batch.size());
+                    write(batch);
+                }
+                catch (InterruptedException e)
+                {
+                    if (!batch.isEmpty())
+                        write(batch);
+                    break;
+                }
+                catch (RuntimeException e)
+                {
+                    log.error(name + ": unexpected error saving items", e);
+                }
+                finally
+                {
+                    batch.clear();
+                }
+            }
+        }
+    }
+}
@@ -1,265 +1,449 @@
 package org.openempi.ics.utility;
 
-import java.util.HashMap;
-import java.util.TreeSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
- * Simple generic cache class that supports a maximum cache size and
+ * Generic cache class that supports a maximum cache size or weight and
  * element age-out using least recently used rules.
+ * <p/>
+ * The cache is split into segments, each guarded by its own lock, so
+ * concurrent callers only contend when their keys fall in the same
+ * segment.  Each segment keeps its elements in a LinkedHashMap, in access
+ * order for LRU or in insertion order otherwise, so the element to evict
+ * is always the eldest one and is removed in constant time.  The size and
+ * weight limits are divided evenly between the segments: a segment evicts
+ * once it holds more than size / segments elements (or weight / segments
+ * weight), rounded up, even if other segments have room.  As the keys do not
+ * spread exactly evenly, the cache starts evicting somewhat before the total
+ * limits are reached.
+ * <p/>
+ * The age of an element is checked when it is read; elements nobody reads
+ * are dropped once they become the eldest of their segment and another
+ * element is put in it.
+ * <p/>
+ * Hits, misses, evictions and expirations are counted, see
+ * {@link #getStatistics()}.
  */
 public class Cache
 {
+    // Indexes into the statistics array
+    public static final int STAT_HITS = 0;
+    public static final int STAT_MISSES = 1;
+    public static final int STAT_EVICTIONS = 2;
+    public static final int STAT_EXPIRATIONS = 3;
+
+    /** Number of segments of a cache created with the default constructor. */
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    /**
+     Computes the weight of a cache element, for caches bounded by weight
+     rather than by number of elements.
+     */
+    public interface Weigher
+    {
+        public int weigh(Object key, Object value);
+    }
+
+    /**
+     Notified of the elements evicted, aged out or removed from the cache.
+     It is called with the segment of the element locked and must not call
+     back into the cache.  It is not called for elements replaced by put()
+     or dropped by clear().
+     */
+    public interface RemovalListener
+    {
+        public void removed(Object key, Object value);
+    }
+
     /**
      The maximum number of elements in the cache.  If 0, there is no
      limit.
      */
-    private int maxSize = 0;
-    
+    private volatile int maxSize = 0;
+
+    /**
+     The maximum total weight of the elements in the cache.  If 0, there
+     is no limit.
+     */
+    private volatile long maxWeight = 0;
+
     /**
      Maximum age of any element in the cache.  Elements that haven't
      been referenced in ageMillis will be dropped from the cache.
      A value of 0 means no age limit.
      */
-    private long ageMillis = 0;
-    
+    private volatile long ageMillis = 0;
+
     /**
      If true, this cache uses least-recently-used logic to age out elements.
      If false, elements are aged out based on when they entered the cache.
      */
-    private boolean lru = false;
-    
+    private volatile boolean lru = false;
+
+    private volatile Weigher weigher = null;
+    private volatile RemovalListener listener = null;
+
+    private final Segment[] segments;
+    private final int segmentMask;
+
     /**
-     The HashMap that backs the cache
+     Constructs a cache of DEFAULT_SEGMENTS segments.
      */
-    private HashMap map = new HashMap();
-    
+    public Cache()
+    {
+        this(DEFAULT_SEGMENTS);
+    }
+
     /**
-     TreeSet to keep the cache oraganized by age
+     Constructs a cache of at least the given number of segments, rounded
+     up to a power of two.
+
+     @param concurrency The number of callers expected to use the cache at
+                        the same time
      */
-    private TreeSet set = new TreeSet();
-    
+    public Cache(int concurrency)
+    {
+        int n = 1;
+        while (n < concurrency)
+            n <<= 1;
+        segments = new Segment[n];
+        for (int i = 0; i < n; i++)
+            segments[i] = new Segment();
+        segmentMask = n - 1;
+    }
+
     /**
      Set the cache to age-out based on LRU rules or by age of element
      in the cache.
-   
+
      @param flag true, cache ages out least recently used elements, false
                  ages out oldest elements in cache.
      */
-    public synchronized void setLRU(boolean flag)
+    public void setLRU(boolean flag)
     {
         lru = flag;
-        ageOut();
+        for (int i = 0; i < segments.length; i++)
+            segments[i].setAccessOrder(flag);
     }
-    
+
     /**
      Sets the maximum number of elements allowed in the cache.
-   
+
      @param size The maximum number of elements, or 0 for unlimited
      @throws IllegalArgumentException if size is < 0
      */
-    public synchronized void setSize(int size)
+    public void setSize(int size)
     {
         if (size < 0)
             throw new IllegalArgumentException("Size must be >= 0");
         maxSize = size;
-        resize();
+        trim();
     }
-    
+
+    /**
+     Sets the maximum total weight of the elements in the cache, as
+     computed by the Weigher.  Elements weigh 1 when no Weigher is set.
+
+     @param weight The maximum weight, or 0 for unlimited
+     @throws IllegalArgumentException if weight is < 0
+     */
+    public void setMaxWeight(long weight)
+    {
+        if (weight < 0)
+            throw new IllegalArgumentException("Weight must be >= 0");
+        maxWeight = weight;
+        trim();
+    }
+
+    /**
+     Sets the Weigher used for elements put in the cache from now on.
+     */
+    public void setWeigher(Weigher weigher)
+    {
+        this.weigher = weigher;
+    }
+
+    /**
+     Sets the listener notified of elements evicted, aged out or removed.
+     */
+    public void setRemovalListener(RemovalListener listener)
+    {
+        this.listener = listener;
+    }
+
     /**
      Sets the maximum age for any element in the cache before it
-     will be aged out.  The Cache uses least recently used rules to
-     determine element age.
-   
-     @param ageMills The maximum element age in milliseconds or 0 for
-                     no age limit
+     will be aged out.
+
+     @param ageMillis The maximum element age in milliseconds or 0 for
+                      no age limit
      @throws IllegalArgumentException if ageMillis is < 0
      */
-    public synchronized void setAgeMillis(long ageMillis)
+    public void setAgeMillis(long ageMillis)
     {
         if (ageMillis < 0)
             throw new IllegalArgumentException("ageMillis must be >= 0");
         this.ageMillis = ageMillis;
-        ageOut();
+        trim();
     }
-    
+
     /**
      Performs a Cache search for the given key.  If the key is found
      in the Cache, its value is returned.  If the key is not found in the
-     cache, null is returned.   When a element is found and returned, the
-     elements age is reset to the current time to maintain it in the cache.
+     cache, or its element is older than the maximum age, null is returned.
+     With LRU, when a element is found and returned, the elements age is
+     reset to the current time to maintain it in the cache.
      Keys are compared using the key Objects equals() method.
-   
+
      @param key The key to search in the cache
      @return The Object that matches the key in the cache or null if no
              match.
      */
-    public synchronized Object get(Object key)
+    public Object get(Object key)
     {
-        if(key == null)
+        if (key == null)
             return null;
-        ageOut();
-        Key keyObj = new Key(key);
-        Object obj = map.get(keyObj);
-        if (lru && ageMillis != 0 && obj != null)
-            set.add(keyObj);  // Updates element age
-        // System.out.println("Cache get for key '" + key + "' returned " + obj);
-        return obj;
+        return segmentFor(key).get(key, System.currentTimeMillis());
     }
-    
+
     /**
      Adds a new key/value pair to the cache.  If the key is already
      in the cache, its value is replaced by the given value.
      Keys are compared using the key Objects equals() method.
-   
+
      @param key The key to insert into the cache
      @param value The Object representing the desired cache value for the key
      */
-    public synchronized void put(Object key, Object value)
+    public void put(Object key, Object value)
     {
-        if(key == null || value == null)
+        if (key == null || value == null)
             return;
-        // System.out.println("Cache put for key '" + key + "' with value " + value);
-        Key keyObj = new Key(key);
-        map.put(keyObj, value);
-        set.add(keyObj);
-        resize();
+        Weigher w = weigher;
+        int weight = (w == null) ? 1 : Math.max(0, w.weigh(key, value));
+        segmentFor(key).put(key, new Element(value, System.currentTimeMillis(), weight));
     }
-    
+
     /**
      Removes the specified key/value pair from the cache based on the
      key given.  If the key is found, the pair are removed and the value
      is returned.  If the key is not found, nothing is done and null is
      returned.
-   
+
      @param key The key to search the cache for
      @return The Object that matches the key in the cache or null if no
              match.
      */
-    public synchronized Object remove(Object key)
+    public Object remove(Object key)
     {
-        if(key == null)
+        if (key == null)
             return null;
-        Key keyObj = new Key(key);
-        set.remove(keyObj);
-        Object obj = map.remove(keyObj);
-        // System.out.println("Cache remove key '" + keyObj.key + "' with value " + obj);
-        return obj;
+        return segmentFor(key).remove(key);
     }
-    
+
+    public void clear()
+    {
+        for (int i = 0; i < segments.length; i++)
+            segments[i].clear();
+    }
+
     /**
-     Resizes the Cache to ensure that it is within the maxSize setting
-     for this cache.  If the cache is already below maxSize or maxSize
-     is zero, nothing is done.  If the cache is larger than maxSize,
-     then elements are removed from the cache in LRU order.
+     Returns the number of elements in the cache, including elements past
+     their age that were not dropped yet.
      */
-    private void resize()
+    public int size()
     {
-        if (maxSize > 0)
-        {
-            while (set.size() > maxSize)
-            {
-                Key keyObj = (Key) set.first();
-                set.remove(keyObj);
-                Object value = map.remove(keyObj);
-                // System.out.println("Cache resize remove key '" + keyObj.key + "' with value " + value);
-            }
-        }
+        int size = 0;
+        for (int i = 0; i < segments.length; i++)
+            size += segments[i].size();
+        return size;
     }
-    
+
     /**
-     Ages out all elements from the cache that haven't been used in more
-     than ageMillis milliseconds.  If ageMillis is 0, nothing is done.
+     Returns { hits, misses, evictions, expirations } since the cache was
+     created or the statistics were last reset.
      */
-    private void ageOut()
+    public long[] getStatistics()
     {
-        if (ageMillis > 0)
-        {
-            long now = System.currentTimeMillis();
-            while(set.size() > 0)
-            {
-                Key keyObj = (Key) set.first();
-                if (keyObj.tstamp + ageMillis < now)
-                {
-                    set.remove(keyObj);
-                    Object value = map.remove(keyObj);
-                    // System.out.println("Cache age-out remove key '" + keyObj.key + "' with value " + value);
-                }
-                else
-                    break;
-            }
-        }
+        long[] stats = new long[4];
+        for (int i = 0; i < segments.length; i++)
+            segments[i].addStatistics(stats);
+        return stats;
     }
-    
-    public void clear()
+
+    public void resetStatistics()
+    {
+        for (int i = 0; i < segments.length; i++)
+            segments[i].resetStatistics();
+    }
+
+    private Segment segmentFor(Object key)
     {
-        map.clear();
-        set.clear();
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & segmentMask];
     }
-    
+
     /**
-     Private class to wrap the Cache keys for use in the TreeSet.
-     This class contains the key timestamp and implements Comparable
-     so that the TreeSet can accurately sort the Cache elements
-     by age.
+     Drops the elements over the limits or past their age from every
+     segment.
      */
-    private class Key
-            implements Comparable
+    private void trim()
     {
-        /**
-       The key Object passed in from one of the Cache interfaces
-         */
-        private Object key;
-        
-        /**
-       The time this key entry was last referenced
-         */
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < segments.length; i++)
+            segments[i].trim(now);
+    }
+
+    /**
+     A cache value, with the time it was put or, with LRU, last read.
+     */
+    private static final class Element
+    {
+        private final Object value;
+        private final int weight;
         private long tstamp;
-        
-        /**
-       Constructs the Key object from the key given.
-       Sets the timestap to the current time.
-         */
-        public Key(Object key)
+
+        Element(Object value, long tstamp, int weight)
         {
-            this.key = key;
-            this.tstamp = System.currentTimeMillis();
+            this.value = value;
+            this.tstamp = tstamp;
+            this.weight = weight;
         }
-        
-        /**
-       Required by the Comparable interfaces, this compares the
-       timestamps of the keys to maintain the proper sort in the TreeSet.
-         */
-        public int compareTo(Object obj)
+    }
+
+    /**
+     A part of the cache with its own lock, map and statistics.
+     */
+    private final class Segment
+    {
+        private LinkedHashMap map = new LinkedHashMap(16, 0.75f, false);
+        private long weight = 0;
+
+        private long hits = 0;
+        private long misses = 0;
+        private long evictions = 0;
+        private long expirations = 0;
+
+        synchronized Object get(Object key, long now)
         {
-            Key other = (Key) obj;
-            if (tstamp > other.tstamp)
-                return 1;
-            if (tstamp < other.tstamp)
-                return -1;
-            return 0;
+            // in access order, this also moves the element to the young end
+            Element e = (Element) map.get(key);
+            if (e == null) {
+                misses++;
+                return null;
+            }
+            if (expired(e, now)) {
+                map.remove(key);
+                weight -= e.weight;
+                expirations++;
+                misses++;
+                removed(key, e);
+                return null;
+            }
+            if (lru)
+                e.tstamp = now;
+            hits++;
+            return e.value;
+        }
+
+        synchronized void put(Object key, Element e)
+        {
+            Element old = (Element) map.put(key, e);
+            if (old != null)
+                weight -= old.weight;
+            weight += e.weight;
+            trim(e.tstamp);
+        }
+
+        synchronized Object remove(Object key)
+        {
+            Element e = (Element) map.remove(key);
+            if (e == null)
+                return null;
+            weight -= e.weight;
+            removed(key, e);
+            return e.value;
         }
-        
+
+        synchronized void clear()
+        {
+            map.clear();
+            weight = 0;
+        }
+
+        synchronized int size()
+        {
+            return map.size();
+        }
+
+        synchronized void setAccessOrder(boolean accessOrder)
+        {
+            LinkedHashMap reordered = new LinkedHashMap(16, 0.75f, accessOrder);
+            reordered.putAll(map);
+            map = reordered;
+        }
+
         /**
-       Implements the equals methods by comparing the key attribute
-       of the Key.  The TreeSet will use this to match identical
-       keys for get/put calls.
+         Drops eldest elements while the segment is over its share of the
+         size or weight limit or the eldest element is past its age.
          */
-        public boolean equals(Object obj)
+        synchronized void trim(long now)
         {
-            return key.equals(((Key)obj).key);
+            int n = segments.length;
+            int size = maxSize;
+            long maxSegmentSize = (size == 0) ? 0 : (size + n - 1) / n;
+            long totalWeight = maxWeight;
+            long maxSegmentWeight = (totalWeight == 0) ? 0 : (totalWeight + n - 1) / n;
+
+            Iterator iter = map.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                Element e = (Element) entry.getValue();
+                boolean expired = expired(e, now);
+                if (!expired &&
+                    (maxSegmentSize == 0 || map.size() <= maxSegmentSize) &&
+                    (maxSegmentWeight == 0 || weight <= maxSegmentWeight))
+                    break;
+
+                iter.remove();
+                weight -= e.weight;
+                if (expired)
+                    expirations++;
+                else
+                    evictions++;
+                removed(entry.getKey(), e);
+            }
         }
-        
-        public String toString()
+
+        synchronized void addStatistics(long[] stats)
         {
-            return key.toString();
+            stats[STAT_HITS] += hits;
+            stats[STAT_MISSES] += misses;
+            stats[STAT_EVICTIONS] += evictions;
+            stats[STAT_EXPIRATIONS] += expirations;
         }
-        
-        public int hashCode()
+
+        synchronized void resetStatistics()
+        {
+            hits = 0;
+            misses = 0;
+            evictions = 0;
+            expirations = 0;
+        }
+
+        private boolean expired(Element e, long now)
+        {
+            long age = ageMillis;
+            return age > 0 && e.tstamp + age < now;
+        }
+
+        private void removed(Object key, Element e)
         {
-            return key.hashCode();
+            RemovalListener l = listener;
+            if (l != null)
+                l.removed(key, e.value);
         }
-        
     }
-    
-    
 }
@@ -233,6 +233,115 @@ public class IcsEvent {
     return _isPersisted;
   }
 
+  /**
+   * Saves several events in one transaction, with a single batched insert.
+   * Nothing is saved if any insert fails, so that the caller can save the
+   * events one at a time with {@link #persist()}.
+   * @param events the events to save
+   * @return boolean success or failure of the whole batch.
+   */
+  public static boolean persist(List<IcsEvent> events) {
+    if (events.isEmpty())
+      return true;
+    Profile.begin("IcsEvent.persistBatch");
+    Logger log = Logger.getLogger("ICS");
+    Connection conn = null;
+    Statement st = null;
+    PreparedStatement pstmt = null;
+    boolean persisted = false;
+
+    try {
+      Element sqlElement = IcsSqlXML.getInstance().getElement("INSERT-EVENT-LOG");
+      String sqlINSERTFULL = sqlElement.getChildText("SQL-INSERTINTO") + " " +
+                             sqlElement.getChildText("SQL-INSERTVALUES");
+      String sqlGETPREID = sqlElement.getChildText("SQL-GET-PREINSERTID");
+      boolean preId = sqlGETPREID != null && sqlGETPREID.trim().length() > 0;
+
+      conn = JdbcHelper.getConnection();
+      pstmt = conn.prepareStatement(sqlINSERTFULL);
+      if (preId)
+        st = conn.createStatement();
+
+      for (IcsEvent event : events) {
+        if (preId) {
+          int newID = 0;
+          ResultSet rs = st.executeQuery(sqlGETPREID);
+          try {
+            while ( rs.next() ) {
+              newID = rs.getInt(1);
+            }
+          }
+          finally {
+            rs.close();
+          }
+          if ( newID == 0 ) {
+            throw new SQLException("Cannot retrieve a new ICS EVENT LOG ID from SQL-GET-PREINSERTID in SQL XML");
+          }
+          event.eventLogBindStmt(pstmt, newID);
+        }
+        else {
+          event.eventLogBindStmt(pstmt);
+        }
+        pstmt.addBatch();
+      }
+
+      Profile.begin("PreparedStatement.executeBatch");
+      pstmt.executeBatch();
+      Profile.end("PreparedStatement.executeBatch");
+
+      Profile.begin("Connection.commit");
+      conn.commit();
+      Profile.end("Connection.commit");
+
+      for (IcsEvent event : events)
+        event._isPersisted = true;
+      persisted = true;
+    }
+    catch ( SQLException se ) {
+      log.warn("Cannot persist a batch of " + events.size() + " events: " + se.getMessage());
+      if (conn != null) {
+        try {
+          conn.rollback();
+        }
+        catch ( SQLException se1 ) {
+          log.error(se1,se1);
+        }
+      }
+    }
+    catch ( RuntimeException re ) {
+      log.error(re,re);
+    }
+    finally {
+      if (st != null) {
+        try {
+          st.close();
+        }
+        catch ( SQLException se1 ) {
+          log.error(se1,se1);
+        }
+      }
+      if (pstmt != null) {
+        try {
+          pstmt.close();
+        }
+        catch ( SQLException se1 ) {
+          log.error(se1,se1);
+        }
+      }
+      if (conn != null) {
+        try {
+          conn.close();
+        }
+        catch ( SQLException se2 ) {
+          log.error(se2,se2);
+        }
+      }
+    }
+
+    Profile.end("IcsEvent.persistBatch");
+    return persisted;
+  }
+
   public String toString() {
     String currID = null;
 
@@ -271,59 +380,13 @@ public class IcsEvent {
    */
   private PreparedStatement eventLogBuildStmt(Connection conn, String sql, int eventLogId) {
     PreparedStatement pstmt = null;
-    List list = null;
     
     try {
       Profile.begin("Connection.prepareStatement");
       pstmt = conn.prepareStatement( sql );
       Profile.end("Connection.prepareStatement");
 
-      // set all attributes using class constants as position of prepared statement fields
-      pstmt.setInt(EVENT_ID, eventLogId);
-      pstmt.setString(EVENT_TYPE, _eventType);
-      pstmt.setTimestamp(EVENT_DATE, new Timestamp(_eventDate.getTime()) );
-      pstmt.setString(EVENT_CURR_PERSON_ID, _currPerson.getOid() );
-      
-      list = _currPerson.getSocialSecurityNumbers();
-      if (list != null && list.size() > 0) {
-        SocialSecurityNumber ssn = (SocialSecurityNumber) list.get(0);
-        pstmt.setString(EVENT_CURR_PERSON_SSN, ssn.getSSN());
-      } else
-        pstmt.setString(EVENT_CURR_PERSON_SSN, null);
-      
-      list = _currPerson.getDatesOfBirth();
-      if (list != null && list.size() > 0) {
-        DateOfBirth dob = (DateOfBirth) list.get(0);
-        pstmt.setTimestamp(EVENT_CURR_PERSON_DOB, new Timestamp(dob.getDOB().getTime()));
-      } else
-        pstmt.setTimestamp(EVENT_CURR_PERSON_DOB, null);
-      
-      // do only if Alt person exists
-      if ( _altPerson != null ) {
-        pstmt.setString(EVENT_ALT_PERSON_ID, _altPerson.getOid() );
-
-        list = _altPerson.getSocialSecurityNumbers();
-        if (list != null && list.size() > 0) {
-          SocialSecurityNumber ssn = (SocialSecurityNumber) list.get(0);
-          pstmt.setString(EVENT_ALT_PERSON_SSN, ssn.getSSN());
-        } else
-          pstmt.setString(EVENT_ALT_PERSON_SSN, null);
-      
-        list = _altPerson.getDatesOfBirth();
-        if (list != null && list.size() > 0) {
-          DateOfBirth dob = (DateOfBirth) list.get(0);
-          pstmt.setTimestamp(EVENT_ALT_PERSON_DOB, new Timestamp(dob.getDOB().getTime()));
-        } else
-          pstmt.setTimestamp(EVENT_ALT_PERSON_DOB, null);
-      
-      }
-      else {
-        // only Current person exists. Set these to null
-        pstmt.setString(EVENT_ALT_PERSON_ID, null);
-        pstmt.setString(EVENT_ALT_PERSON_SSN, null);
-        pstmt.setString(EVENT_ALT_PERSON_DOB, null);
-      }
-
+      eventLogBindStmt(pstmt, eventLogId);
     }
     catch ( SQLException se ) {
       log.error(se,se);
@@ -339,65 +402,128 @@ public class IcsEvent {
    */
   private PreparedStatement eventLogBuildStmt(Connection conn, String sql) {
     PreparedStatement pstmt = null;
-    List list = null;
     
     try {
       Profile.begin("Connection.prepareStatement");
       pstmt = conn.prepareStatement( sql );
       Profile.end("Connection.prepareStatement");
 
-      // set all attributes using class constants as position of prepared statement fields minus first for ID
-      pstmt.setString(EVENT_TYPE-1, _eventType);
-      pstmt.setTimestamp(EVENT_DATE-1, new Timestamp(_eventDate.getTime()) );
-      pstmt.setString(EVENT_CURR_PERSON_ID-1, _currPerson.getOid() );
+      eventLogBindStmt(pstmt);
+    }
+    catch ( SQLException se ) {
+      log.error(se,se);
+    }
+
+    return pstmt;
+  }
+
+  /**
+   * Sets the parameters of an ICS_EVENT_LOG insert with a Ics_Log_Id ID in
+   * first column.
+   */
+  private void eventLogBindStmt(PreparedStatement pstmt, int eventLogId) throws SQLException {
+    List list = null;
+
+    // set all attributes using class constants as position of prepared statement fields
+    pstmt.setInt(EVENT_ID, eventLogId);
+    pstmt.setString(EVENT_TYPE, _eventType);
+    pstmt.setTimestamp(EVENT_DATE, new Timestamp(_eventDate.getTime()) );
+    pstmt.setString(EVENT_CURR_PERSON_ID, _currPerson.getOid() );
+    
+    list = _currPerson.getSocialSecurityNumbers();
+    if (list != null && list.size() > 0) {
+      SocialSecurityNumber ssn = (SocialSecurityNumber) list.get(0);
+      pstmt.setString(EVENT_CURR_PERSON_SSN, ssn.getSSN());
+    } else
+      pstmt.setString(EVENT_CURR_PERSON_SSN, null);
+    
+    list = _currPerson.getDatesOfBirth();
+    if (list != null && list.size() > 0) {
+      DateOfBirth dob = (DateOfBirth) list.get(0);
+      pstmt.setTimestamp(EVENT_CURR_PERSON_DOB, new Timestamp(dob.getDOB().getTime()));
+    } else
+      pstmt.setTimestamp(EVENT_CURR_PERSON_DOB, null);
+    
+    // do only if Alt person exists
+    if ( _altPerson != null ) {
+      pstmt.setString(EVENT_ALT_PERSON_ID, _altPerson.getOid() );
 
-      list = _currPerson.getSocialSecurityNumbers();
+      list = _altPerson.getSocialSecurityNumbers();
       if (list != null && list.size() > 0) {
         SocialSecurityNumber ssn = (SocialSecurityNumber) list.get(0);
-        pstmt.setString(EVENT_CURR_PERSON_SSN-1, ssn.getSSN());
+        pstmt.setString(EVENT_ALT_PERSON_SSN, ssn.getSSN());
       } else
-        pstmt.setString(EVENT_CURR_PERSON_SSN-1, null);
+        pstmt.setString(EVENT_ALT_PERSON_SSN, null);
+    
+      list = _altPerson.getDatesOfBirth();
+      if (list != null && list.size() > 0) {
+        DateOfBirth dob = (DateOfBirth) list.get(0);
+        pstmt.setTimestamp(EVENT_ALT_PERSON_DOB, new Timestamp(dob.getDOB().getTime()));
+      } else
+        pstmt.setTimestamp(EVENT_ALT_PERSON_DOB, null);
+    
+    }
+    else {
+      // only Current person exists. Set these to null
+      pstmt.setString(EVENT_ALT_PERSON_ID, null);
+      pstmt.setString(EVENT_ALT_PERSON_SSN, null);
+      pstmt.setString(EVENT_ALT_PERSON_DOB, null);
+    }
+  }
 
-      list = _currPerson.getDatesOfBirth();
+  /**
+   * Sets the parameters of an ICS_EVENT_LOG insert with the sequence for ID
+   * already in values clause.
+   */
+  private void eventLogBindStmt(PreparedStatement pstmt) throws SQLException {
+    List list = null;
+
+    // set all attributes using class constants as position of prepared statement fields minus first for ID
+    pstmt.setString(EVENT_TYPE-1, _eventType);
+    pstmt.setTimestamp(EVENT_DATE-1, new Timestamp(_eventDate.getTime()) );
+    pstmt.setString(EVENT_CURR_PERSON_ID-1, _currPerson.getOid() );
+
+    list = _currPerson.getSocialSecurityNumbers();
+    if (list != null && list.size() > 0) {
+      SocialSecurityNumber ssn = (SocialSecurityNumber) list.get(0);
+      pstmt.setString(EVENT_CURR_PERSON_SSN-1, ssn.getSSN());
+    } else
+      pstmt.setString(EVENT_CURR_PERSON_SSN-1, null);
+
+    list = _currPerson.getDatesOfBirth();
+    if (list != null && list.size() > 0) {
+      DateOfBirth dob = (DateOfBirth) list.get(0);
+      pstmt.setTimestamp(EVENT_CURR_PERSON_DOB-1, new Timestamp(dob.getDOB().getTime()));
+    } else
+      pstmt.setTimestamp(EVENT_CURR_PERSON_DOB-1, null);
+    
+    // do only if Alt person exists
+    if ( _altPerson != null ) {
+      pstmt.setString(EVENT_ALT_PERSON_ID-1, _altPerson.getOid() );
+
+      list = _altPerson.getSocialSecurityNumbers();
+      if (list != null && list.size() > 0) {
+        SocialSecurityNumber ssn = (SocialSecurityNumber) list.get(0);
+        pstmt.setString(EVENT_ALT_PERSON_SSN-1, ssn.getSSN());
+      } else
+        pstmt.setString(EVENT_ALT_PERSON_SSN-1, null);
+      
+      list = _altPerson.getDatesOfBirth();
       if (list != null && list.size() > 0) {
         DateOfBirth dob = (DateOfBirth) list.get(0);
-        pstmt.setTimestamp(EVENT_CURR_PERSON_DOB-1, new Timestamp(dob.getDOB().getTime()));
+        pstmt.setTimestamp(EVENT_ALT_PERSON_DOB-1, new Timestamp(dob.getDOB().getTime()));
       } else
-        pstmt.setTimestamp(EVENT_CURR_PERSON_DOB-1, null);
+        pstmt.setTimestamp(EVENT_ALT_PERSON_DOB-1, null);
       
-      // do only if Alt person exists
-      if ( _altPerson != null ) {
-        pstmt.setString(EVENT_ALT_PERSON_ID-1, _altPerson.getOid() );
-
-        list = _altPerson.getSocialSecurityNumbers();
-        if (list != null && list.size() > 0) {
-          SocialSecurityNumber ssn = (SocialSecurityNumber) list.get(0);
-          pstmt.setString(EVENT_ALT_PERSON_SSN-1, ssn.getSSN());
-        } else
-          pstmt.setString(EVENT_ALT_PERSON_SSN-1, null);
-        
-        list = _altPerson.getDatesOfBirth();
-        if (list != null && list.size() > 0) {
-          DateOfBirth dob = (DateOfBirth) list.get(0);
-          pstmt.setTimestamp(EVENT_ALT_PERSON_DOB-1, new Timestamp(dob.getDOB().getTime()));
-        } else
-          pstmt.setTimestamp(EVENT_ALT_PERSON_DOB-1, null);
-        
-      }
-      else {
-        // only Current person exists. Set these to null
-        pstmt.setString(EVENT_ALT_PERSON_ID-1, null);
-        pstmt.setString(EVENT_ALT_PERSON_SSN-1, null);
-        pstmt.setString(EVENT_ALT_PERSON_DOB-1, null);
-      }
-
-      pstmt.setString(EVENT_REASON-1, _eventReason );
-      pstmt.setString(EVENT_USER-1, _userID);
     }
-    catch ( SQLException se ) {
-      log.error(se,se);
+    else {
+      // only Current person exists. Set these to null
+      pstmt.setString(EVENT_ALT_PERSON_ID-1, null);
+      pstmt.setString(EVENT_ALT_PERSON_SSN-1, null);
+      pstmt.setString(EVENT_ALT_PERSON_DOB-1, null);
     }
 
-    return pstmt;
+    pstmt.setString(EVENT_REASON-1, _eventReason );
+    pstmt.setString(EVENT_USER-1, _userID);
   }
 }
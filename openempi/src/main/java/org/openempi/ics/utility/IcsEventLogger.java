@@ -11,16 +11,29 @@ package org.openempi.ics.utility;
 
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.openempi.data.Person;
 import org.openempi.ics.db.DatabaseServices;
 import org.openempi.ics.db.DatabaseServicesFactory;
 import org.openempi.ics.db.DatabaseServicesListener;
+import org.openempi.ics.utility.metrics.Gauge;
+import org.openempi.ics.utility.metrics.Metrics;
 
 /**
  * Responsible for listening to <code>CorrelationSystem</code> and
  * <code>DatabaseServices</code> events, and logging these to a designated target.
+ * <p>
+ * Events are queued and saved by EVENT_LOG_WRITERS background threads, each
+ * saving up to EVENT_LOG_BATCH_SIZE events, or the events queued within
+ * EVENT_LOG_FLUSH_MILLIS, in one transaction.  When a batch fails its events
+ * are saved one at a time.  At most EVENT_LOG_QUEUE_SIZE events wait; then
+ * EVENT_LOG_OVERFLOW applies: BLOCK waits for room, DROP_OLDEST drops the
+ * oldest event and CALLER saves the event on the calling thread.  The queued
+ * events are saved when the JVM shuts down, or by {@link #close(long)}.
+ *
+ * @see BatchingQueue
  *
  * @author       J. Mangione
  * @author       M. Abundo
@@ -28,13 +41,29 @@ import org.openempi.ics.db.DatabaseServicesListener;
  */
 public class IcsEventLogger implements DatabaseServicesListener
 {
-  private static IcsEventLogger instance;
+  public static final String BLOCK = BatchingQueue.BLOCK;
+  public static final String DROP_OLDEST = BatchingQueue.DROP_OLDEST;
+  public static final String CALLER = BatchingQueue.CALLER;
+
+  // Indexes into the statistics array
+  public static final int STAT_QUEUED = BatchingQueue.STAT_QUEUED;
+  public static final int STAT_WRITTEN = BatchingQueue.STAT_WRITTEN;
+  public static final int STAT_BATCHES = BatchingQueue.STAT_BATCHES;
+  public static final int STAT_BATCH_FAILURES = BatchingQueue.STAT_BATCH_FAILURES;
+  public static final int STAT_DROPPED = BatchingQueue.STAT_DROPPED;
+  public static final int STAT_BACKLOG = BatchingQueue.STAT_BACKLOG;
 
   private Logger log = Logger.getLogger("ICS");
-  
-  static
+
+  private final BatchingQueue<IcsEvent> queue;
+
+  /**
+   * Created on first use, so that loading the class does not reach the
+   * database.
+   */
+  private static class Holder
   {
-      instance = new IcsEventLogger();
+      static final IcsEventLogger instance = new IcsEventLogger();
   }
 
   /**
@@ -43,17 +72,75 @@ public class IcsEventLogger implements DatabaseServicesListener
    */
   private IcsEventLogger()
   {
+      this(ICSProperties.getInt("EVENT_LOG_QUEUE_SIZE", 10000),
+           ICSProperties.getInt("EVENT_LOG_BATCH_SIZE", 100),
+           ICSProperties.getInt("EVENT_LOG_FLUSH_MILLIS", 1000),
+           ICSProperties.getProperty("EVENT_LOG_OVERFLOW", DROP_OLDEST),
+           ICSProperties.getInt("EVENT_LOG_WRITERS", 1));
+      final long closeTimeout = ICSProperties.getInt("EVENT_LOG_CLOSE_TIMEOUT_MILLIS", 30000);
+      Runtime.getRuntime().addShutdownHook(new Thread("IcsEventLogger-shutdown")
+      {
+          public void run()
+          {
+              close(closeTimeout);
+          }
+      });
+
+      Metrics.gauge("IcsEventLogger.backlog", new Gauge()
+      {
+          public double getValue()
+          {
+              return queue.size();
+          }
+      });
+      Metrics.gauge("IcsEventLogger.written", new Gauge()
+      {
+          public double getValue()
+          {
+              return getStatistics()[STAT_WRITTEN];
+          }
+      });
+      Metrics.gauge("IcsEventLogger.dropped", new Gauge()
+      {
+          public double getValue()
+          {
+              return getStatistics()[STAT_DROPPED];
+          }
+      });
+
       DatabaseServices dbSys = DatabaseServicesFactory.getInstance();
 
       dbSys.addListener(this);
   }
 
+  /**
+   * Creates a logger with its writer threads, not listening to anything.
+   */
+  IcsEventLogger(int queueSize, int batchSize, long flushMillis, String overflowPolicy, int writerCount)
+  {
+      queue = new BatchingQueue<IcsEvent>("IcsEventWriter", queueSize, batchSize,
+                                          Math.max(1, flushMillis), overflowPolicy, writerCount)
+      {
+          protected boolean save(List<IcsEvent> events)
+          {
+              return (events.size() == 1) ? IcsEventLogger.this.save(events.get(0))
+                                          : IcsEventLogger.this.save(events);
+          }
+
+          protected boolean save(IcsEvent event)
+          {
+              return IcsEventLogger.this.save(event);
+          }
+      };
+      queue.start();
+  }
+
   /**
    * Returns the single instance of this class.
    */
   public static IcsEventLogger getInstance()
   {
-      return instance;
+      return Holder.instance;
   }
 
   public void duplicateFoundDuringAdd(Person duplicate, Person person)
@@ -129,8 +216,28 @@ public class IcsEventLogger implements DatabaseServicesListener
   }
 
   /**
-   * Wrapper method to persist specific ICS events.  This spins a new thread for
-   * each event to be persisted so as not to block the main thread while the DB
+   * Saves the queued events and stops the writer threads, waiting at most
+   * timeoutMillis.  Events still queued after that are dropped; events
+   * logged afterwards are saved on the calling thread.
+   */
+  public void close(long timeoutMillis)
+  {
+      queue.close(timeoutMillis);
+  }
+
+  /**
+   * Gets the statistics, indexed by the STAT_ constants: events queued,
+   * events and batches saved, batches that failed, events dropped and the
+   * events waiting to be saved.
+   */
+  public long[] getStatistics()
+  {
+      return queue.getStatistics();
+  }
+
+  /**
+   * Wrapper method to persist specific ICS events.  The event is queued for
+   * the writer threads so as not to block the main thread while the DB
    * activity is going on.
    */
   private void persistEvent(String eventType,
@@ -138,34 +245,22 @@ public class IcsEventLogger implements DatabaseServicesListener
                             Person currPerson,
                             Person altPerson )
   {
-      IcsEvent icsEvent = new IcsEvent(eventType, eventDate, currPerson, altPerson);
-      new Thread(new IcsEventLoggerRunner(icsEvent)).start();
+      queue.add(new IcsEvent(eventType, eventDate, currPerson, altPerson));
   }
 
   /**
-   * Private class used by persistEvent to persist new ICSEvents in their own
-   * thread.
+   * Saves one event.
    */
-  private class IcsEventLoggerRunner
-       implements Runnable
-  {
-       private IcsEvent event;
-
-       public IcsEventLoggerRunner(IcsEvent event)
-       {
-           this.event = event;
-       }
-
-       public void run()
-       {
-           if ( !event.persist() )
-           {
-               log.warn("run(): Cannot persist " + event);
-           }
-           else
-           {
-               log.debug("run(): " + event);
-           }
-       }
-   }
-}
+  boolean save(IcsEvent event)
+  {
+      return event.persist();
+  }
+
+  /**
+   * Saves events in one transaction.
+   */
+  boolean save(List<IcsEvent> events)
+  {
+      return IcsEvent.persist(events);
+  }
+}
\ No newline at end of file
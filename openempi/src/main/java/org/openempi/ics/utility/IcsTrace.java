@@ -1,8 +1,11 @@
 package org.openempi.ics.utility;
 
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.apache.log4j.Logger;
 import org.openempi.data.Address;
@@ -15,36 +18,145 @@ import org.openempi.data.PersonName;
 import org.openempi.data.SocialSecurityNumber;
 import org.openempi.data.TelephoneNumber;
 
+/**
+ * A trace of one transaction: its timed stages and the messages and
+ * persons added to it, written as one JSON line to the ICS_TRACE log4j
+ * category (a rolling file in log4j.xml).
+ * <p>
+ * Tracing is on when TRACE is true in ICS.properties, and then only
+ * TRACE_SAMPLE_RATE (0 to 1) of the transactions are recorded.  A
+ * transaction is started with {@link #begin(String, String)}, which takes
+ * the correlation id of the transaction (the HL7 MSH-10), and written by
+ * {@link #end()}; {@link #open(int, Person)} joins the transaction of the
+ * calling thread, or starts its own trace written by {@link #save()}.
+ * Traces not recorded are the shared {@link #NONE}, so callers should
+ * check {@link #isRecording()} before building trace messages.
+ * <p>
+ * Persons are traced by id and identifiers, and with their demographics
+ * only when TRACE_PERSON_DETAIL is true.
+ */
 public class IcsTrace
 {
   public static final int UPDATE_PERSON = 1;
   public static final int ADD_PERSON = 2;
   public static final int MERGE_PERSON = 3;
   public static final int SPLIT_PERSON = 4;
-  
-  private static boolean enabled = false;
-  private int type;
-  private StringBuffer log = new StringBuffer();
-  
-  public IcsTrace(int type, Person p)
-  {
-    enabled = ICSProperties.getBoolean("TRACE", false);
-    if (enabled) {
-      this.type = type;
-      
-      switch (type) {
-      case UPDATE_PERSON:
-        log.append("Update request for person:\n");
-        break;
-      case ADD_PERSON:
-        log.append("Add request for person:\n");
-        break;
-      }      
-      if (p != null)
-        add(p);
+
+  private static final String[] TYPE_NAMES = { "TRACE", "UPDATE_PERSON", "ADD_PERSON", "MERGE_PERSON", "SPLIT_PERSON" };
+
+  /** The trace of the transactions not recorded */
+  public static final IcsTrace NONE = new IcsTrace(null, null, false, false);
+
+  private static volatile boolean enabled = ICSProperties.getBoolean("TRACE", false);
+  private static final double sampleRate = ICSProperties.getDouble("TRACE_SAMPLE_RATE", 1.0);
+  private static final boolean personDetail = ICSProperties.getBoolean("TRACE_PERSON_DETAIL", false);
+
+  private static final ThreadLocal current = new ThreadLocal();
+
+  private final boolean recording;
+  private final boolean transaction;
+  private final String name;
+  private final String correlationId;
+  private final long startMillis;
+  private final long startNanos;
+  private StringBuilder stages;
+  private StringBuilder events;
+  private boolean written;
+
+  private IcsTrace(String name, String correlationId, boolean transaction, boolean recording)
+  {
+    this.name = name;
+    this.correlationId = correlationId;
+    this.transaction = transaction;
+    this.recording = recording;
+    if (recording) {
+      startMillis = System.currentTimeMillis();
+      startNanos = System.nanoTime();
+      stages = new StringBuilder(256);
+      events = new StringBuilder(1024);
+    } else {
+      startMillis = 0;
+      startNanos = 0;
     }
   }
 
+  /**
+   * Starts the trace of a transaction on the calling thread, if tracing is
+   * on and the transaction is sampled.
+   *
+   * @param name the name of the transaction, such as its handler
+   * @param correlationId the id of the transaction, such as MSH-10
+   * @return the trace, NONE if not recorded
+   */
+  public static IcsTrace begin(String name, String correlationId)
+  {
+    if (!enabled)
+      return NONE;
+    IcsTrace trace = sampled() ? new IcsTrace(name, correlationId, true, true) : NONE;
+    current.set(trace);
+    return trace;
+  }
+
+  /**
+   * Writes and ends the trace of the transaction of the calling thread.
+   */
+  public static void end()
+  {
+    IcsTrace trace = (IcsTrace) current.get();
+    if (trace == null)
+      return;
+    current.remove();
+    trace.write();
+  }
+
+  /**
+   * Returns the trace of the transaction of the calling thread, NONE if
+   * there is none or it is not recorded.
+   */
+  public static IcsTrace current()
+  {
+    if (!enabled)
+      return NONE;
+    IcsTrace trace = (IcsTrace) current.get();
+    return (trace == null) ? NONE : trace;
+  }
+
+  /**
+   * Joins the trace of the transaction of the calling thread, or starts a
+   * trace of its own, to be written by save(), if there is none.
+   *
+   * @param type the operation traced, such as ADD_PERSON
+   * @param p the person the operation is for, or null
+   * @return the trace, NONE if not recorded
+   */
+  public static IcsTrace open(int type, Person p)
+  {
+    if (!enabled)
+      return NONE;
+    String typeName = (type >= 0 && type < TYPE_NAMES.length) ? TYPE_NAMES[type] : TYPE_NAMES[0];
+    IcsTrace trace = (IcsTrace) current.get();
+    if (trace == null)
+      trace = sampled() ? new IcsTrace(typeName, null, false, true) : NONE;
+    else if (trace.recording)
+      trace.add(typeName);
+    if (trace.recording && p != null)
+      trace.add(p);
+    return trace;
+  }
+
+  private static boolean sampled()
+  {
+    return sampled(sampleRate);
+  }
+
+  /**
+   * Returns true for a fraction rate of the calls.
+   */
+  static boolean sampled(double rate)
+  {
+    return rate >= 1.0 || ThreadLocalRandom.current().nextDouble() < rate;
+  }
+
   public static boolean isEnabled()
   {
     return enabled;
@@ -59,98 +171,236 @@ public class IcsTrace
   {
     enabled = false;
   }
-  
+
+  /**
+   * Returns true if this trace is recorded.
+   */
+  public boolean isRecording()
+  {
+    return recording;
+  }
+
+  /**
+   * Marks the start of a stage.
+   *
+   * @return the start, to pass to endStage()
+   */
+  public long startStage()
+  {
+    return recording ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Records a stage, from its start to now.
+   *
+   * @param stage the name of the stage, such as "pid_search"
+   * @param start the value returned by startStage()
+   */
+  public void endStage(String stage, long start)
+  {
+    if (!recording)
+      return;
+    long now = System.nanoTime();
+    if (stages.length() > 0)
+      stages.append(',');
+    stages.append("{\"name\":");
+    quote(stages, stage);
+    stages.append(",\"offsetMicros\":").append((start - startNanos) / 1000);
+    stages.append(",\"durationMicros\":").append((now - start) / 1000).append('}');
+  }
+
   public void add(String msg)
   {
-    if (enabled)
-      log.append(msg).append("\n");
+    if (!recording)
+      return;
+    startEvent();
+    events.append("\"message\":");
+    quote(events, msg);
+    events.append('}');
   }
   
   public void add(Person p)
   {
-    if (enabled)
-      logPerson(p, false);
+    add(p, !personDetail);
   }
   
   public void add(Person p, boolean brief)
   {
-    if (enabled) 
-      logPerson(p, brief);
+    if (!recording || p == null)
+      return;
+    startEvent();
+    events.append("\"person\":");
+    logPerson(p, brief || !personDetail);
+    events.append('}');
   }
   
+  /**
+   * Writes a trace started by open(); the trace of a transaction is
+   * written by end().
+   */
   public void save()
   {
-    if (enabled) {
-      Logger trace = Logger.getLogger("ICS_TRACE");
-      trace.info(log.toString());
+    if (recording && !transaction)
+      write();
+  }
+
+  private void startEvent()
+  {
+    if (events.length() > 0)
+      events.append(',');
+    events.append("{\"offsetMicros\":").append((System.nanoTime() - startNanos) / 1000).append(',');
+  }
+
+  private void write()
+  {
+    if (!recording || written)
+      return;
+    written = true;
+    long durationMicros = (System.nanoTime() - startNanos) / 1000;
+    StringBuilder json = new StringBuilder(64 + stages.length() + events.length());
+    json.append("{\"time\":");
+    quote(json, new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(startMillis)));
+    json.append(",\"name\":");
+    quote(json, name);
+    json.append(",\"correlationId\":");
+    quote(json, correlationId);
+    json.append(",\"thread\":");
+    quote(json, Thread.currentThread().getName());
+    json.append(",\"durationMicros\":").append(durationMicros);
+    json.append(",\"stages\":[").append(stages).append(']');
+    json.append(",\"events\":[").append(events).append("]}");
+    Logger.getLogger("ICS_TRACE").info(json.toString());
+  }
+
+  /**
+   * Appends a value as a JSON string, or null.
+   */
+  static void quote(StringBuilder sb, Object value)
+  {
+    if (value == null) {
+      sb.append("null");
+      return;
     }
+    String s = value.toString();
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+      case '"':
+        sb.append("\\\"");
+        break;
+      case '\\':
+        sb.append("\\\\");
+        break;
+      case '\n':
+        sb.append("\\n");
+        break;
+      case '\r':
+        sb.append("\\r");
+        break;
+      case '\t':
+        sb.append("\\t");
+        break;
+      default:
+        if (c < 0x20)
+          sb.append(String.format("\\u%04x", (int) c));
+        else
+          sb.append(c);
+      }
+    }
+    sb.append('"');
   }
-  
 
   private void logPerson(Person p, boolean brief)
   {
-    String id = p.getOid();
+    StringBuilder log = events;
+    log.append("{\"id\":");
+    quote(log, p.getOid());
 
-    if (id != null)
-      log.append("  PERSON_ID: ").append(id).append("\n");
+    log.append(",\"pids\":[");
+    Iterator pids = p.getPersonIdentifiers().iterator();
+    boolean first = true;
+    while (pids.hasNext()) {
+      PersonIdentifier obj = (PersonIdentifier) pids.next();
+      if (!first)
+        log.append(',');
+      first = false;
+      quote(log, obj.getId() + "@" +
+            (obj.getAssigningAuthority() == null ? null : obj.getAssigningAuthority().getNameSpaceID()) + "." +
+            (obj.getAssigningFacility() == null ? null : obj.getAssigningFacility().getNameSpaceID()));
+    }
+    log.append(']');
 
     if (! brief) {
+      log.append(",\"documents\":[");
       Iterator iter = p.getDocumentHeaders().iterator();
-      
+      first = true;
       while(iter.hasNext()) {
         DocumentHeader d = (DocumentHeader) iter.next();
         Map map = p.getAttributesByDocumentHeader(d);
-        List list;
         Iterator attrIter;
-        
+
+        if (!first)
+          log.append(',');
+        first = false;
+        log.append("{\"ssns\":[");
         attrIter = ((List) map.get("ssns")).iterator();
         while(attrIter.hasNext()) {
           SocialSecurityNumber obj = (SocialSecurityNumber) attrIter.next();
-          log.append("    SSN: ").append(obj.getSSN()).append("\n");
+          quote(log, obj.getSSN());
+          if (attrIter.hasNext())
+            log.append(',');
         }
-        
+
+        log.append("],\"dobs\":[");
         attrIter = ((List) map.get("dobs")).iterator();
         while(attrIter.hasNext()) {
           DateOfBirth obj = (DateOfBirth) attrIter.next();
-          log.append("    DOB: ").append(obj.getDOB()).append("\n");
+          quote(log, obj.getDOB());
+          if (attrIter.hasNext())
+            log.append(',');
         }
         
+        log.append("],\"names\":[");
         attrIter = ((List) map.get("names")).iterator();
         while(attrIter.hasNext()) {
           PersonName obj = (PersonName) attrIter.next();
-          log.append("    Name: ").append(obj.getName()).append("\n");
+          quote(log, obj.getName());
+          if (attrIter.hasNext())
+            log.append(',');
         }
         
+        log.append("],\"genders\":[");
         attrIter = ((List) map.get("genders")).iterator();
         while(attrIter.hasNext()) {
           Gender obj = (Gender) attrIter.next();
-          log.append("    Gender: ").append(obj.getValue()).append("\n");
+          quote(log, obj.getValue());
+          if (attrIter.hasNext())
+            log.append(',');
         }
         
+        log.append("],\"addresses\":[");
         attrIter = ((List) map.get("addresses")).iterator();
         while(attrIter.hasNext()) {
           Address obj = (Address) attrIter.next();
-          log.append("    Addr1: ").append(obj.getAddress1()).append("\n");
-          log.append("    Addr2: ").append(obj.getAddress2()).append("\n");
-          log.append("    City: ").append(obj.getCity()).append("\n");
-          log.append("    State: ").append(obj.getState()).append("\n");
-          log.append("    Zip: ").append(obj.getZipCode()).append("\n");
+          quote(log, obj.getAddress1() + ", " + obj.getAddress2() + ", " + obj.getCity() + ", " +
+                obj.getState() + " " + obj.getZipCode());
+          if (attrIter.hasNext())
+            log.append(',');
         }
         
+        log.append("],\"phones\":[");
         attrIter = ((List) map.get("telephoneNumbers")).iterator();
         while(attrIter.hasNext()) {
           TelephoneNumber obj = (TelephoneNumber) attrIter.next();
-          log.append("    Area Code: ").append(obj.getAreaCode()).append("\n");
-          log.append("    Phone: ").append(obj.getPhoneNumber()).append("\n");
-        }
-        
-        attrIter = ((List) map.get("personIdentifiers")).iterator();
-        while(attrIter.hasNext()) {
-          PersonIdentifier obj = (PersonIdentifier) attrIter.next();
-          log.append("    PID: ").append(obj.getId()).append("@").append(obj.getAssigningAuthority().getNameSpaceID()).append(".").append(obj.getAssigningFacility().getNameSpaceID()).append("\n");
+          quote(log, obj.getAreaCode() + " " + obj.getPhoneNumber());
+          if (attrIter.hasNext())
+            log.append(',');
         }
-        log.append("\n");
+        log.append("]}");
       }
+      log.append(']');
     }
+    log.append('}');
   }
 }
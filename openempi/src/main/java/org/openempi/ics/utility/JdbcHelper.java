@@ -8,6 +8,10 @@
  */
 package org.openempi.ics.utility;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.SQLException;
 
@@ -32,6 +36,22 @@ public class JdbcHelper {
     }
 
     private static BasicDataSource dataSource;
+
+    /** Transaction started by the current thread, if any. */
+    private static final ThreadLocal<Transaction> transaction = new ThreadLocal<Transaction>();
+
+    /**
+     * The connection of a transaction, and whether an operation enlisted in
+     * it rolled back.
+     */
+    private static final class Transaction {
+        final Connection conn;
+        volatile boolean rollbackOnly = false;
+
+        Transaction(Connection conn) {
+            this.conn = conn;
+        }
+    }
     static {
         // initializeJdbc();
         // jdbcHelper = new JdbcHelper();
@@ -46,7 +66,143 @@ public class JdbcHelper {
      */
     public static Connection getConnection()
             throws SQLException {
+        Transaction tx = transaction.get();
+        if (tx != null) {
+            return enlisted(tx);
+        }
+        return dataSource.getConnection();
+    }
+
+    /**
+     * Starts a transaction on the current thread.  Until it is committed or
+     * rolled back, getConnection() returns the connection of the transaction,
+     * on which commit(), setAutoCommit() and close() leave the transaction
+     * open; so the database operations called meanwhile, each written as its
+     * own transaction, become part of this one.  A rollback() by one of them
+     * marks the transaction rollback-only: commitTransaction() then rolls it
+     * back instead.
+     * @throws SQLException if a transaction is already open on this thread
+     */
+    public static void beginTransaction()
+            throws SQLException {
+        if (transaction.get() != null) {
+            throw new SQLException("A transaction is already open on this thread");
+        }
         Connection conn = dataSource.getConnection();
-        return conn;
+        try {
+            conn.setAutoCommit(false);
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        transaction.set(new Transaction(conn));
+    }
+
+    /**
+     * Commits the transaction of the current thread and releases its
+     * connection.  If the commit fails, the transaction is rolled back.
+     * @throws SQLException if the transaction is rollback-only, after
+     * rolling it back
+     */
+    public static void commitTransaction()
+            throws SQLException {
+        Transaction tx = transaction.get();
+        if (tx == null) {
+            throw new SQLException("No transaction is open on this thread");
+        }
+        if (tx.rollbackOnly) {
+            rollbackTransaction();
+            throw new SQLException("Transaction rolled back: an operation in it rolled back");
+        }
+        boolean committed = false;
+        try {
+            tx.conn.commit();
+            committed = true;
+        } finally {
+            if (!committed) {
+                rollbackTransaction();
+            } else {
+                endTransaction(tx.conn);
+            }
+        }
+    }
+
+    /**
+     * Rolls back the transaction of the current thread, if there is one, and
+     * releases its connection.  Never throws, so it can be called from a
+     * catch or finally block.
+     */
+    public static void rollbackTransaction() {
+        Transaction tx = transaction.get();
+        if (tx == null) {
+            return;
+        }
+        try {
+            tx.conn.rollback();
+        } catch (SQLException e) {
+            Logger.getLogger(JdbcHelper.class).error("Cannot rollback: " + e.toString());
+        }
+        endTransaction(tx.conn);
+    }
+
+    private static void endTransaction(Connection conn) {
+        transaction.remove();
+        try {
+            conn.setAutoCommit(true);
+        } catch (SQLException e) {
+            // the pool validates the connection before handing it out again
+            Logger.getLogger(JdbcHelper.class).warn("Cannot restore autocommit: " + e.toString());
+        }
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            Logger.getLogger(JdbcHelper.class).error("Cannot release connection: " + e.toString());
+        }
+    }
+
+    /**
+     * Wraps the connection of the open transaction so that callers cannot
+     * end the transaction or release the connection.  close() closes the
+     * wrapper only, and a rollback() marks the transaction rollback-only.
+     */
+    private static Connection enlisted(final Transaction tx) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class[] { Connection.class },
+                new InvocationHandler() {
+                    private boolean closed = false;
+
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        String name = method.getName();
+                        if (name.equals("close")) {
+                            closed = true;
+                            return null;
+                        }
+                        if (name.equals("isClosed")) {
+                            return Boolean.valueOf(closed || tx.conn.isClosed());
+                        }
+                        if (name.equals("equals")) {
+                            return Boolean.valueOf(proxy == args[0]);
+                        }
+                        if (name.equals("hashCode")) {
+                            return Integer.valueOf(System.identityHashCode(proxy));
+                        }
+                        if (closed && !name.equals("toString")) {
+                            throw new SQLException("Connection is closed");
+                        }
+                        if (name.equals("rollback") && (args == null || args.length == 0)) {
+                            tx.rollbackOnly = true;
+                            return null;
+                        }
+                        if (name.equals("commit") || name.equals("setAutoCommit")) {
+                            return null;
+                        }
+                        try {
+                            return method.invoke(tx.conn, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getTargetException();
+                        }
+                    }
+                });
     }
 }
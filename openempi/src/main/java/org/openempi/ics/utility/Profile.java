@@ -3,82 +3,72 @@ package org.openempi.ics.utility;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.Writer;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+
+import org.openempi.ics.utility.metrics.Metrics;
+import org.openempi.ics.utility.metrics.Timer;
 
 /**
   Simple performance profiling tools.  Profile allows you to mark
-  code sections to be profiled arbitrarily.  It will track all profiled
-  sections as well as the call map for other profiled sections called
-  from within a profiled section.  Profile attempts to be minimally
-  intrusive to the overall code performance by collecting the profile
-  data as quickly as possible and deferring aggregration and analysis
-  until later. Even so, there is some impact to using this tool so
-  case should be used.
+  code sections to be profiled arbitrarily.  Each profiled section is
+  timed into the {@link Metrics} timer of the same name, so its call
+  count and latency percentiles are available over JMX and the metrics
+  HTTP port.
 
   Basic use is to use the begin() and end() methods to mark blocks of code
-  you wish to profile.  Then use one of the dump() methods to display
-  the profiled stats collected.  You can use enable() or disable() to
-  enable/disable system-wide profiling, or set the system property
-  Profile.enable=true
-
-  NOTE: This code is NOT perfect!  It is designed to be quick and dirty!
-  If you put a begin()/end() block in code and the end() doesn't get
-  executed (maybe because of a throw) you will get unpredictable results
+  you wish to profile.  Use one of the dump() methods to display the
+  timers.  You can use enable() or disable() to enable/disable system-wide
+  profiling, or set METRICS_ENABLED in ICS.properties.
+
+  The open sections are kept per thread, without locking.  If a begin()
+  is not matched by an end() (maybe because of a throw), the section is
+  dropped when an enclosing section ends, or when the thread has
+  MAX_DEPTH sections open, as a pooled thread may never end the
+  enclosing section.  Each thread also keeps the timers of the names it
+  used last, so that a section named by a literal finds its timer
+  without a lookup in the registry.
 */
 public class Profile
 {
     /**
-       true if profiling is enabled, false otherwise
-    */
-    static private  boolean profile = Boolean.getBoolean("Profile.enable");
-
-    /**
-       Contains all completed Timers.  We're using A vector
-       here because the sycnhronization is desired.
+       The most sections a thread keeps open; beginning one more drops
+       the outermost
     */
-    static private  Vector timers = new Vector();
+    static final int MAX_DEPTH = 64;
 
     /**
-       A Map containing Thread/List pairs.  Each thread in which
-       Profiling is used will have an entry in this Map.  The List
-       for each Thread is the stack of current timers which have
-       started but not yet stopped
+       The sections started but not yet ended by each thread
     */
-    static private HashMap threads = new HashMap();
+    static private final ThreadLocal stacks = new ThreadLocal()
+    {
+        protected Object initialValue()
+        {
+            return new Stack();
+        }
+    };
 
     /**
        No instances allowed
     */
     private Profile() {}
 
-    /**
-       In theory, prevents class garbage collection
-    */
-    static private Profile _instance = new Profile();
-
     /**
       Enables profiling.  Profiling is now turned on everywhere and
       data will be collected
       */
     static public void enable()
     {
-        profile = true;
+        Metrics.setEnabled(true);
     }
 
     /**
-      Disables profiling.  Profiling is now turned off and all collected
-      data is lost
+      Disables profiling.  Profiling is now turned off; the data already
+      collected is kept
       */
     static public void disable()
     {
-        profile = false;
-        clearAll();
+        Metrics.setEnabled(false);
     }
 
     /**
@@ -86,7 +76,7 @@ public class Profile
       */
     static public boolean isEnabled()
     {
-        return profile;
+        return Metrics.isEnabled();
     }
 
     /**
@@ -97,19 +87,9 @@ public class Profile
     */
     static public void begin(String name)
     {
-        if (!profile)
+        if (!Metrics.isEnabled())
             return;
-        Timer t;
-        LinkedList list;
-        Thread thread = Thread.currentThread();
-
-        synchronized (threads) {
-            list = (LinkedList) threads.get(thread);
-            if (list == null)
-                threads.put(thread, list = new LinkedList());
-        }
-        t = new Timer(name);
-        list.addLast(t);
+        ((Stack) stacks.get()).push(name, System.nanoTime());
     }
 
     /**
@@ -120,32 +100,15 @@ public class Profile
     */
     static public void end(String name)
     {
-        if (!profile)
-            return;
-        LinkedList list;
-        long total;
-        Thread thread = Thread.currentThread();
-        synchronized (threads) {
-            list = (LinkedList) threads.get(thread);
-        }
-        
-        Timer t = (Timer) list.removeLast();
-        if (t != null) {
-            total = t.end();
-            
-            if (list.size() > 0) {
-                Timer p = (Timer) list.getLast();
-                p.child += total;
-                p.timers.add(t);
-            } else
-                timers.add(t);
-        }
+        long now = System.nanoTime();
+        Stack stack = (Stack) stacks.get();
+        long start = stack.pop(name);
+        if (start != Long.MIN_VALUE)
+            stack.timer(name).update(now - start);
     }
 
     /**
-      Dumps the current call map and totals to System.out.
-      Each call to dump() also implicitly clears the call map
-      and all statistics collected so far
+      Dumps the timers to System.out.
       */
     static public void dump()
     {
@@ -153,9 +116,7 @@ public class Profile
     }
 
     /**
-      Dumps the current call map and totals to the PrintWriter given.
-      Each call to dump() also implicitly clears the call map
-      and all statistics collected so far
+      Dumps the timers to the PrintStream given.
 
       @param out PrintStream to output to
       */
@@ -165,9 +126,7 @@ public class Profile
     }
 
     /**
-      Dumps the current call map and totals to the Writer given.
-      Each call to dump() also implicitly clears the call map
-      and all statistics collected so far
+      Dumps the timers to the Writer given.
 
       @param out Writer to output to
       */
@@ -177,157 +136,97 @@ public class Profile
     }
 
     /**
-      Dumps the current call map and totals to the PrintStream given.
-      Each call to dump() also implicitly clears the call map
-      and all statistics collected so far
+      Dumps the timers to the PrintWriter given, one line per timer with
+      its call count and mean, median, 99th percentile and maximum time.
 
       @param out PrintWriter to output to
       */
     static public void dump(PrintWriter out)
     {
-        if (!profile)
-            return;
-
-        HashMap totals = new HashMap();
-
-        out.println("Call Map");
-        dumpTimers(timers, out, "", totals);
-
-        out.println("\nTotals");
-        Iterator iter = totals.values().iterator();
-        Timer t;
+        out.println("Totals");
+        Iterator iter = Metrics.getTimers().entrySet().iterator();
         while(iter.hasNext()) {
-            t = (Timer) iter.next();
-            out.println(t.name + ": " + t.total + "ms/" + t.cnt +
-                        "c=" + (t.total/t.cnt) + "ms/c, Child: " +
-                        t.child + "ms");
+            Map.Entry entry = (Map.Entry) iter.next();
+            Timer t = (Timer) entry.getValue();
+            out.println(entry.getKey() + ": " + t.getCount() + "c, mean=" +
+                        t.getMeanMillis() + "ms, p50=" + t.getP50Millis() +
+                        "ms, p99=" + t.getP99Millis() + "ms, max=" +
+                        t.getMaxMillis() + "ms");
         }
         out.flush();
     }
 
     /**
-      Clears the current call map and all statistics
+      Clears the sections the calling thread has started but not ended
     */
     static public void clearAll()
     {
-        if (!profile)
-            return;
-        synchronized (threads) {
-            threads.clear();
-            timers.clear();
-        }
+        ((Stack) stacks.get()).depth = 0;
     }
 
     /**
-      Private utility method for aggregating call map and statistics
-      and formatting them for display.  This method is called recursively
-      during processing since each Timer can have a list of sub-timers
-      which were invoked during the span of parent timers call.
-
-      @param timers The list of Timer objects to process for display
-      @param out The PrintWriter to send the output to
-      @param prefix A String appended to each output line
-      @param totals A Map to collect totals for all calls in the call map.
-    */
-    static private void dumpTimers(List timers, PrintWriter out, String prefix,
-                                   Map totals)
+      The open sections and the timers last used by one thread
+      */
+    private static class Stack
     {
-        HashMap map = new HashMap();
-        Timer t, t2;
-        int len = timers.size();
-        for(int i =0; i<len; i++) {
-            t = (Timer) timers.get(i);
-            if ((t2 = (Timer) map.get(t.name)) == null) {
-                map.put(t.name, t2 = new Timer(t));
-                t2.cnt = 1;
-            } else {
-                t2.total += t.total;
-                t2.child += t.child;
-                t2.cnt++;
+        String[] names = new String[16];
+        long[] starts = new long[16];
+        int depth;
+        final String[] timerNames = new String[64];
+        final Timer[] timers = new Timer[64];
+
+        void push(String name, long start)
+        {
+            if (depth == MAX_DEPTH) {
+                // drop the outermost section
+                System.arraycopy(names, 1, names, 0, depth - 1);
+                System.arraycopy(starts, 1, starts, 0, depth - 1);
+                depth--;
             }
-            t2.timers.addAll(t.timers);
-            if ((t2 = (Timer) totals.get(t.name)) == null) {
-                totals.put(t.name, t2 = new Timer(t));
-                t2.cnt = 1;
-            } else {
-                t2.total += t.total;
-                t2.child += t.child;
-                t2.cnt++;
+            else if (depth == names.length) {
+                String[] n = new String[depth * 2];
+                long[] s = new long[depth * 2];
+                System.arraycopy(names, 0, n, 0, depth);
+                System.arraycopy(starts, 0, s, 0, depth);
+                names = n;
+                starts = s;
             }
-            t2.timers.addAll(t.timers);
+            names[depth] = name;
+            starts[depth] = start;
+            depth++;
         }
-        Iterator iter = map.values().iterator();
-        while(iter.hasNext()) {
-            t = (Timer) iter.next();
-            out.println(prefix + t.name + ": " + t.total + "ms/" + t.cnt +
-                        "c=" + (t.total/t.cnt) + "ms/c, Child: " +
-                        t.child + "ms");
-            dumpTimers(t.timers, out, prefix + "  ", totals);
-        }
-    }
-
-    /**
-      Private class representing each individual timer
-      */
-    private static class Timer
-    {
-        /**
-          The name of this timer
-          */
-        public String name;
-
-        /**
-          The time this timer was started in milliseconds
-          */
-        public long start;
-
-        /**
-          The total run time of this timer in milliseconds
-          */
-        public long total;
-
-        /**
-          The total time spent in sub-timers in milliseconds
-          */
-        public long child;
 
         /**
-          Total number of timers this timer was invoked
+          Removes the innermost section of a name and the sections opened
+          within it, and returns its start, or Long.MIN_VALUE if the name
+          is not open
           */
-        int cnt;
-
-        /**
-          List of sub-Timers.  These are timers that were invoked
-          during the span of this timer.
-          */
-        public ArrayList timers;
-
-        public Timer(String name)
+        long pop(String name)
         {
-            this.name = name;
-            start = System.currentTimeMillis();
-            timers = new ArrayList();
-        }
-
-        public Timer(Timer t)
-        {
-            name = t.name;
-            start = t.start;
-            total = t.total;
-            child = t.child;
-            cnt = t.cnt;
-            timers = new ArrayList();
-        }
-
-        public long end()
-        {
-            return total = System.currentTimeMillis() - start;
+            for (int i = depth - 1; i >= 0; i--) {
+                if (names[i].equals(name)) {
+                    for (int j = i; j < depth; j++)
+                        names[j] = null;
+                    depth = i;
+                    return starts[i];
+                }
+            }
+            return Long.MIN_VALUE;
         }
 
-        public long total()
+        /**
+          Returns the timer of a name, from the slot of the name's
+          identity; names built at run time usually miss and are looked
+          up in the registry
+          */
+        Timer timer(String name)
         {
-            return total;
+            int i = System.identityHashCode(name) & (timers.length - 1);
+            if (timerNames[i] != name) {
+                timers[i] = Metrics.timer(name);
+                timerNames[i] = name;
+            }
+            return timers[i];
         }
-
     }
 }
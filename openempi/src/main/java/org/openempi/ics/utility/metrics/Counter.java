@@ -0,0 +1,37 @@
+package org.openempi.ics.utility.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing count, cheap to update from many threads.
+ */
+public class Counter implements CounterMXBean
+{
+    private final String name;
+    private final LongAdder count = new LongAdder();
+
+    Counter(String name)
+    {
+        this.name = name;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public void inc()
+    {
+        count.increment();
+    }
+
+    public void inc(long n)
+    {
+        count.add(n);
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+}
@@ -0,0 +1,9 @@
+package org.openempi.ics.utility.metrics;
+
+/**
+ * A value read when the metrics are collected, such as a queue length.
+ */
+public interface Gauge
+{
+    double getValue();
+}
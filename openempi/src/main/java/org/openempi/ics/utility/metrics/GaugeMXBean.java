@@ -0,0 +1,9 @@
+package org.openempi.ics.utility.metrics;
+
+/**
+ * JMX view of a {@link Gauge}.
+ */
+public interface GaugeMXBean
+{
+    double getValue();
+}
@@ -0,0 +1,176 @@
+package org.openempi.ics.utility.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative long values with log-linear
+ * buckets, as HdrHistogram does: each power of two range is split into 16
+ * buckets, so a percentile is within about 6% of the recorded value.
+ * Values above 2^40 are counted in the last bucket.
+ * <p>
+ * The count, sum and maximum cover every value recorded.  The percentiles
+ * cover the values recorded in the current and the previous window, so
+ * that they follow recent behavior; windows are rotated on record().
+ */
+public class Histogram implements HistogramMXBean
+{
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = SUB_COUNT + (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT;
+
+    private final String name;
+    private final long windowNanos;
+    private final AtomicLong count = new AtomicLong();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+    private volatile AtomicLongArray current = new AtomicLongArray(BUCKETS);
+    private volatile AtomicLongArray previous = new AtomicLongArray(BUCKETS);
+    private volatile long rotateAt;
+
+    Histogram(String name, long windowMillis)
+    {
+        this.name = name;
+        this.windowNanos = windowMillis * 1000000L;
+        this.rotateAt = System.nanoTime() + windowNanos;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Records a value; negative values are recorded as 0.
+     */
+    public void record(long value)
+    {
+        if (value < 0)
+            value = 0;
+        long now = System.nanoTime();
+        if (now - rotateAt >= 0)
+            rotate(now);
+        current.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.add(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value))
+            ;
+    }
+
+    private synchronized void rotate(long now)
+    {
+        if (now - rotateAt < 0)
+            return;
+        // a record() racing with the swap may lose its percentile count
+        AtomicLongArray recycled = previous;
+        clear(recycled);
+        if (now - rotateAt >= windowNanos)
+            clear(current);     // both windows are stale
+        previous = current;
+        current = recycled;
+        rotateAt = now + windowNanos;
+    }
+
+    private static void clear(AtomicLongArray buckets)
+    {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets.set(i, 0);
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getSum()
+    {
+        return sum.sum();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public double getMean()
+    {
+        long n = count.get();
+        return (n == 0) ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Returns the value below which a fraction q of the recent values are,
+     * or 0 if no value was recorded recently.
+     */
+    public long getValueAtQuantile(double q)
+    {
+        long now = System.nanoTime();
+        if (now - rotateAt >= 0)
+            rotate(now);
+        AtomicLongArray cur = current;
+        AtomicLongArray prev = previous;
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = cur.get(i) + prev.get(i);
+            total += counts[i];
+        }
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(Math.min(1.0, Math.max(0.0, q)) * total);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestEquivalent(i), max.get());
+        }
+        return max.get();
+    }
+
+    public long getP50()
+    {
+        return getValueAtQuantile(0.5);
+    }
+
+    public long getP90()
+    {
+        return getValueAtQuantile(0.9);
+    }
+
+    public long getP99()
+    {
+        return getValueAtQuantile(0.99);
+    }
+
+    public long getP999()
+    {
+        return getValueAtQuantile(0.999);
+    }
+
+    static int bucket(long value)
+    {
+        if (value < SUB_COUNT)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return SUB_COUNT + (exponent - SUB_BITS) * SUB_COUNT + sub;
+    }
+
+    static long highestEquivalent(int bucket)
+    {
+        if (bucket < SUB_COUNT)
+            return bucket;
+        int exponent = (bucket - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+        int sub = (bucket - SUB_COUNT) % SUB_COUNT;
+        return ((long) (SUB_COUNT + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,23 @@
+package org.openempi.ics.utility.metrics;
+
+/**
+ * JMX view of a {@link Histogram}.
+ */
+public interface HistogramMXBean
+{
+    long getCount();
+
+    long getSum();
+
+    long getMax();
+
+    double getMean();
+
+    long getP50();
+
+    long getP90();
+
+    long getP99();
+
+    long getP999();
+}
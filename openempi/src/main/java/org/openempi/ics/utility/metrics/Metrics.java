@@ -0,0 +1,186 @@
+package org.openempi.ics.utility.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.openempi.ics.utility.ICSProperties;
+
+/**
+ * The registry of the timers, histograms, counters and gauges, by name.
+ * Getting a metric creates it the first time; callers on hot paths should
+ * keep the returned object.  Every metric is registered in the platform
+ * MBean server under <code>org.openempi.ics:type=&lt;Type&gt;,name=&lt;name&gt;</code>
+ * unless METRICS_JMX is false, and all of them are served in the
+ * Prometheus text format on METRICS_HTTP_PORT (0 for none) of
+ * METRICS_HTTP_ADDRESS, 127.0.0.1 by default.
+ * <p>
+ * Percentiles cover the last one to two METRICS_WINDOW_SECS.  Unless
+ * METRICS_ENABLED is true, {@link org.openempi.ics.utility.Profile}
+ * records nothing.
+ *
+ * @see PrometheusExporter
+ */
+public class Metrics
+{
+    private static Logger log = Logger.getLogger("ICS");
+
+    public static final String DOMAIN = "org.openempi.ics";
+
+    private static final ConcurrentMap timers = new ConcurrentHashMap();
+    private static final ConcurrentMap histograms = new ConcurrentHashMap();
+    private static final ConcurrentMap counters = new ConcurrentHashMap();
+    private static final ConcurrentMap gauges = new ConcurrentHashMap();
+
+    private static volatile boolean enabled = ICSProperties.getBoolean("METRICS_ENABLED", false);
+    private static final long windowMillis = Math.max(1, ICSProperties.getInt("METRICS_WINDOW_SECS", 60)) * 1000L;
+    private static final boolean jmx = ICSProperties.getBoolean("METRICS_JMX", true);
+
+    static
+    {
+        int port = ICSProperties.getInt("METRICS_HTTP_PORT", 0);
+        if (port > 0)
+            PrometheusExporter.start(ICSProperties.getProperty("METRICS_HTTP_ADDRESS", "127.0.0.1"), port);
+    }
+
+    private Metrics() {}
+
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enable)
+    {
+        enabled = enable;
+    }
+
+    /**
+     * Gets the timer of a name, creating it if needed.
+     */
+    public static Timer timer(String name)
+    {
+        Timer timer = (Timer) timers.get(name);
+        if (timer == null)
+        {
+            Timer created = new Timer(name, windowMillis);
+            timer = (Timer) timers.putIfAbsent(name, created);
+            if (timer == null)
+            {
+                timer = created;
+                register("Timer", name, timer);
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * Gets the histogram of a name, creating it if needed.
+     */
+    public static Histogram histogram(String name)
+    {
+        Histogram histogram = (Histogram) histograms.get(name);
+        if (histogram == null)
+        {
+            Histogram created = new Histogram(name, windowMillis);
+            histogram = (Histogram) histograms.putIfAbsent(name, created);
+            if (histogram == null)
+            {
+                histogram = created;
+                register("Histogram", name, histogram);
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Gets the counter of a name, creating it if needed.
+     */
+    public static Counter counter(String name)
+    {
+        Counter counter = (Counter) counters.get(name);
+        if (counter == null)
+        {
+            Counter created = new Counter(name);
+            counter = (Counter) counters.putIfAbsent(name, created);
+            if (counter == null)
+            {
+                counter = created;
+                register("Counter", name, counter);
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Registers a gauge, unless one of the same name already is.
+     */
+    public static void gauge(String name, final Gauge gauge)
+    {
+        if (gauges.putIfAbsent(name, gauge) == null)
+        {
+            register("Gauge", name, new GaugeMXBean()
+            {
+                public double getValue()
+                {
+                    return gauge.getValue();
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the timers by name, in name order.
+     */
+    public static Map getTimers()
+    {
+        return new TreeMap(timers);
+    }
+
+    /**
+     * Returns the histograms by name, in name order.
+     */
+    public static Map getHistograms()
+    {
+        return new TreeMap(histograms);
+    }
+
+    /**
+     * Returns the counters by name, in name order.
+     */
+    public static Map getCounters()
+    {
+        return new TreeMap(counters);
+    }
+
+    /**
+     * Returns the gauges by name, in name order.
+     */
+    public static Map getGauges()
+    {
+        return new TreeMap(gauges);
+    }
+
+    private static void register(String type, String name, Object mbean)
+    {
+        if (!jmx)
+            return;
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+            if (!server.isRegistered(objectName))
+                server.registerMBean(mbean, objectName);
+        }
+        catch (Exception e)
+        {
+            log.warn("Cannot register " + type + " " + name + " in JMX: " + e);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.openempi.ics.utility.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the {@link Metrics} in the Prometheus text exposition format on
+ * <code>/metrics</code>.  Each kind of metric is one family with the
+ * metric name as the <code>name</code> label: timers are summaries in
+ * seconds, histograms unitless summaries.
+ */
+public class PrometheusExporter implements HttpHandler
+{
+    private static Logger log = Logger.getLogger("ICS");
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private static volatile HttpServer server;
+
+    /**
+     * Starts serving the metrics, once.
+     *
+     * @param address the address to listen on
+     * @param port the port to listen on
+     */
+    public static synchronized void start(final String address, final int port)
+    {
+        if (server != null)
+            return;
+        // the HTTP dispatcher thread is a daemon only if created by one
+        Thread starter = new Thread("PrometheusExporter-start")
+        {
+            public void run()
+            {
+                server = create(address, port);
+            }
+        };
+        starter.setDaemon(true);
+        starter.start();
+        try
+        {
+            starter.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static HttpServer create(String address, int port)
+    {
+        try
+        {
+            HttpServer httpServer = HttpServer.create(new InetSocketAddress(address, port), 0);
+            httpServer.createContext("/metrics", new PrometheusExporter());
+            httpServer.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "PrometheusExporter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+            httpServer.start();
+            log.info("Serving metrics on http://" + address + ":" + port + "/metrics");
+            return httpServer;
+        }
+        catch (IOException e)
+        {
+            log.error("Cannot serve metrics on " + address + ":" + port, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stops serving the metrics.
+     */
+    public static synchronized void stop()
+    {
+        if (server != null)
+        {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    public void handle(HttpExchange exchange) throws IOException
+    {
+        byte[] body = scrape().getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try
+        {
+            out.write(body);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns every metric in the Prometheus text format.
+     */
+    public static String scrape()
+    {
+        StringBuilder sb = new StringBuilder(4096);
+
+        Map timers = Metrics.getTimers();
+        if (!timers.isEmpty())
+        {
+            sb.append("# TYPE openempi_timer_seconds summary\n");
+            for (Iterator it = timers.values().iterator(); it.hasNext();)
+            {
+                Timer timer = (Timer) it.next();
+                summary(sb, "openempi_timer_seconds", timer.getName(), timer.getHistogram(), 1e-6);
+            }
+            sb.append("# TYPE openempi_timer_max_seconds gauge\n");
+            for (Iterator it = timers.values().iterator(); it.hasNext();)
+            {
+                Timer timer = (Timer) it.next();
+                sample(sb, "openempi_timer_max_seconds", timer.getName(), null, timer.getHistogram().getMax() * 1e-6);
+            }
+        }
+
+        Map histograms = Metrics.getHistograms();
+        if (!histograms.isEmpty())
+        {
+            sb.append("# TYPE openempi_histogram summary\n");
+            for (Iterator it = histograms.values().iterator(); it.hasNext();)
+            {
+                Histogram histogram = (Histogram) it.next();
+                summary(sb, "openempi_histogram", histogram.getName(), histogram, 1);
+            }
+        }
+
+        Map counters = Metrics.getCounters();
+        if (!counters.isEmpty())
+        {
+            sb.append("# TYPE openempi_counter_total counter\n");
+            for (Iterator it = counters.values().iterator(); it.hasNext();)
+            {
+                Counter counter = (Counter) it.next();
+                sample(sb, "openempi_counter_total", counter.getName(), null, counter.getCount());
+            }
+        }
+
+        Map gauges = Metrics.getGauges();
+        if (!gauges.isEmpty())
+        {
+            sb.append("# TYPE openempi_gauge gauge\n");
+            for (Iterator it = gauges.entrySet().iterator(); it.hasNext();)
+            {
+                Map.Entry entry = (Map.Entry) it.next();
+                double value;
+                try
+                {
+                    value = ((Gauge) entry.getValue()).getValue();
+                }
+                catch (RuntimeException e)
+                {
+                    continue;
+                }
+                sample(sb, "openempi_gauge", (String) entry.getKey(), null, value);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void summary(StringBuilder sb, String family, String name, Histogram histogram, double scale)
+    {
+        for (int i = 0; i < QUANTILES.length; i++)
+            sample(sb, family, name, String.valueOf(QUANTILES[i]),
+                   histogram.getValueAtQuantile(QUANTILES[i]) * scale);
+        sample(sb, family + "_sum", name, null, histogram.getSum() * scale);
+        sample(sb, family + "_count", name, null, histogram.getCount());
+    }
+
+    private static void sample(StringBuilder sb, String family, String name, String quantile, double value)
+    {
+        sb.append(family).append("{name=\"");
+        escape(sb, name);
+        sb.append('"');
+        if (quantile != null)
+            sb.append(",quantile=\"").append(quantile).append('"');
+        sb.append("} ");
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            sb.append((long) value);
+        else
+            sb.append(value);
+        sb.append('\n');
+    }
+
+    private static void escape(StringBuilder sb, String value)
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '\\')
+                sb.append("\\\\");
+            else if (c == '"')
+                sb.append("\\\"");
+            else if (c == '\n')
+                sb.append("\\n");
+            else
+                sb.append(c);
+        }
+    }
+}
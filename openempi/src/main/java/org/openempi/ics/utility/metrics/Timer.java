@@ -0,0 +1,75 @@
+package org.openempi.ics.utility.metrics;
+
+/**
+ * Records durations in a {@link Histogram} of microseconds.  Typical use:
+ * <pre>
+ *   long start = System.nanoTime();
+ *   ...
+ *   timer.update(System.nanoTime() - start);
+ * </pre>
+ */
+public class Timer implements TimerMXBean
+{
+    private final Histogram histogram;
+
+    Timer(String name, long windowMillis)
+    {
+        histogram = new Histogram(name, windowMillis);
+    }
+
+    public String getName()
+    {
+        return histogram.getName();
+    }
+
+    /**
+     * Records a duration in nanoseconds.
+     */
+    public void update(long nanos)
+    {
+        histogram.record(nanos / 1000);
+    }
+
+    /**
+     * Gets the histogram of the durations in microseconds.
+     */
+    public Histogram getHistogram()
+    {
+        return histogram;
+    }
+
+    public long getCount()
+    {
+        return histogram.getCount();
+    }
+
+    public double getMeanMillis()
+    {
+        return histogram.getMean() / 1000.0;
+    }
+
+    public double getMaxMillis()
+    {
+        return histogram.getMax() / 1000.0;
+    }
+
+    public double getP50Millis()
+    {
+        return histogram.getP50() / 1000.0;
+    }
+
+    public double getP90Millis()
+    {
+        return histogram.getP90() / 1000.0;
+    }
+
+    public double getP99Millis()
+    {
+        return histogram.getP99() / 1000.0;
+    }
+
+    public double getP999Millis()
+    {
+        return histogram.getP999() / 1000.0;
+    }
+}
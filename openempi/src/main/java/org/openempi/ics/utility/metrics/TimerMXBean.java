@@ -0,0 +1,21 @@
+package org.openempi.ics.utility.metrics;
+
+/**
+ * JMX view of a {@link Timer}, in milliseconds.
+ */
+public interface TimerMXBean
+{
+    long getCount();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+}
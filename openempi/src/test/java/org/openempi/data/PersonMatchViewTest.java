@@ -0,0 +1,62 @@
+package org.openempi.data;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the normalization and caching of PersonMatchView.
+ */
+public class PersonMatchViewTest extends TestCase {
+
+  private DocumentHeader dh = new DocumentHeader();
+
+  public void testNormalization() throws Exception {
+    Person person = new Person();
+    person.addName(new PersonName(dh, " johnson ", "Robert", null));
+    person.addName(new PersonName(dh, "", "  ", null));
+    person.addSocialSecurityNumber(new SocialSecurityNumber(dh, "555-12-3456"));
+    person.addDateOfBirth(new DateOfBirth(dh, new SimpleDateFormat("yyyyMMdd").parse("19700215")));
+    person.addGender(new Gender(dh, "m"));
+    person.addGender(new Gender(dh, "U"));
+    person.addAddress(new Address(dh, "1 MAIN ST", null, "PHILADELPHIA", "PA", "19104-2345"));
+    person.addTelephoneNumber(new TelephoneNumber(dh, "(215)", "555-0100"));
+    person.addDriversLicense(new DriversLicense(dh, " pa123 ", "PA", null));
+
+    PersonMatchView view = person.getMatchView();
+    assertEquals(Arrays.asList(new String[] { "JOHNSON" }), Arrays.asList(view.getLastNames()));
+    assertEquals(Arrays.asList(new String[] { "ROBERT" }), Arrays.asList(view.getFirstNames()));
+    assertEquals("555123456", view.getSSNs()[0]);
+    assertEquals(19700215, view.getDobDates()[0]);
+    assertEquals(1970, PersonMatchView.year(view.getDobDates()[0]));
+    assertEquals(2, PersonMatchView.month(view.getDobDates()[0]));
+    assertEquals(15, PersonMatchView.day(view.getDobDates()[0]));
+    // days since 1970-01-01
+    assertEquals(45, view.getDobEpochDays()[0]);
+    assertEquals(Arrays.asList(new String[] { "M" }), Arrays.asList(view.getGenders()));
+    assertEquals("19104", view.getZips()[0]);
+    assertEquals("2155550100", view.getPhones()[0]);
+    assertEquals("PA123", view.getLicenses()[0]);
+  }
+
+  public void testEmptyPerson() {
+    PersonMatchView view = new Person().getMatchView();
+    assertEquals(0, view.getLastNames().length);
+    assertEquals(0, view.getSSNs().length);
+    assertEquals(0, view.getDobDates().length);
+    assertEquals(0, view.getZips().length);
+  }
+
+  public void testViewIsCachedUntilPersonChanges() {
+    Person person = new Person();
+    person.addName(new PersonName(dh, "JOHNSON", "ROBERT", null));
+    PersonMatchView view = person.getMatchView();
+    assertSame(view, person.getMatchView());
+
+    person.addSocialSecurityNumber(new SocialSecurityNumber(dh, "555123456"));
+    PersonMatchView changed = person.getMatchView();
+    assertNotSame(view, changed);
+    assertEquals(1, changed.getSSNs().length);
+  }
+}
@@ -0,0 +1,66 @@
+package org.openempi.data;
+
+import java.text.SimpleDateFormat;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the phonetic and DOB/ZIP search keys of SearchKeyGenerator.
+ */
+public class SearchKeyGeneratorTest extends TestCase {
+
+  private final SearchKeyGenerator gen = SearchKeyGenerator.getInstance();
+
+  public void testSoundex() {
+    assertEquals("R163", gen.soundex("Robert"));
+    assertEquals("R163", gen.soundex("Rupert"));
+    assertEquals("T522", gen.soundex("Tymczak"));
+    assertEquals("J525", gen.soundex("johnson"));
+  }
+
+  public void testNysiis() {
+    assertEquals("JANSAN", gen.nysiis("Johnson"));
+    assertEquals("WALAN", gen.nysiis("Williams"));
+    assertEquals("NAGT", gen.nysiis("Knight"));
+    assertEquals("FALAP", gen.nysiis("Phillips"));
+    assertEquals("BRAN", gen.nysiis("Brown"));
+    assertEquals("BRAN", gen.nysiis("Browne"));
+  }
+
+  public void testNysiisIsTruncated() {
+    assertEquals("MCDANA", gen.nysiis("MacDonald"));
+  }
+
+  public void testDoubleMetaphone() {
+    assertEquals("PRN", gen.doubleMetaphone("Brown"));
+    assertEquals(gen.doubleMetaphone("Smith"), gen.doubleMetaphone("Smyth"));
+  }
+
+  public void testNonLettersAreIgnored() {
+    assertEquals(gen.soundex("OBrien"), gen.soundex("O'Brien "));
+    assertNull(gen.soundex("1234"));
+    assertNull(gen.nysiis(""));
+    assertNull(gen.doubleMetaphone(null));
+  }
+
+  public void testNameKeysUseSurname() {
+    DocumentHeader dh = new DocumentHeader();
+    PersonName name = new PersonName(dh, "JOHNSON", "ROBERT", null);
+    assertEquals("JNSN", gen.generateNameKey(name));
+    assertEquals("J525", gen.generateSoundexKey(name));
+    assertEquals("JANSAN", gen.generateNysiisKey(name));
+
+    PersonName firstOnly = new PersonName(dh, null, "ROBERT", null);
+    assertEquals("R163", gen.generateSoundexKey(firstOnly));
+    assertNull(gen.generateSoundexKey(null));
+  }
+
+  public void testDobZipKey() throws Exception {
+    java.util.Date dob = new SimpleDateFormat("yyyyMMdd").parse("19700215");
+    assertEquals("1970021519104", gen.generateDobZipKey(dob, "19104-2345"));
+    assertEquals("1970021519104", gen.generateDobZipKey(dob, " 19104"));
+    assertNull(gen.generateDobZipKey(dob, "191"));
+    assertNull(gen.generateDobZipKey(null, "19104"));
+    assertNull(gen.generateDobZipKey(dob, null));
+  }
+}
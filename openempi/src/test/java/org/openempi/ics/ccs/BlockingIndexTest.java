@@ -0,0 +1,122 @@
+package org.openempi.ics.ccs;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.openempi.data.Address;
+import org.openempi.data.DateOfBirth;
+import org.openempi.data.DocumentHeader;
+import org.openempi.data.DomainIdentifier;
+import org.openempi.data.Person;
+import org.openempi.data.PersonIdentifier;
+import org.openempi.data.PersonName;
+import org.openempi.data.SocialSecurityNumber;
+import org.openempi.ics.db.AttributeType;
+import org.openempi.ics.db.QueryParam;
+import org.openempi.ics.db.QueryParamList;
+
+/**
+ * Tests the configuration of the blocking passes and the queries they
+ * build.  Running the queries needs a database and is not covered here.
+ */
+public class BlockingIndexTest extends TestCase
+{
+    private Person person;
+
+    protected void setUp() throws Exception
+    {
+        DocumentHeader dh = new DocumentHeader();
+        person = new Person();
+        person.addName(new PersonName(dh, "JOHNSON", "ROBERT", null));
+        person.addDateOfBirth(new DateOfBirth(dh, new SimpleDateFormat("yyyyMMdd").parse("19700215")));
+        person.addAddress(new Address(dh, "1 MAIN ST", null, "PHILADELPHIA", "PA", "19104"));
+        person.addSocialSecurityNumber(new SocialSecurityNumber(dh, "555123456"));
+        person.addPersonIdentifier(new PersonIdentifier(dh, "MRN1",
+                new DomainIdentifier(dh, "HOSP", "HOSP", "L"), new DomainIdentifier(dh, "HOSP", "HOSP", "L"), null));
+    }
+
+    public void testPassNames()
+    {
+        BlockingIndex index = new BlockingIndex(" phonetic_year, SSN ,,dob_zip,identifier,no.such.Pass");
+        List passes = index.getPasses();
+        assertEquals(4, passes.size());
+        assertEquals("phonetic_year", ((BlockingPass) passes.get(0)).getName());
+        assertEquals("ssn", ((BlockingPass) passes.get(1)).getName());
+        assertEquals("dob_zip", ((BlockingPass) passes.get(2)).getName());
+        assertEquals("identifier", ((BlockingPass) passes.get(3)).getName());
+    }
+
+    public void testPassClassName()
+    {
+        BlockingIndex index = new BlockingIndex(BlockingIndex.NamePrefixPass.class.getName());
+        assertEquals("name_prefix", ((BlockingPass) index.getPasses().get(0)).getName());
+    }
+
+    public void testPhoneticYearPass()
+    {
+        QueryParamList params = new BlockingIndex.PhoneticYearPass().buildQuery(person);
+        assertEquals(1, params.size());
+        QueryParamList nameAndYear = (QueryParamList) params.get(0);
+        assertEquals(QueryParamList.AND_LIST, nameAndYear.getType());
+
+        QueryParamList keys = (QueryParamList) nameAndYear.get(0);
+        assertEquals(QueryParamList.OR_LIST, keys.getType());
+        assertParam(AttributeType.NAME_SEARCH_KEY, "JNSN", keys.get(0));
+        assertParam(AttributeType.NAME_SOUNDEX_KEY, "J525", keys.get(1));
+        assertParam(AttributeType.NAME_NYSIIS_KEY, "JANSAN", keys.get(2));
+
+        QueryParam year = (QueryParam) nameAndYear.get(1);
+        assertEquals(AttributeType.DATE_OF_BIRTH, year.getAttributeType());
+    }
+
+    public void testPhoneticPassWithoutDateOfBirth()
+    {
+        Person noDob = new Person();
+        noDob.addName(new PersonName(new DocumentHeader(), "JOHNSON", "ROBERT", null));
+        QueryParamList params = new BlockingIndex.PhoneticYearPass().buildQuery(noDob);
+        assertEquals(1, params.size());
+        assertEquals(3, ((QueryParamList) params.get(0)).size());
+    }
+
+    public void testSsnPass()
+    {
+        QueryParamList params = new BlockingIndex.SsnPass().buildQuery(person);
+        assertEquals(1, params.size());
+        assertParam(AttributeType.SOCIAL_SECURITY_NUMBER, "555123456", params.get(0));
+    }
+
+    public void testDobZipPass()
+    {
+        QueryParamList params = new BlockingIndex.DobZipPass().buildQuery(person);
+        assertEquals(1, params.size());
+        assertParam(AttributeType.DOB_ZIP_KEY, "1970021519104", params.get(0));
+    }
+
+    public void testIdentifierPass()
+    {
+        QueryParamList params = new BlockingIndex.IdentifierPass().buildQuery(person);
+        assertEquals(1, params.size());
+        QueryParamList id = (QueryParamList) params.get(0);
+        assertEquals(QueryParamList.AND_LIST, id.getType());
+        assertParam(AttributeType.PERSON_IDENTIFIER, "MRN1", id.get(0));
+        assertParam(AttributeType.AA_NAMESPACE_ID, "HOSP", id.get(1));
+    }
+
+    public void testEmptyPersonBuildsNoQueries()
+    {
+        Person empty = new Person();
+        BlockingIndex index = new BlockingIndex(BlockingIndex.DEFAULT_PASSES);
+        for (Object pass : index.getPasses())
+            assertEquals(0, ((BlockingPass) pass).buildQuery(empty).size());
+        assertEquals(0, new BlockingIndex(Arrays.asList(new Object[0])).query(null, null).size());
+    }
+
+    private static void assertParam(Integer type, Object value, Object param)
+    {
+        assertEquals(type, ((QueryParam) param).getAttributeType());
+        assertEquals(value, ((QueryParam) param).getValue());
+    }
+}
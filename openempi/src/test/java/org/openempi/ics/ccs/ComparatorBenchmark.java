@@ -0,0 +1,89 @@
+package org.openempi.ics.ccs;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Micro benchmark of the <code>StringComparator</code> implementations over
+ * a fixed set of name, street and date pairs.  For each comparator the
+ * pairs are compared in a warm up round and then in a measured round; the
+ * time and, where the JVM reports it, the memory allocated per comparison
+ * are printed.
+ * <p/>
+ * Usage: <code>ComparatorBenchmark [iterations]</code>
+ */
+public class ComparatorBenchmark
+{
+    public static final int DEFAULT_ITERATIONS = 200000;
+
+    private static final String[][] NAMES = {
+        { "MARTHA", "MARHTA" }, { "JONES", "JOHNSON" }, { "MACDONALD", "MCDONALD" },
+        { "SMITH", "SMYTHE" }, { "KATHERINE", "CATHERINE" }, { "WILLIAMS", "WILLIAMS" },
+        { "NGUYEN", "NGUEYN" }, { "ABRAHAMSON", "ABRAMSON" },
+    };
+
+    private static final String[][] STREETS = {
+        { "123 MAIN STREET", "123 MAIN ST" }, { "45 OAK AVENUE APT 2", "APT 2 45 OAK AVE" },
+        { "1600 PENNSYLVANIA AVE NW", "1600 PENNSILVANIA AVE" }, { "7 ELM RD", "9 BIRCH LN" },
+    };
+
+    private static final String[][] DATES = {
+        { "03121975", "12031975" }, { "03121975", "03121957" }, { "03121975", "03121985" },
+        { "03121975", "03211975" }, { "03121975", "03121975" }, { "03121975", "11201980" },
+    };
+
+    public static void main(String[] args)
+    {
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+
+        run("exact", new ExactComparator(), NAMES, iterations);
+        run("jaro_winkler", new JaroWinklerComparator(), NAMES, iterations);
+        run("levenshtein", new LevenshteinComparator(), NAMES, iterations);
+        run("qgram", new QGramComparator(), STREETS, iterations);
+        run("phonetic", new PhoneticComparator(), NAMES, iterations);
+        run("date_transposition", new DateTranspositionComparator(), DATES, iterations);
+    }
+
+    private static void run(String name, StringComparator comparator, String[][] pairs, int iterations)
+    {
+        // warm up, so the measured round runs compiled code
+        double sink = compareAll(comparator, pairs, iterations);
+
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        sink += compareAll(comparator, pairs, iterations);
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - bytes;
+
+        long ops = (long) iterations * pairs.length;
+        StringBuffer buf = new StringBuffer();
+        buf.append(name).append(": ");
+        buf.append((double) elapsed / ops).append(" ns/op");
+        if (bytes >= 0)
+            buf.append(", ").append((double) allocated / ops).append(" bytes/op");
+        buf.append(" (checksum ").append(sink).append(")");
+        System.out.println(buf.toString());
+    }
+
+    private static double compareAll(StringComparator comparator, String[][] pairs, int iterations)
+    {
+        double sum = 0.0;
+        for (int n = 0; n < iterations; n++) {
+            for (int i = 0; i < pairs.length; i++)
+                sum += comparator.compare(pairs[i][0], pairs[i][1]);
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread, -1 if the JVM does
+     * not report them.
+     */
+    private static long allocatedBytes()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+}
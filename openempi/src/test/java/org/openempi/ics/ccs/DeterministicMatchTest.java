@@ -0,0 +1,58 @@
+package org.openempi.ics.ccs;
+
+import junit.framework.TestCase;
+
+import org.openempi.data.Address;
+import org.openempi.data.DocumentHeader;
+import org.openempi.data.Person;
+import org.openempi.ics.utility.IcsTrace;
+
+/**
+ * Tests the deterministic rule set evaluated on the match views.
+ */
+public class DeterministicMatchTest extends TestCase
+{
+    private CorrelationSystem correlationSystem = new CorrelationSystem(IcsTrace.NONE);
+
+    public void testSsnAndNames() throws Exception
+    {
+        Person p1 = FellegiSunterScorerTest.person("JOHNSON", "ROBERT", "555123456", null, null);
+        Person p2 = FellegiSunterScorerTest.person("johnson", "ROBERT", "555-12-3456", null, null);
+        assertTrue(correlationSystem.matchDeterministic(p1, p2));
+
+        Person p3 = FellegiSunterScorerTest.person("WILLIAMS", "ROBERT", "555123456", null, null);
+        assertFalse(correlationSystem.matchDeterministic(p1, p3));
+    }
+
+    public void testSsnAndDateOfBirth() throws Exception
+    {
+        Person p1 = FellegiSunterScorerTest.person("JOHNSON", "ROBERT", "555123456", "19700215", null);
+        Person p2 = FellegiSunterScorerTest.person("WILLIAMS", "MARY", "555123456", "19700215", null);
+        assertTrue(correlationSystem.matchDeterministic(p1, p2));
+
+        Person p3 = FellegiSunterScorerTest.person("WILLIAMS", "MARY", "555123456", "19700216", null);
+        assertFalse(correlationSystem.matchDeterministic(p1, p3));
+    }
+
+    public void testSsnFirstNameYearAndZip() throws Exception
+    {
+        Person p1 = FellegiSunterScorerTest.person("JOHNSON", "ROBERT", "555123456", "19700215", null);
+        Person p2 = FellegiSunterScorerTest.person("WILLIAMS", "ROBERT", "555123456", "19700520", null);
+        assertFalse(correlationSystem.matchDeterministic(p1, p2));
+
+        p1.addAddress(new Address(new DocumentHeader(), "1 MAIN ST", null, "PHILADELPHIA", "PA", "19104"));
+        p2.addAddress(new Address(new DocumentHeader(), "9 ELM RD", null, "PHILADELPHIA", "PA", "19104-1111"));
+        assertTrue(correlationSystem.matchDeterministic(p1, p2));
+    }
+
+    public void testNamesAndDateOfBirth() throws Exception
+    {
+        Person p1 = FellegiSunterScorerTest.person("JOHNSON", "ROBERT", null, "19700215", null);
+        Person p2 = FellegiSunterScorerTest.person("JOHNSTON", "ROBERT", null, "19700215", null);
+        assertTrue(correlationSystem.matchDeterministic(p1, p2));
+
+        Person p3 = FellegiSunterScorerTest.person("JOHNSON", "ROBERT", null, null, null);
+        assertFalse(correlationSystem.matchDeterministic(p1, p3));
+        assertFalse(correlationSystem.matchDeterministic(p1, null));
+    }
+}
@@ -0,0 +1,151 @@
+package org.openempi.ics.ccs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.openempi.data.DateOfBirth;
+import org.openempi.data.DocumentHeader;
+import org.openempi.data.Gender;
+import org.openempi.data.Person;
+import org.openempi.data.PersonName;
+import org.openempi.data.SocialSecurityNumber;
+
+/**
+ * Tests the Fellegi-Sunter weights, patterns and classification.
+ */
+public class FellegiSunterScorerTest extends TestCase
+{
+    private static final double[] M = { 0.9, 0.9, 0.9, 0.9, 0.9, 0.9, 0.9, 0.9 };
+    private static final double[] U = { 0.1, 0.1, 0.1, 0.1, 0.5, 0.1, 0.1, 0.1 };
+
+    private static final double DELTA = 0.000001;
+
+    private FellegiSunterScorer scorer = new FellegiSunterScorer(M, U, 10.0, 3.0);
+
+    public void testPatternScore()
+    {
+        int[] pattern = new int[FellegiSunterScorer.FIELD_COUNT];
+        Arrays.fill(pattern, FellegiSunterScorer.MISSING);
+        assertEquals(0.0, scorer.score(pattern), DELTA);
+
+        // agree: log2(0.9 / 0.1)
+        pattern[FellegiSunterScorer.FIELD_SSN] = FellegiSunterScorer.AGREE;
+        assertEquals(log2(9.0), scorer.score(pattern), DELTA);
+
+        // disagree: log2(0.1 / 0.9)
+        pattern[FellegiSunterScorer.FIELD_DOB] = FellegiSunterScorer.DISAGREE;
+        assertEquals(0.0, scorer.score(pattern), DELTA);
+
+        // gender agreeing by chance half the time: log2(0.9 / 0.5)
+        pattern[FellegiSunterScorer.FIELD_GENDER] = FellegiSunterScorer.AGREE;
+        assertEquals(log2(1.8), scorer.score(pattern), DELTA);
+    }
+
+    public void testClassify()
+    {
+        assertEquals(FellegiSunterScorer.LINK, scorer.classify(10.0));
+        assertEquals(FellegiSunterScorer.REVIEW, scorer.classify(9.99));
+        assertEquals(FellegiSunterScorer.REVIEW, scorer.classify(3.0));
+        assertEquals(FellegiSunterScorer.NON_LINK, scorer.classify(2.99));
+    }
+
+    public void testThresholdsMustBeOrdered()
+    {
+        try {
+            new FellegiSunterScorer(M, U, 3.0, 10.0);
+            fail("Accepted a lower threshold above the upper one");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testComparePersons() throws Exception
+    {
+        Person p1 = person("JOHNSON", "ROBERT", "555123456", "19700215", "M");
+        Person p2 = person("JOHNSON", "ROBERT", "555123456", "19700215", "M");
+        Person p3 = person("WILLIAMS", "MARY", "555999999", "19810101", "F");
+
+        int[] same = scorer.compare(p1, p2);
+        assertEquals(FellegiSunterScorer.AGREE, same[FellegiSunterScorer.FIELD_LAST_NAME]);
+        assertEquals(FellegiSunterScorer.AGREE, same[FellegiSunterScorer.FIELD_SSN]);
+        assertEquals(FellegiSunterScorer.AGREE, same[FellegiSunterScorer.FIELD_DOB]);
+        assertEquals(FellegiSunterScorer.MISSING, same[FellegiSunterScorer.FIELD_ZIP]);
+
+        int[] different = scorer.compare(p1, p3);
+        assertEquals(FellegiSunterScorer.DISAGREE, different[FellegiSunterScorer.FIELD_LAST_NAME]);
+        assertEquals(FellegiSunterScorer.DISAGREE, different[FellegiSunterScorer.FIELD_GENDER]);
+
+        // the direct score agrees with the score of the pattern
+        assertEquals(scorer.score(same), scorer.score(p1, p2), DELTA);
+        assertEquals(scorer.score(different), scorer.score(p1, p3), DELTA);
+        assertEquals(FellegiSunterScorer.LINK, scorer.classify(scorer.score(p1, p2)));
+        assertEquals(FellegiSunterScorer.NON_LINK, scorer.classify(scorer.score(p1, p3)));
+    }
+
+    public void testNameTypoStillAgrees() throws Exception
+    {
+        Person p1 = person("JOHNSON", "ROBERT", null, null, null);
+        Person p2 = person("JOHNSTON", "ROBERT", null, null, null);
+        assertEquals(FellegiSunterScorer.AGREE, scorer.compare(p1, p2)[FellegiSunterScorer.FIELD_LAST_NAME]);
+    }
+
+    public void testWeightsRoundTrip() throws Exception
+    {
+        File file = File.createTempFile("fs-weights", ".properties");
+        try {
+            scorer.storeWeights(file, "test");
+            Properties props = new Properties();
+            InputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            FellegiSunterScorer loaded = new FellegiSunterScorer();
+            loaded.loadWeights(props);
+            for (int i = 0; i < FellegiSunterScorer.FIELD_COUNT; i++) {
+                assertEquals(M[i], loaded.getM(i), DELTA);
+                assertEquals(U[i], loaded.getU(i), DELTA);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testPartialWeightsKeepDefaults()
+    {
+        FellegiSunterScorer defaults = new FellegiSunterScorer();
+        FellegiSunterScorer loaded = new FellegiSunterScorer();
+        Properties props = new Properties();
+        props.setProperty("SSN.m", "0.5");
+        loaded.loadWeights(props);
+        assertEquals(0.5, loaded.getM(FellegiSunterScorer.FIELD_SSN), DELTA);
+        assertEquals(defaults.getU(FellegiSunterScorer.FIELD_SSN), loaded.getU(FellegiSunterScorer.FIELD_SSN), DELTA);
+        assertEquals(defaults.getM(FellegiSunterScorer.FIELD_DOB), loaded.getM(FellegiSunterScorer.FIELD_DOB), DELTA);
+    }
+
+    static Person person(String last, String first, String ssn, String dob, String gender) throws Exception
+    {
+        DocumentHeader dh = new DocumentHeader();
+        Person person = new Person();
+        person.addName(new PersonName(dh, last, first, null));
+        if (ssn != null)
+            person.addSocialSecurityNumber(new SocialSecurityNumber(dh, ssn));
+        if (dob != null)
+            person.addDateOfBirth(new DateOfBirth(dh, new SimpleDateFormat("yyyyMMdd").parse(dob)));
+        if (gender != null)
+            person.addGender(new Gender(dh, gender));
+        return person;
+    }
+
+    private static double log2(double x)
+    {
+        return Math.log(x) / Math.log(2.0);
+    }
+}
@@ -0,0 +1,60 @@
+package org.openempi.ics.ccs;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that EM recovers the m/u probabilities of a synthetic training set.
+ */
+public class FellegiSunterTrainerTest extends TestCase
+{
+    private static final double[] TRUE_M = { 0.95, 0.90, 0.98, 0.97, 0.98, 0.85, 0.80, 0.90 };
+    private static final double[] TRUE_U = { 0.02, 0.05, 0.01, 0.01, 0.50, 0.10, 0.01, 0.01 };
+    private static final double TRUE_PROPORTION = 0.2;
+
+    public void testTrainRecoversWeights()
+    {
+        FellegiSunterTrainer trainer = new FellegiSunterTrainer();
+        Random random = new Random(42);
+        for (int n = 0; n < 20000; n++) {
+            boolean match = random.nextDouble() < TRUE_PROPORTION;
+            int[] pattern = new int[FellegiSunterScorer.FIELD_COUNT];
+            for (int i = 0; i < pattern.length; i++) {
+                double p = match ? TRUE_M[i] : TRUE_U[i];
+                if (random.nextDouble() < 0.1)
+                    pattern[i] = FellegiSunterScorer.MISSING;
+                else
+                    pattern[i] = (random.nextDouble() < p) ? FellegiSunterScorer.AGREE : FellegiSunterScorer.DISAGREE;
+            }
+            trainer.addPattern(pattern);
+        }
+        assertEquals(20000, trainer.getPairCount());
+
+        int iterations = trainer.train();
+        assertTrue(iterations > 1);
+        assertTrue(iterations <= FellegiSunterTrainer.MAX_ITERATIONS);
+
+        assertEquals(TRUE_PROPORTION, trainer.getMatchProportion(), 0.02);
+        for (int i = 0; i < FellegiSunterScorer.FIELD_COUNT; i++) {
+            assertEquals(FellegiSunterScorer.FIELD_NAMES[i] + ".m", TRUE_M[i], trainer.getM(i), 0.03);
+            assertEquals(FellegiSunterScorer.FIELD_NAMES[i] + ".u", TRUE_U[i], trainer.getU(i), 0.03);
+        }
+
+        FellegiSunterScorer scorer = trainer.getScorer(10.0, 3.0);
+        int[] allAgree = new int[FellegiSunterScorer.FIELD_COUNT];
+        java.util.Arrays.fill(allAgree, FellegiSunterScorer.AGREE);
+        assertEquals(FellegiSunterScorer.LINK, scorer.classify(scorer.score(allAgree)));
+    }
+
+    public void testEmptyTrainingSetKeepsWeights()
+    {
+        FellegiSunterTrainer trainer = new FellegiSunterTrainer();
+        FellegiSunterScorer defaults = new FellegiSunterScorer();
+        trainer.train();
+        for (int i = 0; i < FellegiSunterScorer.FIELD_COUNT; i++) {
+            assertEquals(defaults.getM(i), trainer.getM(i), 0.0);
+            assertEquals(defaults.getU(i), trainer.getU(i), 0.0);
+        }
+    }
+}
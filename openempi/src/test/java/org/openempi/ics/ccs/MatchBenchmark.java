@@ -0,0 +1,158 @@
+package org.openempi.ics.ccs;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import org.openempi.data.Address;
+import org.openempi.data.DateOfBirth;
+import org.openempi.data.Person;
+import org.openempi.data.PersonName;
+import org.openempi.data.SocialSecurityNumber;
+
+/**
+ * Before/after benchmark of the deterministic match rules.  A person is
+ * matched against a set of synthetic candidates, first with the rules
+ * evaluated directly on the <code>Person</code> attributes (calendars built
+ * and strings normalized per comparison, as <code>CorrelationSystem</code>
+ * did before match views) and then with
+ * <code>CorrelationSystem.matchDeterministic</code> on the persons' match
+ * views.  Time and, where the JVM reports it, memory allocated per
+ * comparison are printed for both.
+ * <p/>
+ * Usage: <code>MatchBenchmark [candidates [rounds]]</code>
+ */
+public class MatchBenchmark
+{
+    public static final int DEFAULT_CANDIDATES = 2000;
+    public static final int DEFAULT_ROUNDS = 50;
+
+    private static final String[] LAST_NAMES = { "SMITH", "SMYTH", "JONES", "JOHNSON", "MILLER", "MULLER" };
+    private static final String[] FIRST_NAMES = { "JOHN", "JON", "MARY", "MARIE", "ROBERT", "ROBERTA" };
+
+    private CorrelationSystem correlationSystem = new CorrelationSystem();
+    private AttributeComparator comparator = new AttributeComparator();
+    private double nameAgreement = FellegiSunterScorer.DEFAULT_NAME_AGREEMENT;
+
+    public static void main(String[] args)
+    {
+        int candidates = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_CANDIDATES;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+
+        Person person = createPerson(0);
+        Person[] pool = new Person[candidates];
+        for (int i = 0; i < candidates; i++) {
+            pool[i] = createPerson(i);
+            // built once per candidate, as PersonIteratorJdbc does
+            pool[i].getMatchView();
+        }
+        person.getMatchView();
+
+        MatchBenchmark benchmark = new MatchBenchmark();
+        benchmark.run("before (Person attributes)", person, pool, rounds, false);
+        benchmark.run("after (match views)", person, pool, rounds, true);
+    }
+
+    private void run(String name, Person person, Person[] pool, int rounds, boolean views)
+    {
+        // warm up, so the measured round runs compiled code
+        int matches = matchAll(person, pool, rounds, views);
+
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        matches += matchAll(person, pool, rounds, views);
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - bytes;
+
+        long ops = (long) rounds * pool.length;
+        StringBuffer buf = new StringBuffer();
+        buf.append(name).append(": ");
+        buf.append((double) elapsed / ops).append(" ns/op");
+        if (bytes >= 0)
+            buf.append(", ").append((double) allocated / ops).append(" bytes/op");
+        buf.append(" (").append(matches / 2).append(" matches)");
+        System.out.println(buf.toString());
+    }
+
+    private int matchAll(Person person, Person[] pool, int rounds, boolean views)
+    {
+        int matches = 0;
+        for (int n = 0; n < rounds; n++) {
+            for (int i = 0; i < pool.length; i++) {
+                boolean match = views ? correlationSystem.matchDeterministic(person, pool[i])
+                                      : matchAttributes(person, pool[i]);
+                if (match)
+                    matches++;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * The deterministic rules evaluated on the Person attributes.
+     */
+    private boolean matchAttributes(Person person, Person candidate)
+    {
+        double SSN = 0.0, FN = 0.0, LN = 0.0, MB = 0.0, DB = 0.0, YB = 0.0, ZIP = 0.0;
+
+        SocialSecurityNumber ssn1 = (SocialSecurityNumber) person.getSocialSecurityNumbers().get(0);
+        SocialSecurityNumber ssn2 = (SocialSecurityNumber) candidate.getSocialSecurityNumbers().get(0);
+        SSN = comparator.compare(ssn1.getSSN(), ssn2.getSSN(), "");
+
+        PersonName name1 = (PersonName) person.getNames().get(0);
+        PersonName name2 = (PersonName) candidate.getNames().get(0);
+        if (comparator.compareNames(name1.getFirstName(), name2.getFirstName()) >= nameAgreement)
+            FN = 1.0;
+        if (comparator.compareNames(name1.getLastName(), name2.getLastName()) >= nameAgreement)
+            LN = 1.0;
+        if (SSN == 1.0 && FN == 1.0 && LN == 1.0)
+            return true;
+
+        GregorianCalendar c1 = new GregorianCalendar();
+        GregorianCalendar c2 = new GregorianCalendar();
+        c1.setTime(((DateOfBirth) person.getDatesOfBirth().get(0)).getDOB());
+        c2.setTime(((DateOfBirth) candidate.getDatesOfBirth().get(0)).getDOB());
+        if (c1.get(Calendar.YEAR) == c2.get(Calendar.YEAR))
+            YB = 1.0;
+        if (c1.get(Calendar.MONTH) == c2.get(Calendar.MONTH))
+            MB = 1.0;
+        if (c1.get(Calendar.DAY_OF_MONTH) == c2.get(Calendar.DAY_OF_MONTH))
+            DB = 1.0;
+        if (SSN == 1.0 && YB == 1.0 && MB == 1.0 && DB == 1.0)
+            return true;
+
+        Address address1 = (Address) person.getAddresses().get(0);
+        Address address2 = (Address) candidate.getAddresses().get(0);
+        ZIP = comparator.compare(address1.getZipCode(), address2.getZipCode(), "");
+        if (SSN == 1.0 && FN == 1.0 && YB == 1.0 && ZIP == 1.0)
+            return true;
+
+        return FN == 1.0 && LN == 1.0 && YB == 1.0 && MB == 1.0 && DB == 1.0;
+    }
+
+    private static Person createPerson(int i)
+    {
+        Person person = new Person();
+        person.addName(new PersonName(LAST_NAMES[i % LAST_NAMES.length],
+                                      FIRST_NAMES[(i / 3) % FIRST_NAMES.length], null));
+        person.addSocialSecurityNumber(new SocialSecurityNumber(String.valueOf(123456780 + i % 7)));
+        Calendar cal = new GregorianCalendar(1950 + i % 40, i % 12, 1 + i % 28);
+        person.addDateOfBirth(new DateOfBirth(new Date(cal.getTimeInMillis())));
+        person.addAddress(new Address(null, null, null, null, String.valueOf(19100 + i % 5)));
+        return person;
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread, -1 if the JVM does
+     * not report them.
+     */
+    private static long allocatedBytes()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+}
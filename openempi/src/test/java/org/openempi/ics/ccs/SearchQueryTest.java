@@ -0,0 +1,109 @@
+package org.openempi.ics.ccs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.openempi.data.DocumentHeader;
+import org.openempi.data.Person;
+import org.openempi.data.PersonName;
+import org.openempi.data.SearchKeyGenerator;
+import org.openempi.ics.db.AttributeType;
+import org.openempi.ics.db.QueryParam;
+import org.openempi.ics.db.QueryParamList;
+import org.openempi.ics.utility.IcsTrace;
+
+/**
+ * Tests the query parameters of PDQ searches and of correlation: a search
+ * matches names by prefix, correlation by phonetic key.
+ */
+public class SearchQueryTest extends TestCase
+{
+    private CorrelationSystem correlationSystem = new CorrelationSystem(IcsTrace.NONE);
+
+    public void testSearchMatchesLastNamePrefix() throws Exception
+    {
+        Person person = FellegiSunterScorerTest.person("Smi", null, null, null, null);
+        QueryParamList params = correlationSystem.buildQueryParams(person, true);
+
+        assertEquals(list("SMI%"), values(params, AttributeType.LAST_NAME_ALIAS));
+        assertTrue(values(params, AttributeType.FIRST_NAME_ALIAS).isEmpty());
+        assertTrue(values(params, AttributeType.NAME_SEARCH_KEY).isEmpty());
+    }
+
+    public void testSearchMatchesBothPrefixes() throws Exception
+    {
+        Person person = FellegiSunterScorerTest.person("SMITH", "JO", "555123456", null, null);
+        QueryParamList params = correlationSystem.buildQueryParams(person, true);
+
+        assertEquals(list("SMITH%"), values(params, AttributeType.LAST_NAME_ALIAS));
+        assertEquals(list("JO%"), values(params, AttributeType.FIRST_NAME_ALIAS));
+        assertEquals(list("555123456"), values(params, AttributeType.SOCIAL_SECURITY_NUMBER));
+        assertTrue(values(params, AttributeType.NAME_SEARCH_KEY).isEmpty());
+    }
+
+    public void testSearchWithSeveralNamesHasNoKeys() throws Exception
+    {
+        Person person = FellegiSunterScorerTest.person("SMITH", "JOHN", null, null, null);
+        person.addName(new PersonName(new DocumentHeader(), "JONES", "JOHN", null));
+        QueryParamList params = correlationSystem.buildQueryParams(person, true);
+
+        assertEquals(list("SMITH%", "JONES%"), values(params, AttributeType.LAST_NAME_ALIAS));
+        assertTrue(values(params, AttributeType.NAME_SEARCH_KEY).isEmpty());
+    }
+
+    public void testExactSearchMatchesWholeNames() throws Exception
+    {
+        Person person = FellegiSunterScorerTest.person("Smith", "Jo", "555123456", null, null);
+        QueryParamList params = correlationSystem.buildQueryParams(person, true, true);
+
+        assertEquals(list("SMITH"), values(params, AttributeType.LAST_NAME_ALIAS));
+        assertEquals(list("JO"), values(params, AttributeType.FIRST_NAME_ALIAS));
+        assertEquals(list("555123456"), values(params, AttributeType.SOCIAL_SECURITY_NUMBER));
+        assertTrue(values(params, AttributeType.NAME_SEARCH_KEY).isEmpty());
+    }
+
+    public void testCorrelationMatchesNameKey() throws Exception
+    {
+        Person person = FellegiSunterScorerTest.person("SMITH", "JOHN", null, null, null);
+        QueryParamList params = correlationSystem.buildQueryParams(person, false);
+
+        String key = SearchKeyGenerator.getInstance().generateNameKey((PersonName) person.getNames().get(0));
+        assertNotNull(key);
+        assertEquals(list(key), values(params, AttributeType.NAME_SEARCH_KEY));
+        assertTrue(values(params, AttributeType.LAST_NAME_ALIAS).isEmpty());
+    }
+
+    /**
+     * Returns the values of an attribute in the parameters and the lists
+     * nested in them.
+     */
+    private static List values(QueryParamList params, Integer attributeType)
+    {
+        List values = new ArrayList();
+        for (int i = 0; i < params.size(); i++)
+        {
+            Object o = params.get(i);
+            if (o instanceof QueryParamList)
+                values.addAll(values((QueryParamList) o, attributeType));
+            else if (((QueryParam) o).getAttributeType().equals(attributeType))
+                values.add(((QueryParam) o).getValue());
+        }
+        return values;
+    }
+
+    private static List list(Object a)
+    {
+        List list = new ArrayList();
+        list.add(a);
+        return list;
+    }
+
+    private static List list(Object a, Object b)
+    {
+        List list = list(a);
+        list.add(b);
+        return list;
+    }
+}
@@ -0,0 +1,103 @@
+package org.openempi.ics.ccs;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests each built-in <code>StringComparator</code> and the factory.
+ */
+public class StringComparatorTest extends TestCase
+{
+    private static final double DELTA = 0.001;
+
+    public void testExact()
+    {
+        StringComparator c = new ExactComparator();
+        assertEquals(1.0, c.compare("Smith", "SMITH"), DELTA);
+        assertEquals(0.0, c.compare("SMITH", "SMYTH"), DELTA);
+        assertEquals(0.0, c.compare(null, "SMITH"), DELTA);
+    }
+
+    public void testJaroWinkler()
+    {
+        StringComparator c = new JaroWinklerComparator();
+        assertEquals(0.961, c.compare("MARTHA", "MARHTA"), DELTA);
+        assertEquals(0.840, c.compare("DWAYNE", "DUANE"), DELTA);
+        assertEquals(0.813, c.compare("DIXON", "DICKSONX"), DELTA);
+        assertEquals(1.0, c.compare("martha", "MARTHA"), DELTA);
+        assertEquals(0.0, c.compare("ABC", "XYZ"), DELTA);
+        assertEquals(0.0, c.compare("", "MARTHA"), DELTA);
+    }
+
+    public void testLevenshtein()
+    {
+        LevenshteinComparator c = new LevenshteinComparator(3);
+        assertEquals(3, c.distance("KITTEN", "SITTING"));
+        assertEquals(1.0 - 3.0 / 7.0, c.compare("kitten", "SITTING"), DELTA);
+        assertEquals(1.0, c.compare("SMITH", "smith"), DELTA);
+
+        // beyond the maximum distance the values are scored 0
+        LevenshteinComparator bounded = new LevenshteinComparator(2);
+        assertEquals(0.0, bounded.compare("KITTEN", "SITTING"), DELTA);
+        assertEquals(1.0 - 1.0 / 5.0, bounded.compare("SMITH", "SMYTH"), DELTA);
+    }
+
+    public void testQGram()
+    {
+        StringComparator c = new QGramComparator();
+        assertEquals(1.0, c.compare("MAIN ST", "main st"), DELTA);
+        assertTrue(c.compare("45 OAK AVENUE APT 2", "APT 2 45 OAK AVENUE") > 0.8);
+        assertTrue(c.compare("7 ELM RD", "9 BIRCH LN") < 0.2);
+        assertEquals(0.0, c.compare(null, "MAIN ST"), DELTA);
+    }
+
+    public void testPhonetic()
+    {
+        StringComparator c = new PhoneticComparator();
+        assertEquals(1.0, c.compare("SMITH", "SMYTH"), DELTA);
+        assertEquals(1.0, c.compare("BROWN", "browne"), DELTA);
+        assertEquals(0.0, c.compare("SMITH", "JONES"), DELTA);
+    }
+
+    public void testDateTransposition()
+    {
+        StringComparator c = new DateTranspositionComparator();
+        assertEquals(1.0, c.compare("03121975", "03121975"), DELTA);
+        // month and day swapped
+        assertEquals(DateTranspositionComparator.TRANSPOSITION_SCORE, c.compare("03121975", "12031975"), DELTA);
+        // adjacent digits transposed
+        assertEquals(DateTranspositionComparator.TRANSPOSITION_SCORE, c.compare("03121975", "03121957"), DELTA);
+        // one digit wrong
+        assertEquals(DateTranspositionComparator.TYPO_SCORE, c.compare("03121975", "03121985"), DELTA);
+        // year off by two
+        assertEquals(DateTranspositionComparator.TYPO_SCORE, c.compare("03121975", "03121977"), DELTA);
+        // year off by a century
+        assertEquals(DateTranspositionComparator.TYPO_SCORE, c.compare("03121975", "03121875"), DELTA);
+        assertEquals(0.0, c.compare("03121975", "11201980"), DELTA);
+        assertEquals(0.0, c.compare("03121975", "3121975"), DELTA);
+    }
+
+    public void testFactory()
+    {
+        assertTrue(StringComparatorFactory.createComparator("jaro_winkler") instanceof JaroWinklerComparator);
+        assertTrue(StringComparatorFactory.createComparator(" QGRAM ") instanceof QGramComparator);
+        assertTrue(StringComparatorFactory.createComparator(ExactComparator.class.getName()) instanceof ExactComparator);
+        assertNull(StringComparatorFactory.createComparator("no.such.Comparator"));
+
+        StringComparatorFactory.reset();
+        assertTrue(StringComparatorFactory.getComparator(StringComparatorFactory.NAME) instanceof JaroWinklerComparator);
+        assertTrue(StringComparatorFactory.getComparator(StringComparatorFactory.DATE) instanceof DateTranspositionComparator);
+        assertSame(StringComparatorFactory.getComparator(StringComparatorFactory.NAME),
+                   StringComparatorFactory.getComparator(StringComparatorFactory.NAME));
+    }
+
+    public void testPhoneNumbersAreExact()
+    {
+        StringComparatorFactory.reset();
+        assertTrue(StringComparatorFactory.getComparator(StringComparatorFactory.PHONE) instanceof ExactComparator);
+
+        AttributeComparator c = new AttributeComparator();
+        assertEquals(1.0, c.comparePhoneNumbers("555-1234", "(555) 1234"), DELTA);
+        assertEquals(0.0, c.comparePhoneNumbers("555-1234", "555-1235"), DELTA);
+        assertEquals(0.0, c.comparePhoneNumbers("", "555-1234"), DELTA);
+    }
+}
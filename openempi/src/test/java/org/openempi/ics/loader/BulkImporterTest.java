@@ -0,0 +1,230 @@
+package org.openempi.ics.loader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.openempi.data.Person;
+import org.openempi.data.PersonIdentifier;
+import org.openempi.ics.pids.PersonIdService;
+import org.openempi.ics.pids.PersonIdServiceException;
+
+/**
+ * Tests the rejects and the checkpoint of the BulkImporter, loading a CDC
+ * file into a PersonIdService that records the identifiers added.  The test
+ * ICS.properties load in chunks of 3 lines on a single partition, so that
+ * the persons are added in file order.
+ */
+public class BulkImporterTest extends TestCase
+{
+    private File file;
+    private File checkpoint;
+    private File rejects;
+
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("bulkimport", ".csv");
+        checkpoint = new File(file.getPath() + ".checkpoint");
+        rejects = new File(file.getPath() + ".rejects");
+        Writer out = new FileWriter(file);
+        out.write("LAST,FIRST,MIDDLE,SUFFIX,DOB,GENDER,END\n");
+        for (int line = 1; line <= 10; line++)
+        {
+            String dob = (line == 4) ? "notadate" : "197001" + (10 + line);
+            out.write("NAME" + line + ",FIRST" + line + ",,," + dob + ",M,X\n");
+        }
+        out.close();
+    }
+
+    protected void tearDown()
+    {
+        file.delete();
+        checkpoint.delete();
+        rejects.delete();
+    }
+
+    public void testImportsAndRejects() throws Exception
+    {
+        RecordingService service = new RecordingService();
+        service.errorLine = 9;
+        new RecordingLoader(service).importFile(file);
+
+        assertEquals(Arrays.asList(1, 2, 3, 5, 6, 7, 8, 10), service.added());
+        List<String> rejected = readRejects();
+        assertEquals(2, rejected.size());
+        assertTrue(rejected.get(0), rejected.get(0).startsWith("4\tInvalid date of birth"));
+        assertTrue(rejected.get(0), rejected.get(0).endsWith("\tNAME4,FIRST4,,,notadate,M,X"));
+        assertTrue(rejected.get(1), rejected.get(1).startsWith("9\tduplicate\tNAME9,"));
+        assertFalse(checkpoint.exists());
+    }
+
+    public void testRestartsFromCheckpoint() throws Exception
+    {
+        RecordingService failing = new RecordingService();
+        failing.failLine = 7;
+        try
+        {
+            new RecordingLoader(failing).importFile(file);
+            fail("the import should stop");
+        }
+        catch (RuntimeException expected)
+        {
+        }
+        // the chunks of lines 0-2 and 3-5 were done before line 7 failed
+        assertEquals(6, readCheckpoint());
+        assertTrue(failing.added().containsAll(Arrays.asList(1, 2, 3, 5)));
+        assertFalse(failing.added().contains(7));
+        assertEquals(1, readRejects().size());
+
+        RecordingService service = new RecordingService();
+        new RecordingLoader(service).importFile(file);
+        assertEquals(Arrays.asList(6, 7, 8, 9, 10), service.added());
+        // the reject of the first run is kept, not written again
+        List<String> rejected = readRejects();
+        assertEquals(1, rejected.size());
+        assertTrue(rejected.get(0), rejected.get(0).startsWith("4\t"));
+        assertFalse(checkpoint.exists());
+    }
+
+    public void testDatabaseErrorStopsTheImport() throws Exception
+    {
+        RecordingService failing = new RecordingService();
+        failing.dbErrorLine = 8;
+        try
+        {
+            new RecordingLoader(failing).importFile(file);
+            fail("the import should stop");
+        }
+        catch (RuntimeException expected)
+        {
+        }
+        // the persons before line 8 were added, but the error is not a reject
+        assertTrue(failing.added().containsAll(Arrays.asList(1, 2, 3, 5, 6, 7)));
+        assertFalse(failing.added().contains(8));
+        assertEquals(6, readCheckpoint());
+        assertEquals(1, readRejects().size());
+
+        // the batch is added again from the start of its chunk
+        RecordingService service = new RecordingService();
+        new RecordingLoader(service).importFile(file);
+        assertEquals(Arrays.asList(6, 7, 8, 9, 10), service.added());
+        assertEquals(1, readRejects().size());
+        assertFalse(checkpoint.exists());
+    }
+
+    private int readCheckpoint() throws IOException
+    {
+        assertTrue(checkpoint.exists());
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(checkpoint);
+        try
+        {
+            properties.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+        return Integer.parseInt(properties.getProperty("line"));
+    }
+
+    private List<String> readRejects() throws IOException
+    {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(rejects));
+        try
+        {
+            String line;
+            while ((line = in.readLine()) != null)
+                lines.add(line);
+        }
+        finally
+        {
+            in.close();
+        }
+        return lines;
+    }
+
+    /**
+     * The CDC loader, adding to a given service.
+     */
+    private static class RecordingLoader extends CDCFileLoader
+    {
+        private final PersonIdService service;
+
+        RecordingLoader(RecordingService handler)
+        {
+            service = (PersonIdService) Proxy.newProxyInstance(PersonIdService.class.getClassLoader(),
+                    new Class[] { PersonIdService.class }, handler);
+        }
+
+        protected PersonIdService createPersonIdService()
+        {
+            return service;
+        }
+    }
+
+    /**
+     * Records the lines of the persons added, the CDC identifier being
+     * derived from the line.  Fails the batch holding failLine, fails with a
+     * database error after adding the persons before dbErrorLine, and
+     * reports an error for the person of errorLine.
+     */
+    private static class RecordingService implements InvocationHandler
+    {
+        private final List<Integer> added = new ArrayList<Integer>();
+        volatile int failLine = -1;
+        volatile int errorLine = -1;
+        volatile int dbErrorLine = -1;
+
+        synchronized List<Integer> added()
+        {
+            return new ArrayList<Integer>(added);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            if (!"addPersons".equals(method.getName()))
+                throw new UnsupportedOperationException(method.getName());
+            Person[] persons = (Person[]) args[0];
+            int[] lines = new int[persons.length];
+            for (int i = 0; i < persons.length; i++)
+            {
+                PersonIdentifier pid = (PersonIdentifier) persons[i].getPersonIdentifiers().get(0);
+                lines[i] = Integer.parseInt(pid.getId()) - 100000 + 1;
+                if (lines[i] == failLine)
+                    throw new RemoteException("service down");
+            }
+            String[] errors = new String[persons.length];
+            synchronized (this)
+            {
+                for (int i = 0; i < lines.length; i++)
+                {
+                    if (lines[i] == dbErrorLine)
+                        throw new PersonIdServiceException(new SQLException("deadlock"));
+                    if (lines[i] == errorLine)
+                        errors[i] = "duplicate";
+                    else
+                        added.add(lines[i]);
+                }
+            }
+            return errors;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.openempi.ics.pids;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.openempi.data.DocumentHeader;
+import org.openempi.data.DomainIdentifier;
+import org.openempi.data.Person;
+import org.openempi.data.PersonIdentifier;
+
+/**
+ * Tests the lookups of PersonCache and their invalidation.
+ */
+public class PersonCacheTest extends TestCase
+{
+    private PersonCache cache = PersonCache.getInstance();
+
+    protected void setUp()
+    {
+        cache.clear();
+    }
+
+    public void testKeyedByIdDomainAndFacility()
+    {
+        Person person = person("12", "MRN1");
+        List persons = new ArrayList();
+        persons.add(person);
+        cache.put(pid("MRN1", "HOSP", "FAC"), persons);
+
+        assertSame(persons, cache.getPid(pid("MRN1", "HOSP", "FAC")));
+        assertNull(cache.getPid(pid("MRN1", "HOSP", "OTHER")));
+        assertNull(cache.getPid(pid("MRN1", "OTHER", "FAC")));
+        assertNull(cache.getPid(pid("MRN2", "HOSP", "FAC")));
+        assertSame(person, cache.getOid(12));
+    }
+
+    public void testRemoveDropsLookupsOfThePerson()
+    {
+        List persons = new ArrayList();
+        persons.add(person("12", "MRN1"));
+        cache.put(pid("MRN1", "HOSP", "FAC"), persons);
+        cache.put(pid("SSN1", "SSA", "FAC"), persons);
+
+        // the stored person no longer carries the identifiers looked up
+        cache.remove(person("12", "MRN9"));
+        assertNull(cache.getPid(pid("MRN1", "HOSP", "FAC")));
+        assertNull(cache.getPid(pid("SSN1", "SSA", "FAC")));
+        assertNull(cache.getOid(12));
+    }
+
+    public void testRemoveKeepsLookupsOfOtherPersons()
+    {
+        List first = new ArrayList();
+        first.add(person("12", "MRN1"));
+        List second = new ArrayList();
+        second.add(person("13", "MRN2"));
+        cache.put(pid("MRN1", "HOSP", "FAC"), first);
+        cache.put(pid("MRN2", "HOSP", "FAC"), second);
+
+        cache.remove(new Person[] { person("12", "MRN1") });
+        assertNull(cache.getPid(pid("MRN1", "HOSP", "FAC")));
+        assertSame(second, cache.getPid(pid("MRN2", "HOSP", "FAC")));
+        assertNotNull(cache.getOid(13));
+    }
+
+    public void testEmptyLookupIsRemovedByIdentifier()
+    {
+        cache.put(pid("MRN1", "HOSP", "FAC"), new ArrayList());
+        assertNotNull(cache.getPid(pid("MRN1", "HOSP", "FAC")));
+
+        cache.remove(person(null, "MRN1"));
+        assertNull(cache.getPid(pid("MRN1", "HOSP", "FAC")));
+    }
+
+    private static PersonIdentifier pid(String id, String domain, String facility)
+    {
+        return new PersonIdentifier(new DocumentHeader(), id,
+                new DomainIdentifier(domain), new DomainIdentifier(facility), null);
+    }
+
+    private static Person person(String oid, String mrn)
+    {
+        Person person = new Person();
+        if (oid != null)
+            person.setOid(oid);
+        person.addPersonIdentifier(pid(mrn, "HOSP", "FAC"));
+        return person;
+    }
+}
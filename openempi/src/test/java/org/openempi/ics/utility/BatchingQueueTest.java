@@ -0,0 +1,230 @@
+package org.openempi.ics.utility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the writer threads of BatchingQueue and its overflow policies,
+ * against a queue that records the saved items and can hold the writer
+ * inside its first save to fill the queue.
+ */
+public class BatchingQueueTest extends TestCase
+{
+    private static final long TIMEOUT = 10000;
+
+    private RecordingQueue queue;
+
+    protected void tearDown() throws Exception
+    {
+        if (queue != null)
+        {
+            queue.release();
+            queue.close(TIMEOUT);
+        }
+    }
+
+    public void testSavesQueuedItemsInBatchesOnClose()
+    {
+        queue = start(100, 10, 50, BatchingQueue.BLOCK);
+        for (int i = 0; i < 5; i++)
+            queue.add("I" + i);
+        queue.close(TIMEOUT);
+
+        assertEquals(Arrays.asList("I0", "I1", "I2", "I3", "I4"), queue.saved());
+        long[] stats = queue.getStatistics();
+        assertEquals(5, stats[BatchingQueue.STAT_QUEUED]);
+        assertEquals(5, stats[BatchingQueue.STAT_WRITTEN]);
+        assertTrue(stats[BatchingQueue.STAT_BATCHES] > 0);
+        assertEquals(0, stats[BatchingQueue.STAT_DROPPED]);
+        assertEquals(0, stats[BatchingQueue.STAT_BACKLOG]);
+    }
+
+    public void testDropOldestWhenFull() throws Exception
+    {
+        queue = start(2, 1, 1, "drop_oldest");
+        queue.hold();
+        queue.add("I0");
+        queue.awaitHeld();
+        for (int i = 1; i < 5; i++)
+            queue.add("I" + i);
+        assertEquals(2, queue.getStatistics()[BatchingQueue.STAT_DROPPED]);
+        assertEquals(2, queue.getStatistics()[BatchingQueue.STAT_BACKLOG]);
+
+        queue.release();
+        queue.close(TIMEOUT);
+        assertEquals(Arrays.asList("I0", "I3", "I4"), queue.saved());
+        assertEquals(3, queue.getStatistics()[BatchingQueue.STAT_WRITTEN]);
+    }
+
+    public void testCallerSavesWhenFull() throws Exception
+    {
+        queue = start(1, 1, 1, BatchingQueue.CALLER);
+        queue.hold();
+        queue.add("I0");
+        queue.awaitHeld();
+        queue.add("I1");
+        queue.add("I2");
+        // saved on this thread while the writer is still held
+        assertEquals(Collections.singletonList("I2"), queue.saved());
+        assertEquals(Thread.currentThread().getName(), queue.threads().get(0));
+
+        queue.release();
+        queue.close(TIMEOUT);
+        assertEquals(Arrays.asList("I2", "I0", "I1"), queue.saved());
+        assertEquals(0, queue.getStatistics()[BatchingQueue.STAT_DROPPED]);
+    }
+
+    public void testBlockWaitsForRoom() throws Exception
+    {
+        queue = start(1, 1, 1, BatchingQueue.BLOCK);
+        queue.hold();
+        queue.add("I0");
+        queue.awaitHeld();
+        queue.add("I1");
+        Thread caller = new Thread()
+        {
+            public void run()
+            {
+                queue.add("I2");
+            }
+        };
+        caller.start();
+        caller.join(200);
+        assertTrue("the caller waits while the queue is full", caller.isAlive());
+
+        queue.release();
+        caller.join(TIMEOUT);
+        assertFalse(caller.isAlive());
+        queue.close(TIMEOUT);
+        assertEquals(Arrays.asList("I0", "I1", "I2"), queue.saved());
+        assertEquals(0, queue.getStatistics()[BatchingQueue.STAT_DROPPED]);
+    }
+
+    public void testFailedBatchIsSavedOneAtATime()
+    {
+        queue = start(100, 10, 50, BatchingQueue.BLOCK);
+        queue.failing = "BAD";
+        queue.add("I0");
+        queue.add("BAD");
+        queue.add("I1");
+        queue.close(TIMEOUT);
+
+        assertEquals(Arrays.asList("I0", "I1"), queue.saved());
+        long[] stats = queue.getStatistics();
+        assertEquals(2, stats[BatchingQueue.STAT_WRITTEN]);
+        assertEquals(1, stats[BatchingQueue.STAT_DROPPED]);
+        assertTrue(stats[BatchingQueue.STAT_BATCH_FAILURES] > 0);
+        assertEquals(0, stats[BatchingQueue.STAT_BATCHES]);
+    }
+
+    public void testAddWhenClosedIsSavedByCaller()
+    {
+        queue = start(10, 1, 1, BatchingQueue.BLOCK);
+        queue.close(TIMEOUT);
+        assertFalse(queue.isRunning());
+        queue.add("I0");
+        assertEquals(Collections.singletonList("I0"), queue.saved());
+        assertEquals(Thread.currentThread().getName(), queue.threads().get(0));
+        assertEquals(0, queue.getStatistics()[BatchingQueue.STAT_QUEUED]);
+        assertEquals(1, queue.getStatistics()[BatchingQueue.STAT_WRITTEN]);
+    }
+
+    public void testIdleWhileNothingQueued() throws Exception
+    {
+        queue = start(10, 1, 1, BatchingQueue.BLOCK);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (queue.idle < 3 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(queue.idle >= 3);
+    }
+
+    private static RecordingQueue start(int queueSize, int batchSize, long flushMillis, String overflowPolicy)
+    {
+        RecordingQueue queue = new RecordingQueue(queueSize, batchSize, flushMillis, overflowPolicy);
+        queue.start();
+        return queue;
+    }
+
+    /**
+     * Records each saved item and the thread saving it.
+     */
+    private static class RecordingQueue extends BatchingQueue<String>
+    {
+        private final List<String> saved = new ArrayList<String>();
+        private final List<String> threads = new ArrayList<String>();
+        private final CountDownLatch held = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private volatile boolean holding = false;
+        volatile String failing = null;
+        volatile int idle = 0;
+
+        RecordingQueue(int queueSize, int batchSize, long flushMillis, String overflowPolicy)
+        {
+            super("RecordingQueue", queueSize, batchSize, flushMillis, overflowPolicy, 1);
+        }
+
+        void hold()
+        {
+            holding = true;
+        }
+
+        void awaitHeld() throws InterruptedException
+        {
+            assertTrue("save never started", held.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+
+        void release()
+        {
+            released.countDown();
+        }
+
+        synchronized List<String> saved()
+        {
+            return new ArrayList<String>(saved);
+        }
+
+        synchronized List<String> threads()
+        {
+            return new ArrayList<String>(threads);
+        }
+
+        protected boolean save(List<String> batch)
+        {
+            if (holding)
+            {
+                holding = false;
+                held.countDown();
+                try
+                {
+                    released.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    return false;
+                }
+            }
+            if (batch.contains(failing))
+                return false;
+            synchronized (this)
+            {
+                for (String item : batch)
+                {
+                    saved.add(item);
+                    threads.add(Thread.currentThread().getName());
+                }
+            }
+            return true;
+        }
+
+        protected void idle()
+        {
+            idle++;
+        }
+    }
+}
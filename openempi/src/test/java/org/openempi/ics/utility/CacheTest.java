@@ -0,0 +1,163 @@
+package org.openempi.ics.utility;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the limits, ordering and statistics of Cache.  The caches are built
+ * with a single segment so that the per segment limits are the cache limits.
+ */
+public class CacheTest extends TestCase
+{
+    public void testPutGetRemove()
+    {
+        Cache cache = new Cache();
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put(null, "3");
+        cache.put("c", null);
+        assertEquals(2, cache.size());
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("c"));
+        assertNull(cache.get(null));
+
+        cache.put("a", "one");
+        assertEquals("one", cache.get("a"));
+        assertEquals("one", cache.remove("a"));
+        assertNull(cache.remove("a"));
+        assertEquals(1, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    public void testSizeEvictsEldestInserted()
+    {
+        Cache cache = new Cache(1);
+        cache.setSize(2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+        assertNull(cache.get("a"));
+        assertEquals("2", cache.get("b"));
+        assertEquals("3", cache.get("c"));
+        assertEquals(1, cache.getStatistics()[Cache.STAT_EVICTIONS]);
+    }
+
+    public void testSizeEvictsLeastRecentlyUsed()
+    {
+        Cache cache = new Cache(1);
+        cache.setLRU(true);
+        cache.setSize(2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+    }
+
+    public void testShrinkingSizeTrims()
+    {
+        Cache cache = new Cache(1);
+        for (int i = 0; i < 10; i++)
+            cache.put("k" + i, "v" + i);
+        cache.setSize(3);
+        assertEquals(3, cache.size());
+        assertEquals("v9", cache.get("k9"));
+    }
+
+    public void testWeight()
+    {
+        Cache cache = new Cache(1);
+        cache.setWeigher(new Cache.Weigher() {
+            public int weigh(Object key, Object value)
+            {
+                return ((String) value).length();
+            }
+        });
+        cache.setMaxWeight(5);
+        cache.put("a", "xxx");
+        cache.put("b", "xx");
+        assertEquals(2, cache.size());
+        cache.put("c", "x");
+        assertNull(cache.get("a"));
+        assertEquals("xx", cache.get("b"));
+        assertEquals("x", cache.get("c"));
+
+        // replacing a value replaces its weight
+        cache.put("b", "xxxx");
+        assertEquals(2, cache.size());
+    }
+
+    public void testAge() throws Exception
+    {
+        Cache cache = new Cache(1);
+        cache.setAgeMillis(20);
+        cache.put("a", "1");
+        assertEquals("1", cache.get("a"));
+        Thread.sleep(50);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getStatistics()[Cache.STAT_EXPIRATIONS]);
+    }
+
+    public void testRemovalListener()
+    {
+        final List removed = new ArrayList();
+        Cache cache = new Cache(1);
+        cache.setSize(1);
+        cache.setRemovalListener(new Cache.RemovalListener() {
+            public void removed(Object key, Object value)
+            {
+                removed.add(key + "=" + value);
+            }
+        });
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.remove("b");
+        assertEquals("[a=1, b=2]", removed.toString());
+    }
+
+    public void testStatistics()
+    {
+        Cache cache = new Cache();
+        cache.put("a", "1");
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+        long[] stats = cache.getStatistics();
+        assertEquals(2, stats[Cache.STAT_HITS]);
+        assertEquals(1, stats[Cache.STAT_MISSES]);
+
+        cache.resetStatistics();
+        stats = cache.getStatistics();
+        assertEquals(0, stats[Cache.STAT_HITS]);
+        assertEquals(0, stats[Cache.STAT_MISSES]);
+    }
+
+    public void testInvalidLimits()
+    {
+        Cache cache = new Cache();
+        try
+        {
+            cache.setSize(-1);
+            fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+        try
+        {
+            cache.setAgeMillis(-1);
+            fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.openempi.ics.utility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.openempi.data.Person;
+
+/**
+ * Tests how IcsEventLogger saves its events through its BatchingQueue,
+ * against a logger that records the saved events instead of reaching the
+ * database.  The overflow policies are tested by BatchingQueueTest.
+ */
+public class IcsEventLoggerTest extends TestCase
+{
+    private static final long TIMEOUT = 10000;
+    private static final Pattern PERSON = Pattern.compile("CURR PERSON=([^,]*),");
+
+    private RecordingLogger logger;
+
+    protected void tearDown() throws Exception
+    {
+        if (logger != null)
+            logger.close(TIMEOUT);
+    }
+
+    public void testSavesQueuedEventsInBatchesOnClose()
+    {
+        logger = new RecordingLogger(100, 10, 50, IcsEventLogger.BLOCK);
+        for (int i = 0; i < 5; i++)
+            logger.personAdded(person("P" + i));
+        logger.close(TIMEOUT);
+
+        assertEquals(Arrays.asList("P0", "P1", "P2", "P3", "P4"), logger.saved());
+        long[] stats = logger.getStatistics();
+        assertEquals(5, stats[IcsEventLogger.STAT_QUEUED]);
+        assertEquals(5, stats[IcsEventLogger.STAT_WRITTEN]);
+        assertTrue(stats[IcsEventLogger.STAT_BATCHES] > 0);
+        assertEquals(0, stats[IcsEventLogger.STAT_DROPPED]);
+        assertEquals(0, stats[IcsEventLogger.STAT_BACKLOG]);
+    }
+
+    public void testFailedBatchIsSavedOneAtATime()
+    {
+        logger = new RecordingLogger(100, 10, 50, IcsEventLogger.BLOCK);
+        logger.failBatches = true;
+        logger.failing = "BAD";
+        logger.personAdded(person("P0"));
+        logger.personAdded(person("BAD"));
+        logger.personAdded(person("P1"));
+        logger.close(TIMEOUT);
+
+        assertEquals(Arrays.asList("P0", "P1"), logger.saved());
+        long[] stats = logger.getStatistics();
+        assertEquals(2, stats[IcsEventLogger.STAT_WRITTEN]);
+        assertEquals(1, stats[IcsEventLogger.STAT_DROPPED]);
+        assertTrue(stats[IcsEventLogger.STAT_BATCH_FAILURES] > 0);
+        assertEquals(0, stats[IcsEventLogger.STAT_BATCHES]);
+    }
+
+    public void testEventAfterCloseIsSavedByCaller()
+    {
+        logger = new RecordingLogger(10, 1, 1, IcsEventLogger.BLOCK);
+        logger.close(TIMEOUT);
+        logger.personRemoved(person("P0"));
+        assertEquals(Collections.singletonList("P0"), logger.saved());
+        assertEquals(Thread.currentThread().getName(), logger.threads().get(0));
+        assertEquals(0, logger.getStatistics()[IcsEventLogger.STAT_QUEUED]);
+    }
+
+    private static Person person(String oid)
+    {
+        Person person = new Person();
+        person.setOid(oid);
+        return person;
+    }
+
+    /**
+     * Records the person of each saved event and the thread saving it.
+     */
+    private static class RecordingLogger extends IcsEventLogger
+    {
+        private final List<String> saved = new ArrayList<String>();
+        private final List<String> threads = new ArrayList<String>();
+        volatile boolean failBatches = false;
+        volatile String failing = null;
+
+        RecordingLogger(int queueSize, int batchSize, long flushMillis, String overflowPolicy)
+        {
+            super(queueSize, batchSize, flushMillis, overflowPolicy, 1);
+        }
+
+        synchronized List<String> saved()
+        {
+            return new ArrayList<String>(saved);
+        }
+
+        synchronized List<String> threads()
+        {
+            return new ArrayList<String>(threads);
+        }
+
+        boolean save(IcsEvent event)
+        {
+            Matcher m = PERSON.matcher(event.toString());
+            assertTrue(event.toString(), m.find());
+            if (m.group(1).equals(failing))
+                return false;
+            synchronized (this)
+            {
+                saved.add(m.group(1));
+                threads.add(Thread.currentThread().getName());
+            }
+            return true;
+        }
+
+        boolean save(List<IcsEvent> events)
+        {
+            if (failBatches)
+                return false;
+            for (IcsEvent event : events)
+                save(event);
+            return true;
+        }
+    }
+}
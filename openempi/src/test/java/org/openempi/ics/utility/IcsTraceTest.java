@@ -0,0 +1,212 @@
+package org.openempi.ics.utility;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.openempi.data.DomainIdentifier;
+import org.openempi.data.Person;
+import org.openempi.data.PersonIdentifier;
+
+/**
+ * Tests the sampling of IcsTrace and the JSON lines it writes to the
+ * ICS_TRACE category, captured by an appender.
+ */
+public class IcsTraceTest extends TestCase
+{
+    private Logger traceLog = Logger.getLogger("ICS_TRACE");
+    private Capture capture;
+    private Level level;
+    private boolean additive;
+
+    protected void setUp()
+    {
+        capture = new Capture();
+        level = traceLog.getLevel();
+        additive = traceLog.getAdditivity();
+        traceLog.addAppender(capture);
+        traceLog.setLevel(Level.INFO);
+        traceLog.setAdditivity(false);
+        IcsTrace.enable();
+    }
+
+    protected void tearDown()
+    {
+        IcsTrace.end();
+        IcsTrace.disable();
+        traceLog.removeAppender(capture);
+        traceLog.setLevel(level);
+        traceLog.setAdditivity(additive);
+    }
+
+    public void testSampled()
+    {
+        assertTrue(IcsTrace.sampled(1.0));
+        assertTrue(IcsTrace.sampled(2.0));
+        for (int i = 0; i < 1000; i++)
+        {
+            assertFalse(IcsTrace.sampled(0.0));
+            assertFalse(IcsTrace.sampled(-1.0));
+        }
+        int sampled = 0;
+        for (int i = 0; i < 10000; i++)
+        {
+            if (IcsTrace.sampled(0.25))
+                sampled++;
+        }
+        assertTrue("sampled " + sampled, sampled > 2000 && sampled < 3000);
+    }
+
+    public void testQuote()
+    {
+        assertEquals("null", quote(null));
+        assertEquals("\"\"", quote(""));
+        assertEquals("\"plain\"", quote("plain"));
+        assertEquals("\"a \\\"b\\\" \\\\c\"", quote("a \"b\" \\c"));
+        assertEquals("\"1\\n2\\r3\\t4\"", quote("1\n2\r3\t4"));
+        assertEquals("\"\\u0000\\u001f\"", quote("\u0000\u001f"));
+        assertEquals("\"caf\u00e9\"", quote("caf\u00e9"));
+        assertEquals("\"42\"", quote(Integer.valueOf(42)));
+    }
+
+    public void testNotRecordedWhenDisabled()
+    {
+        IcsTrace.disable();
+        assertSame(IcsTrace.NONE, IcsTrace.begin("test", "MSG1"));
+        assertSame(IcsTrace.NONE, IcsTrace.current());
+        assertSame(IcsTrace.NONE, IcsTrace.open(IcsTrace.ADD_PERSON, person("1")));
+        IcsTrace.NONE.add("ignored");
+        IcsTrace.NONE.save();
+        IcsTrace.end();
+        assertTrue(capture.lines.isEmpty());
+    }
+
+    public void testTransactionIsWrittenOnEnd()
+    {
+        IcsTrace trace = IcsTrace.begin("PixHandler", "MSG\"1");
+        assertTrue(trace.isRecording());
+        assertSame(trace, IcsTrace.current());
+        long start = trace.startStage();
+        trace.endStage("pid_search", start);
+        trace.add("line 1\nline 2");
+
+        // open() joins the transaction, save() leaves it to end()
+        IcsTrace joined = IcsTrace.open(IcsTrace.ADD_PERSON, person("7"));
+        assertSame(trace, joined);
+        joined.save();
+        assertTrue(capture.lines.isEmpty());
+
+        IcsTrace.end();
+        assertSame(IcsTrace.NONE, IcsTrace.current());
+        assertEquals(1, capture.lines.size());
+        String json = (String) capture.lines.get(0);
+        assertTrue(json, json.startsWith("{\"time\":\""));
+        assertTrue(json, json.endsWith("]}"));
+        assertTrue(json, json.indexOf(",\"name\":\"PixHandler\",\"correlationId\":\"MSG\\\"1\",\"thread\":") > 0);
+        assertTrue(json, json.indexOf("\"stages\":[{\"name\":\"pid_search\",\"offsetMicros\":") > 0);
+        assertTrue(json, json.indexOf("\"message\":\"line 1\\nline 2\"}") > 0);
+        assertTrue(json, json.indexOf("\"message\":\"ADD_PERSON\"}") > 0);
+        assertTrue(json, json.indexOf("\"person\":{\"id\":\"7\",\"pids\":[\"7@AA.FAC\"]}}") > 0);
+        assertBalanced(json);
+
+        // written once
+        IcsTrace.end();
+        assertEquals(1, capture.lines.size());
+    }
+
+    public void testOpenWithoutTransactionIsWrittenOnSave()
+    {
+        IcsTrace trace = IcsTrace.open(IcsTrace.MERGE_PERSON, null);
+        assertTrue(trace.isRecording());
+        assertSame(IcsTrace.NONE, IcsTrace.current());
+        trace.add("merging");
+        trace.save();
+        trace.save();
+
+        assertEquals(1, capture.lines.size());
+        String json = (String) capture.lines.get(0);
+        assertTrue(json, json.indexOf("\"name\":\"MERGE_PERSON\",\"correlationId\":null") > 0);
+        assertTrue(json, json.indexOf("\"stages\":[]") > 0);
+        assertTrue(json, json.indexOf("\"message\":\"merging\"") > 0);
+        assertBalanced(json);
+    }
+
+    private static String quote(Object value)
+    {
+        StringBuilder sb = new StringBuilder();
+        IcsTrace.quote(sb, value);
+        return sb.toString();
+    }
+
+    private static Person person(String oid)
+    {
+        PersonIdentifier pid = new PersonIdentifier();
+        pid.setId(oid);
+        pid.setAssigningAuthority(new DomainIdentifier("AA"));
+        pid.setAssigningFacility(new DomainIdentifier("FAC"));
+        Person person = new Person();
+        person.setOid(oid);
+        person.addPersonIdentifier(pid);
+        return person;
+    }
+
+    /**
+     * Checks that the brackets and braces outside the strings match.
+     */
+    private static void assertBalanced(String json)
+    {
+        StringBuilder open = new StringBuilder();
+        boolean inString = false;
+        for (int i = 0; i < json.length(); i++)
+        {
+            char c = json.charAt(i);
+            if (inString)
+            {
+                if (c == '\\')
+                    i++;
+                else if (c == '"')
+                    inString = false;
+            }
+            else if (c == '"')
+                inString = true;
+            else if (c == '{' || c == '[')
+                open.append(c);
+            else if (c == '}' || c == ']')
+            {
+                assertTrue(json, open.length() > 0);
+                char o = open.charAt(open.length() - 1);
+                assertEquals(json, (c == '}') ? '{' : '[', o);
+                open.setLength(open.length() - 1);
+            }
+        }
+        assertFalse(json, inString);
+        assertEquals(json, 0, open.length());
+    }
+
+    /**
+     * Keeps the messages logged.
+     */
+    private static class Capture extends AppenderSkeleton
+    {
+        final List lines = new ArrayList();
+
+        protected void append(LoggingEvent event)
+        {
+            lines.add(event.getRenderedMessage());
+        }
+
+        public boolean requiresLayout()
+        {
+            return false;
+        }
+
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.openempi.ics.utility;
+
+import junit.framework.TestCase;
+
+import org.openempi.ics.utility.metrics.Metrics;
+
+/**
+ * Tests the sections of Profile and the timers they record into.  Each test
+ * uses its own section names, as the timers are shared.
+ */
+public class ProfileTest extends TestCase
+{
+    protected void setUp()
+    {
+        Profile.clearAll();
+        Profile.enable();
+    }
+
+    protected void tearDown()
+    {
+        Profile.disable();
+        Profile.clearAll();
+    }
+
+    public void testSectionIsTimed()
+    {
+        Profile.begin("ProfileTest.timed");
+        Profile.end("ProfileTest.timed");
+        Profile.begin("ProfileTest.timed");
+        Profile.end("ProfileTest.timed");
+        assertEquals(2, Metrics.timer("ProfileTest.timed").getCount());
+    }
+
+    public void testNestedSections()
+    {
+        Profile.begin("ProfileTest.outer");
+        Profile.begin("ProfileTest.inner");
+        Profile.end("ProfileTest.inner");
+        Profile.end("ProfileTest.outer");
+        assertEquals(1, Metrics.timer("ProfileTest.outer").getCount());
+        assertEquals(1, Metrics.timer("ProfileTest.inner").getCount());
+    }
+
+    public void testUnendedSectionIsDroppedByEnclosingEnd()
+    {
+        Profile.begin("ProfileTest.enclosing");
+        Profile.begin("ProfileTest.unended");
+        Profile.end("ProfileTest.enclosing");
+        Profile.end("ProfileTest.unended");
+        assertEquals(1, Metrics.timer("ProfileTest.enclosing").getCount());
+        assertEquals(0, Metrics.timer("ProfileTest.unended").getCount());
+    }
+
+    public void testEndWithoutBeginIsIgnored()
+    {
+        Profile.end("ProfileTest.unbegun");
+        assertEquals(0, Metrics.timer("ProfileTest.unbegun").getCount());
+    }
+
+    public void testDisabledRecordsNothing()
+    {
+        Profile.disable();
+        Profile.begin("ProfileTest.disabled");
+        Profile.end("ProfileTest.disabled");
+        assertEquals(0, Metrics.timer("ProfileTest.disabled").getCount());
+    }
+
+    public void testDepthIsCapped()
+    {
+        Profile.begin("ProfileTest.outermost");
+        Profile.begin("ProfileTest.kept");
+        for (int i = 0; i < Profile.MAX_DEPTH - 2; i++)
+            Profile.begin("ProfileTest.leaked");
+        // one more drops the outermost section
+        Profile.begin("ProfileTest.leaked");
+        Profile.end("ProfileTest.outermost");
+        assertEquals(0, Metrics.timer("ProfileTest.outermost").getCount());
+        Profile.end("ProfileTest.kept");
+        assertEquals(1, Metrics.timer("ProfileTest.kept").getCount());
+
+        for (int i = 0; i < 10 * Profile.MAX_DEPTH; i++)
+            Profile.begin("ProfileTest.leaked");
+        Profile.begin("ProfileTest.last");
+        Profile.end("ProfileTest.last");
+        assertEquals(1, Metrics.timer("ProfileTest.last").getCount());
+    }
+
+    public void testNamesBuiltAtRunTime()
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            String name = new StringBuffer("ProfileTest.").append("built").toString();
+            Profile.begin(name);
+            Profile.end(new String(name));
+        }
+        assertEquals(3, Metrics.timer("ProfileTest.built").getCount());
+    }
+}
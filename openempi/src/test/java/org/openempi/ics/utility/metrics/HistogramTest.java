@@ -0,0 +1,98 @@
+package org.openempi.ics.utility.metrics;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the buckets, percentiles and windows of Histogram.
+ */
+public class HistogramTest extends TestCase
+{
+    private static final long HOUR = 3600 * 1000L;
+
+    public void testSmallValuesHaveTheirOwnBucket()
+    {
+        for (int v = 0; v < 16; v++)
+        {
+            assertEquals(v, Histogram.bucket(v));
+            assertEquals(v, Histogram.highestEquivalent(v));
+        }
+        assertEquals(16, Histogram.bucket(16));
+        assertEquals(16, Histogram.highestEquivalent(16));
+        assertEquals(32, Histogram.bucket(32));
+        assertEquals(32, Histogram.bucket(33));
+        assertEquals(33, Histogram.highestEquivalent(32));
+        assertEquals(111, Histogram.bucket(1000));
+        assertEquals(1023, Histogram.highestEquivalent(111));
+    }
+
+    public void testBucketsAreContiguous()
+    {
+        int last = Histogram.bucket(1L << 40);
+        for (int b = 0; b < last; b++)
+        {
+            long highest = Histogram.highestEquivalent(b);
+            assertEquals(b, Histogram.bucket(highest));
+            assertEquals(b + 1, Histogram.bucket(highest + 1));
+        }
+    }
+
+    public void testBucketIsWithinSixPercent()
+    {
+        for (long v = 1; v < (1L << 40); v = v * 3 + 1)
+        {
+            long highest = Histogram.highestEquivalent(Histogram.bucket(v));
+            assertTrue(v + " -> " + highest, highest >= v);
+            assertTrue(v + " -> " + highest, highest - v <= v / 16);
+        }
+    }
+
+    public void testLargeValuesGoToTheLastBucket()
+    {
+        int last = Histogram.bucket((1L << 41) - 1);
+        assertEquals(last, Histogram.bucket(1L << 41));
+        assertEquals(last, Histogram.bucket(Long.MAX_VALUE));
+    }
+
+    public void testQuantiles()
+    {
+        Histogram histogram = new Histogram("test", HOUR);
+        assertEquals(0, histogram.getP50());
+        for (int v = 1; v <= 100; v++)
+            histogram.record(v);
+        histogram.record(-5);
+
+        assertEquals(101, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(100, histogram.getMax());
+        assertEquals(0, histogram.getValueAtQuantile(0));
+        long p50 = histogram.getP50();
+        assertTrue("p50 = " + p50, p50 >= 50 && p50 <= 53);
+        long p90 = histogram.getP90();
+        assertTrue("p90 = " + p90, p90 >= 90 && p90 <= 95);
+        assertEquals(99, histogram.getP99());
+        // never above the maximum recorded
+        assertEquals(100, histogram.getValueAtQuantile(1));
+    }
+
+    public void testPreviousWindowIsCounted() throws Exception
+    {
+        Histogram histogram = new Histogram("test", 200);
+        histogram.record(5);
+        Thread.sleep(250);
+        assertEquals(5, histogram.getP50());
+    }
+
+    public void testBothWindowsStale() throws Exception
+    {
+        Histogram histogram = new Histogram("test", 200);
+        histogram.record(5);
+        Thread.sleep(450);
+        assertEquals(0, histogram.getP50());
+        // the totals cover every value
+        assertEquals(1, histogram.getCount());
+        assertEquals(5, histogram.getMax());
+
+        histogram.record(7);
+        assertEquals(7, histogram.getP50());
+    }
+}